@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of target/benchmarks.jar.
+ *
+ * java -jar target/benchmarks.jar [include regex] [result json file]
+ *
+ * Runs the matching benchmarks with the GC profiler and writes the results
+ * as JSON (default target/jmh-result.json) so that releases can be compared.
+ * If the first argument starts with "-", all arguments are passed to the
+ * regular JMH command line instead.
+ */
+public class BenchmarkRunner {
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].startsWith("-")) {
+			Main.main(args);
+			return;
+		}
+
+		String include = args.length > 0 ? args[0] : "edu.gatech.chai.omoponfhir.omopv5.r4.benchmark.*";
+		String result = args.length > 1 ? args[1] : "target/jmh-result.json";
+
+		Options options = new OptionsBuilder()
+				.include(include)
+				.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(result)
+				.build();
+
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,262 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.AllergyIntolerance;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.DocumentReference;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Immunization;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationRequest;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Specimen;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopAllergyIntolerance;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopCondition;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopDevice;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopDeviceUseStatement;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopDocumentReference;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopEncounter;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopImmunization;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedication;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedicationRequest;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedicationStatement;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopObservation;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopOrganization;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopPatient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopPractitioner;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopProcedure;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopSpecimen;
+import edu.gatech.chai.omoponfhir.omopv5.r4.model.MyDevice;
+import edu.gatech.chai.omoponfhir.omopv5.r4.model.MyDeviceUseStatement;
+import edu.gatech.chai.omoponfhir.omopv5.r4.model.USCorePatient;
+import edu.gatech.chai.omopv5.model.entity.CareSite;
+import edu.gatech.chai.omopv5.model.entity.Concept;
+import edu.gatech.chai.omopv5.model.entity.ConditionOccurrence;
+import edu.gatech.chai.omopv5.model.entity.DeviceExposure;
+import edu.gatech.chai.omopv5.model.entity.DrugExposure;
+import edu.gatech.chai.omopv5.model.entity.FImmunizationView;
+import edu.gatech.chai.omopv5.model.entity.FObservationView;
+import edu.gatech.chai.omopv5.model.entity.FPerson;
+import edu.gatech.chai.omopv5.model.entity.Note;
+import edu.gatech.chai.omopv5.model.entity.ProcedureOccurrence;
+import edu.gatech.chai.omopv5.model.entity.Provider;
+import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
+
+/**
+ * Read path: OMOP entity to FHIR resource with Omop*.constructFHIR. The
+ * services are StubServices, so this measures the mapping code only. Each
+ * invocation maps the next entity of a synthetic pool. Every mapper with a
+ * constructFHIR has a benchmark here.
+ *
+ * Medication goes through IngredientCache. The pool has only a few drug
+ * concepts, so after the first invocations it measures the cached path.
+ *
+ * Run with "-prof gc" (BenchmarkRunner does) to get the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConstructFhirBenchmark {
+	@Param({ "1024" })
+	public int poolSize;
+
+	private List<FPerson> persons;
+	private List<VisitOccurrence> visits;
+	private List<FObservationView> observations;
+	private List<DrugExposure> drugExposures;
+	private List<ConditionOccurrence> conditions;
+	private List<Note> notes;
+	private List<CareSite> careSites;
+	private List<Provider> providers;
+	private List<ProcedureOccurrence> procedures;
+	private List<FImmunizationView> immunizations;
+	private List<edu.gatech.chai.omopv5.model.entity.Observation> allergies;
+	private List<DeviceExposure> deviceExposures;
+	private List<edu.gatech.chai.omopv5.model.entity.Specimen> specimens;
+	private List<Concept> drugConcepts;
+
+	private int next = 0;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// Must happen before the mapper singletons are created.
+		StubApplicationContext.install();
+
+		SyntheticData data = new SyntheticData(42L);
+		persons = data.persons(Math.max(1, poolSize / 8));
+		visits = new ArrayList<VisitOccurrence>();
+		observations = new ArrayList<FObservationView>();
+		drugExposures = new ArrayList<DrugExposure>();
+		conditions = new ArrayList<ConditionOccurrence>();
+		notes = new ArrayList<Note>();
+		careSites = new ArrayList<CareSite>();
+		providers = new ArrayList<Provider>();
+		procedures = new ArrayList<ProcedureOccurrence>();
+		immunizations = new ArrayList<FImmunizationView>();
+		allergies = new ArrayList<edu.gatech.chai.omopv5.model.entity.Observation>();
+		deviceExposures = new ArrayList<DeviceExposure>();
+		specimens = new ArrayList<edu.gatech.chai.omopv5.model.entity.Specimen>();
+		drugConcepts = new ArrayList<Concept>();
+		for (int i = 0; i < poolSize; i++) {
+			CareSite careSite = data.careSite(i + 1L);
+			careSites.add(careSite);
+			Provider provider = data.provider(i + 1L, careSite);
+			providers.add(provider);
+		}
+		for (int i = 0; i < poolSize; i++) {
+			FPerson fPerson = persons.get(i % persons.size());
+			Provider provider = providers.get(i % providers.size());
+			VisitOccurrence visitOccurrence = data.visit(i + 1L, fPerson);
+			visits.add(visitOccurrence);
+			observations.add(data.observation(i + 1L, fPerson, visitOccurrence));
+			drugExposures.add(data.drugExposure(i + 1L, fPerson, visitOccurrence));
+			conditions.add(data.conditionOccurrence(i + 1L, fPerson, visitOccurrence));
+			notes.add(data.note(i + 1L, fPerson, visitOccurrence));
+			procedures.add(data.procedureOccurrence(i + 1L, fPerson, visitOccurrence, provider));
+			immunizations.add(data.immunization(i + 1L, fPerson, visitOccurrence, provider));
+			allergies.add(data.allergyObservation(i + 1L, fPerson, provider));
+			deviceExposures.add(data.deviceExposure(i + 1L, fPerson, provider));
+			specimens.add(data.specimen(i + 1L, fPerson));
+			drugConcepts.add(data.drugConcept());
+		}
+	}
+
+	private int nextIndex() {
+		next = (next + 1) % poolSize;
+		return next;
+	}
+
+	@Benchmark
+	public Observation observation() {
+		FObservationView entity = observations.get(nextIndex());
+		return OmopObservation.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public USCorePatient patient() {
+		FPerson entity = persons.get(nextIndex() % persons.size());
+		return OmopPatient.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public MedicationStatement medicationStatement() {
+		DrugExposure entity = drugExposures.get(nextIndex());
+		return OmopMedicationStatement.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public MedicationRequest medicationRequest() {
+		DrugExposure entity = drugExposures.get(nextIndex());
+		return OmopMedicationRequest.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Condition condition() {
+		ConditionOccurrence entity = conditions.get(nextIndex());
+		return OmopCondition.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Encounter encounter() {
+		VisitOccurrence entity = visits.get(nextIndex());
+		return OmopEncounter.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public DocumentReference documentReference() {
+		Note entity = notes.get(nextIndex());
+		return OmopDocumentReference.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Organization organization() {
+		CareSite entity = careSites.get(nextIndex());
+		return OmopOrganization.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Practitioner practitioner() {
+		Provider entity = providers.get(nextIndex());
+		return OmopPractitioner.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Procedure procedure() {
+		ProcedureOccurrence entity = procedures.get(nextIndex());
+		return OmopProcedure.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Immunization immunization() {
+		FImmunizationView entity = immunizations.get(nextIndex());
+		return OmopImmunization.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public AllergyIntolerance allergyIntolerance() {
+		edu.gatech.chai.omopv5.model.entity.Observation entity = allergies.get(nextIndex());
+		return OmopAllergyIntolerance.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public MyDevice device() {
+		DeviceExposure entity = deviceExposures.get(nextIndex());
+		return OmopDevice.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public MyDeviceUseStatement deviceUseStatement() {
+		DeviceExposure entity = deviceExposures.get(nextIndex());
+		return OmopDeviceUseStatement.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Specimen specimen() {
+		edu.gatech.chai.omopv5.model.entity.Specimen entity = specimens.get(nextIndex());
+		return OmopSpecimen.getInstance().constructFHIR(entity.getId(), entity);
+	}
+
+	@Benchmark
+	public Medication medication() {
+		Concept entity = drugConcepts.get(nextIndex());
+		return OmopMedication.getInstance().constructFHIR(entity.getId(), entity);
+	}
+}
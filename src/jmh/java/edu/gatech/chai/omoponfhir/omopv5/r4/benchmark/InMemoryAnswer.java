@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.gatech.chai.omopv5.dba.service.ConceptService;
+import edu.gatech.chai.omopv5.model.entity.Concept;
+
+/**
+ * Write path answer for StubServices. Nothing is stored, but the services
+ * behave as if the database accepted everything:
+ * <ul>
+ * <li>create gives the entity a new id and returns it, update returns it.</li>
+ * <li>findById returns a new entity of the service's type with that id.</li>
+ * <li>ConceptService searches find one concept for any code.</li>
+ * </ul>
+ * The entity type is derived from the service name (FPersonService -&gt;
+ * FPerson).
+ */
+public class InMemoryAnswer implements StubServices.Answer {
+	private static final String ENTITY_PACKAGE = "edu.gatech.chai.omopv5.model.entity.";
+
+	private final AtomicLong nextId = new AtomicLong(1000000L);
+	private final Map<Class<?>, Class<?>> entityClasses = new ConcurrentHashMap<Class<?>, Class<?>>();
+
+	@Override
+	public Object answer(Class<?> serviceClass, Method method, Object[] args) throws Throwable {
+		switch (method.getName()) {
+		case "create":
+			setId(args[0], nextId.incrementAndGet());
+			return args[0];
+		case "update":
+			return args[0];
+		case "removeById":
+			return args[0];
+		case "findById":
+			if (args[0] instanceof Long) {
+				return newEntity(serviceClass, (Long) args[0]);
+			}
+			return StubServices.Answer.DEFAULT;
+		case "searchWithParams":
+		case "searchByColumnString":
+			if (serviceClass == ConceptService.class) {
+				List<Concept> retVal = new ArrayList<Concept>();
+				retVal.add(SyntheticData.concept(nextId.incrementAndGet(), "None", "code", "Synthetic concept"));
+				return retVal;
+			}
+			return StubServices.Answer.DEFAULT;
+		default:
+			return StubServices.Answer.DEFAULT;
+		}
+	}
+
+	private Object newEntity(Class<?> serviceClass, Long id) throws ReflectiveOperationException {
+		Class<?> entityClass = entityClasses.computeIfAbsent(serviceClass, k -> {
+			String name = k.getSimpleName();
+			if (!name.endsWith("Service")) {
+				return Void.class;
+			}
+			try {
+				return Class.forName(ENTITY_PACKAGE + name.substring(0, name.length() - "Service".length()));
+			} catch (ClassNotFoundException e) {
+				return Void.class;
+			}
+		});
+		if (entityClass == Void.class) {
+			return null;
+		}
+
+		Object entity = entityClass.getDeclaredConstructor().newInstance();
+		setId(entity, id);
+
+		return entity;
+	}
+
+	private static void setId(Object entity, Long id) {
+		if (entity == null) {
+			return;
+		}
+
+		try {
+			Method getId = entity.getClass().getMethod("getId");
+			if (getId.invoke(entity) != null) {
+				return;
+			}
+			entity.getClass().getMethod("setId", Long.class).invoke(entity, id);
+		} catch (ReflectiveOperationException e) {
+			// Entity without a Long id (ex. composite keys). Leave it as it is.
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.dba.service.ConditionOccurrenceService;
+import edu.gatech.chai.omopv5.dba.service.DrugExposureService;
+import edu.gatech.chai.omopv5.dba.service.FObservationViewService;
+import edu.gatech.chai.omopv5.dba.service.FPersonService;
+import edu.gatech.chai.omopv5.dba.service.NoteService;
+import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
+import edu.gatech.chai.omopv5.dba.service.VisitOccurrenceService;
+import edu.gatech.chai.omopv5.model.entity.ConditionOccurrence;
+import edu.gatech.chai.omopv5.model.entity.DrugExposure;
+import edu.gatech.chai.omopv5.model.entity.FObservationView;
+import edu.gatech.chai.omopv5.model.entity.FPerson;
+import edu.gatech.chai.omopv5.model.entity.Note;
+import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
+
+/**
+ * StubServices answer that reads from a SyntheticOmopDatabase. findById,
+ * searchWithParams, searchWithoutParams and getSize run real SQL for the
+ * person, visit, observation, drug exposure, condition and note services.
+ * ParameterWrapper paths ("fPerson.id", "observationConcept.id", ...) are
+ * translated to columns. A parameter on a path or with an operator that is not
+ * translated throws UnsupportedOperationException, which the load test counts
+ * as an error of the request, rather than silently returning a wider result.
+ *
+ * Everything else (creates, updates, other services) goes to the delegate
+ * answer, so bundle posts exercise the mapping without growing the database.
+ *
+ * This replaces the omopv5-sql service layer, not just the database. The SQL
+ * here is hand written against a small SQLite schema, so the latencies show
+ * the cost of the mappers and their query counts, not of the real services'
+ * queries, connection pool or target database.
+ */
+public class JdbcAnswer implements StubServices.Answer {
+	private static final Logger logger = LoggerFactory.getLogger(JdbcAnswer.class);
+
+	private static final Set<String> OPERATORS = new HashSet<String>(
+			Arrays.asList("=", "!=", "<>", "<", ">", "<=", ">=", "like"));
+
+	private interface RowMapper {
+		Object map(ResultSet rs) throws SQLException;
+	}
+
+	private static class Table {
+		final String name;
+		final String idColumn;
+		final Map<String, String> columns = new HashMap<String, String>();
+		final RowMapper rowMapper;
+
+		Table(String name, String idColumn, RowMapper rowMapper, String... pathColumns) {
+			this.name = name;
+			this.idColumn = idColumn;
+			this.rowMapper = rowMapper;
+
+			columns.put("id", idColumn);
+			columns.put("fPerson.id", "person_id");
+			for (int i = 0; i + 1 < pathColumns.length; i += 2) {
+				columns.put(pathColumns[i], pathColumns[i + 1]);
+			}
+		}
+	}
+
+	private final SyntheticOmopDatabase database;
+	private final StubServices.Answer delegate;
+	private final Map<Class<?>, Table> tables = new HashMap<Class<?>, Table>();
+	private final Map<Long, FPerson> persons = new ConcurrentHashMap<Long, FPerson>();
+	private final Set<String> unmappedPaths = ConcurrentHashMap.newKeySet();
+	private final ThreadLocal<Connection> connections;
+
+	public JdbcAnswer(SyntheticOmopDatabase database, StubServices.Answer delegate) {
+		this.database = database;
+		this.delegate = delegate;
+		this.connections = ThreadLocal.withInitial(() -> {
+			try {
+				return database.connect();
+			} catch (SQLException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+
+		tables.put(FPersonService.class, new Table("person", "person_id", this::mapPerson));
+		tables.put(VisitOccurrenceService.class, new Table("visit_occurrence", "visit_occurrence_id", this::mapVisit));
+		tables.put(FObservationViewService.class, new Table("f_observation_view", "observation_id",
+				this::mapObservation, "visitOccurrence.id", "visit_occurrence_id", "observationConcept.id",
+				"observation_concept_id"));
+		tables.put(DrugExposureService.class, new Table("drug_exposure", "drug_exposure_id", this::mapDrugExposure,
+				"visitOccurrence.id", "visit_occurrence_id", "drugConcept.id", "drug_concept_id"));
+		tables.put(ConditionOccurrenceService.class, new Table("condition_occurrence", "condition_occurrence_id",
+				this::mapCondition, "visitOccurrence.id", "visit_occurrence_id", "conditionConcept.id",
+				"condition_concept_id"));
+		tables.put(NoteService.class, new Table("note", "note_id", this::mapNote, "visitOccurrence.id",
+				"visit_occurrence_id"));
+	}
+
+	public Set<Class<?>> getServiceClasses() {
+		return tables.keySet();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Object answer(Class<?> serviceClass, Method method, Object[] args) throws Throwable {
+		Table table = tables.get(serviceClass);
+		if (table == null) {
+			return delegate.answer(serviceClass, method, args);
+		}
+
+		switch (method.getName()) {
+		case "findById":
+			if (args[0] instanceof Long) {
+				List<Object> rows = query(table, "SELECT * FROM " + table.name + " WHERE " + table.idColumn + " = ?",
+						Arrays.asList((Object) args[0]));
+				return rows.isEmpty() ? null : rows.get(0);
+			}
+			return delegate.answer(serviceClass, method, args);
+		case "searchWithParams":
+			return search(table, (int) args[0], (int) args[1], (List<ParameterWrapper>) args[2]);
+		case "searchWithoutParams":
+			return search(table, (int) args[0], (int) args[1], null);
+		case "getSize":
+			if (args == null || args.length == 0) {
+				return count(table, null);
+			} else if (args[0] instanceof List) {
+				return count(table, (List<ParameterWrapper>) args[0]);
+			}
+			return delegate.answer(serviceClass, method, args);
+		default:
+			return delegate.answer(serviceClass, method, args);
+		}
+	}
+
+	private List<Object> search(Table table, int fromIndex, int toIndex, List<ParameterWrapper> paramList)
+			throws SQLException {
+		List<Object> values = new ArrayList<Object>();
+		StringBuilder sql = new StringBuilder("SELECT * FROM ").append(table.name);
+		where(table, paramList, sql, values);
+		sql.append(" ORDER BY ").append(table.idColumn);
+		if (toIndex > fromIndex) {
+			sql.append(" LIMIT ").append(toIndex - fromIndex).append(" OFFSET ").append(fromIndex);
+		}
+
+		return query(table, sql.toString(), values);
+	}
+
+	private Long count(Table table, List<ParameterWrapper> paramList) throws SQLException {
+		List<Object> values = new ArrayList<Object>();
+		StringBuilder sql = new StringBuilder("SELECT COUNT(*) FROM ").append(table.name);
+		where(table, paramList, sql, values);
+
+		try (PreparedStatement pstmt = prepare(sql.toString(), values); ResultSet rs = pstmt.executeQuery()) {
+			return rs.next() ? rs.getLong(1) : 0L;
+		}
+	}
+
+	/**
+	 * Wrappers are ANDed. Within a wrapper, parameters, operators and values
+	 * are parallel lists when they have the same length (ex. "visitOccurrence.id"
+	 * repeated for a list of ids). Otherwise every (parameter, operator) is
+	 * tried against every value. The terms are joined with the relationship.
+	 */
+	private void where(Table table, List<ParameterWrapper> paramList, StringBuilder sql, List<Object> values) {
+		if (paramList == null) {
+			return;
+		}
+
+		String conjunction = " WHERE ";
+		for (ParameterWrapper param : paramList) {
+			List<String> paths = param.getParameters();
+			List<String> operators = param.getOperators();
+			if (paths == null || operators == null || param.getValues() == null) {
+				continue;
+			}
+
+			boolean isLong = "Long".equals(param.getParameterType());
+			if (!isLong && !"String".equals(param.getParameterType())) {
+				throw unmapped(table, param.getParameterType() + " " + paths);
+			}
+
+			List<String> terms = new ArrayList<String>();
+			List<Object> termValues = new ArrayList<Object>();
+			for (int i = 0; i < paths.size() && i < operators.size(); i++) {
+				String column = table.columns.get(paths.get(i));
+				String operator = operators.get(i).toLowerCase();
+				if (column == null || !OPERATORS.contains(operator)) {
+					throw unmapped(table, paths.get(i) + " " + operator);
+				}
+
+				List<String> values = param.getValues();
+				if (paths.size() > 1 && paths.size() == values.size()) {
+					values = values.subList(i, i + 1);
+				}
+				for (String value : values) {
+					terms.add(column + " " + operator + " ?");
+					termValues.add(isLong ? (Object) Long.valueOf(value) : value);
+				}
+			}
+			if (terms.isEmpty()) {
+				continue;
+			}
+
+			String relationship = "and".equalsIgnoreCase(param.getRelationship()) ? " AND " : " OR ";
+			sql.append(conjunction).append("(").append(String.join(relationship, terms)).append(")");
+			values.addAll(termValues);
+			conjunction = " AND ";
+		}
+	}
+
+	private UnsupportedOperationException unmapped(Table table, String path) {
+		String message = "Search parameter not supported on " + table.name + ": " + path;
+		if (unmappedPaths.add(table.name + ":" + path)) {
+			logger.error(message);
+		}
+
+		return new UnsupportedOperationException(message);
+	}
+
+	private PreparedStatement prepare(String sql, List<Object> values) throws SQLException {
+		PreparedStatement pstmt = connections.get().prepareStatement(sql);
+		for (int i = 0; i < values.size(); i++) {
+			pstmt.setObject(i + 1, values.get(i));
+		}
+
+		return pstmt;
+	}
+
+	private List<Object> query(Table table, String sql, List<Object> values) throws SQLException {
+		List<Object> retVal = new ArrayList<Object>();
+		try (PreparedStatement pstmt = prepare(sql, values); ResultSet rs = pstmt.executeQuery()) {
+			while (rs.next()) {
+				retVal.add(table.rowMapper.map(rs));
+			}
+		}
+
+		return retVal;
+	}
+
+	private static Date getDate(ResultSet rs, String column) throws SQLException {
+		long time = rs.getLong(column);
+		return rs.wasNull() ? null : new Date(time);
+	}
+
+	private static Double getDouble(ResultSet rs, String column) throws SQLException {
+		double value = rs.getDouble(column);
+		return rs.wasNull() ? null : value;
+	}
+
+	private static Integer getInteger(ResultSet rs, String column) throws SQLException {
+		int value = rs.getInt(column);
+		return rs.wasNull() ? null : value;
+	}
+
+	/**
+	 * Persons referenced by other rows are read once and shared, like an entity
+	 * manager's first-level cache.
+	 */
+	private FPerson getPerson(ResultSet rs) throws SQLException {
+		Long personId = rs.getLong("person_id");
+		FPerson fPerson = persons.get(personId);
+		if (fPerson == null) {
+			List<Object> rows = query(tables.get(FPersonService.class),
+					"SELECT * FROM person WHERE person_id = ?", Arrays.asList((Object) personId));
+			if (rows.isEmpty()) {
+				fPerson = new FPerson();
+				fPerson.setId(personId);
+			} else {
+				fPerson = (FPerson) rows.get(0);
+			}
+			persons.put(personId, fPerson);
+		}
+
+		return fPerson;
+	}
+
+	private VisitOccurrence getVisitReference(ResultSet rs, FPerson fPerson) throws SQLException {
+		long visitId = rs.getLong("visit_occurrence_id");
+		if (rs.wasNull()) {
+			return null;
+		}
+
+		VisitOccurrence visitOccurrence = new VisitOccurrence();
+		visitOccurrence.setId(visitId);
+		visitOccurrence.setFPerson(fPerson);
+
+		return visitOccurrence;
+	}
+
+	private Object mapPerson(ResultSet rs) throws SQLException {
+		FPerson fPerson = new FPerson();
+		fPerson.setId(rs.getLong("person_id"));
+		fPerson.setFamilyName(rs.getString("family_name"));
+		fPerson.setGivenName1(rs.getString("given1_name"));
+		fPerson.setGivenName2(rs.getString("given2_name"));
+		fPerson.setGenderConcept(database.getConcept(rs, "gender_concept_id"));
+		fPerson.setRaceConcept(database.getConcept(rs, "race_concept_id"));
+		fPerson.setEthnicityConcept(database.getConcept(rs, "ethnicity_concept_id"));
+		fPerson.setYearOfBirth(getInteger(rs, "year_of_birth"));
+		fPerson.setMonthOfBirth(getInteger(rs, "month_of_birth"));
+		fPerson.setDayOfBirth(getInteger(rs, "day_of_birth"));
+		fPerson.setPersonSourceValue(rs.getString("person_source_value"));
+		fPerson.setActive((short) 1);
+
+		return fPerson;
+	}
+
+	private Object mapVisit(ResultSet rs) throws SQLException {
+		VisitOccurrence visitOccurrence = new VisitOccurrence();
+		visitOccurrence.setId(rs.getLong("visit_occurrence_id"));
+		visitOccurrence.setFPerson(getPerson(rs));
+		visitOccurrence.setVisitConcept(database.getConcept(rs, "visit_concept_id"));
+		visitOccurrence.setVisitTypeConcept(database.getConcept(rs, "visit_type_concept_id"));
+		visitOccurrence.setVisitStartDate(getDate(rs, "visit_start_date"));
+		visitOccurrence.setVisitStartDateTime(visitOccurrence.getVisitStartDate());
+		visitOccurrence.setVisitEndDate(getDate(rs, "visit_end_date"));
+		visitOccurrence.setVisitEndDateTime(visitOccurrence.getVisitEndDate());
+
+		return visitOccurrence;
+	}
+
+	private Object mapObservation(ResultSet rs) throws SQLException {
+		FPerson fPerson = getPerson(rs);
+
+		FObservationView fObservationView = new FObservationView();
+		fObservationView.setId(rs.getLong("observation_id"));
+		fObservationView.setFPerson(fPerson);
+		fObservationView.setVisitOccurrence(getVisitReference(rs, fPerson));
+		fObservationView.setObservationConcept(database.getConcept(rs, "observation_concept_id"));
+		fObservationView.setObservationTypeConcept(database.getConcept(rs, "observation_type_concept_id"));
+		fObservationView.setObservationDate(getDate(rs, "observation_date"));
+		fObservationView.setObservationDateTime(fObservationView.getObservationDate());
+		fObservationView.setValueAsNumber(getDouble(rs, "value_as_number"));
+		fObservationView.setValueAsString(rs.getString("value_as_string"));
+		fObservationView.setUnitConcept(database.getConcept(rs, "unit_concept_id"));
+		fObservationView.setRangeLow(getDouble(rs, "range_low"));
+		fObservationView.setRangeHigh(getDouble(rs, "range_high"));
+		fObservationView.setObservationSourceValue(rs.getString("observation_source_value"));
+
+		return fObservationView;
+	}
+
+	private Object mapDrugExposure(ResultSet rs) throws SQLException {
+		FPerson fPerson = getPerson(rs);
+
+		DrugExposure drugExposure = new DrugExposure();
+		drugExposure.setId(rs.getLong("drug_exposure_id"));
+		drugExposure.setFPerson(fPerson);
+		drugExposure.setVisitOccurrence(getVisitReference(rs, fPerson));
+		drugExposure.setDrugConcept(database.getConcept(rs, "drug_concept_id"));
+		drugExposure.setDrugTypeConcept(database.getConcept(rs, "drug_type_concept_id"));
+		drugExposure.setDrugExposureStartDate(getDate(rs, "drug_exposure_start_date"));
+		drugExposure.setDrugExposureStartDateTime(drugExposure.getDrugExposureStartDate());
+		drugExposure.setDrugExposureEndDate(getDate(rs, "drug_exposure_end_date"));
+		drugExposure.setQuantity(getDouble(rs, "quantity"));
+		drugExposure.setRefills(getInteger(rs, "refills"));
+		drugExposure.setRouteConcept(database.getConcept(rs, "route_concept_id"));
+		drugExposure.setDoseUnitSourceValue(rs.getString("dose_unit_source_value"));
+		drugExposure.setSig(rs.getString("sig"));
+
+		return drugExposure;
+	}
+
+	private Object mapCondition(ResultSet rs) throws SQLException {
+		FPerson fPerson = getPerson(rs);
+
+		ConditionOccurrence conditionOccurrence = new ConditionOccurrence();
+		conditionOccurrence.setId(rs.getLong("condition_occurrence_id"));
+		conditionOccurrence.setFPerson(fPerson);
+		conditionOccurrence.setVisitOccurrence(getVisitReference(rs, fPerson));
+		conditionOccurrence.setConditionConcept(database.getConcept(rs, "condition_concept_id"));
+		conditionOccurrence.setConditionTypeConcept(database.getConcept(rs, "condition_type_concept_id"));
+		conditionOccurrence.setConditionStartDate(getDate(rs, "condition_start_date"));
+		conditionOccurrence.setConditionStartDateTime(conditionOccurrence.getConditionStartDate());
+		conditionOccurrence.setConditionEndDate(getDate(rs, "condition_end_date"));
+
+		return conditionOccurrence;
+	}
+
+	private Object mapNote(ResultSet rs) throws SQLException {
+		FPerson fPerson = getPerson(rs);
+
+		Note note = new Note();
+		note.setId(rs.getLong("note_id"));
+		note.setFPerson(fPerson);
+		note.setVisitOccurrence(getVisitReference(rs, fPerson));
+		note.setNoteDate(getDate(rs, "note_date"));
+		note.setNoteDateTime(note.getNoteDate());
+		note.setNoteTypeConcept(database.getConcept(rs, "note_type_concept_id"));
+		note.setNoteText(rs.getString("note_text"));
+
+		return note;
+	}
+}
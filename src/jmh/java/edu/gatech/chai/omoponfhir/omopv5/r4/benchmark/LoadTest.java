@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.IResourceMapping;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.InstrumentedResourceMapping;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopBundle;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopCondition;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopDocumentReference;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopEncounter;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedicationStatement;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopObservation;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopPatient;
+
+/**
+ * End-to-end load test. Generates a synthetic OMOP population into an
+ * embedded SQLite database, wires the real Omop* mappers to it through
+ * JdbcAnswer and replays a mix of FHIR reads, searches and bundle posts at a
+ * fixed rate.
+ *
+ * java -cp target/benchmarks.jar edu.gatech.chai.omoponfhir.omopv5.r4.benchmark.LoadTest [key=value ...]
+ *
+ * <ul>
+ * <li>persons (1000), visits (5) and facts (4): population size. facts is the
+ * number of measurements, drugs and conditions per visit.</li>
+ * <li>db (target/loadtest-omop.db) and regenerate (false): the database file
+ * is reused if it exists.</li>
+ * <li>rate (100) requests per second, duration (60) and warmup (10) seconds,
+ * threads (8).</li>
+ * <li>queue (1000): requests that may wait for a thread. A request that is due
+ * when the queue is full is dropped and counted.</li>
+ * <li>mix: weighted request types, ex.
+ * Patient.read=20,Observation.search=40,Bundle.post=5</li>
+ * <li>pageSize (50): _count of the searches.</li>
+ * </ul>
+ *
+ * The schedule is open loop. Latency is measured from the time a request was
+ * due, not from when a worker picked it up, so queueing behind slow requests
+ * shows up in the percentiles instead of lowering the request rate.
+ */
+public class LoadTest {
+	public static final String DEFAULT_MIX = "Patient.read=20,Observation.search=35,MedicationStatement.search=15,"
+			+ "Condition.search=10,Encounter.search=10,DocumentReference.search=5,Bundle.post=5";
+
+	private interface Request {
+		void run(long personId) throws Exception;
+	}
+
+	/**
+	 * Latencies of one request type. Values are kept so that exact percentiles
+	 * can be reported.
+	 */
+	static class Latencies {
+		private long[] values = new long[1024];
+		private int count = 0;
+		private long errors = 0L;
+
+		synchronized void record(long nanos) {
+			if (count == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			values[count++] = nanos;
+		}
+
+		synchronized void error() {
+			errors++;
+		}
+
+		synchronized long[] sorted() {
+			long[] retVal = Arrays.copyOf(values, count);
+			Arrays.sort(retVal);
+			return retVal;
+		}
+
+		synchronized long getErrors() {
+			return errors;
+		}
+
+		static double percentile(long[] sorted, double p) {
+			if (sorted.length == 0) {
+				return 0.0;
+			}
+			int index = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000000.0;
+		}
+	}
+
+	private final Map<String, String> options;
+	private final Map<String, Request> requests = new HashMap<String, Request>();
+
+	private Bundle bundleTemplate;
+
+	public LoadTest(Map<String, String> options) {
+		this.options = options;
+	}
+
+	private String option(String name, String defaultValue) {
+		String value = options.get(name);
+		if (value == null) {
+			value = System.getProperty("loadtest." + name, defaultValue);
+		}
+
+		return value;
+	}
+
+	private int intOption(String name, int defaultValue) {
+		return Integer.parseInt(option(name, String.valueOf(defaultValue)));
+	}
+
+	public static void main(String[] args) throws Exception {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			int index = arg.indexOf('=');
+			if (index <= 0) {
+				System.err.println("Ignoring argument " + arg + ", expected key=value");
+				continue;
+			}
+			options.put(arg.substring(0, index), arg.substring(index + 1));
+		}
+
+		new LoadTest(options).run();
+		System.exit(0);
+	}
+
+	public void run() throws Exception {
+		int persons = intOption("persons", 1000);
+		int rate = intOption("rate", 100);
+		int duration = intOption("duration", 60);
+		int warmup = intOption("warmup", 10);
+		int threads = intOption("threads", 8);
+		int queue = intOption("queue", 1000);
+		int pageSize = intOption("pageSize", 50);
+
+		SyntheticOmopDatabase database = new SyntheticOmopDatabase(option("db", "target/loadtest-omop.db"));
+		if (!database.exists() || Boolean.parseBoolean(option("regenerate", "false"))) {
+			database.generate(persons, intOption("visits", 5), intOption("facts", 4), 42L);
+		}
+		database.loadConcepts();
+
+		// Must happen before the mapper singletons are created.
+		StubServices stubServices = StubApplicationContext.install();
+		stubServices.answerAll(new JdbcAnswer(database, new InMemoryAnswer()));
+
+		bundleTemplate = WritePathBenchmark.loadBundle(WritePathBenchmark.BUNDLE_FIXTURE);
+		registerRequests(pageSize);
+
+		Map<String, Integer> mix = parseMix(option("mix", DEFAULT_MIX));
+		String[] schedule = weightedSchedule(mix);
+
+		System.out.println("Load test: " + rate + " req/s for " + duration + "s (+" + warmup + "s warmup), "
+				+ threads + " threads (queue " + queue + "), " + persons + " persons, mix " + mix);
+
+		Map<String, Latencies> latencies = new LinkedHashMap<String, Latencies>();
+		for (String type : mix.keySet()) {
+			latencies.put(type, new Latencies());
+		}
+
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queue)), new ThreadPoolExecutor.AbortPolicy());
+		Random random = new Random(7L);
+		AtomicLong dropped = new AtomicLong();
+
+		long interval = TimeUnit.SECONDS.toNanos(1L) / Math.max(1, rate);
+		long start = System.nanoTime();
+		long measureFrom = start + TimeUnit.SECONDS.toNanos(warmup);
+		long end = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+		for (long due = start; due < end; due += interval) {
+			long wait = due - System.nanoTime();
+			if (wait > 0L) {
+				LockSupport.parkNanos(wait);
+			}
+
+			final long intended = due;
+			final String type = schedule[random.nextInt(schedule.length)];
+			final long personId = 1L + random.nextInt(persons);
+			final boolean measured = intended >= measureFrom;
+			try {
+				executor.execute(() -> {
+					Latencies typeLatencies = latencies.get(type);
+					try {
+						requests.get(type).run(personId);
+						if (measured) {
+							typeLatencies.record(System.nanoTime() - intended);
+						}
+					} catch (Exception e) {
+						if (measured) {
+							typeLatencies.error();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				dropped.incrementAndGet();
+			}
+		}
+
+		executor.shutdown();
+		executor.awaitTermination(5L, TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - measureFrom;
+
+		report(latencies, elapsed, dropped.get(), stubServices);
+	}
+
+	/**
+	 * The mappers are wrapped like the server's resource providers wrap them,
+	 * so MappingMetrics and QueryAccounting see each request.
+	 */
+	private void registerRequests(int pageSize) {
+		IResourceMapping<?, ?> patient = InstrumentedResourceMapping.wrap(OmopPatient.getInstance());
+		IResourceMapping<?, ?> observation = InstrumentedResourceMapping.wrap(OmopObservation.getInstance());
+		IResourceMapping<?, ?> medicationStatement = InstrumentedResourceMapping
+				.wrap(OmopMedicationStatement.getInstance());
+		IResourceMapping<?, ?> condition = InstrumentedResourceMapping.wrap(OmopCondition.getInstance());
+		IResourceMapping<?, ?> encounter = InstrumentedResourceMapping.wrap(OmopEncounter.getInstance());
+		IResourceMapping<?, ?> documentReference = InstrumentedResourceMapping
+				.wrap(OmopDocumentReference.getInstance());
+		IResourceMapping<Bundle, ?> bundle = InstrumentedResourceMapping.wrap(OmopBundle.getInstance());
+
+		requests.put("Patient.read", personId -> patient.toFHIR(new IdType("Patient", personId)));
+		requests.put("Observation.search", personId -> searchByPatient(observation, personId, pageSize));
+		requests.put("MedicationStatement.search", personId -> searchByPatient(medicationStatement, personId, pageSize));
+		requests.put("Condition.search", personId -> searchByPatient(condition, personId, pageSize));
+		requests.put("Encounter.search", personId -> searchByPatient(encounter, personId, pageSize));
+		requests.put("DocumentReference.search", personId -> searchByPatient(documentReference, personId, pageSize));
+		requests.put("Bundle.post", personId -> bundle.toDbase(bundleTemplate.copy(), null));
+	}
+
+	private static void searchByPatient(IResourceMapping<?, ?> mapper, long personId, int pageSize) {
+		List<IBaseResource> listResources = new ArrayList<IBaseResource>();
+		mapper.searchWithParams(0, pageSize,
+				mapper.mapParameter("Patient:" + Patient.SP_RES_ID, String.valueOf(personId), false), listResources,
+				null, null);
+	}
+
+	private Map<String, Integer> parseMix(String mix) {
+		Map<String, Integer> retVal = new LinkedHashMap<String, Integer>();
+		for (String entry : mix.split(",")) {
+			String[] typeWeight = entry.trim().split("=");
+			if (!requests.containsKey(typeWeight[0])) {
+				throw new IllegalArgumentException(
+						"Unknown request type " + typeWeight[0] + ". Known types are " + requests.keySet());
+			}
+			int weight = typeWeight.length > 1 ? Integer.parseInt(typeWeight[1]) : 1;
+			if (weight > 0) {
+				retVal.put(typeWeight[0], weight);
+			}
+		}
+
+		return retVal;
+	}
+
+	private static String[] weightedSchedule(Map<String, Integer> mix) {
+		List<String> retVal = new ArrayList<String>();
+		for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+			for (int i = 0; i < entry.getValue(); i++) {
+				retVal.add(entry.getKey());
+			}
+		}
+
+		return retVal.toArray(new String[0]);
+	}
+
+	private static void report(Map<String, Latencies> latencies, long elapsedNanos, long dropped,
+			StubServices stubServices) {
+		double seconds = elapsedNanos / 1000000000.0;
+
+		System.out.println();
+		System.out.println(String.format("%-28s %8s %8s %7s %9s %9s %9s %9s %9s", "request", "count", "req/s",
+				"errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+		for (Map.Entry<String, Latencies> entry : latencies.entrySet()) {
+			long[] sorted = entry.getValue().sorted();
+			System.out.println(String.format("%-28s %8d %8.1f %7d %9.2f %9.2f %9.2f %9.2f %9.2f", entry.getKey(),
+					sorted.length, sorted.length / seconds, entry.getValue().getErrors(),
+					Latencies.percentile(sorted, 0.50), Latencies.percentile(sorted, 0.90),
+					Latencies.percentile(sorted, 0.99), Latencies.percentile(sorted, 0.999),
+					Latencies.percentile(sorted, 1.0)));
+		}
+		if (dropped > 0L) {
+			System.out.println("Dropped requests: " + dropped);
+		}
+		System.out.println("Service calls: " + stubServices.getCallCount());
+	}
+}
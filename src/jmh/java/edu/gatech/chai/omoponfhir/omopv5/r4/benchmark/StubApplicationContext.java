@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.beans.factory.NoSuchBeanDefinitionException;
+import org.springframework.web.context.ContextLoader;
+import org.springframework.web.context.WebApplicationContext;
+
+import jakarta.servlet.ServletContext;
+
+/**
+ * Registers a WebApplicationContext whose beans are StubServices as the
+ * current Spring root context. The mappers are static singletons built from
+ * ContextLoaderListener.getCurrentWebApplicationContext(), so install() must
+ * be called before any Omop* class is loaded. Beans that are not OMOP services
+ * (DataSource, ConfigValues, ...) are reported as missing, which the mappers
+ * already handle.
+ */
+public class StubApplicationContext {
+	private static StubServices stubServices = null;
+	private static WebApplicationContext stubContext = null;
+
+	public static synchronized StubServices install() {
+		if (stubServices != null) {
+			return stubServices;
+		}
+
+		stubServices = new StubServices();
+
+		Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+		ServletContext servletContext = (ServletContext) Proxy.newProxyInstance(
+				StubApplicationContext.class.getClassLoader(), new Class<?>[] { ServletContext.class },
+				(proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getAttribute":
+						return attributes.get(args[0]);
+					case "setAttribute":
+						attributes.put((String) args[0], args[1]);
+						return null;
+					case "removeAttribute":
+						attributes.remove(args[0]);
+						return null;
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return StubServices.defaultValue(method.getReturnType());
+					}
+				});
+
+		stubContext = (WebApplicationContext) Proxy.newProxyInstance(StubApplicationContext.class.getClassLoader(),
+				new Class<?>[] { WebApplicationContext.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getBean":
+						if (args.length == 1 && args[0] instanceof Class) {
+							Class<?> beanClass = (Class<?>) args[0];
+							if (stubServices.isService(beanClass)) {
+								return stubServices.get(beanClass);
+							}
+							throw new NoSuchBeanDefinitionException(beanClass);
+						}
+						throw new NoSuchBeanDefinitionException(String.valueOf(args[0]));
+					case "getServletContext":
+						return servletContext;
+					case "getId":
+					case "getDisplayName":
+					case "toString":
+						return "StubApplicationContext";
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "equals":
+						return proxy == args[0];
+					default:
+						return StubServices.defaultValue(method.getReturnType());
+					}
+				});
+
+		new ContextLoader(stubContext).initWebApplicationContext(servletContext);
+
+		return stubServices;
+	}
+
+	public static WebApplicationContext getContext() {
+		install();
+		return stubContext;
+	}
+}
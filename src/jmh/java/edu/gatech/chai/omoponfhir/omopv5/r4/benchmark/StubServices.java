@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory stand-ins for the OMOP dba services. Each service is a dynamic
+ * proxy, so no database is needed. Calls are counted per service method.
+ *
+ * Without an Answer, a method returns an empty list for List results, 0 for
+ * numbers and null otherwise. Register an Answer for a service to return
+ * synthetic entities.
+ */
+public class StubServices {
+	public interface Answer {
+		/**
+		 * @return the result, or Answer.DEFAULT to use the default result.
+		 */
+		Object answer(Class<?> serviceClass, Method method, Object[] args) throws Throwable;
+
+		Object DEFAULT = new Object();
+	}
+
+	private final Map<Class<?>, Object> services = new ConcurrentHashMap<Class<?>, Object>();
+	private final Map<Class<?>, Answer> answers = new ConcurrentHashMap<Class<?>, Answer>();
+	private final Map<String, LongAdder> calls = new ConcurrentHashMap<String, LongAdder>();
+	private final LongAdder totalCalls = new LongAdder();
+	private volatile Answer fallbackAnswer = null;
+
+	public <S> void answer(Class<S> serviceClass, Answer answer) {
+		answers.put(serviceClass, answer);
+	}
+
+	/**
+	 * Answer for the services that have no Answer of their own.
+	 */
+	public void answerAll(Answer answer) {
+		fallbackAnswer = answer;
+	}
+
+	public boolean isService(Class<?> type) {
+		return type.isInterface() && type.getPackage() != null
+				&& type.getPackage().getName().startsWith("edu.gatech.chai.omopv5.dba.service");
+	}
+
+	@SuppressWarnings("unchecked")
+	public <S> S get(Class<S> serviceClass) {
+		return (S) services.computeIfAbsent(serviceClass, k -> Proxy.newProxyInstance(k.getClassLoader(),
+				new Class<?>[] { k }, new Handler(k)));
+	}
+
+	/**
+	 * Total number of service calls since the last reset.
+	 */
+	public long getCallCount() {
+		return totalCalls.sum();
+	}
+
+	/**
+	 * Calls per "Service.method" since the last reset.
+	 */
+	public Map<String, Long> getCallCounts() {
+		Map<String, Long> retVal = new HashMap<String, Long>();
+		for (Map.Entry<String, LongAdder> entry : calls.entrySet()) {
+			retVal.put(entry.getKey(), entry.getValue().sum());
+		}
+
+		return retVal;
+	}
+
+	public void resetCallCounts() {
+		calls.clear();
+		totalCalls.reset();
+	}
+
+	public static Object defaultValue(Class<?> returnType) {
+		if (returnType == Void.TYPE) {
+			return null;
+		} else if (List.class.isAssignableFrom(returnType)) {
+			return new ArrayList<Object>();
+		} else if (returnType == Long.class || returnType == Long.TYPE) {
+			return 0L;
+		} else if (returnType == Integer.class || returnType == Integer.TYPE) {
+			return 0;
+		} else if (returnType == Boolean.TYPE) {
+			return false;
+		} else if (returnType == Double.TYPE) {
+			return 0.0;
+		} else if (returnType.isPrimitive()) {
+			return 0;
+		}
+
+		return null;
+	}
+
+	private class Handler implements InvocationHandler {
+		private final Class<?> serviceClass;
+
+		Handler(Class<?> serviceClass) {
+			this.serviceClass = serviceClass;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				default:
+					return "Stub" + serviceClass.getSimpleName();
+				}
+			}
+
+			calls.computeIfAbsent(serviceClass.getSimpleName() + "." + method.getName(), k -> new LongAdder())
+					.increment();
+			totalCalls.increment();
+
+			Answer answer = answers.get(serviceClass);
+			if (answer == null) {
+				answer = fallbackAnswer;
+			}
+			if (answer != null) {
+				Object retVal = answer.answer(serviceClass, method, args);
+				if (retVal != Answer.DEFAULT) {
+					return retVal;
+				}
+			}
+
+			return defaultValue(method.getReturnType());
+		}
+	}
+}
@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import edu.gatech.chai.omopv5.model.entity.CareSite;
+import edu.gatech.chai.omopv5.model.entity.Concept;
+import edu.gatech.chai.omopv5.model.entity.ConditionOccurrence;
+import edu.gatech.chai.omopv5.model.entity.DeviceExposure;
+import edu.gatech.chai.omopv5.model.entity.DrugExposure;
+import edu.gatech.chai.omopv5.model.entity.FImmunizationView;
+import edu.gatech.chai.omopv5.model.entity.FObservationView;
+import edu.gatech.chai.omopv5.model.entity.FPerson;
+import edu.gatech.chai.omopv5.model.entity.Location;
+import edu.gatech.chai.omopv5.model.entity.Note;
+import edu.gatech.chai.omopv5.model.entity.Observation;
+import edu.gatech.chai.omopv5.model.entity.ProcedureOccurrence;
+import edu.gatech.chai.omopv5.model.entity.Provider;
+import edu.gatech.chai.omopv5.model.entity.Specimen;
+import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
+
+/**
+ * Synthetic OMOP entities for the benchmarks. The same seed always gives the
+ * same data, so runs can be compared.
+ */
+public class SyntheticData {
+	private static final long DAY = 24L * 60L * 60L * 1000L;
+	private static final long START = 1577836800000L; // 2020-01-01
+
+	// concept_id, vocabulary_id, concept_code, concept_name
+	private static final Object[][] LAB_CONCEPTS = {
+			{ 3013682L, "LOINC", "3094-0", "Urea nitrogen [Mass/volume] in Serum or Plasma" },
+			{ 3016723L, "LOINC", "2160-0", "Creatinine [Mass/volume] in Serum or Plasma" },
+			{ 3004410L, "LOINC", "4548-4", "Hemoglobin A1c/Hemoglobin.total in Blood" },
+			{ 3027018L, "LOINC", "8867-4", "Heart rate" },
+			{ 3020891L, "LOINC", "8310-5", "Body temperature" } };
+	private static final Object[][] CONDITION_CONCEPTS = {
+			{ 201826L, "SNOMED", "44054006", "Type 2 diabetes mellitus" },
+			{ 320128L, "SNOMED", "38341003", "Essential hypertension" },
+			{ 317009L, "SNOMED", "195967001", "Asthma" },
+			{ 255848L, "SNOMED", "233604007", "Pneumonia" } };
+	private static final Object[][] DRUG_CONCEPTS = {
+			{ 1503297L, "RxNorm", "6809", "metformin" },
+			{ 1308216L, "RxNorm", "29046", "lisinopril" },
+			{ 1154343L, "RxNorm", "435", "albuterol" },
+			{ 1713332L, "RxNorm", "723", "amoxicillin" } };
+	private static final Object[][] VISIT_CONCEPTS = {
+			{ 9202L, "Visit", "OP", "Outpatient Visit" },
+			{ 9201L, "Visit", "IP", "Inpatient Visit" },
+			{ 9203L, "Visit", "ER", "Emergency Room Visit" } };
+	private static final Object[][] PROCEDURE_CONCEPTS = {
+			{ 2108115L, "CPT4", "99213", "Office or other outpatient visit" },
+			{ 4230911L, "SNOMED", "73761001", "Colonoscopy" },
+			{ 2211747L, "CPT4", "71046", "Radiologic examination, chest; 2 views" } };
+	private static final Object[][] VACCINE_CONCEPTS = {
+			{ 40213154L, "CVX", "140", "influenza, seasonal, injectable, preservative free" },
+			{ 40213183L, "CVX", "08", "hepatitis B vaccine, pediatric or pediatric/adolescent dosage" },
+			{ 724907L, "CVX", "208", "SARS-COV-2 (COVID-19) vaccine, mRNA, spike protein" } };
+	// The first one takes the MEDICATION category path of AllergyIntolerance.
+	private static final Object[][] ALLERGY_CONCEPTS = {
+			{ 439224L, "SNOMED", "416098002", "Allergy to drug" },
+			{ 4166257L, "SNOMED", "294505008", "Allergy to penicillin" },
+			{ 4188027L, "SNOMED", "91935009", "Allergy to peanuts" } };
+	private static final Object[][] DEVICE_CONCEPTS = {
+			{ 4044008L, "SNOMED", "19923001", "Catheter" },
+			{ 45768171L, "SNOMED", "705417005", "Glucose meter" } };
+	private static final Object[][] SPECIMEN_CONCEPTS = {
+			{ 4001225L, "SNOMED", "122555007", "Venous blood specimen" },
+			{ 4046280L, "SNOMED", "122575003", "Urine specimen" } };
+
+	private static final String[] FAMILY_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones", "Garcia" };
+	private static final String[] GIVEN_NAMES = { "Mary", "James", "Patricia", "Robert", "Linda", "Michael" };
+
+	private final Random random;
+
+	private final Concept unitConcept = concept(8840L, "UCUM", "mg/dL", "milligram per deciliter");
+	private final Concept labTypeConcept = concept(44818702L, "Type Concept", "OMOP4822241", "Lab result");
+	private final Concept ehrTypeConcept = concept(32817L, "Type Concept", "OMOP4976890", "EHR");
+	private final Concept noteTypeConcept = concept(44814637L, "Note Type", "OMOP4822050", "Discharge summary");
+	private final Concept routeConcept = concept(4132161L, "SNOMED", "26643006", "Oral");
+	private final Concept maleConcept = concept(8507L, "Gender", "M", "MALE");
+	private final Concept femaleConcept = concept(8532L, "Gender", "F", "FEMALE");
+	private final Concept raceConcept = concept(8527L, "Race", "5", "White");
+	private final Concept ethnicityConcept = concept(38003564L, "Ethnicity", "Not Hispanic", "Not Hispanic or Latino");
+	private final Concept placeOfServiceConcept = concept(8756L, "Place of Service", "22", "On Campus-Outpatient Hospital");
+	private final Concept specialtyConcept = concept(38004446L, "Medicare Specialty", "08", "Family Practice");
+	private final Concept procedureTypeConcept = concept(38000275L, "Type Concept", "OMOP4822094", "EHR order list entry");
+	private final Concept intramuscularConcept = concept(4302612L, "SNOMED", "78421000", "Intramuscular");
+	private final Concept milliliterConcept = concept(8587L, "UCUM", "mL", "milliliter");
+	private final Concept armConcept = concept(4300877L, "SNOMED", "40983000", "Upper arm structure");
+
+	public SyntheticData(long seed) {
+		random = new Random(seed);
+	}
+
+	public static Concept concept(Long id, String vocabularyId, String code, String name) {
+		Concept concept = new Concept(id);
+		concept.setVocabularyId(vocabularyId);
+		concept.setConceptCode(code);
+		concept.setConceptName(name);
+
+		return concept;
+	}
+
+	private Concept pick(Object[][] concepts) {
+		Object[] row = concepts[random.nextInt(concepts.length)];
+		return concept((Long) row[0], (String) row[1], (String) row[2], (String) row[3]);
+	}
+
+	private Date date() {
+		return new Date(START + (long) random.nextInt(5 * 365) * DAY + random.nextInt((int) DAY));
+	}
+
+	public FPerson person(long id) {
+		FPerson fPerson = new FPerson();
+		fPerson.setId(id);
+		fPerson.setFamilyName(FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)]);
+		fPerson.setGivenName1(GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+		if (random.nextBoolean()) {
+			fPerson.setGivenName2(GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+		}
+		fPerson.setGenderConcept(random.nextBoolean() ? maleConcept : femaleConcept);
+		fPerson.setRaceConcept(raceConcept);
+		fPerson.setEthnicityConcept(ethnicityConcept);
+		fPerson.setYearOfBirth(1930 + random.nextInt(90));
+		fPerson.setMonthOfBirth(1 + random.nextInt(12));
+		fPerson.setDayOfBirth(1 + random.nextInt(28));
+		fPerson.setPersonSourceValue("MRN" + (100000 + id));
+		fPerson.setActive((short) 1);
+
+		return fPerson;
+	}
+
+	public List<FPerson> persons(int count) {
+		List<FPerson> retVal = new ArrayList<FPerson>();
+		for (int i = 0; i < count; i++) {
+			retVal.add(person(i + 1L));
+		}
+
+		return retVal;
+	}
+
+	public VisitOccurrence visit(long id, FPerson fPerson) {
+		Date start = date();
+
+		VisitOccurrence visitOccurrence = new VisitOccurrence();
+		visitOccurrence.setId(id);
+		visitOccurrence.setFPerson(fPerson);
+		visitOccurrence.setVisitConcept(pick(VISIT_CONCEPTS));
+		visitOccurrence.setVisitTypeConcept(ehrTypeConcept);
+		visitOccurrence.setVisitStartDate(start);
+		visitOccurrence.setVisitStartDateTime(start);
+		visitOccurrence.setVisitEndDate(new Date(start.getTime() + DAY));
+		visitOccurrence.setVisitEndDateTime(new Date(start.getTime() + DAY));
+
+		return visitOccurrence;
+	}
+
+	/**
+	 * Lab observations. Most have a numeric value and unit. Some have a string or
+	 * ratio value and a few are systolic blood pressures, which take the
+	 * component path.
+	 */
+	public FObservationView observation(long id, FPerson fPerson, VisitOccurrence visitOccurrence) {
+		Date date = date();
+
+		FObservationView fObservationView = new FObservationView();
+		fObservationView.setId(id);
+		fObservationView.setFPerson(fPerson);
+		fObservationView.setVisitOccurrence(visitOccurrence);
+		fObservationView.setObservationTypeConcept(labTypeConcept);
+		fObservationView.setObservationDate(date);
+		fObservationView.setObservationDateTime(date);
+
+		int kind = random.nextInt(10);
+		if (kind == 0) {
+			fObservationView.setObservationConcept(concept(3004249L, "LOINC", "8480-6", "Systolic blood pressure"));
+			fObservationView.setValueAsNumber(100.0 + random.nextInt(60));
+			fObservationView.setUnitConcept(concept(8876L, "UCUM", "mm[Hg]", "millimeter mercury column"));
+		} else if (kind == 1) {
+			fObservationView.setObservationConcept(pick(LAB_CONCEPTS));
+			fObservationView.setValueAsString(random.nextBoolean() ? "1:" + (2 + random.nextInt(64)) : "positive");
+		} else {
+			Concept labConcept = pick(LAB_CONCEPTS);
+			fObservationView.setObservationConcept(labConcept);
+			fObservationView.setObservationSourceValue(labConcept.getConceptCode());
+			fObservationView.setValueAsNumber(random.nextDouble() * 200.0);
+			fObservationView.setUnitConcept(unitConcept);
+			fObservationView.setRangeLow(10.0);
+			fObservationView.setRangeHigh(150.0);
+		}
+
+		return fObservationView;
+	}
+
+	public DrugExposure drugExposure(long id, FPerson fPerson, VisitOccurrence visitOccurrence) {
+		Date start = date();
+
+		DrugExposure drugExposure = new DrugExposure();
+		drugExposure.setId(id);
+		drugExposure.setFPerson(fPerson);
+		drugExposure.setVisitOccurrence(visitOccurrence);
+		drugExposure.setDrugConcept(pick(DRUG_CONCEPTS));
+		drugExposure.setDrugTypeConcept(ehrTypeConcept);
+		drugExposure.setDrugExposureStartDate(start);
+		drugExposure.setDrugExposureStartDateTime(start);
+		drugExposure.setDrugExposureEndDate(new Date(start.getTime() + 30L * DAY));
+		drugExposure.setQuantity(30.0);
+		drugExposure.setRefills(random.nextInt(3));
+		drugExposure.setRouteConcept(routeConcept);
+		drugExposure.setDoseUnitSourceValue("mg");
+		drugExposure.setSig("Take one tablet by mouth daily");
+
+		return drugExposure;
+	}
+
+	public ConditionOccurrence conditionOccurrence(long id, FPerson fPerson, VisitOccurrence visitOccurrence) {
+		Date start = date();
+
+		ConditionOccurrence conditionOccurrence = new ConditionOccurrence();
+		conditionOccurrence.setId(id);
+		conditionOccurrence.setFPerson(fPerson);
+		conditionOccurrence.setVisitOccurrence(visitOccurrence);
+		conditionOccurrence.setConditionConcept(pick(CONDITION_CONCEPTS));
+		conditionOccurrence.setConditionTypeConcept(ehrTypeConcept);
+		conditionOccurrence.setConditionStartDate(start);
+		conditionOccurrence.setConditionStartDateTime(start);
+		if (random.nextBoolean()) {
+			conditionOccurrence.setConditionEndDate(new Date(start.getTime() + 90L * DAY));
+		}
+
+		return conditionOccurrence;
+	}
+
+	public Note note(long id, FPerson fPerson, VisitOccurrence visitOccurrence) {
+		Date date = date();
+
+		StringBuilder text = new StringBuilder();
+		int sentences = 5 + random.nextInt(40);
+		for (int i = 0; i < sentences; i++) {
+			text.append("Patient seen for follow up. Vitals stable. Continue current medications. ");
+		}
+
+		Note note = new Note();
+		note.setId(id);
+		note.setFPerson(fPerson);
+		note.setVisitOccurrence(visitOccurrence);
+		note.setNoteDate(date);
+		note.setNoteDateTime(date);
+		note.setNoteTypeConcept(noteTypeConcept);
+		note.setNoteText(text.toString());
+
+		return note;
+	}
+
+	public CareSite careSite(long id) {
+		Location location = new Location();
+		location.setId(id);
+		location.setAddress1((100 + random.nextInt(900)) + " Main Street");
+		location.setAddress2("Suite " + (1 + random.nextInt(20)));
+		location.setCity("Atlanta");
+		location.setState("GA");
+		location.setZip(String.valueOf(30300 + random.nextInt(100)));
+
+		CareSite careSite = new CareSite();
+		careSite.setId(id);
+		careSite.setCareSiteName("Clinic " + id);
+		careSite.setPlaceOfServiceConcept(placeOfServiceConcept);
+		careSite.setLocation(location);
+
+		return careSite;
+	}
+
+	/**
+	 * OmopPractitioner expects provider_name as "Family,Given".
+	 */
+	public Provider provider(long id, CareSite careSite) {
+		Provider provider = new Provider();
+		provider.setId(id);
+		provider.setProviderName(FAMILY_NAMES[random.nextInt(FAMILY_NAMES.length)] + ","
+				+ GIVEN_NAMES[random.nextInt(GIVEN_NAMES.length)]);
+		provider.setGenderConcept(random.nextBoolean() ? maleConcept : femaleConcept);
+		provider.setSpecialtyConcept(specialtyConcept);
+		provider.setCareSite(careSite);
+
+		return provider;
+	}
+
+	public ProcedureOccurrence procedureOccurrence(long id, FPerson fPerson, VisitOccurrence visitOccurrence,
+			Provider provider) {
+		ProcedureOccurrence procedureOccurrence = new ProcedureOccurrence();
+		procedureOccurrence.setId(id);
+		procedureOccurrence.setFPerson(fPerson);
+		procedureOccurrence.setVisitOccurrence(visitOccurrence);
+		procedureOccurrence.setProvider(provider);
+		procedureOccurrence.setProcedureConcept(pick(PROCEDURE_CONCEPTS));
+		procedureOccurrence.setProcedureTypeConcept(procedureTypeConcept);
+		procedureOccurrence.setProcedureDate(date());
+
+		return procedureOccurrence;
+	}
+
+	public FImmunizationView immunization(long id, FPerson fPerson, VisitOccurrence visitOccurrence,
+			Provider provider) {
+		FImmunizationView fImmunizationView = new FImmunizationView();
+		fImmunizationView.setId(id);
+		fImmunizationView.setFPerson(fPerson);
+		fImmunizationView.setVisitOccurrence(visitOccurrence);
+		fImmunizationView.setProvider(provider);
+		fImmunizationView.setImmunizationConcept(pick(VACCINE_CONCEPTS));
+		fImmunizationView.setImmunizationDate(date());
+		fImmunizationView.setLotNumber("LOT" + (1000 + random.nextInt(9000)));
+		fImmunizationView.setRouteConcept(intramuscularConcept);
+		fImmunizationView.setQuantity(0.5);
+		if (random.nextInt(10) == 0) {
+			fImmunizationView.setImmunizationStatus("Patient refused");
+		}
+
+		return fImmunizationView;
+	}
+
+	/**
+	 * OBSERVATION rows that OmopAllergyIntolerance maps.
+	 */
+	public Observation allergyObservation(long id, FPerson fPerson, Provider provider) {
+		Date date = date();
+
+		Observation observation = new Observation();
+		observation.setId(id);
+		observation.setFPerson(fPerson);
+		observation.setProvider(provider);
+		observation.setObservationConcept(pick(ALLERGY_CONCEPTS));
+		observation.setObservationTypeConcept(ehrTypeConcept);
+		observation.setObservationDate(date);
+		observation.setObservationDateTime(date);
+		if (random.nextBoolean()) {
+			observation.setValueAsConcept(pick(DRUG_CONCEPTS));
+		}
+
+		return observation;
+	}
+
+	public DeviceExposure deviceExposure(long id, FPerson fPerson, Provider provider) {
+		Date start = date();
+		Concept deviceConcept = pick(DEVICE_CONCEPTS);
+
+		DeviceExposure deviceExposure = new DeviceExposure();
+		deviceExposure.setId(id);
+		deviceExposure.setFPerson(fPerson);
+		deviceExposure.setProvider(provider);
+		deviceExposure.setDeviceConcept(deviceConcept);
+		deviceExposure.setDeviceTypeConcept(ehrTypeConcept);
+		deviceExposure.setDeviceExposureStartDate(start);
+		if (random.nextBoolean()) {
+			deviceExposure.setDeviceExposureEndDate(new Date(start.getTime() + 7L * DAY));
+		}
+		deviceExposure.setDeviceSourceValue("http://snomed.info/sct:" + deviceConcept.getConceptCode() + ":"
+				+ deviceConcept.getConceptName());
+		deviceExposure.setUniqueDeviceId("(01)00" + (100000000000L + id));
+
+		return deviceExposure;
+	}
+
+	public Specimen specimen(long id, FPerson fPerson) {
+		Date date = date();
+
+		Specimen specimen = new Specimen();
+		specimen.setId(id);
+		specimen.setFPerson(fPerson);
+		specimen.setSpecimenConcept(pick(SPECIMEN_CONCEPTS));
+		specimen.setSpecimenTypeConcept(ehrTypeConcept);
+		specimen.setSpecimenDate(date);
+		specimen.setSpecimenDateTime(date);
+		specimen.setQuantity(1.0 + random.nextInt(10));
+		specimen.setUnitConcept(milliliterConcept);
+		specimen.setAnatomicSiteConcept(armConcept);
+		specimen.setSpecimenSourceId("SPC" + (100000 + id));
+
+		return specimen;
+	}
+
+	/**
+	 * Drug concepts, which OmopMedication maps to Medication.
+	 */
+	public Concept drugConcept() {
+		return pick(DRUG_CONCEPTS);
+	}
+}
@@ -0,0 +1,293 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+import edu.gatech.chai.omopv5.model.entity.ConditionOccurrence;
+import edu.gatech.chai.omopv5.model.entity.DrugExposure;
+import edu.gatech.chai.omopv5.model.entity.FObservationView;
+import edu.gatech.chai.omopv5.model.entity.FPerson;
+import edu.gatech.chai.omopv5.model.entity.Note;
+import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
+
+/**
+ * A synthetic OMOP CDM population in an embedded SQLite database. Only the
+ * tables and columns that the load test reads are created. Measurements and
+ * observations share the f_observation_view table, as in the FObservationView
+ * entity.
+ */
+public class SyntheticOmopDatabase {
+	private static final Logger logger = LoggerFactory.getLogger(SyntheticOmopDatabase.class);
+
+	private static final String[] DDL = {
+			"CREATE TABLE concept (concept_id INTEGER PRIMARY KEY, concept_name TEXT, vocabulary_id TEXT, concept_code TEXT)",
+			"CREATE TABLE person (person_id INTEGER PRIMARY KEY, family_name TEXT, given1_name TEXT, given2_name TEXT, "
+					+ "gender_concept_id INTEGER, race_concept_id INTEGER, ethnicity_concept_id INTEGER, "
+					+ "year_of_birth INTEGER, month_of_birth INTEGER, day_of_birth INTEGER, person_source_value TEXT)",
+			"CREATE TABLE visit_occurrence (visit_occurrence_id INTEGER PRIMARY KEY, person_id INTEGER, "
+					+ "visit_concept_id INTEGER, visit_type_concept_id INTEGER, visit_start_date INTEGER, visit_end_date INTEGER)",
+			"CREATE TABLE f_observation_view (observation_id INTEGER PRIMARY KEY, person_id INTEGER, visit_occurrence_id INTEGER, "
+					+ "observation_concept_id INTEGER, observation_type_concept_id INTEGER, observation_date INTEGER, "
+					+ "value_as_number REAL, value_as_string TEXT, unit_concept_id INTEGER, range_low REAL, range_high REAL, "
+					+ "observation_source_value TEXT)",
+			"CREATE TABLE drug_exposure (drug_exposure_id INTEGER PRIMARY KEY, person_id INTEGER, visit_occurrence_id INTEGER, "
+					+ "drug_concept_id INTEGER, drug_type_concept_id INTEGER, drug_exposure_start_date INTEGER, "
+					+ "drug_exposure_end_date INTEGER, quantity REAL, refills INTEGER, route_concept_id INTEGER, "
+					+ "dose_unit_source_value TEXT, sig TEXT)",
+			"CREATE TABLE condition_occurrence (condition_occurrence_id INTEGER PRIMARY KEY, person_id INTEGER, "
+					+ "visit_occurrence_id INTEGER, condition_concept_id INTEGER, condition_type_concept_id INTEGER, "
+					+ "condition_start_date INTEGER, condition_end_date INTEGER)",
+			"CREATE TABLE note (note_id INTEGER PRIMARY KEY, person_id INTEGER, visit_occurrence_id INTEGER, "
+					+ "note_date INTEGER, note_type_concept_id INTEGER, note_text TEXT)",
+			"CREATE INDEX idx_visit_person ON visit_occurrence (person_id)",
+			"CREATE INDEX idx_observation_person ON f_observation_view (person_id)",
+			"CREATE INDEX idx_drug_person ON drug_exposure (person_id)",
+			"CREATE INDEX idx_condition_person ON condition_occurrence (person_id)",
+			"CREATE INDEX idx_note_person ON note (person_id)" };
+
+	private final String path;
+	private final String url;
+	private final Map<Long, Concept> concepts = new HashMap<Long, Concept>();
+
+	public SyntheticOmopDatabase(String path) {
+		this.path = path;
+		this.url = "jdbc:sqlite:" + path;
+	}
+
+	public boolean exists() {
+		return new File(path).isFile();
+	}
+
+	public Connection connect() throws SQLException {
+		return DriverManager.getConnection(url);
+	}
+
+	/**
+	 * Creates the tables and a population of persons, each with a few visits and
+	 * the given number of measurements, drug exposures, conditions and notes per
+	 * visit. An existing database file is replaced.
+	 */
+	public void generate(int persons, int visitsPerPerson, int factsPerVisit, long seed)
+			throws SQLException {
+		new File(path).delete();
+		long start = System.currentTimeMillis();
+
+		SyntheticData data = new SyntheticData(seed);
+		try (Connection conn = connect()) {
+			conn.setAutoCommit(false);
+			try (Statement stmt = conn.createStatement()) {
+				for (String ddl : DDL) {
+					stmt.execute(ddl);
+				}
+			}
+
+			try (PreparedStatement personStmt = conn.prepareStatement("INSERT INTO person VALUES (?,?,?,?,?,?,?,?,?,?,?)");
+					PreparedStatement visitStmt = conn.prepareStatement("INSERT INTO visit_occurrence VALUES (?,?,?,?,?,?)");
+					PreparedStatement observationStmt = conn.prepareStatement(
+							"INSERT INTO f_observation_view VALUES (?,?,?,?,?,?,?,?,?,?,?,?)");
+					PreparedStatement drugStmt = conn.prepareStatement(
+							"INSERT INTO drug_exposure VALUES (?,?,?,?,?,?,?,?,?,?,?,?)");
+					PreparedStatement conditionStmt = conn.prepareStatement(
+							"INSERT INTO condition_occurrence VALUES (?,?,?,?,?,?,?)");
+					PreparedStatement noteStmt = conn.prepareStatement("INSERT INTO note VALUES (?,?,?,?,?,?)")) {
+				long visitId = 0L, factId = 0L;
+				for (long personId = 1L; personId <= persons; personId++) {
+					FPerson fPerson = data.person(personId);
+					insertPerson(personStmt, fPerson);
+
+					for (int v = 0; v < visitsPerPerson; v++) {
+						VisitOccurrence visitOccurrence = data.visit(++visitId, fPerson);
+						insertVisit(visitStmt, visitOccurrence);
+
+						for (int f = 0; f < factsPerVisit; f++) {
+							factId++;
+							insertObservation(observationStmt, data.observation(factId, fPerson, visitOccurrence));
+							insertDrugExposure(drugStmt, data.drugExposure(factId, fPerson, visitOccurrence));
+							insertCondition(conditionStmt, data.conditionOccurrence(factId, fPerson, visitOccurrence));
+							if (f == 0) {
+								insertNote(noteStmt, data.note(visitId, fPerson, visitOccurrence));
+							}
+						}
+					}
+
+					if (personId % 1000 == 0) {
+						for (PreparedStatement pstmt : new PreparedStatement[] { personStmt, visitStmt, observationStmt,
+								drugStmt, conditionStmt, noteStmt }) {
+							pstmt.executeBatch();
+						}
+					}
+				}
+
+				for (PreparedStatement pstmt : new PreparedStatement[] { personStmt, visitStmt, observationStmt,
+						drugStmt, conditionStmt, noteStmt }) {
+					pstmt.executeBatch();
+				}
+			}
+
+			try (PreparedStatement conceptStmt = conn.prepareStatement("INSERT INTO concept VALUES (?,?,?,?)")) {
+				for (Concept concept : concepts.values()) {
+					conceptStmt.setLong(1, concept.getId());
+					conceptStmt.setString(2, concept.getConceptName());
+					conceptStmt.setString(3, concept.getVocabularyId());
+					conceptStmt.setString(4, concept.getConceptCode());
+					conceptStmt.addBatch();
+				}
+				conceptStmt.executeBatch();
+			}
+
+			conn.commit();
+		}
+
+		logger.info("Synthetic OMOP database with " + persons + " persons generated in "
+				+ (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Loads the concept table into memory. Entities read back from the database
+	 * get their concepts from here, like an eager JPA join.
+	 */
+	public void loadConcepts() throws SQLException {
+		concepts.clear();
+		try (Connection conn = connect();
+				Statement stmt = conn.createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT concept_id, concept_name, vocabulary_id, concept_code FROM concept")) {
+			while (rs.next()) {
+				Concept concept = SyntheticData.concept(rs.getLong(1), rs.getString(3), rs.getString(4), rs.getString(2));
+				concepts.put(concept.getId(), concept);
+			}
+		}
+	}
+
+	public Concept getConcept(ResultSet rs, String column) throws SQLException {
+		long conceptId = rs.getLong(column);
+		if (rs.wasNull()) {
+			return null;
+		}
+
+		Concept concept = concepts.get(conceptId);
+		return concept != null ? concept : new Concept(conceptId);
+	}
+
+	private Long conceptId(Concept concept) {
+		if (concept == null) {
+			return null;
+		}
+
+		concepts.putIfAbsent(concept.getId(), concept);
+		return concept.getId();
+	}
+
+	private static void setDate(PreparedStatement pstmt, int index, Date date) throws SQLException {
+		if (date == null) {
+			pstmt.setNull(index, Types.INTEGER);
+		} else {
+			pstmt.setLong(index, date.getTime());
+		}
+	}
+
+	private void insertPerson(PreparedStatement pstmt, FPerson fPerson) throws SQLException {
+		pstmt.setLong(1, fPerson.getId());
+		pstmt.setString(2, fPerson.getFamilyName());
+		pstmt.setString(3, fPerson.getGivenName1());
+		pstmt.setString(4, fPerson.getGivenName2());
+		pstmt.setObject(5, conceptId(fPerson.getGenderConcept()));
+		pstmt.setObject(6, conceptId(fPerson.getRaceConcept()));
+		pstmt.setObject(7, conceptId(fPerson.getEthnicityConcept()));
+		pstmt.setObject(8, fPerson.getYearOfBirth());
+		pstmt.setObject(9, fPerson.getMonthOfBirth());
+		pstmt.setObject(10, fPerson.getDayOfBirth());
+		pstmt.setString(11, fPerson.getPersonSourceValue());
+		pstmt.addBatch();
+	}
+
+	private void insertVisit(PreparedStatement pstmt, VisitOccurrence visitOccurrence) throws SQLException {
+		pstmt.setLong(1, visitOccurrence.getId());
+		pstmt.setLong(2, visitOccurrence.getFPerson().getId());
+		pstmt.setObject(3, conceptId(visitOccurrence.getVisitConcept()));
+		pstmt.setObject(4, conceptId(visitOccurrence.getVisitTypeConcept()));
+		setDate(pstmt, 5, visitOccurrence.getVisitStartDate());
+		setDate(pstmt, 6, visitOccurrence.getVisitEndDate());
+		pstmt.addBatch();
+	}
+
+	private void insertObservation(PreparedStatement pstmt, FObservationView fObservationView) throws SQLException {
+		pstmt.setLong(1, fObservationView.getId());
+		pstmt.setLong(2, fObservationView.getFPerson().getId());
+		pstmt.setLong(3, fObservationView.getVisitOccurrence().getId());
+		pstmt.setObject(4, conceptId(fObservationView.getObservationConcept()));
+		pstmt.setObject(5, conceptId(fObservationView.getObservationTypeConcept()));
+		setDate(pstmt, 6, fObservationView.getObservationDate());
+		pstmt.setObject(7, fObservationView.getValueAsNumber());
+		pstmt.setString(8, fObservationView.getValueAsString());
+		pstmt.setObject(9, conceptId(fObservationView.getUnitConcept()));
+		pstmt.setObject(10, fObservationView.getRangeLow());
+		pstmt.setObject(11, fObservationView.getRangeHigh());
+		pstmt.setString(12, fObservationView.getObservationSourceValue());
+		pstmt.addBatch();
+	}
+
+	private void insertDrugExposure(PreparedStatement pstmt, DrugExposure drugExposure) throws SQLException {
+		pstmt.setLong(1, drugExposure.getId());
+		pstmt.setLong(2, drugExposure.getFPerson().getId());
+		pstmt.setLong(3, drugExposure.getVisitOccurrence().getId());
+		pstmt.setObject(4, conceptId(drugExposure.getDrugConcept()));
+		pstmt.setObject(5, conceptId(drugExposure.getDrugTypeConcept()));
+		setDate(pstmt, 6, drugExposure.getDrugExposureStartDate());
+		setDate(pstmt, 7, drugExposure.getDrugExposureEndDate());
+		pstmt.setObject(8, drugExposure.getQuantity());
+		pstmt.setObject(9, drugExposure.getRefills());
+		pstmt.setObject(10, conceptId(drugExposure.getRouteConcept()));
+		pstmt.setString(11, drugExposure.getDoseUnitSourceValue());
+		pstmt.setString(12, drugExposure.getSig());
+		pstmt.addBatch();
+	}
+
+	private void insertCondition(PreparedStatement pstmt, ConditionOccurrence conditionOccurrence) throws SQLException {
+		pstmt.setLong(1, conditionOccurrence.getId());
+		pstmt.setLong(2, conditionOccurrence.getFPerson().getId());
+		pstmt.setLong(3, conditionOccurrence.getVisitOccurrence().getId());
+		pstmt.setObject(4, conceptId(conditionOccurrence.getConditionConcept()));
+		pstmt.setObject(5, conceptId(conditionOccurrence.getConditionTypeConcept()));
+		setDate(pstmt, 6, conditionOccurrence.getConditionStartDate());
+		setDate(pstmt, 7, conditionOccurrence.getConditionEndDate());
+		pstmt.addBatch();
+	}
+
+	private void insertNote(PreparedStatement pstmt, Note note) throws SQLException {
+		pstmt.setLong(1, note.getId());
+		pstmt.setLong(2, note.getFPerson().getId());
+		pstmt.setLong(3, note.getVisitOccurrence().getId());
+		setDate(pstmt, 4, note.getNoteDate());
+		pstmt.setObject(5, conceptId(note.getNoteTypeConcept()));
+		pstmt.setString(6, note.getNoteText());
+		pstmt.addBatch();
+	}
+}
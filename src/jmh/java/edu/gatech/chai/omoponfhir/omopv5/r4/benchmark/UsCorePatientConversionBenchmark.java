@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.gatech.chai.omoponfhir.omopv5.r4.model.USCorePatient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ExtensionUtil;
+
+/**
+ * Patient to USCorePatient conversion, as done for every patient of a posted
+ * bundle: the JSON encode/parse round trip against the structural
+ * conversion. The patient is the first one of the Synthea fixture bundle,
+ * which has us-core-race and us-core-ethnicity extensions.
+ *
+ * The structural conversion does not modify the source patient, so the same
+ * instance is converted on every invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsCorePatientConversionBenchmark {
+	private Patient patient;
+
+	@Setup
+	public void setup() throws IOException {
+		Bundle bundle = WritePathBenchmark.loadBundle(WritePathBenchmark.BUNDLE_FIXTURE);
+		for (BundleEntryComponent entry : bundle.getEntry()) {
+			if (entry.getResource() instanceof Patient) {
+				patient = (Patient) entry.getResource();
+				break;
+			}
+		}
+
+		if (patient == null) {
+			throw new IllegalStateException("No Patient in " + WritePathBenchmark.BUNDLE_FIXTURE);
+		}
+
+		// Both conversions have to agree on the race and ethnicity blocks.
+		USCorePatient fromJson = ExtensionUtil.usCorePatientFromJson(patient);
+		USCorePatient fromPatient = ExtensionUtil.usCorePatientFromPatient(patient);
+		if (fromJson.getRace().getCategory().size() != fromPatient.getRace().getCategory().size()
+				|| fromJson.getEthnicity().getCategory().size() != fromPatient.getEthnicity().getCategory().size()
+				|| fromJson.getExtension().size() != fromPatient.getExtension().size()) {
+			throw new IllegalStateException("Structural conversion differs from the JSON round trip");
+		}
+	}
+
+	@Benchmark
+	public USCorePatient jsonRoundTrip() {
+		return ExtensionUtil.usCorePatientFromJson(patient);
+	}
+
+	@Benchmark
+	public USCorePatient structural() {
+		return ExtensionUtil.usCorePatientFromPatient(patient);
+	}
+}
@@ -0,0 +1,208 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ca.uhn.fhir.parser.IParser;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopBundle;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedicationStatement;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopObservation;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopPatient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.model.USCorePatient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.StaticValues;
+
+/**
+ * Write path: FHIR resource to OMOP entity. The services are StubServices
+ * with InMemoryAnswer, so creates and lookups succeed without a database and
+ * every service call is counted.
+ *
+ * Reported per operation:
+ * <ul>
+ * <li>ns/op (AverageTime)</li>
+ * <li>bytes allocated/op (gc.alloc.rate.norm, with -prof gc)</li>
+ * <li>service calls/op (serviceCalls / operations aux counters, and a
+ * per-method breakdown printed at the end of each trial)</li>
+ * </ul>
+ * The bundle benchmark posts fixtures/synthea-transaction-bundle.json through
+ * OmopBundle.toDbase.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WritePathBenchmark {
+	public static final String BUNDLE_FIXTURE = "/fixtures/synthea-transaction-bundle.json";
+
+	private StubServices stubServices;
+	private Bundle bundleTemplate;
+	private Observation observation;
+	private USCorePatient patient;
+	private MedicationStatement medicationStatement;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class ServiceCalls {
+		public long serviceCalls;
+		public long operations;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			serviceCalls = 0L;
+			operations = 0L;
+		}
+	}
+
+	/**
+	 * toDbase fills in the entry responses, so each invocation needs a fresh
+	 * copy of the bundle.
+	 */
+	@State(Scope.Thread)
+	public static class BundleCopy {
+		Bundle bundle;
+
+		@Setup(Level.Invocation)
+		public void copy(WritePathBenchmark benchmark) {
+			bundle = benchmark.bundleTemplate.copy();
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		stubServices = StubApplicationContext.install();
+		stubServices.answerAll(new InMemoryAnswer());
+
+		bundleTemplate = loadBundle(BUNDLE_FIXTURE);
+
+		// Single resources reference existing rows, as they do in a plain create.
+		IParser parser = StaticValues.myFhirContext.newJsonParser();
+		for (BundleEntryComponent entry : bundleTemplate.getEntry()) {
+			String type = entry.getResource().fhirType();
+			if ("Patient".equals(type) && patient == null) {
+				patient = parser.parseResource(USCorePatient.class,
+						parser.encodeResourceToString(entry.getResource()));
+			} else if ("Observation".equals(type) && observation == null) {
+				observation = (Observation) entry.getResource().copy();
+				observation.setSubject(new Reference("Patient/1"));
+				observation.setEncounter(new Reference("Encounter/1"));
+			} else if ("MedicationStatement".equals(type) && medicationStatement == null) {
+				medicationStatement = (MedicationStatement) entry.getResource().copy();
+				medicationStatement.setSubject(new Reference("Patient/1"));
+				medicationStatement.setContext(new Reference("Encounter/1"));
+			}
+		}
+
+		stubServices.resetCallCounts();
+	}
+
+	@TearDown(Level.Trial)
+	public void report(ServiceCalls serviceCalls) {
+		if (serviceCalls.operations == 0L) {
+			return;
+		}
+
+		System.out.println();
+		System.out.println("Service calls per operation (last iteration):");
+		Map<String, Long> counts = new TreeMap<String, Long>(stubServices.getCallCounts());
+		for (Map.Entry<String, Long> entry : counts.entrySet()) {
+			System.out.println(String.format("  %-60s %10.2f", entry.getKey(),
+					entry.getValue() / (double) serviceCalls.operations));
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void resetCalls() {
+		stubServices.resetCallCounts();
+	}
+
+	private void count(ServiceCalls serviceCalls, long before) {
+		serviceCalls.serviceCalls += stubServices.getCallCount() - before;
+		serviceCalls.operations++;
+	}
+
+	public static Bundle loadBundle(String resource) throws IOException {
+		try (InputStream in = WritePathBenchmark.class.getResourceAsStream(resource)) {
+			if (in == null) {
+				throw new IOException("Fixture not found: " + resource);
+			}
+			return StaticValues.myFhirContext.newJsonParser().parseResource(Bundle.class,
+					new InputStreamReader(in, StandardCharsets.UTF_8));
+		}
+	}
+
+	@Benchmark
+	public Object observationMeasurement(ServiceCalls serviceCalls) {
+		long before = stubServices.getCallCount();
+		Object retVal = OmopObservation.getInstance().constructOmopMeasurementObservation(null, observation);
+		count(serviceCalls, before);
+
+		return retVal;
+	}
+
+	@Benchmark
+	public Object patient(ServiceCalls serviceCalls) {
+		long before = stubServices.getCallCount();
+		Object retVal = OmopPatient.getInstance().constructOmop(null, patient);
+		count(serviceCalls, before);
+
+		return retVal;
+	}
+
+	@Benchmark
+	public Object medicationStatement(ServiceCalls serviceCalls) {
+		long before = stubServices.getCallCount();
+		Object retVal = OmopMedicationStatement.getInstance().constructOmop(null, medicationStatement);
+		count(serviceCalls, before);
+
+		return retVal;
+	}
+
+	@Benchmark
+	public Object bundleTransaction(BundleCopy bundleCopy, ServiceCalls serviceCalls) {
+		long before = stubServices.getCallCount();
+		OmopBundle.getInstance().toDbase(bundleCopy.bundle, null);
+		count(serviceCalls, before);
+
+		return bundleCopy.bundle;
+	}
+}
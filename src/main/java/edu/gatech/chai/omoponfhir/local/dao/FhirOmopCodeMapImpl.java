@@ -10,6 +10,7 @@ import java.util.List;
 import org.hl7.fhir.r4.model.Coding;
 
 import edu.gatech.chai.omoponfhir.local.model.FhirOmopCodeMapEntry;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.LocalMapLookupEvent;
 
 public class FhirOmopCodeMapImpl extends BaseFhirOmopMap implements FhirOmopCodeMap {
 
@@ -103,6 +104,8 @@ public class FhirOmopCodeMapImpl extends BaseFhirOmopMap implements FhirOmopCode
 			return retv;
 		}
 
+		LocalMapLookupEvent event = LocalMapLookupEvent.start("FhirOmopCodeMap", "getOmopCodeFromFhirCoding",
+				fhirSystem + "|" + fhirCode);
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			pstmt.setString(1, fhirSystem);
 			pstmt.setString(2, fhirCode);
@@ -116,6 +119,7 @@ public class FhirOmopCodeMapImpl extends BaseFhirOmopMap implements FhirOmopCode
 			System.out.println(e.getMessage());
 		}
 
+		event.finish(retv != 0L);
 		return retv;
 	}
 
@@ -124,6 +128,8 @@ public class FhirOmopCodeMapImpl extends BaseFhirOmopMap implements FhirOmopCode
 		Coding retv = null;
 		String sql = "SELECT * FROM FhirOmopCodeMap where omop_concept=?";
 
+		LocalMapLookupEvent event = LocalMapLookupEvent.start("FhirOmopCodeMap", "getFhirCodingFromOmopConcept",
+				String.valueOf(omopConcept));
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			pstmt.setLong(1, omopConcept);
 
@@ -147,6 +153,7 @@ public class FhirOmopCodeMapImpl extends BaseFhirOmopMap implements FhirOmopCode
 			System.out.println(e.getMessage());
 		}
 
+		event.finish(retv != null);
 		return retv;
 	}
 
@@ -155,6 +162,8 @@ public class FhirOmopCodeMapImpl extends BaseFhirOmopMap implements FhirOmopCode
 		Coding retv = null;
 		String sql = "SELECT * FROM FhirOmopCodeMap where fhir_display=?";
 
+		LocalMapLookupEvent event = LocalMapLookupEvent.start("FhirOmopCodeMap", "getFhirCodingFromOmopSourceString",
+				omopSourceString);
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			pstmt.setString(1, omopSourceString);
 
@@ -178,6 +187,7 @@ public class FhirOmopCodeMapImpl extends BaseFhirOmopMap implements FhirOmopCode
 			System.out.println(e.getMessage());
 		}
 
+		event.finish(retv != null);
 		return retv;
 	}
 
@@ -26,10 +26,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.CodeSystemRegistry;
 
 public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOmopVocabularyMap {
 	final static Logger logger = LoggerFactory.getLogger(FhirOmopVocabularyMapImpl.class);
 
+	// Lookups go through CodeSystemRegistry, which holds this table merged
+	// with OmopCodeableConceptMapping. Any write makes it read the table again.
+	public static void clearCache() {
+		CodeSystemRegistry.getInstance().invalidate();
+	}
+
 	@Override
 	public int save(FhirOmopVocabularyMapEntry conceptMapEntry) {
 		String sql = "INSERT INTO FhirOmopVocabularyMap (omop_vocabulary_id, fhir_url_system, other_system) values (?,?,?)";
@@ -40,6 +47,7 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 			pstmt.setString(3, conceptMapEntry.getOtherSystemName());
 
 			pstmt.executeUpdate();
+			clearCache();
 
 			logger.info("New Map entry data added (" + conceptMapEntry.getOmopConceptCodeName() + ", "
 					+ conceptMapEntry.getFhirUrlSystemName() + ", " + conceptMapEntry.getOtherSystemName());
@@ -60,6 +68,7 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 			pstmt.setString(2, conceptMapEntry.getOtherSystemName());
 			pstmt.setString(3, conceptMapEntry.getOmopConceptCodeName());
 			pstmt.executeUpdate();
+			clearCache();
 			logger.info("Map entry data (" + conceptMapEntry.getOmopConceptCodeName() + ") updated to ("
 					+ conceptMapEntry.getFhirUrlSystemName() + ", " + conceptMapEntry.getOtherSystemName() + ")");
 		} catch (SQLException e) {
@@ -74,6 +83,7 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			pstmt.setString(1, omopConceptCodeName);
 			pstmt.executeUpdate();
+			clearCache();
 			logger.info("filter data ("+omopConceptCodeName+") deleted");
 		} catch (SQLException e) {
 			System.out.println(e.getMessage());
@@ -82,11 +92,29 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 
 	@Override
 	public List<FhirOmopVocabularyMapEntry> get() {
+		try {
+			return read();
+		} catch (SQLException e) {
+			System.out.println(e.getMessage());
+		}
+
+		return new ArrayList<FhirOmopVocabularyMapEntry>();
+	}
+
+	/**
+	 * The entries in table order, like get(), but a failed read throws instead
+	 * of returning an empty list.
+	 */
+	public List<FhirOmopVocabularyMapEntry> read() throws SQLException {
 		List<FhirOmopVocabularyMapEntry> conceptMapEntryList = new ArrayList<FhirOmopVocabularyMapEntry>();
-		
-		String sql = "SELECT * FROM FhirOmopVocabularyMap";
 
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+		String sql = "SELECT * FROM FhirOmopVocabularyMap ORDER BY rowid";
+
+		Connection connection = this.connect();
+		if (connection == null) {
+			throw new SQLException("No connection to the local map database");
+		}
+		try (Connection conn = connection; PreparedStatement pstmt = conn.prepareStatement(sql)) {
 			ResultSet rs = pstmt.executeQuery();
 			while (rs.next()) {
 				FhirOmopVocabularyMapEntry conceptMapEntry = new FhirOmopVocabularyMapEntry();
@@ -96,54 +124,24 @@ public class FhirOmopVocabularyMapImpl extends BaseFhirOmopMap implements FhirOm
 				conceptMapEntryList.add(conceptMapEntry);
 			}
 			logger.info(conceptMapEntryList.size()+" Concept Map entries obtained");
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		}		
+		}
 
 		return conceptMapEntryList;
 	}
 
 	@Override
 	public String getOmopVocabularyFromFhirSystemName(String fhirSystemName) {
-		String retv = "None";
-		String sql = "SELECT * FROM FhirOmopVocabularyMap where fhir_url_system=? or other_system=?";
+		String retv = CodeSystemRegistry.getInstance().getOmopVocabulary(fhirSystemName);
+		logger.debug("Omop Vocabulary,"+retv+" , found for "+fhirSystemName);
 
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setString(1, fhirSystemName.trim());
-			pstmt.setString(2, fhirSystemName.trim());
-			
-			ResultSet rs = pstmt.executeQuery();
-			if (rs.next()) {
-				retv = rs.getString("omop_vocabulary_id");
-			}
-			logger.debug("Omop Vocabulary,"+retv+" , found for "+fhirSystemName);
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		}
-		
 		return retv;
 	}
 
 	@Override
 	public String getFhirSystemNameFromOmopVocabulary(String omopVocabulary) {
-		String retv = "None";
-		String sql = "SELECT * FROM FhirOmopVocabularyMap where omop_vocabulary_id=?";
+		String retv = CodeSystemRegistry.getInstance().getFhirSystem(omopVocabulary);
+		logger.debug("FHIR System name,"+retv+" , found for "+omopVocabulary);
 
-		try (Connection conn = this.connect(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
-			pstmt.setString(1, omopVocabulary);
-			
-			ResultSet rs = pstmt.executeQuery();
-			if (rs.next()) {
-				retv = rs.getString("fhir_url_system");
-				if (retv == null) {
-					retv = rs.getString("other_system");
-				}
-			}
-			logger.debug("FHIR System name,"+retv+" , found for "+omopVocabulary);
-		} catch (SQLException e) {
-			System.out.println(e.getMessage());
-		}
-		
 		return retv;
 	}
 
@@ -24,6 +24,7 @@ import com.opencsv.CSVParser;
 
 import edu.gatech.chai.omoponfhir.local.dao.FhirOmopVocabularyMapImpl;
 import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConceptMapIndex;
 import edu.gatech.chai.omopv5.dba.service.ConceptRelationshipService;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
@@ -331,6 +332,9 @@ public class ScheduledTask {
 					} // while
 					reader.close();
 					Files.deleteIfExists(Paths.get(aFile));
+
+					// New mappings may have been added. $translate needs to reload them.
+					ConceptMapIndex.getInstance().invalidate();
 				}
 
 			} catch (IOException e) {
@@ -15,8 +15,16 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
 
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
@@ -30,12 +38,24 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.WebApplicationContext;
 
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
 import ca.uhn.fhir.rest.api.SortSpec;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.TokenParamModifier;
 import edu.gatech.chai.omoponfhir.local.dao.FhirOmopCodeMapImpl;
 import edu.gatech.chai.omoponfhir.local.dao.FhirOmopVocabularyMapImpl;
 import edu.gatech.chai.omoponfhir.local.dao.TwoLetterStateMapImpl;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConceptAncestorIndex;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConstructionPool;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ExtensionUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.MappingEvent;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.MappingMetrics;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.OmopVocabularyClient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.QueryAccounting;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.StaticValues;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.IService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
@@ -61,6 +81,18 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 	public static String MAP_EXCEPTION_FILTER = "FILTER";
 	public static String MAP_EXCEPTION_EXCLUDE = "EXCLUDE";
 
+	// Largest number of concepts a code:below or code:above search may expand to.
+	public static int MAX_HIERARCHY_CONCEPTS = 1000;
+
+	// _summary and _elements of the current request. null means the whole resource.
+	private static final ThreadLocal<Projection> requestedProjection = new ThreadLocal<Projection>();
+
+	// Top level elements of this resource type that are in the _summary=true view.
+	private volatile Set<String> summaryElements = null;
+
+	// _include targets constructed for the current search page, by "Type/fhirId".
+	private static final ThreadLocal<Map<String, Resource>> pageIncludes = new ThreadLocal<Map<String, Resource>>();
+
 	public BaseOmopResource(WebApplicationContext context, Class<t> entityClass, Class<p> serviceClass,
 			String fhirResourceType) {
 		myOmopService = context.getBean(serviceClass);
@@ -72,6 +104,154 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		twoLetterStateMap = new TwoLetterStateMapImpl();
 	}
 
+	/**
+	 * The part of the resource the client asked for with _summary and
+	 * _elements. summary is the _summary value (true, text, data, count or
+	 * false), or null. elements are top level element names, or null.
+	 */
+	public static class Projection {
+		private final String summary;
+		private final Set<String> elements;
+
+		public Projection(String summary, Set<String> elements) {
+			this.summary = summary == null ? null : summary.trim().toLowerCase();
+			if (elements == null) {
+				this.elements = null;
+			} else {
+				// _elements may name them as Patient.name.
+				Set<String> names = new HashSet<String>();
+				for (String element : elements) {
+					names.add(element.substring(element.lastIndexOf('.') + 1).trim());
+				}
+				this.elements = names;
+			}
+		}
+
+		public String getSummary() {
+			return summary;
+		}
+
+		public Set<String> getElements() {
+			return elements;
+		}
+	}
+
+	/**
+	 * Set from _summary and _elements before the mapper is called, and
+	 * cleared after. ProjectionInterceptor does this for every request when
+	 * it is registered with the RestfulServer; servers without it get the
+	 * whole resource. Mappers then skip the lookups that only feed elements
+	 * the client did not ask for (see isRequested), and _summary=count
+	 * searches skip the page query.
+	 */
+	public static void setProjection(String summary, Set<String> elements) {
+		if ((summary == null || "false".equalsIgnoreCase(summary)) && elements == null) {
+			requestedProjection.remove();
+		} else {
+			requestedProjection.set(new Projection(summary, elements));
+		}
+	}
+
+	public static void clearProjection() {
+		requestedProjection.remove();
+	}
+
+	public static void setRequestedElements(Set<String> elements) {
+		setProjection(null, elements);
+	}
+
+	public static void clearRequestedElements() {
+		clearProjection();
+	}
+
+	/**
+	 * True for _summary=count, where searches only need the total. The search
+	 * methods then return without querying the page.
+	 */
+	public static boolean isCountOnly() {
+		Projection projection = requestedProjection.get();
+		return projection != null && "count".equals(projection.getSummary());
+	}
+
+	/**
+	 * True if the top level element (ex. "component", "note", "extension") is
+	 * in the projection of the current request. Choice elements are named
+	 * without [x] ("value").
+	 */
+	protected boolean isRequested(String element) {
+		Projection projection = requestedProjection.get();
+		if (projection == null) {
+			return true;
+		}
+
+		if (projection.getElements() != null) {
+			return projection.getElements().contains(element);
+		}
+
+		switch (projection.getSummary()) {
+		case "true":
+			return getSummaryElements().contains(element);
+		case "text":
+			return "text".equals(element);
+		case "data":
+			return !"text".equals(element);
+		case "count":
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	private Set<String> getSummaryElements() {
+		Set<String> retVal = summaryElements;
+		if (retVal == null) {
+			retVal = new HashSet<String>();
+			RuntimeResourceDefinition definition = StaticValues.myFhirContext.getResourceDefinition(myFhirResourceType);
+			for (BaseRuntimeChildDefinition child : definition.getChildren()) {
+				if (child.isSummary()) {
+					retVal.add(child.getElementName().replace("[x]", ""));
+				}
+			}
+			summaryElements = retVal;
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * The _include target resourceType/fhirId. Within a search page each target
+	 * is constructed once and the same instance is attached to every row that
+	 * references it, so a page of Procedures for one patient builds one Patient.
+	 * Outside of a search page the target is always constructed.
+	 */
+	@SuppressWarnings("unchecked")
+	protected static <r extends Resource> r includeResource(String resourceType, Long fhirId,
+			Supplier<r> constructor) {
+		Map<String, Resource> targets = pageIncludes.get();
+		if (targets == null || fhirId == null) {
+			return constructor.get();
+		}
+
+		// Pages constructed on the ConstructionPool share the map. Two rows
+		// may then both construct a target; the first one put is kept.
+		String key = resourceType + "/" + fhirId;
+		synchronized (targets) {
+			if (targets.containsKey(key)) {
+				return (r) targets.get(key);
+			}
+		}
+
+		Resource retVal = constructor.get();
+		synchronized (targets) {
+			if (targets.containsKey(key)) {
+				return (r) targets.get(key);
+			}
+			targets.put(key, retVal);
+		}
+
+		return (r) retVal;
+	}
+
 	public String getMyFhirResourceType() {
 		return this.myFhirResourceType;
 	}
@@ -104,7 +284,16 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 	}
 
 	public Long getSize() {
-		Long size = myOmopService.getSize();
+		long start = MappingMetrics.start();
+		Long size;
+		try {
+			size = myOmopService.getSize();
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, "getSize.query");
+			throw e;
+		} finally {
+			MappingMetrics.stop(myFhirResourceType, "getSize.query", start);
+		}
 		
 		// update the counts map.
 		ExtensionUtil.addResourceCount(myFhirResourceType, size);
@@ -116,7 +305,15 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 	}
 
 	public Long getSize(List<ParameterWrapper> mapList) {
-		return myOmopService.getSize(mapList);
+		long start = MappingMetrics.start();
+		try {
+			return myOmopService.getSize(mapList);
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, "getSize.query");
+			throw e;
+		} finally {
+			MappingMetrics.stop(myFhirResourceType, "getSize.query", start);
+		}
 	}
 
 	public Long getSize(String queryString, List<String> parameterList, List<String> valueList, boolean cacheOnly) {
@@ -152,6 +349,14 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 //		return null;
 //	}
 
+	/***
+	 * findEntity: the entity read by toFHIR. Overwrite this if the mapper
+	 * keeps the rows in memory.
+	 */
+	protected t findEntity(Long omopId) {
+		return (t) getMyOmopService().findById(omopId);
+	}
+
 	/***
 	 * toFHIR this is called from FHIR provider for read operation.
 	 */
@@ -159,60 +364,263 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		Long id_long_part = id.getIdPartAsLong();
 		Long myId = IdMapping.getOMOPfromFHIR(id_long_part, getMyFhirResourceType());
 		System.out.println("This is the id from baseOMOPResource " + id);
-		t entityClass = (t) getMyOmopService().findById(myId);
-		if (entityClass == null)
+		MappingEvent event = MappingEvent.start(myFhirResourceType, "toFHIR");
+		long start = MappingMetrics.start();
+		t entityClass;
+		try {
+			entityClass = findEntity(myId);
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, "toFHIR.query");
+			throw e;
+		} finally {
+			MappingMetrics.stop(myFhirResourceType, "toFHIR.query", start);
+		}
+		if (entityClass == null) {
+			event.finish(0L);
 			return null;
+		}
 
 		Long fhirId = IdMapping.getFHIRfromOMOP(myId, getMyFhirResourceType());
 
-		return constructFHIR(fhirId, entityClass);
+		start = MappingMetrics.start();
+		v retVal;
+		try {
+			retVal = constructFHIR(fhirId, entityClass);
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, "toFHIR.construct");
+			throw e;
+		} finally {
+			MappingMetrics.stop(myFhirResourceType, "toFHIR.construct", start);
+		}
+
+		event.finish(retVal == null ? 0L : 1L);
+		return retVal;
 	}
 
 	public void searchWithoutParams(int fromIndex, int toIndex, List<IBaseResource> listResources,
 			List<String> includes, String sort) {
-		List<t> entities = getMyOmopService().searchWithoutParams(fromIndex, toIndex, sort);
+		if (isCountOnly()) {
+			// The total comes from getSize. The page is not needed.
+			return;
+		}
+
+		MappingEvent event = MappingEvent.start(myFhirResourceType, "searchWithoutParams");
+		long start = MappingMetrics.start();
+		List<t> entities;
+		try {
+			entities = getMyOmopService().searchWithoutParams(fromIndex, toIndex, sort);
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, "searchWithoutParams.query");
+			throw e;
+		} finally {
+			MappingMetrics.stop(myFhirResourceType, "searchWithoutParams.query", start);
+		}
 
 		// We got the results back from OMOP database. Now, we need to construct
 		// the list of
 		// FHIR Patient resources to be included in the bundle.
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				addRevIncludes(omopId, includes, listResources);
-			}
-		}
+		addResources(entities, listResources, includes, "searchWithoutParams");
+		event.finish(entities.size());
 	}
 
 	public void searchWithParams(int fromIndex, int toIndex, List<ParameterWrapper> mapList,
 			List<IBaseResource> listResources, List<String> includes, String sort) {
-		List<t> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList, sort);
-
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
+		if (isCountOnly()) {
+			return;
 		}
+
+		MappingEvent event = MappingEvent.start(myFhirResourceType, "searchWithParams");
+		long start = MappingMetrics.start();
+		List<t> entities;
+		try {
+			entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList, sort);
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, "searchWithParams.query");
+			throw e;
+		} finally {
+			MappingMetrics.stop(myFhirResourceType, "searchWithParams.query", start);
+		}
+
+		addResources(entities, listResources, includes, "searchWithParams");
+		event.finish(entities.size());
 	}
 	
 	public void searchWithSql(String sql, List<String> parameterList, List<String> valueList, int fromIndex, int toIndex, String sort, List<IBaseResource> listResources) {
-		List<t> entities = getMyOmopService().searchBySql(fromIndex, toIndex, sql, parameterList, valueList, sort);
+		if (isCountOnly()) {
+			return;
+		}
 
-		for (t entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			v fhirResource = constructResource(fhirId, entity, null);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-			}		
+		MappingEvent event = MappingEvent.start(myFhirResourceType, "searchWithSql");
+		long start = MappingMetrics.start();
+		List<t> entities;
+		try {
+			entities = getMyOmopService().searchBySql(fromIndex, toIndex, sql, parameterList, valueList, sort);
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, "searchWithSql.query");
+			throw e;
+		} finally {
+			MappingMetrics.stop(myFhirResourceType, "searchWithSql.query", start);
 		}
+
+		addResources(entities, listResources, null, "searchWithSql");
+		event.finish(entities.size());
+	}
+
+	/**
+	 * Constructs the FHIR resources of a search page and adds them, with their
+	 * rev includes, to listResources. Construction and rev includes are timed
+	 * as the "construct" and "includes" phases of the search.
+	 */
+	protected void addResources(List<t> entities, List<IBaseResource> listResources, List<String> includes,
+			String operation) {
+		MappingMetrics.rows(myFhirResourceType, operation + ".query", entities.size());
+
+		long constructNanos = 0L, includesNanos = 0L;
+		String phase = operation + ".prefetch";
+		// Nested searches (rev includes) share the page of the outer search.
+		boolean ownsPageIncludes = includes != null && !includes.isEmpty() && pageIncludes.get() == null;
+		if (ownsPageIncludes) {
+			pageIncludes.set(new HashMap<String, Resource>());
+		}
+		try {
+			long prefetchStart = MappingMetrics.start();
+			prefetchPage(entities, includes);
+			MappingMetrics.stop(myFhirResourceType, phase, prefetchStart);
+
+			if (ConstructionPool.getInstance().isEnabled(myFhirResourceType, entities.size())) {
+				// Rev includes are constructed with their resource, so the
+				// construct phase includes them.
+				phase = operation + ".construct";
+				long start = MappingMetrics.start();
+				listResources.addAll(constructInParallel(entities, includes));
+				constructNanos = MappingMetrics.start() - start;
+			} else {
+				for (t entity : entities) {
+					Long omopId = entity.getIdAsLong();
+					Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
+
+					phase = operation + ".construct";
+					long start = MappingMetrics.start();
+					v fhirResource = constructResource(fhirId, entity, includes);
+					constructNanos += MappingMetrics.start() - start;
+					if (fhirResource != null) {
+						listResources.add(fhirResource);
+
+						// Do the rev_include and add the resource to the list.
+						if (includes != null && !includes.isEmpty()) {
+							phase = operation + ".includes";
+							start = MappingMetrics.start();
+							addRevIncludes(omopId, includes, listResources);
+							includesNanos += MappingMetrics.start() - start;
+						}
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			MappingMetrics.error(myFhirResourceType, phase);
+			throw e;
+		} finally {
+			releasePage();
+			if (ownsPageIncludes) {
+				pageIncludes.remove();
+			}
+		}
+
+		MappingMetrics.record(myFhirResourceType, operation + ".construct", constructNanos);
+		MappingMetrics.rows(myFhirResourceType, operation + ".construct", entities.size());
+		if (includesNanos > 0L) {
+			MappingMetrics.record(myFhirResourceType, operation + ".includes", includesNanos);
+		}
+	}
+
+	/**
+	 * Constructs the resources of entities, each followed by its rev includes,
+	 * on the ConstructionPool. The entities are split into one run of rows per
+	 * pool thread, and the runs are put back together in order. The thread
+	 * state of the page (_summary/_elements, _include targets, the page
+	 * state of the mapper and the query accounting scope) is carried to the
+	 * pool threads.
+	 */
+	private List<IBaseResource> constructInParallel(List<t> entities, List<String> includes) {
+		ConstructionPool pool = ConstructionPool.getInstance();
+		Projection projection = requestedProjection.get();
+		Map<String, Resource> includeTargets = pageIncludes.get();
+		Object pageState = getPageState();
+		QueryAccounting.Scope scope = QueryAccounting.current();
+
+		List<Callable<List<IBaseResource>>> runs = new ArrayList<Callable<List<IBaseResource>>>();
+		int runSize = (entities.size() + pool.getParallelism() - 1) / pool.getParallelism();
+		for (int from = 0; from < entities.size(); from += runSize) {
+			List<t> run = entities.subList(from, Math.min(from + runSize, entities.size()));
+			runs.add(() -> {
+				requestedProjection.set(projection);
+				pageIncludes.set(includeTargets);
+				setPageState(pageState);
+				QueryAccounting.Scope previousScope = QueryAccounting.attach(scope);
+				try {
+					List<IBaseResource> resources = new ArrayList<IBaseResource>();
+					for (t entity : run) {
+						Long omopId = entity.getIdAsLong();
+						Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
+						v fhirResource = constructResource(fhirId, entity, includes);
+						if (fhirResource != null) {
+							resources.add(fhirResource);
+							if (includes != null && !includes.isEmpty()) {
+								addRevIncludes(omopId, includes, resources);
+							}
+						}
+					}
+
+					return resources;
+				} finally {
+					QueryAccounting.attach(previousScope);
+					setPageState(null);
+					pageIncludes.remove();
+					requestedProjection.remove();
+				}
+			});
+		}
+
+		List<IBaseResource> retVal = new ArrayList<IBaseResource>();
+		for (List<IBaseResource> resources : pool.invokeAll(runs)) {
+			retVal.addAll(resources);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * The page state that prefetchPage keeps in thread locals of the mapper,
+	 * so that setPageState can hand it to the ConstructionPool threads.
+	 */
+	protected Object getPageState() {
+		return null;
+	}
+
+	/**
+	 * Sets the page state returned by getPageState on this thread, or clears
+	 * it when null.
+	 */
+	protected void setPageState(Object pageState) {
+
+	}
+
+	/**
+	 * Called with the entities of a search page before their resources are
+	 * constructed. Mappers that read related rows for every entity override
+	 * this to load them for the whole page with one query, and keep them until
+	 * releasePage.
+	 */
+	protected void prefetchPage(List<t> entities, List<String> includes) {
+
+	}
+
+	/**
+	 * Called after the resources of a search page are constructed, also when
+	 * the construction failed.
+	 */
+	protected void releasePage() {
+
 	}
 
 	// Override the this method to provide rev_includes.
@@ -283,6 +691,68 @@ public abstract class BaseOmopResource<v extends Resource, t extends BaseEntity,
 		}
 	}
 	
+	/**
+	 * code:below and code:above token searches. The token is resolved to an OMOP
+	 * concept and expanded to its descendants (below) or ancestors (above) with the
+	 * concept ancestor index. The concept id column is then matched against the set.
+	 * 
+	 * @param tokenParam      code token from the search
+	 * @param conceptIdColumn concept id column of the entity, e.g. conditionConcept.id
+	 * @return true if the token had one of these modifiers and the parameter was added.
+	 */
+	protected boolean addHierarchyCodeParam(TokenParam tokenParam, String conceptIdColumn,
+			ParameterWrapper paramWrapper, List<ParameterWrapper> mapList) {
+		TokenParamModifier modifier = tokenParam.getModifier();
+		if (modifier != TokenParamModifier.BELOW && modifier != TokenParamModifier.ABOVE) {
+			return false;
+		}
+
+		String system = tokenParam.getSystem();
+		String code = tokenParam.getValue();
+		if (system == null || system.isEmpty() || code == null || code.isEmpty()) {
+			ThrowFHIRExceptions.unprocessableEntityException(
+					"code:" + modifier.getValue() + " needs both system and code");
+		}
+
+		String omopVocabulary = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(system);
+		if ("None".equals(omopVocabulary)) {
+			ThrowFHIRExceptions.unprocessableEntityException("We don't understand the system, " + system);
+		}
+
+		List<String> values = new ArrayList<String>();
+		Integer conceptId = OmopVocabularyClient.getInstance().findConceptId(omopVocabulary, code);
+		if (conceptId == null) {
+			// No such code. Nothing can match.
+			values.add("-1");
+		} else {
+			ConceptAncestorIndex conceptAncestorIndex = ConceptAncestorIndex.getInstance();
+			int[] conceptIds;
+			if (modifier == TokenParamModifier.BELOW) {
+				conceptIds = conceptAncestorIndex.getDescendants(conceptId, true);
+			} else {
+				conceptIds = conceptAncestorIndex.getAncestors(conceptId, true);
+			}
+
+			if (conceptIds.length > MAX_HIERARCHY_CONCEPTS) {
+				ThrowFHIRExceptions.unprocessableEntityException("code:" + modifier.getValue() + " for " + system + "|"
+						+ code + " expands to " + conceptIds.length + " concepts. Maximum is " + MAX_HIERARCHY_CONCEPTS);
+			}
+
+			for (int id : conceptIds) {
+				values.add(String.valueOf(id));
+			}
+		}
+
+		paramWrapper.setParameterType("Long");
+		paramWrapper.setParameters(Collections.nCopies(values.size(), conceptIdColumn));
+		paramWrapper.setOperators(Collections.nCopies(values.size(), "="));
+		paramWrapper.setValues(values);
+		paramWrapper.setRelationship("or");
+		mapList.add(paramWrapper);
+
+		return true;
+	}
+
 	public String constructOrderParams(SortSpec theSort) {
 		String direction;
 		
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Resource;
+
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.MappingEvent;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.MappingMetrics;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.QueryAccounting;
+import edu.gatech.chai.omopv5.model.entity.BaseEntity;
+
+/**
+ * Wraps an IResourceMapping so that every call (toFHIR, toDbase, searches,
+ * getSize, constructFHIR, constructOmop, ...) is timed and counted in
+ * MappingMetrics under the method name.
+ *
+ * This library does not wrap the mappers itself. The resource providers of
+ * the server hold the wrapped mapping instead of the mapper singleton, ex. in
+ * the PatientResourceProvider constructor:
+ *
+ * myMapper = InstrumentedResourceMapping.wrap(OmopPatient.getInstance());
+ *
+ * Without it, MappingMetrics has only the phases BaseOmopResource records, no
+ * write events are emitted and QueryAccounting has no request scope (service
+ * calls outside a scope are not counted). The benchmark LoadTest wraps the
+ * mappers it calls in the same way.
+ *
+ * Each call is also a QueryAccounting scope, so requests that make too many
+ * OMOP service calls are flagged.
+ *
+ * Calls a mapper makes to itself are not seen by the proxy. The phases inside
+ * reads and searches are recorded by BaseOmopResource.
+ */
+public class InstrumentedResourceMapping implements InvocationHandler {
+	private static final Set<String> WRITE_OPERATIONS = new HashSet<String>(
+			Arrays.asList("toDbase", "constructOmop", "removeDbase", "removeByFhirId"));
+
+	private final IResourceMapping<?, ?> mapping;
+	private final String resourceType;
+
+	private InstrumentedResourceMapping(IResourceMapping<?, ?> mapping, String resourceType) {
+		this.mapping = mapping;
+		this.resourceType = resourceType;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <v extends Resource, t extends BaseEntity> IResourceMapping<v, t> wrap(
+			IResourceMapping<v, t> mapping) {
+		if (Proxy.isProxyClass(mapping.getClass())
+				&& Proxy.getInvocationHandler(mapping) instanceof InstrumentedResourceMapping) {
+			return mapping;
+		}
+
+		String resourceType;
+		if (mapping instanceof BaseOmopResource) {
+			resourceType = ((BaseOmopResource<?, ?, ?>) mapping).getMyFhirResourceType();
+		} else {
+			resourceType = mapping.getClass().getSimpleName();
+		}
+
+		return (IResourceMapping<v, t>) Proxy.newProxyInstance(IResourceMapping.class.getClassLoader(),
+				new Class<?>[] { IResourceMapping.class }, new InstrumentedResourceMapping(mapping, resourceType));
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		if (method.getDeclaringClass() == Object.class) {
+			return method.invoke(mapping, args);
+		}
+
+		String operation = method.getName();
+
+		// Searches add to the listResources argument.
+		List<?> listResources = null;
+		int sizeBefore = 0;
+		int listIndex = listResourcesIndex(operation);
+		if (args != null && listIndex >= 0 && listIndex < args.length && args[listIndex] instanceof List) {
+			listResources = (List<?>) args[listIndex];
+			sizeBefore = listResources.size();
+		}
+
+		// Reads and searches have their JFR events in BaseOmopResource.
+		MappingEvent event = WRITE_OPERATIONS.contains(operation) ? MappingEvent.start(resourceType, operation)
+				: null;
+
+		QueryAccounting.begin(resourceType + "." + operation);
+		long start = MappingMetrics.start();
+		Object retVal = null;
+		QueryAccounting.Scope scope;
+		try {
+			retVal = method.invoke(mapping, args);
+			if (listResources != null) {
+				MappingMetrics.rows(resourceType, operation, listResources.size() - sizeBefore);
+			} else if (retVal instanceof Resource || retVal instanceof BaseEntity) {
+				MappingMetrics.rows(resourceType, operation, 1L);
+			}
+		} catch (InvocationTargetException e) {
+			MappingMetrics.error(resourceType, operation);
+			throw e.getCause();
+		} finally {
+			MappingMetrics.stop(resourceType, operation, start);
+			if (event != null) {
+				event.finish(retVal == null ? 0L : 1L);
+			}
+			scope = QueryAccounting.end();
+		}
+
+		// Only a call that returned is verified, so a failure is not hidden.
+		if (scope != null) {
+			scope.verify();
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Position of the listResources argument of a search, or -1 for other
+	 * calls. The includes argument that follows it is a List as well.
+	 */
+	private static int listResourcesIndex(String operation) {
+		if ("searchWithoutParams".equals(operation)) {
+			return 2;
+		} else if ("searchWithParams".equals(operation)) {
+			return 3;
+		}
+
+		return -1;
+	}
+}
@@ -51,7 +51,9 @@ public class OmopAllergyIntolerance extends BaseOmopResource<AllergyIntolerance,
 
 	private static final Logger logger = LoggerFactory.getLogger(OmopAllergyIntolerance.class);
 
-	private static OmopAllergyIntolerance omopAllergyIntolerance = new OmopAllergyIntolerance();
+	private static class InstanceHolder {
+		private static final OmopAllergyIntolerance omopAllergyIntolerance = new OmopAllergyIntolerance();
+	}
 
 	private FPersonService fPersonService;
 	private ProviderService providerService;
@@ -85,7 +87,7 @@ public class OmopAllergyIntolerance extends BaseOmopResource<AllergyIntolerance,
 	}
 
 	public static OmopAllergyIntolerance getInstance() {
-		return OmopAllergyIntolerance.omopAllergyIntolerance;
+		return InstanceHolder.omopAllergyIntolerance;
 	}
 
 	public static String FHIRTYPE = "AllergyIntolerance";
@@ -249,18 +251,7 @@ public class OmopAllergyIntolerance extends BaseOmopResource<AllergyIntolerance,
 			List<IBaseResource> listResources, List<String> includes, String sort) {
 		mapList.addAll(filterParams);
 
-		List<Observation> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList, sort);
-
-		for (Observation entity : entities) {
-			Long fhirId = entity.getIdAsLong();
-			AllergyIntolerance fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(fhirId, includes, listResources);
-			}
-
-		}
+		super.searchWithParams(fromIndex, toIndex, mapList, listResources, includes, sort);
 	}
 
 	
@@ -73,7 +73,9 @@ import edu.gatech.chai.omopv5.model.entity.Concept;
 
 public class OmopBundle extends BaseOmopResource<Bundle, Concept, ConceptService> {
 
-	private static OmopBundle omopBundle = new OmopBundle();
+	private static class InstanceHolder {
+		private static final OmopBundle omopBundle = new OmopBundle();
+	}
 	Map<String, List<BundleEntryComponent>> entryMap = new HashMap<String, List<BundleEntryComponent>>();
 	Map<String, String> updatedMap = new HashMap<String, String>();
 	List<String> toBeDeleted = new ArrayList<String>();
@@ -99,7 +101,7 @@ public class OmopBundle extends BaseOmopResource<Bundle, Concept, ConceptService
 
 	
 	public static OmopBundle getInstance() {
-		return omopBundle;
+		return InstanceHolder.omopBundle;
 	}
 
 	public static String FHIRTYPE = "Bundle";
@@ -19,22 +19,28 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.r4.model.BooleanType;
 import org.hl7.fhir.r4.model.CodeSystem;
-import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Enumerations;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Meta;
-import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
 import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
 import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
-import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
 import org.hl7.fhir.exceptions.FHIRException;
@@ -44,9 +50,13 @@ import org.slf4j.LoggerFactory;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
-import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.api.SortSpec;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConceptAncestorIndex;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.LruCache;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.OmopVocabularyClient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.StaticValues;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ThrowFHIRExceptions;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
 import edu.gatech.chai.omopv5.dba.service.VocabularyService;
@@ -61,11 +71,32 @@ import edu.gatech.chai.omopv5.model.entity.Vocabulary;
 public class OmopCodeSystem extends BaseOmopResource<CodeSystem, Vocabulary, VocabularyService> {
 
     private static final Logger logger = LoggerFactory.getLogger(OmopCodeSystem.class);
-    private static OmopCodeSystem omopCodeSystem = new OmopCodeSystem();
+    private static class InstanceHolder {
+        private static final OmopCodeSystem omopCodeSystem = new OmopCodeSystem();
+    }
     private VocabularyService vocabularyService;
     private ConceptService conceptService;
     private Long id = 2000000000L; 
 
+    // (vocabulary_id, concept_code) to concept for $lookup.
+    private static LruCache<String, Concept> lookupCache = new LruCache<String, Concept>(
+        StaticValues.getEnvInt("CODESYSTEM_LOOKUP_CACHE_SIZE", 10000));
+    // (vocabulary_id, concept_code) that were not found, to the time the miss expires. Vocabularies
+    // without a code set would otherwise query every invalid code again.
+    private static final long LOOKUP_MISS_TTL_MILLIS = StaticValues.getEnvInt("CODESYSTEM_LOOKUP_MISS_TTL_SECONDS", 60) 
+        * 1000L;
+    private static LruCache<String, Long> lookupMissCache = new LruCache<String, Long>(
+        StaticValues.getEnvInt("CODESYSTEM_LOOKUP_CACHE_SIZE", 10000));
+    // Vocabularies with at most this many codes get an in-memory code set for $validate-code.
+    private static final int CODE_SET_MAX_CODES = StaticValues.getEnvInt("CODESYSTEM_CODE_SET_MAX_CODES", 200000);
+    private static LruCache<String, CodeSet> codeSetCache = new LruCache<String, CodeSet>(
+        StaticValues.getEnvInt("CODESYSTEM_CODE_SET_CACHE_SIZE", 20));
+    // Code sets being loaded, so that concurrent requests for a cold vocabulary read its codes once.
+    private static final ConcurrentHashMap<String, CompletableFuture<CodeSet>> codeSetsInFlight = 
+        new ConcurrentHashMap<String, CompletableFuture<CodeSet>>();
+    // FHIR system URL to vocabulary.
+    private static LruCache<String, Vocabulary> systemCache = new LruCache<String, Vocabulary>(200);
+
 
     public OmopCodeSystem(WebApplicationContext context) {
         super(context, Vocabulary.class, VocabularyService.class, OmopCodeSystem.FHIRTYPE);
@@ -88,7 +119,7 @@ public class OmopCodeSystem extends BaseOmopResource<CodeSystem, Vocabulary, Voc
     }
 
     public static OmopCodeSystem getInstance() {
-        return omopCodeSystem;
+        return InstanceHolder.omopCodeSystem;
     }
 
 	public static String FHIRTYPE = "CodeSystem";
@@ -437,49 +468,25 @@ public class OmopCodeSystem extends BaseOmopResource<CodeSystem, Vocabulary, Voc
     * @return Parameters that represent the results of the validation through out parameters determined by the in parameters 
     */ 
     public Parameters validateCode(String id, String code, String version, String display) {
-        String correctDisplay = "";
-        boolean result = false; 
+        String vocabularyId = id.substring(11);
         Parameters retVal = new Parameters();
 
-        List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
-        params.addAll(mapParameter (CodeSystem.SP_NAME, id.substring(11), false));
-        List<Concept> conceptIds = conceptService.searchWithParams(0, 100, params, null);
-
-        ParametersParameterComponent displayParameter = new ParametersParameterComponent();
-        displayParameter.setName("display");
-
-        //there should only be one vocabulary that matches the details in the request 
-        //if default, disregard 
-        for (Concept c: conceptIds) {
-            if (c.getConceptCode().equals(code)) {
-                correctDisplay = c.getConceptName();
-                if (display.equals("default") || c.getConceptName().equals(display)) {
-                    result = true;
-                }
-            }
-            displayParameter.setValue(new StringType(correctDisplay)); 
-        }
-
         //HTTP 400 Bad Request if the CodeSystem defined in the request does not exist
-        if (conceptIds.size() == 0) {
-            OperationOutcome outcome = new OperationOutcome();
-            outcome.setId("exception");
-            CodeableConcept detailCode = new CodeableConcept();
-            detailCode.setText("The CodeSystem " + id.substring(11) + " does not exist");
-            outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode).setCode(IssueType.INVALID);
-            throw new InvalidRequestException("This is an invalid request", outcome);
+        CodeSet codeSet = getCodeSet(vocabularyId);
+        if (codeSet.isEmpty()) {
+            ThrowFHIRExceptions.invalidRequestException("The CodeSystem " + vocabularyId + " does not exist", IssueType.INVALID);
         }
 
         //HTTP 400 Bad Request if the code defined in the request does not exist in the CodeSystem
-        else if (correctDisplay.isEmpty()) {
-            OperationOutcome outcome = new OperationOutcome();
-            outcome.setId("exception");
-            CodeableConcept detailCode = new CodeableConcept();
-            detailCode.setText("The code " + code + " is not found");
-            outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode).setCode(IssueType.NOTFOUND);
-            throw new InvalidRequestException("This is an invalid request", outcome);
+        Concept concept = codeSet.mayContain(code) ? findConcept(vocabularyId, code) : null;
+        if (concept == null) {
+            ThrowFHIRExceptions.invalidRequestException("The code " + code + " is not found", IssueType.NOTFOUND);
         }
-        
+
+        //if default, disregard 
+        String correctDisplay = concept.getConceptName();
+        boolean result = display == null || display.equals("default") || correctDisplay.equals(display);
+
         ParametersParameterComponent resultParameter = new ParametersParameterComponent();
         resultParameter.setName("result");
         resultParameter.setValue(new BooleanType(result));
@@ -494,7 +501,58 @@ public class OmopCodeSystem extends BaseOmopResource<CodeSystem, Vocabulary, Voc
             retVal.addParameter(messageParameter);
         }
 
+        ParametersParameterComponent displayParameter = new ParametersParameterComponent();
+        displayParameter.setName("display");
+        displayParameter.setValue(new StringType(correctDisplay)); 
         retVal.addParameter(displayParameter);
+
+        return retVal;
+    }
+
+    /**
+     * Batched $validate-code. Each coding is checked against the code set of its vocabulary, and 
+     * the concepts of the member codes are read with one query per system. Coding.display is 
+     * optional. If it is given, it must match the concept name. 
+     * @param codings codings to validate
+     * @return Parameters with one "validation" parameter per coding, in the order of the request. 
+     *      Each has system, code, result and, where available, display and message parts. 
+     */
+    public Parameters validateCodeBatch(List<Coding> codings) {
+        Map<String, Vocabulary> vocabularies = prefetchConcepts(codings, true);
+
+        Parameters retVal = new Parameters();
+        for (Coding coding : codings) {
+            ParametersParameterComponent validationParameter = new ParametersParameterComponent();
+            validationParameter.setName("validation");
+            validationParameter.addPart().setName("system").setValue(new UriType(coding.getSystem()));
+            validationParameter.addPart().setName("code").setValue(new CodeType(coding.getCode()));
+
+            Vocabulary vocabulary = coding.getSystem() == null ? null : vocabularies.get(coding.getSystem());
+            Concept concept = null;
+            if (vocabulary != null && coding.getCode() != null) {
+                concept = lookupCache.get(lookupCacheKey(vocabulary.getId(), coding.getCode()));
+            }
+
+            String message = null;
+            if (vocabulary == null) {
+                message = "There is no CodeSystem that matches the system " + coding.getSystem();
+            } else if (concept == null) {
+                message = "The code " + coding.getCode() + " is not found";
+            } else if (coding.hasDisplay() && !coding.getDisplay().equals(concept.getConceptName())) {
+                message = "The display " + coding.getDisplay() + " is incorrect";
+            }
+
+            validationParameter.addPart().setName("result").setValue(new BooleanType(message == null));
+            if (concept != null) {
+                validationParameter.addPart().setName("display").setValue(new StringType(concept.getConceptName()));
+            }
+            if (message != null) {
+                validationParameter.addPart().setName("message").setValue(new StringType(message));
+            }
+
+            retVal.addParameter(validationParameter);
+        }
+
         return retVal;
     }
 
@@ -510,89 +568,302 @@ public class OmopCodeSystem extends BaseOmopResource<CodeSystem, Vocabulary, Voc
      * @return Parameters that represent information from the underlying codeSystem definitions through out parameters determined by the in parameters 
      */
     public Parameters lookUp(String code, String system) {
+        Vocabulary vocabulary = findVocabularyBySystem(system);
+
+        //HTTP 400 Bad Request if the CodeSystem is undefined 
+        if (vocabulary == null) {
+            ThrowFHIRExceptions.invalidRequestException("There is no CodeSystem that matches the system " + system, IssueType.INVALID);
+        }
+
+        Concept concept = findConcept(vocabulary.getId(), code);
+        if (concept == null) {
+            ThrowFHIRExceptions.invalidRequestException("The code " + code + " was not found in the " + vocabulary.getId() + " CodeSystem", 
+                IssueType.NOTFOUND);
+        }
 
         //setting the out parameters for the response   
         Parameters responseParameter = new Parameters();
-                        
+        for (ParametersParameterComponent parameter : constructLookupParameters(vocabulary, concept)) {
+            responseParameter.addParameter(parameter);
+        }
+
+        return responseParameter;
+    }
+
+    /**
+     * Batched $lookup. Codes are grouped by system, so each system costs one vocabulary lookup and 
+     * one CONCEPT query for the codes that are not in the lookup cache. 
+     * Unknown systems or codes do not fail the request. The entry gets a message part instead.
+     * @param codings system and code pairs to look up
+     * @return Parameters with one "lookup" parameter per coding, in the order of the request. Each has 
+     *      system and code parts followed by the $lookup out parameters or a message. 
+     */
+    public Parameters lookUpBatch(List<Coding> codings) {
+        Map<String, Vocabulary> vocabularies = prefetchConcepts(codings, false);
+
+        Parameters retVal = new Parameters();
+        for (Coding coding : codings) {
+            ParametersParameterComponent lookupParameter = new ParametersParameterComponent();
+            lookupParameter.setName("lookup");
+            lookupParameter.addPart().setName("system").setValue(new UriType(coding.getSystem()));
+            lookupParameter.addPart().setName("code").setValue(new CodeType(coding.getCode()));
+
+            Vocabulary vocabulary = coding.getSystem() == null ? null : vocabularies.get(coding.getSystem());
+            Concept concept = null;
+            if (vocabulary != null && coding.getCode() != null) {
+                concept = lookupCache.get(lookupCacheKey(vocabulary.getId(), coding.getCode()));
+            }
+
+            if (vocabulary == null) {
+                lookupParameter.addPart().setName("message")
+                    .setValue(new StringType("There is no CodeSystem that matches the system " + coding.getSystem()));
+            } else if (concept == null) {
+                lookupParameter.addPart().setName("message").setValue(new StringType("The code " + coding.getCode() 
+                    + " was not found in the " + vocabulary.getId() + " CodeSystem"));
+            } else {
+                for (ParametersParameterComponent part : constructLookupParameters(vocabulary, concept)) {
+                    lookupParameter.addPart(part);
+                }
+            }
+
+            retVal.addParameter(lookupParameter);
+        }
+
+        return retVal;
+    }
+
+    /**
+     * Resolves the systems of the codings and loads the concepts that are not in the lookup cache, 
+     * one query per system. 
+     * @param codings codings of a batch request
+     * @param useCodeSet if true, codes that are not in the code set of the vocabulary are not queried
+     * @return FHIR system URL to vocabulary for the systems that are known
+     */
+    private Map<String, Vocabulary> prefetchConcepts(List<Coding> codings, boolean useCodeSet) {
+        Map<String, List<String>> codesBySystem = new LinkedHashMap<String, List<String>>();
+        for (Coding coding : codings) {
+            if (coding.getSystem() == null || coding.getCode() == null) {
+                continue;
+            }
+            codesBySystem.computeIfAbsent(coding.getSystem(), k -> new ArrayList<String>()).add(coding.getCode());
+        }
+
+        Map<String, Vocabulary> vocabularies = new HashMap<String, Vocabulary>();
+        for (Map.Entry<String, List<String>> entry : codesBySystem.entrySet()) {
+            Vocabulary vocabulary = findVocabularyBySystem(entry.getKey());
+            if (vocabulary == null) {
+                continue;
+            }
+            vocabularies.put(entry.getKey(), vocabulary);
+
+            CodeSet codeSet = useCodeSet ? getCodeSet(vocabulary.getId()) : null;
+            List<String> notCached = new ArrayList<String>();
+            for (String code : entry.getValue()) {
+                if (codeSet != null && !codeSet.mayContain(code)) {
+                    continue;
+                }
+                String key = lookupCacheKey(vocabulary.getId(), code);
+                if (lookupCache.get(key) == null && !isKnownMiss(key)) {
+                    notCached.add(code);
+                }
+            }
+            if (!notCached.isEmpty()) {
+                // A failed query throws here, so only codes that a successful query did not find
+                // are remembered as misses.
+                Map<String, Concept> found = OmopVocabularyClient.getInstance().findConceptsByCodes(vocabulary.getId(),
+                    notCached);
+                for (Concept concept : found.values()) {
+                    lookupCache.put(lookupCacheKey(vocabulary.getId(), concept.getConceptCode()), concept);
+                }
+                for (String code : notCached) {
+                    if (!found.containsKey(code)) {
+                        lookupMissCache.put(lookupCacheKey(vocabulary.getId(), code), 
+                            System.currentTimeMillis() + LOOKUP_MISS_TTL_MILLIS);
+                    }
+                }
+            }
+        }
+
+        return vocabularies;
+    }
+
+    /**
+     * Code set of the vocabulary. Loaded on first use and kept in an LRU cache. Callers that arrive
+     * while another thread loads the same vocabulary wait for that load.
+     */
+    private CodeSet getCodeSet(String vocabularyId) {
+        while (true) {
+            CodeSet cached = codeSetCache.get(vocabularyId);
+            if (cached != null) {
+                return cached;
+            }
+
+            CompletableFuture<CodeSet> flight = new CompletableFuture<CodeSet>();
+            CompletableFuture<CodeSet> running = codeSetsInFlight.putIfAbsent(vocabularyId, flight);
+            if (running != null) {
+                try {
+                    return running.join();
+                } catch (CompletionException e) {
+                    // The other caller failed. Try on our own.
+                    continue;
+                }
+            }
+
+            try {
+                CodeSet codeSet = new CodeSet(
+                    OmopVocabularyClient.getInstance().findConceptCodes(vocabularyId, CODE_SET_MAX_CODES));
+                codeSetCache.put(vocabularyId, codeSet);
+                flight.complete(codeSet);
+                return codeSet;
+            } catch (RuntimeException e) {
+                flight.completeExceptionally(e);
+                throw e;
+            } finally {
+                codeSetsInFlight.remove(vocabularyId, flight);
+            }
+        }
+    }
+
+    private List<ParametersParameterComponent> constructLookupParameters(Vocabulary vocabulary, Concept concept) {
+        List<ParametersParameterComponent> retVal = new ArrayList<ParametersParameterComponent>();
+
         ParametersParameterComponent nameParameter = new ParametersParameterComponent();
         nameParameter.setName("name");
+        nameParameter.setValue(new StringType(vocabulary.getId()));
+        retVal.add(nameParameter);
+
         ParametersParameterComponent versionParameter = new ParametersParameterComponent();
         versionParameter.setName("version");
+        versionParameter.setValue(new StringType(vocabulary.getVocabularyVersion()));
+        retVal.add(versionParameter);
+
         ParametersParameterComponent displayParameter = new ParametersParameterComponent();
         displayParameter.setName("display");
+        displayParameter.setValue(new StringType(concept.getConceptName()));
+        retVal.add(displayParameter);
+
         ParametersParameterComponent abstractParameter = new ParametersParameterComponent();
         abstractParameter.setName("abstract");
+        if (concept.getStandardConcept() == null || concept.getStandardConcept().compareTo('S') == 0) {
+            abstractParameter.setValue(new StringType("false"));
+        } else {
+            abstractParameter.setValue(new StringType("true"));
+        }
+        retVal.add(abstractParameter);
 
-        List<ParametersParameterComponent> listOfDesignation = new ArrayList<>();
-        ParametersParameterComponent designationValueParameter = new ParametersParameterComponent();
         ParametersParameterComponent designationParameter = new ParametersParameterComponent();
-        designationParameter.setPart(listOfDesignation);
-        designationValueParameter.setName("value");
-    
-        List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
+        designationParameter.setName("designation");
+        designationParameter.addPart().setName("value").setValue(new StringType(concept.getConceptName()));
+        retVal.add(designationParameter);
 
-        params.addAll(mapParameter (CodeSystem.SP_URL, system, true));
-        List<Vocabulary> vocabulary = vocabularyService.searchWithParams(0, 100, params, null);
-        for (Vocabulary v: vocabulary) {
-            logger.debug("These are the listed vocabularies " + v.getId());
-            List<ParameterWrapper> param = new ArrayList<ParameterWrapper>();
-
-            //TODO: somehow map the system from OMOP (ex. from: "http://loinc.org/downloads/loinc" to: "http://loinc.org")
-            param.addAll(mapParameter (CodeSystem.SP_NAME, v.getId(), false)); 
-            
-            //these are all the concepts in a CodeSystem
-            List<Concept> conceptIds = conceptService.searchWithParams(0, 100, param, null);
-            for (Concept c: conceptIds) {
-                if (c.getConceptCode().equals(code) && v.getVocabularyReference().equals(system)) {
-                    nameParameter.setValue(new StringType(v.getId()));
-                    responseParameter.addParameter(nameParameter);
-
-                    versionParameter.setValue(new StringType(v.getVocabularyVersion()));
-                    responseParameter.addParameter(versionParameter);
-
-                    displayParameter.setValue(new StringType(c.getConceptName()));
-                    responseParameter.addParameter(displayParameter);
-
-                    if (c.getStandardConcept() == null || c.getStandardConcept().compareTo('S') == 0) {
-                        abstractParameter.setValue(new StringType("false"));
-                    } else {
-                        abstractParameter.setValue(new StringType("true"));
-                    }
-                    responseParameter.addParameter(abstractParameter);
+        return retVal;
+    }
 
-                    designationValueParameter.setValue(new StringType(c.getConceptName()));
-                    listOfDesignation.add(designationValueParameter);
-                    responseParameter.addParameter(designationParameter);
-                }
+    /**
+     * Finds the concept with an indexed (vocabulary_id, concept_code) query. Found concepts are cached.
+     * Codes that are not found are remembered for CODESYSTEM_LOOKUP_MISS_TTL_SECONDS (default 60).
+     * A failed query is thrown and not remembered, so the code is queried again by the next lookup.
+     */
+    private Concept findConcept(String vocabularyId, String code) {
+        String key = lookupCacheKey(vocabularyId, code);
+        Concept concept = lookupCache.get(key);
+        if (concept == null && !isKnownMiss(key)) {
+            concept = OmopVocabularyClient.getInstance().findConcept(vocabularyId, code);
+            if (concept == null) {
+                lookupMissCache.put(key, System.currentTimeMillis() + LOOKUP_MISS_TTL_MILLIS);
+            } else {
+                lookupCache.put(key, concept);
             }
-            if (responseParameter.isEmpty()) {
-                OperationOutcome outcome = new OperationOutcome();
-                outcome.setId("exception");
-                CodeableConcept detailCode = new CodeableConcept();
-                detailCode.setText("The code " + code + " was not found in the " + v.getId() + " CodeSystem");
-                outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode).setCode(IssueType.NOTFOUND);
-                throw new InvalidRequestException("This is an invalid request", outcome);
+        }
+
+        return concept;
+    }
+
+    private static boolean isKnownMiss(String key) {
+        Long expires = lookupMissCache.get(key);
+        return expires != null && expires.longValue() > System.currentTimeMillis();
+    }
+
+    /**
+     * Finds the VOCABULARY row for a FHIR system URL. VOCABULARY.vocabulary_reference is tried first.
+     * If it does not match (ex. "http://loinc.org/downloads/loinc" vs. "http://loinc.org"), the 
+     * local FHIR system to OMOP vocabulary map is used.
+     */
+    private Vocabulary findVocabularyBySystem(String system) {
+        if (system == null || system.isEmpty()) {
+            return null;
+        }
+
+        Vocabulary vocabulary = systemCache.get(system);
+        if (vocabulary != null) {
+            return vocabulary;
+        }
+
+        List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
+        params.addAll(mapParameter (CodeSystem.SP_URL, system, true));
+        List<Vocabulary> vocabularies = vocabularyService.searchWithParams(0, 1, params, null);
+        if (vocabularies.isEmpty()) {
+            String omopVocabulary = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(system);
+            if (!"None".equals(omopVocabulary)) {
+                ParameterWrapper paramWrapper = new ParameterWrapper();
+                paramWrapper.setParameterType("String");
+                paramWrapper.setParameters(Arrays.asList("id"));
+                paramWrapper.setOperators(Arrays.asList("="));
+                paramWrapper.setValues(Arrays.asList(omopVocabulary));
+                paramWrapper.setRelationship("or");
+                vocabularies = vocabularyService.searchWithParams(0, 1, Arrays.asList(paramWrapper), null);
             }
         }
 
-        //HTTP 400 Bad Request if the CodeSystem is undefined 
-        if (vocabulary.isEmpty()) {
-            OperationOutcome outcome = new OperationOutcome();
-            outcome.setId("exception");
-            CodeableConcept detailCode = new CodeableConcept();
-            detailCode.setText("There is no CodeSystem that matches the system " + system);
-            outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode).setCode(IssueType.INVALID);
-            throw new InvalidRequestException("This is an invalid request", outcome);
+        if (vocabularies.isEmpty()) {
+            return null;
         }
 
-        return responseParameter;
+        vocabulary = vocabularies.get(0);
+        systemCache.put(system, vocabulary);
+
+        return vocabulary;
+    }
+
+    private static String lookupCacheKey(String vocabularyId, String code) {
+        return vocabularyId + "|" + code;
+    }
+
+    public static void clearLookupCache() {
+        lookupCache.clear();
+        lookupMissCache.clear();
+        systemCache.clear();
+        codeSetCache.clear();
+    }
+
+    /**
+     * Sorted concept codes of one vocabulary for membership tests. Vocabularies larger than 
+     * CODE_SET_MAX_CODES have no code list (OmopVocabularyClient.findConceptCodes returns null after 
+     * counting them), and every code may be a member. Those are checked with the exact 
+     * (vocabulary_id, concept_code) lookup only. A failed load is thrown and not cached.
+     */
+    private static class CodeSet {
+        private final String[] codes;
+
+        CodeSet(String[] codes) {
+            this.codes = codes;
+        }
+
+        boolean isEmpty() {
+            return codes != null && codes.length == 0;
+        }
+
+        boolean mayContain(String code) {
+            return codes == null || Arrays.binarySearch(codes, code) >= 0;
+        }
     }
 
     /**
      * FHIR operation $subsumes on CodeSystem
-     * note: conceptRelationshipPK needs to be mapped 
-     * @param codeA represents concept_id_1 in the OMOP CDM 
-     * @param codeB represents concept_id_2 in the OMOP CDM 
+     * Both codes are resolved to OMOP concepts in the vocabulary of the system. Subsumption is then 
+     * tested against CONCEPT_ANCESTOR through the in-memory ConceptAncestorIndex.
+     * @param codeA the "A" code that is to be tested 
+     * @param codeB the "B" code that is to be tested 
      * @param system The CodeSystem in which subsumption testing is to be performed 
      *      Must be provided unless the operation is invoked on a code system instance
      * @return 4 possible codes to be returned (equivalent, subsumes, subsumed-by, and not-subsumed)
@@ -602,18 +873,42 @@ public class OmopCodeSystem extends BaseOmopResource<CodeSystem, Vocabulary, Voc
         ParametersParameterComponent outcomeParameter = new ParametersParameterComponent();
         outcomeParameter.setName("outcome"); 
 
-        // ConceptRelationshipPK concpetRelationshippk = new ConceptRelationshipPK(40177103L, 725864L, "Concept replaces");
-		
-		// ConceptRelationshipPK conceptRealationships = conceptRelationshipService.findById(concpetRelationshippk);
-        // logger.debug("what is the concept relationship primary key " + conceptRealationships);
-        // for (ConceptRelationship cr: conceptRealationships) {
-            // outcomeParameter.setValue(new StringType(cr.getConceptId1()));
-            // logger.debug("codeA " + cr.getConceptId1() + " codeB " + cr.getConceptId2() + " relationship " + cr.getRelationshipId());
-        // }
+        String omopVocabulary = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(system);
+        if ("None".equals(omopVocabulary)) {
+            ThrowFHIRExceptions.invalidRequestException("There is no CodeSystem that matches the system " + system, IssueType.INVALID);
+        }
+
+        OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+        Integer conceptIdA = vocabularyClient.findConceptId(omopVocabulary, codeA);
+        if (conceptIdA == null) {
+            ThrowFHIRExceptions.invalidRequestException("The code " + codeA + " was not found in the " + omopVocabulary + " CodeSystem", 
+                IssueType.NOTFOUND);
+        }
+        Integer conceptIdB = vocabularyClient.findConceptId(omopVocabulary, codeB);
+        if (conceptIdB == null) {
+            ThrowFHIRExceptions.invalidRequestException("The code " + codeB + " was not found in the " + omopVocabulary + " CodeSystem", 
+                IssueType.NOTFOUND);
+        }
+
+        ConceptAncestorIndex conceptAncestorIndex = ConceptAncestorIndex.getInstance();
+        String outcome;
+        if (conceptIdA.equals(conceptIdB)) {
+            outcome = "equivalent";
+        } else if (conceptAncestorIndex.subsumes(conceptIdA, conceptIdB)) {
+            outcome = "subsumes";
+        } else if (conceptAncestorIndex.subsumes(conceptIdB, conceptIdA)) {
+            outcome = "subsumed-by";
+        } else {
+            outcome = "not-subsumed";
+        }
+
+        outcomeParameter.setValue(new CodeType(outcome));
+        retVal.addParameter(outcomeParameter);
+
         return retVal; 
-        
     }
 
+
     
     @Override
     public CodeSystem toFHIR(IdType id) {
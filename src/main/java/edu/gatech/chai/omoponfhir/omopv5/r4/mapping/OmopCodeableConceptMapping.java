@@ -17,6 +17,8 @@ package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
 
 import org.hl7.fhir.exceptions.FHIRException;
 
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.CodeSystemRegistry;
+
 /***
  * 
  * @author mc142
@@ -24,6 +26,9 @@ import org.hl7.fhir.exceptions.FHIRException;
  * URI information for coding system is obtained from 
  *   https://www.hl7.org/fhir/terminologies-systems.html
  * 
+ * These are the built-in entries of CodeSystemRegistry, which the lookups
+ * below go to. Entries of the local FhirOmopVocabularyMap table override them.
+ * 
  * 
  */
 public enum OmopCodeableConceptMapping {
@@ -48,37 +53,7 @@ public enum OmopCodeableConceptMapping {
 			throw new FHIRException("FHIR URI cannot be null or empty: '"+fhirUri+"'");
 		}
 
-		if (ATC.getFhirUri().equals(fhirUri)) 
-			return ATC.getOmopVocabulary();
-		if (CPT.getFhirUri().equals(fhirUri))
-			return CPT.getOmopVocabulary();
-		if (HCPCS.getFhirUri().equals(fhirUri))
-			return HCPCS.getOmopVocabulary();
-		if (ICD9CM.getFhirUri().equals(fhirUri))
-			return ICD9CM.getOmopVocabulary();
-		if (ICD9PROC.getFhirUri().equals(fhirUri))
-			return ICD9PROC.getOmopVocabulary();
-		if (ICD10.getFhirUri().equals(fhirUri))
-			return ICD10.getOmopVocabulary();
-		if (ICD10CM.getFhirUri().equals(fhirUri))
-			return ICD10CM.getOmopVocabulary();
-		if (ISBT128.getFhirUri().equals(fhirUri))
-			return ISBT128.getOmopVocabulary();
-		if (LOINC.getFhirUri().equals(fhirUri))
-			return LOINC.getOmopVocabulary();
-		if (NDC.getFhirUri().equals(fhirUri))
-			return NDC.getOmopVocabulary();
-		if (NDFRT.getFhirUri().equals(fhirUri))
-			return NDFRT.getOmopVocabulary();
-		if (RXNORM.getFhirUri().equals(fhirUri))
-			return RXNORM.getOmopVocabulary();
-		if (SCT.getFhirUri().equals(fhirUri))
-			return SCT.getOmopVocabulary();
-		if (UCUM.getFhirUri().equals(fhirUri))
-			return UCUM.getOmopVocabulary();
-		
-		return "None";
-		
+		return CodeSystemRegistry.getInstance().getOmopVocabulary(fhirUri);
 	}
 
 	public static String fhirUriforOmopVocabulary(String omopVocabulary) throws FHIRException {
@@ -86,37 +61,7 @@ public enum OmopCodeableConceptMapping {
 			throw new FHIRException("Omop Vocabulary ID cannot be null or empty: '"+omopVocabulary+"'");
 		}
 
-		if (ATC.getOmopVocabulary().equals(omopVocabulary)) 
-			return ATC.getFhirUri();
-		if (CPT.getOmopVocabulary().equals(omopVocabulary))
-			return CPT.getFhirUri();
-		if (HCPCS.getOmopVocabulary().equals(omopVocabulary))
-			return HCPCS.getFhirUri();
-		if (ICD9CM.getOmopVocabulary().equals(omopVocabulary))
-			return ICD9CM.getFhirUri();
-		if (ICD9PROC.getOmopVocabulary().equals(omopVocabulary))
-			return ICD9PROC.getFhirUri();
-		if (ICD10.getOmopVocabulary().equals(omopVocabulary))
-			return ICD10.getFhirUri();
-		if (ICD10CM.getOmopVocabulary().equals(omopVocabulary))
-			return ICD10CM.getFhirUri();
-		if (LOINC.getOmopVocabulary().equals(omopVocabulary))
-			return LOINC.getFhirUri();
-		if (ISBT128.getOmopVocabulary().equals(omopVocabulary))
-			return ISBT128.getFhirUri();
-		if (NDC.getOmopVocabulary().equals(omopVocabulary))
-			return NDC.getFhirUri();
-		if (NDFRT.getOmopVocabulary().equals(omopVocabulary))
-			return NDFRT.getFhirUri();
-		if (RXNORM.getOmopVocabulary().equals(omopVocabulary))
-			return RXNORM.getFhirUri();
-		if (SCT.getOmopVocabulary().equals(omopVocabulary))
-			return SCT.getFhirUri();
-		if (UCUM.getOmopVocabulary().equals(omopVocabulary))
-			return UCUM.getFhirUri();
-		
-		return "None";
-		
+		return CodeSystemRegistry.getInstance().getFhirSystem(omopVocabulary);
 	}
 
 	String fhirUri;
@@ -1,7 +1,6 @@
 package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.hl7.fhir.r4.model.BooleanType;
@@ -11,6 +10,7 @@ import org.hl7.fhir.r4.model.ConceptMap;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.Parameters;
 import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.UriType;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +18,7 @@ import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.CodeableConceptUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConceptMapIndex;
 import edu.gatech.chai.omopv5.dba.service.ConceptRelationshipService;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
@@ -27,7 +28,9 @@ import edu.gatech.chai.omopv5.model.entity.ConceptRelationship;
 public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelationship, ConceptRelationshipService> {
 
 	private static final Logger logger = LoggerFactory.getLogger(OmopConceptMap.class);
-	private static OmopConceptMap omopConceptMap = new OmopConceptMap();
+	private static class InstanceHolder {
+		private static final OmopConceptMap omopConceptMap = new OmopConceptMap();
+	}
 	private ConceptService conceptService;
 	
 	public OmopConceptMap(WebApplicationContext context) {
@@ -48,6 +51,10 @@ public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelation
 		// getSize();
 	}
 	
+	public static OmopConceptMap getInstance() {
+		return InstanceHolder.omopConceptMap;
+	}
+
 	public static String FHIRTYPE = "ConceptMap";
 
 	@Override
@@ -71,9 +78,68 @@ public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelation
 	}
 
 	public Parameters translateConcept(String code, String system, String targetUri, String targetSystem) {
-		System.out.println("code, system, targetURI, and targetSystem are " + code + " " + system + " " + targetUri + " " + targetSystem);
+		logger.debug("code, system, targetURI, and targetSystem are " + code + " " + system + " " + targetUri + " " + targetSystem);
 		Parameters retVal = new Parameters();
-		
+
+		List<Coding> targetCodings = translate(code, system, targetSystem);
+		if (targetCodings.isEmpty()) {
+			return retVal;
+		}
+
+		ParametersParameterComponent parameter = retVal.addParameter();
+		parameter.setName("result");
+		parameter.setValue(new BooleanType(true));
+
+		addMatchParameter(retVal.addParameter(), targetCodings);
+
+		return retVal;
+	}
+
+	/**
+	 * Batched $translate. All codings are translated to the same target system.
+	 * Each source/target vocabulary pair costs one query for the whole batch.
+	 * 
+	 * @param codings      source codings
+	 * @param targetSystem FHIR system to translate to
+	 * @return Parameters with one "translation" parameter per coding, in the order
+	 *         of the request, with system, code, result and match parts.
+	 */
+	public Parameters translateBatch(List<Coding> codings, String targetSystem) {
+		Parameters retVal = new Parameters();
+		for (Coding coding : codings) {
+			ParametersParameterComponent translationParameter = retVal.addParameter();
+			translationParameter.setName("translation");
+			translationParameter.addPart().setName("system").setValue(new UriType(coding.getSystem()));
+			translationParameter.addPart().setName("code").setValue(new CodeType(coding.getCode()));
+
+			List<Coding> targetCodings = translate(coding.getCode(), coding.getSystem(), targetSystem);
+			translationParameter.addPart().setName("result").setValue(new BooleanType(!targetCodings.isEmpty()));
+			if (!targetCodings.isEmpty()) {
+				addMatchParameter(translationParameter.addPart(), targetCodings);
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Target codings for system|code. Mappings come from the relationship index
+	 * of ConceptMapIndex, and the result is cached by (system, code, targetSystem).
+	 * 
+	 * @return target codings. Empty if there is no mapping.
+	 */
+	public List<Coding> translate(String code, String system, String targetSystem) {
+		ConceptMapIndex conceptMapIndex = ConceptMapIndex.getInstance();
+		List<Coding> retVal = conceptMapIndex.getTranslation(system, code, targetSystem);
+		if (retVal != null) {
+			return retVal;
+		}
+
+		retVal = new ArrayList<Coding>();
+		if (code == null || system == null || targetSystem == null) {
+			return retVal;
+		}
+
 		// Using the system/code and targetSystem, map the system/code.
 		String omopSrcVocab = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(system);
 		String omopTargetVocab = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(targetSystem);
@@ -82,68 +148,37 @@ public class OmopConceptMap extends BaseOmopResource<ConceptMap, ConceptRelation
 			logger.error("$translate: trying to translate not-known coding system ("+system+"|"+code+" to "+targetSystem);
 			return retVal;
 		}
-		
-		String relationshipId = omopSrcVocab+" % "+omopTargetVocab+" eq";
+
+		String relationshipId = ConceptMapIndex.relationshipId(omopSrcVocab, omopTargetVocab);
 		logger.debug("$translate requested for "+relationshipId);
-		
-		// Find concept_id for source coding.
-		Concept omopSrcConcept = CodeableConceptUtil.getOmopConceptWithOmopVacabIdAndCode(conceptService, omopSrcVocab, code);
-		if (omopSrcConcept == null) {
-			logger.error("$translate: could not find concept for "+system+"|"+code);
-			return retVal;
-		}
-		
-		logger.debug("$translate: attempting translate from concept_id_1:"+omopSrcConcept.getId()+" to "+targetSystem);
-		List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
-		ParameterWrapper paramConceptId1 = new ParameterWrapper(
-				"Long",
-				Arrays.asList("id.conceptId1"),
-				Arrays.asList("="),
-				Arrays.asList(String.valueOf(omopSrcConcept.getId())),
-				"or"
-				);
-		params.add(paramConceptId1);
-		
-		ParameterWrapper paramRelationshipId = new ParameterWrapper(
-				"String",
-				Arrays.asList("id.relationshipId"),
-				Arrays.asList("like"),
-				Arrays.asList(relationshipId),
-				"or"
-				);
-		params.add(paramRelationshipId);
-		
-		List<ConceptRelationship> conceptRealationships = getMyOmopService().searchWithParams(0, 0, params, null);
-		if (conceptRealationships.isEmpty()) {
+
+		List<Concept> targetConcepts = conceptMapIndex.getMappings(relationshipId, omopSrcVocab).get(code);
+		if (targetConcepts == null || targetConcepts.isEmpty()) {
 			logger.info("$translate: mapping information is not found ("+system+"|"+code+" to "+targetSystem+")");
-			return retVal;
+		} else {
+			for (Concept targetConcept : targetConcepts) {
+				// concept_id_2 is the target concept.
+				logger.debug("$translate: target concept obtained with vocabulary_id="+targetConcept.getVocabularyId());
+				retVal.add(CodeableConceptUtil.getCodingFromOmopConcept(targetConcept, getFhirOmopVocabularyMap()));
+			}
 		}
-		
-		ParametersParameterComponent parameter = retVal.addParameter();
-		parameter.setName("result");
-		parameter.setValue(new BooleanType(true));
-		
-		parameter = retVal.addParameter();
+
+		conceptMapIndex.putTranslation(system, code, targetSystem, retVal);
+		return retVal;
+	}
+
+	private void addMatchParameter(ParametersParameterComponent parameter, List<Coding> targetCodings) {
 		parameter.setName("match");
-		
+
 		ParametersParameterComponent partParameter = parameter.addPart();
 		partParameter.setName("equivalence");
 		partParameter.setValue(new CodeType("equivalent"));
-		
-		for (ConceptRelationship conceptRealationship: conceptRealationships) {
-			// We found the mapping. Populate this information in Parameters resource.
-			// concept_id_2 is the target concept.
+
+		for (Coding targetCoding : targetCodings) {
+			// Cached codings are shared. Put a copy in the response.
 			partParameter = parameter.addPart();
 			partParameter.setName("concept");
-			
-			Long targetConceptId = conceptRealationship.getId().getConceptId2();
-			Concept targetConcept = conceptService.findById(targetConceptId);
-			
-			logger.debug("$translate: target concept obtained with vocabulary_id="+targetConcept.getVocabularyId());
-			Coding targetCoding = CodeableConceptUtil.getCodingFromOmopConcept(targetConcept, getFhirOmopVocabularyMap());
-			partParameter.setValue(targetCoding);
+			partParameter.setValue(targetCoding.copy());
 		}
-		
-		return retVal;
 	}
 }
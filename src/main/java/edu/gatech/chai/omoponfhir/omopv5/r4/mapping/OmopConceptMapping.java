@@ -213,10 +213,10 @@ public enum OmopConceptMapping {
 	}
 	
 	public static String fhirForConditionTypeConcept(Long conditionTypeConceptId) {
-		if (PROBLEM_LIST_ITEM.getOmopConceptId() == conditionTypeConceptId) {
+		if (PROBLEM_LIST_ITEM.getOmopConceptId().equals(conditionTypeConceptId)) {
 			return PROBLEM_LIST_ITEM.getFhirCode();
 		}
-		if (ENCOUNTER_DIAGNOSIS.getOmopConceptId() == conditionTypeConceptId) {
+		if (ENCOUNTER_DIAGNOSIS.getOmopConceptId().equals(conditionTypeConceptId)) {
 			return ENCOUNTER_DIAGNOSIS.getFhirCode();
 		} 
 		
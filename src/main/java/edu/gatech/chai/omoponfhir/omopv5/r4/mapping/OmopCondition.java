@@ -52,7 +52,9 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 
 	private static final Logger logger = LoggerFactory.getLogger(OmopCondition.class);
 
-	private static OmopCondition omopCondition = new OmopCondition();
+	private static class InstanceHolder {
+		private static final OmopCondition omopCondition = new OmopCondition();
+	}
 
 //	private ConditionOccurrenceService conditionOccurrenceService;
 	private FPersonService fPersonService;
@@ -89,7 +91,7 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 	}
 
 	public static OmopCondition getInstance() {
-		return OmopCondition.omopCondition;
+		return InstanceHolder.omopCondition;
 	}
 
 	public static String FHIRTYPE = "Condition";
@@ -197,6 +199,9 @@ public class OmopCondition extends BaseOmopResource<Condition, ConditionOccurren
 		case Condition.SP_CLINICAL_STATUS:
 			break;
 		case Condition.SP_CODE:
+			if (addHierarchyCodeParam((TokenParam) value, "conditionConcept.id", paramWrapper, mapList))
+				break;
+
 			String system = ((TokenParam) value).getSystem();
 			String code = ((TokenParam) value).getValue();
 //    			System.out.println("\n\n\n\n\nSystem:"+system+"\n\ncode:"+code+"\n\n\n\n\n");
@@ -42,7 +42,9 @@ import edu.gatech.chai.omopv5.model.entity.DeviceExposure;
 public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceExposureService> {
 
 	private static final Logger logger = LoggerFactory.getLogger(OmopDevice.class);
-	private static OmopDevice omopDevice = new OmopDevice();
+	private static class InstanceHolder {
+		private static final OmopDevice omopDevice = new OmopDevice();
+	}
 	
 //	private ConceptService conceptService;
 
@@ -64,7 +66,7 @@ public class OmopDevice extends BaseOmopResource<Device, DeviceExposure, DeviceE
 	}
 
 	public static OmopDevice getInstance() {
-		return omopDevice;
+		return InstanceHolder.omopDevice;
 	}
 
 	public static String FHIRTYPE = "Device";
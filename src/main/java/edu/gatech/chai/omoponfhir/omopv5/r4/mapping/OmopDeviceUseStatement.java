@@ -55,7 +55,9 @@ import edu.gatech.chai.omopv5.model.entity.Provider;
 public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatement, DeviceExposure, DeviceExposureService> {
 	
 	private static final Logger logger = LoggerFactory.getLogger(OmopDeviceUseStatement.class);
-	private static OmopDeviceUseStatement omopDeviceUseStatement = new OmopDeviceUseStatement();
+	private static class InstanceHolder {
+		private static final OmopDeviceUseStatement omopDeviceUseStatement = new OmopDeviceUseStatement();
+	}
 
 	private ConceptService conceptService;
 	private FPersonService fPersonService;
@@ -81,7 +83,7 @@ public class OmopDeviceUseStatement extends BaseOmopResource<MyDeviceUseStatemen
 	}
 	
 	public static OmopDeviceUseStatement getInstance() {
-		return OmopDeviceUseStatement.omopDeviceUseStatement;
+		return InstanceHolder.omopDeviceUseStatement;
 	}
 
 	public static String FHIRTYPE = "DeviceUseStatement";
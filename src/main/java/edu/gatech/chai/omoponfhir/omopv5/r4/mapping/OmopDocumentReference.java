@@ -67,7 +67,9 @@ import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
 public class OmopDocumentReference extends BaseOmopResource<DocumentReference, Note, NoteService> {
 	private static final Logger logger = LoggerFactory.getLogger(OmopDocumentReference.class);
 
-	private static OmopDocumentReference omopDocumentReference = new OmopDocumentReference();
+	private static class InstanceHolder {
+		private static final OmopDocumentReference omopDocumentReference = new OmopDocumentReference();
+	}
 	private ConceptService conceptService;
 	private FPersonService fPersonService;
 	private ProviderService providerService;
@@ -95,7 +97,7 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 	}
 
 	public static OmopDocumentReference getInstance() {
-		return OmopDocumentReference.omopDocumentReference;
+		return InstanceHolder.omopDocumentReference;
 	}
 
 	public static String FHIRTYPE = "DocumentReference";
@@ -393,7 +395,8 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 			if (includes.contains("DocumentReference:patient") || includes.contains("DocumentReference:subject")) {
 				if (documentReference.hasSubject()) {
 					Long patientFhirId = documentReference.getSubject().getReferenceElement().getIdPartAsLong();
-					Patient patient = OmopPatient.getInstance().constructFHIR(patientFhirId, entity.getFPerson());
+					Patient patient = includeResource(OmopPatient.FHIRTYPE, patientFhirId,
+							() -> OmopPatient.getInstance().constructFHIR(patientFhirId, entity.getFPerson()));
 					documentReference.getSubject().setResource(patient);
 				}
 			}
@@ -403,7 +406,8 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 					if (documentContext.hasEncounter()) {
 //						TODO later on, we want to deal with all enounters instead of just the first
 						Long encounterFhirId = documentContext.getEncounterFirstRep().getReferenceElement().getIdPartAsLong();
-						Encounter encounter = OmopEncounter.getInstance().constructFHIR(encounterFhirId, entity.getVisitOccurrence());
+						Encounter encounter = includeResource(OmopEncounter.FHIRTYPE, encounterFhirId,
+								() -> OmopEncounter.getInstance().constructFHIR(encounterFhirId, entity.getVisitOccurrence()));
 						documentContext.getEncounterFirstRep().setResource(encounter);
 					}
 				}
@@ -425,7 +429,9 @@ public class OmopDocumentReference extends BaseOmopResource<DocumentReference, N
 		// type: map OMOP's Note Type concept to LOINC code if possible.
 		Concept omopTypeConcept = entity.getNoteTypeConcept();
 		CodeableConcept typeCodeableConcept = null;
-		if ("Note Type".equals(omopTypeConcept.getVocabularyId())) {
+		// Without type in the projection, the Note Type concept is enough to
+		// keep the required element.
+		if ("Note Type".equals(omopTypeConcept.getVocabularyId()) && isRequested("type")) {
 			Long loincConceptId = OmopNoteTypeMapping.getLoincConceptIdFor(omopTypeConcept.getId());
 			logger.debug("origin:"+omopTypeConcept.getId()+" loinc:"+loincConceptId);
 			try {
@@ -19,8 +19,11 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.hl7.fhir.r4.model.Coding;
 import org.hl7.fhir.r4.model.Encounter;
@@ -54,12 +57,20 @@ import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
 
 public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence, VisitOccurrenceService> {
 
-	private static OmopEncounter omopEncounter = new OmopEncounter();
+	private static class InstanceHolder {
+		private static final OmopEncounter omopEncounter = new OmopEncounter();
+	}
 	private FPersonService fPersonService;
 	private CareSiteService careSiteService;
 	private ProviderService providerService;
 	private ConditionOccurrenceService conditionOccurrenceService;
 
+	// Condition ids per visit id for the search page being constructed on this thread.
+	private final ThreadLocal<Map<Long, List<Long>>> pageConditionIds = new ThreadLocal<Map<Long, List<Long>>>();
+
+	// Visit ids per condition query when the diagnoses of a search page are loaded.
+	public static int DIAGNOSIS_BATCH_SIZE = 500;
+
 	public OmopEncounter() {
 		super(ContextLoaderListener.getCurrentWebApplicationContext(), VisitOccurrence.class,
 				VisitOccurrenceService.class, OmopEncounter.FHIRTYPE);
@@ -83,7 +94,7 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 	}
 
 	public static OmopEncounter getInstance() {
-		return OmopEncounter.omopEncounter;
+		return InstanceHolder.omopEncounter;
 	}
 
 	public static String FHIRTYPE = "Encounter";
@@ -203,17 +214,19 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 			encounter.addParticipant(participate);
 		}
 
-		// set condition if available.
-//		ParameterWrapper param = new ParameterWrapper();
-//		param.setParameterType("Long");
-//		param.setParameters(Arrays.asList("visitOccurrence.id"));
-//		param.setOperators(Arrays.asList("="));
-//		param.setValues(Arrays.asList(String.valueOf(visitOccurrence.getId())));
-//		List<ParameterWrapper> params = Arrays.asList(param);
-//		List<ConditionOccurrence> conditions = conditionOccurrenceService.searchWithParams(0, 0, params, null);
-		List<ConditionOccurrence> conditions = conditionOccurrenceService.searchByColumnString("id", visitOccurrence.getId());
-		for (ConditionOccurrence condition : conditions) {
-			Reference conditionReference = new Reference(new IdType(OmopCondition.FHIRTYPE, condition.getId()));
+		// set condition if available. Search pages have them loaded by prefetchPage.
+		Map<Long, List<Long>> conditionIdsByVisit = pageConditionIds.get();
+		List<Long> conditionIds;
+		if (conditionIdsByVisit != null) {
+			conditionIds = conditionIdsByVisit.getOrDefault(visitOccurrence.getId(), Collections.emptyList());
+		} else if (isRequested("diagnosis")) {
+			conditionIds = findConditionIds(Arrays.asList(visitOccurrence)).get(visitOccurrence.getId());
+		} else {
+			conditionIds = Collections.emptyList();
+		}
+
+		for (Long conditionId : conditionIds) {
+			Reference conditionReference = new Reference(new IdType(OmopCondition.FHIRTYPE, conditionId));
 			DiagnosisComponent diagnosisComponent = new DiagnosisComponent();
 			diagnosisComponent.setCondition(conditionReference);
 			encounter.addDiagnosis(diagnosisComponent);
@@ -222,6 +235,82 @@ public class OmopEncounter extends BaseOmopResource<Encounter, VisitOccurrence,
 		return encounter;
 	}
 
+	/**
+	 * Loads the conditions of all visits in the search page with one query per
+	 * DIAGNOSIS_BATCH_SIZE visits, instead of one query per visit in
+	 * constructFHIR. Nothing is loaded if _elements leaves out diagnosis.
+	 */
+	@Override
+	protected void prefetchPage(List<VisitOccurrence> visitOccurrences, List<String> includes) {
+		if (visitOccurrences.isEmpty() || !isRequested("diagnosis")) {
+			pageConditionIds.set(new HashMap<Long, List<Long>>());
+			return;
+		}
+
+		pageConditionIds.set(findConditionIds(visitOccurrences));
+	}
+
+	/**
+	 * Condition ids per visit id, by condition_occurrence.visit_occurrence_id.
+	 * Reads and search pages both use this, so they return the same diagnoses.
+	 * Every visit has an entry.
+	 */
+	private Map<Long, List<Long>> findConditionIds(List<VisitOccurrence> visitOccurrences) {
+		Map<Long, List<Long>> conditionIdsByVisit = new HashMap<Long, List<Long>>();
+		List<String> visitIds = new ArrayList<String>();
+		for (VisitOccurrence visitOccurrence : visitOccurrences) {
+			if (conditionIdsByVisit.put(visitOccurrence.getId(), new ArrayList<Long>()) == null) {
+				visitIds.add(String.valueOf(visitOccurrence.getId()));
+			}
+		}
+
+		for (int from = 0; from < visitIds.size(); from += DIAGNOSIS_BATCH_SIZE) {
+			List<String> values = visitIds.subList(from, Math.min(from + DIAGNOSIS_BATCH_SIZE, visitIds.size()));
+
+			ParameterWrapper param = new ParameterWrapper();
+			param.setParameterType("Long");
+			param.setParameters(Collections.nCopies(values.size(), "visitOccurrence.id"));
+			param.setOperators(Collections.nCopies(values.size(), "="));
+			param.setValues(new ArrayList<String>(values));
+			param.setRelationship("or");
+
+			List<ConditionOccurrence> conditions = conditionOccurrenceService.searchWithParams(0, 0,
+					Arrays.asList(param), null);
+			for (ConditionOccurrence condition : conditions) {
+				if (condition.getVisitOccurrence() == null) {
+					continue;
+				}
+
+				List<Long> conditionIds = conditionIdsByVisit.get(condition.getVisitOccurrence().getId());
+				if (conditionIds != null) {
+					conditionIds.add(condition.getId());
+				}
+			}
+		}
+
+		return conditionIdsByVisit;
+	}
+
+	@Override
+	protected void releasePage() {
+		pageConditionIds.remove();
+	}
+
+	@Override
+	protected Object getPageState() {
+		return pageConditionIds.get();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected void setPageState(Object pageState) {
+		if (pageState == null) {
+			pageConditionIds.remove();
+		} else {
+			pageConditionIds.set((Map<Long, List<Long>>) pageState);
+		}
+	}
+
 	@Override
 	public Long toDbase(Encounter fhirResource, IdType fhirId) throws FHIRException {
 		Long retval;
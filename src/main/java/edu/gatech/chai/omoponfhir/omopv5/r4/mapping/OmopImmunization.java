@@ -58,7 +58,9 @@ public class OmopImmunization extends BaseOmopResource<Immunization, FImmunizati
 
 	static final Logger logger = LoggerFactory.getLogger(OmopImmunization.class);
 
-	private static OmopImmunization omopImmunization = new OmopImmunization();
+	private static class InstanceHolder {
+		private static final OmopImmunization omopImmunization = new OmopImmunization();
+	}
 	private VisitOccurrenceService visitOccurrenceService;
 	private DrugExposureService drugExposureService;
 	private ConceptService conceptService;
@@ -116,7 +118,7 @@ public class OmopImmunization extends BaseOmopResource<Immunization, FImmunizati
 	}
 
 	public static OmopImmunization getInstance() {
-		return OmopImmunization.omopImmunization;
+		return InstanceHolder.omopImmunization;
 	}
 
 	public static String FHIRTYPE = "Immunization";
@@ -31,13 +31,16 @@ import org.springframework.web.context.WebApplicationContext;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.CodeableConceptUtil;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ExtensionUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.IngredientCache;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
 import edu.gatech.chai.omopv5.model.entity.Concept;
 
 public class OmopMedication extends BaseOmopResource<Medication, Concept, ConceptService> {
 
-	private static OmopMedication omopMedication = new OmopMedication();
+	private static class InstanceHolder {
+		private static final OmopMedication omopMedication = new OmopMedication();
+	}
 	
 	public OmopMedication(WebApplicationContext context) {
 		super(context, Concept.class, ConceptService.class, OmopMedication.FHIRTYPE);
@@ -55,11 +58,12 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 	}
 	
 	private void initialize(WebApplicationContext context) {
+		IngredientCache.getInstance().preloadInBackground();
 	}
 
 	
 	public static OmopMedication getInstance() {
-		return omopMedication;
+		return InstanceHolder.omopMedication;
 	}
 
 	public static String FHIRTYPE = "Medication";
@@ -85,7 +89,8 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 		medication.setCode(medicationCodeableConcept);
 
 		// See if we can add ingredient version of this medication.
-		List<Concept> ingredients = getMyOmopService().getIngredient(entity);
+		List<Concept> ingredients = IngredientCache.getInstance().getIngredients(entity,
+				getMyOmopService()::getIngredient);
 		if (!ingredients.isEmpty()) {
 			CodeableConcept ingredientCodeableConcept;
 			try {
@@ -106,6 +111,11 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 		return medication;
 	}
 	
+	@Override
+	protected void prefetchPage(List<Concept> concepts, List<String> includes) {
+		IngredientCache.getInstance().prefetch(concepts, getMyOmopService()::getIngredient);
+	}
+
 	@Override
 	public List<ParameterWrapper> mapParameter(String parameter, Object value, boolean or) {
 		List<ParameterWrapper> mapList = new ArrayList<ParameterWrapper>();
@@ -205,19 +215,7 @@ public class OmopMedication extends BaseOmopResource<Medication, Concept, Concep
 			List<IBaseResource> listResources, List<String> includes, String sort) {
 		mapList.add(filterParam);
 
-		List<Concept> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList, sort);
-
-		for (Concept entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			Medication fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);			
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
-
-		}
+		super.searchWithParams(fromIndex, toIndex, mapList, listResources, includes, sort);
 	}
 
 	@Override
@@ -36,6 +36,7 @@ import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.CodeableConceptUtil;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.DateUtil;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ExtensionUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.IngredientCache;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.DrugExposureService;
 import edu.gatech.chai.omopv5.dba.service.FPersonService;
@@ -75,7 +76,9 @@ import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
 public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, DrugExposure, DrugExposureService> {
 
 	public static Long MEDICATIONREQUEST_CONCEPT_TYPE_ID = 38000177L;
-	private static OmopMedicationRequest omopMedicationRequest = new OmopMedicationRequest();
+	private static class InstanceHolder {
+		private static final OmopMedicationRequest omopMedicationRequest = new OmopMedicationRequest();
+	}
 	private VisitOccurrenceService visitOccurrenceService;
 	private ConceptService conceptService;
 	private ProviderService providerService;
@@ -99,10 +102,11 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		conceptService = context.getBean(ConceptService.class);
 		providerService = context.getBean(ProviderService.class);
 		fPersonService = context.getBean(FPersonService.class);		
+		IngredientCache.getInstance().preloadInBackground();
 	}
 
 	public static OmopMedicationRequest getInstance() {
-		return OmopMedicationRequest.omopMedicationRequest;
+		return InstanceHolder.omopMedicationRequest;
 	}
 	
 	public static String FHIRTYPE = "MedicationRequest";
@@ -127,6 +131,27 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		return IdMapping.getFHIRfromOMOP(retOmopId, OmopMedicationRequest.FHIRTYPE);
 	}
 	
+	/**
+	 * Resolves the ingredients of all drugs on the page in one query when they
+	 * are going to be used: contained Medications (MEDICATION_TYPE=local) or
+	 * included Medication resources.
+	 */
+	@Override
+	protected void prefetchPage(List<DrugExposure> drugExposures, List<String> includes) {
+		String medType = System.getenv("MEDICATION_TYPE");
+		boolean contained = "local".equalsIgnoreCase(medType)
+				&& (isRequested("contained") || isRequested("medication"));
+		if (!contained && (includes == null || !includes.contains("MedicationRequest:medication"))) {
+			return;
+		}
+
+		List<Concept> drugConcepts = new ArrayList<Concept>();
+		for (DrugExposure drugExposure : drugExposures) {
+			drugConcepts.add(drugExposure.getDrugConcept());
+		}
+		IngredientCache.getInstance().prefetch(drugConcepts, conceptService::getIngredient);
+	}
+
 	@Override
 	public MedicationRequest constructResource(Long fhirId, DrugExposure entity, List<String> includes) {
 		MedicationRequest fhirResource = constructFHIR(fhirId, entity);
@@ -142,7 +167,8 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 					if (medicationReference != null && !medicationReference.isEmpty()) {
 						IIdType medicationId = medicationReference.getReferenceElement();
 						Long medicationFhirId = medicationId.getIdPartAsLong();
-						Medication medication = OmopMedication.getInstance().constructFHIR(medicationFhirId, entity.getDrugConcept());
+						Medication medication = includeResource(OmopMedication.FHIRTYPE, medicationFhirId,
+								() -> OmopMedication.getInstance().constructFHIR(medicationFhirId, entity.getDrugConcept()));
 						medicationReference.setResource(medication);
 					}
 				}
@@ -171,13 +197,15 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 		
 		// See what type of Medication info we want to return
 		String medType = System.getenv("MEDICATION_TYPE");			
-		if (medType != null && !medType.isEmpty() && "local".equalsIgnoreCase(medType)) {
+		if (medType != null && !medType.isEmpty() && "local".equalsIgnoreCase(medType)
+				&& (isRequested("contained") || isRequested("medication"))) {
 			CodeableConcept medicationCodeableConcept;
 			CodeableConcept ingredientCodeableConcept;
 			Medication medicationResource = new Medication();
 			try {
 				medicationCodeableConcept = CodeableConceptUtil.getCodeableConceptFromOmopConcept(entity.getDrugConcept());
-				List<Concept> ingredients = conceptService.getIngredient(entity.getDrugConcept());
+				List<Concept> ingredients = IngredientCache.getInstance().getIngredients(entity.getDrugConcept(),
+						conceptService::getIngredient);
 				for (Concept ingredient: ingredients) {
 					ingredientCodeableConcept = CodeableConceptUtil.getCodeableConceptFromOmopConcept(ingredient);
 					MedicationIngredientComponent medIngredientComponent = new MedicationIngredientComponent();
@@ -473,19 +501,7 @@ public class OmopMedicationRequest extends BaseOmopResource<MedicationRequest, D
 			List<IBaseResource> listResources, List<String> includes, String sort) {
 		mapList.add(filterParam);
 
-		List<DrugExposure> entities = getMyOmopService().searchWithParams(fromIndex, toIndex, mapList, sort);
-
-		for (DrugExposure entity : entities) {
-			Long omopId = entity.getIdAsLong();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, getMyFhirResourceType());
-			MedicationRequest fhirResource = constructResource(fhirId, entity, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);			
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
-
-		}
+		super.searchWithParams(fromIndex, toIndex, mapList, listResources, includes, sort);
 	}
 
 	@Override
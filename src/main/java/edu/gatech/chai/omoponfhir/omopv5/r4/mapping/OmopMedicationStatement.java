@@ -82,7 +82,9 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 	private static final Logger logger = LoggerFactory.getLogger(OmopMedicationStatement.class);
 
 	private static Long MEDICATIONSTATEMENT_CONCEPT_TYPE_ID = 44787730L;
-	private static OmopMedicationStatement omopMedicationStatement = new OmopMedicationStatement();
+	private static class InstanceHolder {
+		private static final OmopMedicationStatement omopMedicationStatement = new OmopMedicationStatement();
+	}
 	private VisitOccurrenceService visitOccurrenceService;
 	private ConceptService conceptService;
 	private ProviderService providerService;
@@ -112,7 +114,7 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 
 
 	public static OmopMedicationStatement getInstance() {
-		return OmopMedicationStatement.omopMedicationStatement;
+		return InstanceHolder.omopMedicationStatement;
 	}
 
 	public static String FHIRTYPE = "MedicationStatement";
@@ -438,6 +440,9 @@ public class OmopMedicationStatement extends BaseOmopResource<MedicationStatemen
 			break;
 		case MedicationStatement.SP_CODE:
 			TokenParam theCode = (TokenParam) value;
+			if (addHierarchyCodeParam(theCode, "drugConcept.id", paramWrapper, mapList))
+				break;
+
 			String system = theCode.getSystem();
 			String code = theCode.getValue();
 			String omopVocabulary = "None";
@@ -15,6 +15,9 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public enum OmopNoteTypeMapping {
 	DISCHARGE_SUMMARY(44814637L, 3020091L),
 	ADMISSION_NOTE(44814638L, 40770449L),
@@ -28,6 +31,15 @@ public enum OmopNoteTypeMapping {
 	EMERGENCY_DEPARTMENT_NOTE(44814646L, 3029201L);
 	
 	
+	private static final Map<Long, Long> omopByLoinc = new HashMap<Long, Long>();
+	private static final Map<Long, Long> loincByOmop = new HashMap<Long, Long>();
+	static {
+		for (OmopNoteTypeMapping mapping: OmopNoteTypeMapping.values()) {
+			omopByLoinc.putIfAbsent(mapping.getOmopLoincTypeConceptId(), mapping.getOmopOmopTypeConceptId());
+			loincByOmop.putIfAbsent(mapping.getOmopOmopTypeConceptId(), mapping.getOmopLoincTypeConceptId());
+		}
+	}
+
 	Long omopOmopTypeConceptId;
 	Long omopLoincTypeConceptId;
 	
@@ -39,25 +51,13 @@ public enum OmopNoteTypeMapping {
 	// Returns OMOP-generated concept ID for the given OMOP-LOINC concept ID
 	// The mapping done with a best guess. Review is needed by coding experts
 	public static Long getOmopConceptIdFor(Long loincTypeConceptId) {
-		for (OmopNoteTypeMapping mapping: OmopNoteTypeMapping.values()) {
-			if (loincTypeConceptId.equals(mapping.getOmopLoincTypeConceptId())) {
-				return mapping.getOmopOmopTypeConceptId();
-			}
-		}
-		
-		return 0L;
+		return omopByLoinc.getOrDefault(loincTypeConceptId, 0L);
 	}
 	
 	// Returns OMOP-LOINC concept ID for the given OMOP-generated concept ID
 	// The mapping done with a best guess. Review is needed by coding experts
 	public static Long getLoincConceptIdFor(Long omopTypeConceptId) {
-		for (OmopNoteTypeMapping mapping: OmopNoteTypeMapping.values()) {
-			if (omopTypeConceptId.equals(mapping.getOmopOmopTypeConceptId())) {
-				return mapping.getOmopLoincTypeConceptId();
-			}
-		}
-		
-		return 0L;
+		return loincByOmop.getOrDefault(omopTypeConceptId, 0L);
 	}
 
 	public Long getOmopOmopTypeConceptId() {
@@ -80,7 +80,9 @@ import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
 public class OmopObservation extends BaseOmopResource<Observation, FObservationView, FObservationViewService> {
 
 	static final Logger logger = LoggerFactory.getLogger(OmopObservation.class);
-	private static OmopObservation omopObservation = new OmopObservation();
+	private static class InstanceHolder {
+		private static final OmopObservation omopObservation = new OmopObservation();
+	}
 
 	public static final long SYSTOLIC_CONCEPT_ID = 3004249L;
 	public static final long DIASTOLIC_CONCEPT_ID = 3012888L;
@@ -125,7 +127,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 	}
 
 	public static OmopObservation getInstance() {
-		return OmopObservation.omopObservation;
+		return InstanceHolder.omopObservation;
 	}
 
 	public static String FHIRTYPE = "Observation";
@@ -153,7 +155,10 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 			unitSource = fObservationView.getUnitSourceValue();
 			if (unitSource != null && !unitSource.isEmpty()) {
 				unitUnit = unitSource;
-				unitConcept = CodeableConceptUtil.getOmopConceptWithOmopVacabIdAndCode(conceptService, OmopCodeableConceptMapping.UCUM.getOmopVocabulary(), unitSource);
+				// The unit only goes to value and component.
+				if (isRequested("value") || isRequested("component")) {
+					unitConcept = CodeableConceptUtil.getOmopConceptWithOmopVacabIdAndCode(conceptService, OmopCodeableConceptMapping.UCUM.getOmopVocabulary(), unitSource);
+				}
 			}
 		}
 		
@@ -219,10 +224,13 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 			components.add(comp);
 
 			// Now search for diastolic component.
-			WebApplicationContext myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
-			FObservationViewService myService = myAppCtx.getBean(FObservationViewService.class);
-			FObservationView diastolicDb = myService.findDiastolic(DIASTOLIC_CONCEPT_ID,
-					fObservationView.getFPerson().getId(), fObservationView.getObservationDate(), fObservationView.getObservationDateTime());
+			FObservationView diastolicDb = null;
+			if (isRequested("component")) {
+				WebApplicationContext myAppCtx = ContextLoaderListener.getCurrentWebApplicationContext();
+				FObservationViewService myService = myAppCtx.getBean(FObservationViewService.class);
+				diastolicDb = myService.findDiastolic(DIASTOLIC_CONCEPT_ID,
+						fObservationView.getFPerson().getId(), fObservationView.getObservationDate(), fObservationView.getObservationDateTime());
+			}
 			if (diastolicDb != null) {
 				comp = new ObservationComponentComponent();
 				coding = new Coding(systemUriString, diastolicDb.getObservationConcept().getConceptCode(),
@@ -417,7 +425,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 			observation.addIdentifier(identifier);
 		}
 
-		if (fObservationView.getId() > 0) {
+		if (fObservationView.getId() > 0 && isRequested("method")) {
 			List<BaseEntity> methods = factRelationshipService.searchMeasurementUsingMethod(fObservationView.getId());
 			if (methods != null && !methods.isEmpty()) {
 				for (BaseEntity method : methods) {
@@ -437,7 +445,9 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 					}
 				}
 			}
+		}
 
+		if (fObservationView.getId() > 0 && isRequested("note")) {
 			List<Note> notes = factRelationshipService.searchMeasurementContainsComments(fObservationView.getId());
 			String comments = "";
 			for (Note note : notes) {
@@ -1923,24 +1933,7 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 			List<IBaseResource> listResources, List<String> includes, String sort) {
 		paramList.add(exceptionParam4Search);
 
-		// long start = System.currentTimeMillis();
-		
-		List<FObservationView> fObservationViews = getMyOmopService().searchWithParams(fromIndex, toIndex, paramList,
-				sort);
-
-		// long gettingObses = System.currentTimeMillis()-start;
-		// logger.debug("gettingObses: at "+Long.toString(gettingObses)+" duration: "+Long.toString(gettingObses));
-
-		for (FObservationView fObservationView : fObservationViews) {
-			Long omopId = fObservationView.getId();
-			Long fhirId = IdMapping.getFHIRfromOMOP(omopId, OmopObservation.FHIRTYPE);
-			Observation fhirResource = constructResource(fhirId, fObservationView, includes);
-			if (fhirResource != null) {
-				listResources.add(fhirResource);
-				// Do the rev_include and add the resource to the list.
-				addRevIncludes(omopId, includes, listResources);
-			}
-		}
+		super.searchWithParams(fromIndex, toIndex, paramList, listResources, includes, sort);
 	}
 
 	private static Date createDateTime(FObservationView fObservationView) {
@@ -1987,6 +1980,9 @@ public class OmopObservation extends BaseOmopResource<Observation, FObservationV
 			DateUtil.constructParameterWrapper(dateRangeParam, "observationDate", paramWrapper, mapList);
 			break;
 		case Observation.SP_CODE:
+			if (addHierarchyCodeParam((TokenParam) value, "observationConcept.id", paramWrapper, mapList))
+				break;
+
 			String system = ((TokenParam) value).getSystem();
 			String code = ((TokenParam) value).getValue();
 			TokenParamModifier modifier = ((TokenParam) value).getModifier();
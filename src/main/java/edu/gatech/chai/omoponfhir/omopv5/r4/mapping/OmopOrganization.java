@@ -35,6 +35,7 @@ import org.springframework.web.context.WebApplicationContext;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.AddressUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ReferenceData;
 import edu.gatech.chai.omopv5.dba.service.CareSiteService;
 import edu.gatech.chai.omopv5.dba.service.LocationService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
@@ -42,10 +43,13 @@ import edu.gatech.chai.omopv5.dba.service.VocabularyService;
 import edu.gatech.chai.omopv5.model.entity.CareSite;
 import edu.gatech.chai.omopv5.model.entity.Concept;
 import edu.gatech.chai.omopv5.model.entity.Location;
+import edu.gatech.chai.omopv5.model.entity.Vocabulary;
 
 public class OmopOrganization extends BaseOmopResource<Organization, CareSite, CareSiteService> {
 	
-	private static OmopOrganization omopOrganization = new OmopOrganization();
+	private static class InstanceHolder {
+		private static final OmopOrganization omopOrganization = new OmopOrganization();
+	}
 	private LocationService locationService;
 	private VocabularyService vocabularyService;
 
@@ -66,11 +70,12 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 		// Get bean for other service(s) for mapping.
 		locationService = context.getBean(LocationService.class);
 		vocabularyService = context.getBean(VocabularyService.class);
+		ReferenceData.getInstance().initialize(context);
 
 	}
 	
 	public static OmopOrganization getInstance() {
-		return omopOrganization;
+		return InstanceHolder.omopOrganization;
 	}
 	
 	public static String FHIRTYPE = "Organization";
@@ -88,7 +93,8 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 		if (careSite.getPlaceOfServiceConcept() != null) {
 			String codeString = careSite.getPlaceOfServiceConcept().getConceptCode();
 //			String systemUriString = careSite.getPlaceOfServiceConcept().getVocabulary().getVocabularyReference();
-			String systemUriString = vocabularyService.findById(careSite.getPlaceOfServiceConcept().getVocabularyId()).getVocabularyReference();
+			Vocabulary vocabulary = ReferenceData.getInstance().getVocabulary(careSite.getPlaceOfServiceConcept().getVocabularyId());
+			String systemUriString = vocabulary == null ? null : vocabulary.getVocabularyReference();
 			String displayString = careSite.getPlaceOfServiceConcept().getConceptName();
 
 			CodeableConcept typeCodeableConcept = new CodeableConcept()
@@ -145,6 +151,10 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 		} else {
 			omopRecordId = getMyOmopService().create(careSite).getId();
 		}
+		ReferenceData.getInstance().invalidateCareSite(omopRecordId);
+		if (careSite.getLocation() != null) {
+			ReferenceData.getInstance().invalidateLocation(careSite.getLocation().getId());
+		}
 		
 		Long fhirRecordId = IdMapping.getFHIRfromOMOP(omopRecordId, OmopOrganization.FHIRTYPE);
 		return fhirRecordId;
@@ -160,6 +170,24 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 //	}
 	
 
+	@Override
+	protected CareSite findEntity(Long omopId) {
+		return ReferenceData.getInstance().getCareSite(omopId);
+	}
+
+	@Override
+	public void removeDbase(Long id) {
+		super.removeDbase(id);
+		ReferenceData.getInstance().invalidateCareSite(id);
+	}
+
+	@Override
+	public Long removeByFhirId(IdType fhirId) {
+		Long retVal = super.removeByFhirId(fhirId);
+		ReferenceData.getInstance().invalidateCareSite(IdMapping.getOMOPfromFHIR(fhirId.getIdPartAsLong(), OmopOrganization.FHIRTYPE));
+		return retVal;
+	}
+
 	@Override
 	public Organization constructResource(Long fhirId, CareSite entity, List<String> includes) {
 		Organization myOrganization = constructFHIR(fhirId, entity);
@@ -171,7 +199,7 @@ public class OmopOrganization extends BaseOmopResource<Organization, CareSite, C
 					IIdType partOfOrgId = partOfOrganization.getReferenceElement();
 					Long partOfOrgFhirId = partOfOrgId.getIdPartAsLong();
 					Long omopId = IdMapping.getOMOPfromFHIR(partOfOrgFhirId, OmopOrganization.FHIRTYPE);
-					CareSite partOfCareSite = getMyOmopService().findById(omopId);
+					CareSite partOfCareSite = ReferenceData.getInstance().getCareSite(omopId);
 					Organization partOfOrgResource = constructFHIR(partOfOrgFhirId, partOfCareSite);
 					
 					partOfOrganization.setResource(partOfOrgResource);
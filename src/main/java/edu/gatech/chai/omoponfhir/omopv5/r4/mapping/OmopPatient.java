@@ -18,6 +18,7 @@ package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -58,6 +59,8 @@ import edu.gatech.chai.omoponfhir.omopv5.r4.model.USCorePatient;
 import edu.gatech.chai.omoponfhir.omopv5.r4.model.USCorePatient.Ethnicity;
 import edu.gatech.chai.omoponfhir.omopv5.r4.model.USCorePatient.Race;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.AddressUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.PersonIdentifierIndex;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.PersonNameIndex;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.FPersonService;
 import edu.gatech.chai.omopv5.dba.service.LocationService;
@@ -74,7 +77,9 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 
 	private static final Logger logger = LoggerFactory.getLogger(OmopPatient.class);
 
-	private static OmopPatient omopPatient = new OmopPatient();
+	private static class InstanceHolder {
+		private static final OmopPatient omopPatient = new OmopPatient();
+	}
 
 	private ConceptService conceptService;
 	private LocationService locationService;
@@ -110,10 +115,12 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 		visitOccurrenceService = context.getBean(VisitOccurrenceService.class);
 		conceptService = context.getBean(ConceptService.class);
 
+		PersonIdentifierIndex.getInstance().initializeInBackground();
+		PersonNameIndex.getInstance().buildInBackground(getMyOmopService());
 	}
 
 	public static OmopPatient getInstance() {
-		return omopPatient;
+		return InstanceHolder.omopPatient;
 	}
 
 	public static String FHIRTYPE = "Patient";
@@ -133,8 +140,9 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 							// Practitioner.
 							IIdType generalPractitionerId = generalPractitioner.getReferenceElement();
 							Long generalPractFhirId = generalPractitionerId.getIdPartAsLong();
-							Practitioner practitioner = OmopPractitioner.getInstance().constructFHIR(generalPractFhirId,
-									entity.getProvider());
+							Practitioner practitioner = includeResource(OmopPractitioner.FHIRTYPE, generalPractFhirId,
+									() -> OmopPractitioner.getInstance().constructFHIR(generalPractFhirId,
+											entity.getProvider()));
 							generalPractitioner.setResource(practitioner);
 						}
 					}
@@ -146,8 +154,9 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 					Reference managingOrganization = patient.getManagingOrganization();
 					IIdType managingOrganizationId = managingOrganization.getReferenceElement();
 					Long manageOrgFhirId = managingOrganizationId.getIdPartAsLong();
-					Organization organization = OmopOrganization.getInstance().constructFHIR(manageOrgFhirId,
-							entity.getCareSite());
+					Organization organization = includeResource(OmopOrganization.FHIRTYPE, manageOrgFhirId,
+							() -> OmopOrganization.getInstance().constructFHIR(manageOrgFhirId,
+									entity.getCareSite()));
 					patient.getManagingOrganization().setResource(organization);
 				}
 			}
@@ -280,7 +289,7 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 					.setPostalCode(fPerson.getLocation().getZip()).setState(fPerson.getLocation().getState());
 		}
 
-		if (fPerson.getGenderConcept() != null) {
+		if (fPerson.getGenderConcept() != null && isRequested("gender")) {
 			String gName = fPerson.getGenderConcept().getConceptName();
 			if (gName == null || gName.isEmpty()) {
 				Concept genderConcept = conceptService.findById(fPerson.getGenderConcept().getId());
@@ -394,6 +403,10 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 		patient.setTelecom(contactPoints);
 
 		// US Core Patient Extension
+		if (!isRequested("extension")) {
+			return patient;
+		}
+
 		// Race
 		Concept raceConcept = fPerson.getRaceConcept();
 		String raceSourceString = fPerson.getRaceSourceValue();
@@ -475,6 +488,100 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 		return personSourceValue;
 	}
 
+	/**
+	 * Sets paramWrapper to match the persons by id and adds it to mapList. No
+	 * ids matches nothing.
+	 */
+	private void addPersonIdParameter(List<Long> personIds, ParameterWrapper paramWrapper,
+			List<ParameterWrapper> mapList) {
+		List<String> personIdValues = new ArrayList<String>();
+		for (Long personId : personIds) {
+			personIdValues.add(String.valueOf(personId));
+		}
+		if (personIdValues.isEmpty()) {
+			personIdValues.add("-1");
+		}
+
+		paramWrapper.setParameterType("Long");
+		paramWrapper.setParameters(Collections.nCopies(personIdValues.size(), "id"));
+		paramWrapper.setOperators(Collections.nCopies(personIdValues.size(), "="));
+		paramWrapper.setValues(personIdValues);
+		paramWrapper.setRelationship("or");
+		mapList.add(paramWrapper);
+	}
+
+	/**
+	 * True if every person the identifier index returned is in PERSON. The index
+	 * is written after the PERSON row and outside of its transaction, so it can
+	 * point to a person that was rolled back or removed outside of the mappers.
+	 * The person_source_value search is used then.
+	 */
+	private boolean personIdsResolve(List<Long> personIds) {
+		List<ParameterWrapper> idParams = new ArrayList<ParameterWrapper>();
+		addPersonIdParameter(personIds, new ParameterWrapper(), idParams);
+		Long found = getMyOmopService().getSize(idParams);
+
+		return found != null && found.longValue() == personIds.size();
+	}
+
+	/**
+	 * Resolves a name search with PersonNameIndex. Returns false if the index
+	 * cannot answer it and the like predicates are needed.
+	 */
+	private boolean addIndexedNameParameter(StringParam param, int[] fields, ParameterWrapper paramWrapper,
+			List<ParameterWrapper> mapList) {
+		List<Long> personIds = PersonNameIndex.getInstance().find(param.getValue(), fields, param.isExact());
+		if (personIds == null) {
+			return false;
+		}
+
+		addPersonIdParameter(personIds, paramWrapper, mapList);
+		return true;
+	}
+
+	/**
+	 * The identifier_system of PersonIdentifierIndex for a FHIR identifier:
+	 * the OMOP vocabulary that getPersonSourceValue puts in front of the value,
+	 * or the system itself if it is not mapped, or "" if there is neither.
+	 */
+	private String identifierSystemKey(Identifier identifier) {
+		String system = identifier.getSystem();
+		if (system != null && !system.isEmpty()) {
+			return identifierSystemKey(system);
+		}
+
+		CodeableConcept typeCodeableConcept = identifier.getType();
+		if (typeCodeableConcept != null && !typeCodeableConcept.isEmpty()) {
+			for (Coding coding : typeCodeableConcept.getCoding()) {
+				if (coding != null && !coding.isEmpty()) {
+					String omopVoc = fhirOmopVocabularyMap
+							.getOmopVocabularyFromFhirSystemName(coding.getSystem() + "^" + coding.getCode());
+					if (!"None".equals(omopVoc)) {
+						return omopVoc;
+					}
+				}
+			}
+		}
+
+		return "";
+	}
+
+	private String identifierSystemKey(String system) {
+		String omopVoc = fhirOmopVocabularyMap.getOmopVocabularyFromFhirSystemName(system);
+		return "None".equals(omopVoc) ? system : omopVoc;
+	}
+
+	private List<String[]> identifierKeys(List<Identifier> identifiers) {
+		List<String[]> keys = new ArrayList<String[]>();
+		for (Identifier identifier : identifiers) {
+			if (identifier.getValue() != null && !identifier.getValue().trim().isEmpty()) {
+				keys.add(new String[] { identifierSystemKey(identifier), identifier.getValue().trim() });
+			}
+		}
+
+		return keys;
+	}
+
 	/**
 	 * OMOP on FHIR mapping - from FHIR to OMOP
 	 * 
@@ -502,16 +609,36 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 
 		FPerson fperson = constructOmop(omopId, patient);
 
-		Long omopRecordId = null;
+		FPerson savedPerson;
 		if (fperson.getId() != null) {
-			omopRecordId = getMyOmopService().update(fperson).getId();
+			savedPerson = getMyOmopService().update(fperson);
 		} else {
-			omopRecordId = getMyOmopService().create(fperson).getId();
+			savedPerson = getMyOmopService().create(fperson);
 		}
+		Long omopRecordId = savedPerson.getId();
+		PersonIdentifierIndex.getInstance().put(omopRecordId, identifierKeys(patient.getIdentifier()));
+		PersonNameIndex.getInstance().put(savedPerson);
+
 		Long fhirRecordId = IdMapping.getFHIRfromOMOP(omopRecordId, OmopPatient.FHIRTYPE);
 		return fhirRecordId;
 	}
 
+	@Override
+	public void removeDbase(Long id) {
+		super.removeDbase(id);
+		PersonIdentifierIndex.getInstance().remove(id);
+		PersonNameIndex.getInstance().remove(id);
+	}
+
+	@Override
+	public Long removeByFhirId(IdType fhirId) {
+		Long retVal = super.removeByFhirId(fhirId);
+		Long omopId = IdMapping.getOMOPfromFHIR(fhirId.getIdPartAsLong(), OmopPatient.FHIRTYPE);
+		PersonIdentifierIndex.getInstance().remove(omopId);
+		PersonNameIndex.getInstance().remove(omopId);
+		return retVal;
+	}
+
 	@Override
 	public void addRevIncludes(Long omopId, List<String> includes, List<IBaseResource> listResources) {
 		List<ParameterWrapper> mapList = new ArrayList<ParameterWrapper>();
@@ -695,6 +822,9 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_FAMILY:
+			if (addIndexedNameParameter((StringParam) value, PersonNameIndex.FAMILY_FIELDS, paramWrapper, mapList)) {
+				break;
+			}
 			// This is family name, which is string. use like.
 			String familyString;
 			if (((StringParam) value).isExact())
@@ -709,6 +839,9 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_GIVEN:
+			if (addIndexedNameParameter((StringParam) value, PersonNameIndex.GIVEN_FIELDS, paramWrapper, mapList)) {
+				break;
+			}
 			// This is given name, which is string. use like.
 			String givenName;
 			if (((StringParam) value).isExact())
@@ -723,6 +856,9 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 			mapList.add(paramWrapper);
 			break;
 		case Patient.SP_NAME:
+			if (addIndexedNameParameter((StringParam) value, PersonNameIndex.NAME_FIELDS, paramWrapper, mapList)) {
+				break;
+			}
 			// This is family name, which is string. use like.
 			String nameString;
 			if (((StringParam) value).isExact())
@@ -750,6 +886,17 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 			String identifierSystem = ((TokenParam) value).getSystem();
 			String identifierValue = ((TokenParam) value).getValue();
 
+			// A point query on the identifier index when it knows the identifier.
+			if (identifierValue != null && !identifierValue.trim().isEmpty()) {
+				List<Long> indexedPersonIds = PersonIdentifierIndex.getInstance().findPersonIds(
+						identifierSystem == null || identifierSystem.isEmpty() ? null
+								: identifierSystemKey(identifierSystem), identifierValue);
+				if (!indexedPersonIds.isEmpty() && personIdsResolve(indexedPersonIds)) {
+					addPersonIdParameter(indexedPersonIds, paramWrapper, mapList);
+					break;
+				}
+			}
+
 			String searchString = identifierValue;
 
 			if (identifierSystem != null && !identifierSystem.isEmpty()) {
@@ -962,6 +1109,21 @@ public class OmopPatient extends BaseOmopResource<USCorePatient, FPerson, FPerso
 					first = false;
 				}
 
+				List<Long> indexedPersonIds = PersonIdentifierIndex.getInstance()
+						.findPersonIds(identifierSystemKey(identifier), identifier.getValue());
+				if (!indexedPersonIds.isEmpty()) {
+					FPerson indexedPerson = getMyOmopService().findById(indexedPersonIds.get(0));
+					if (indexedPerson != null) {
+						fperson = indexedPerson;
+						omopId = indexedPerson.getId();
+						break;
+					}
+
+					// The index points to a person that is not in PERSON. Drop it and
+					// let the person_source_value search decide.
+					PersonIdentifierIndex.getInstance().remove(indexedPersonIds.get(0));
+				}
+
 				if (personSourceValueTemp != null) {
 					List<FPerson> fPersons = getMyOmopService().searchByColumnString("personSourceValue",
 							personSourceValueTemp);
@@ -36,6 +36,7 @@ import org.springframework.web.context.WebApplicationContext;
 import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.param.TokenParam;
 import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.AddressUtil;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ReferenceData;
 import edu.gatech.chai.omopv5.dba.service.CareSiteService;
 import edu.gatech.chai.omopv5.dba.service.LocationService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
@@ -47,7 +48,9 @@ import edu.gatech.chai.omopv5.model.entity.Provider;
 
 public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, ProviderService> implements IResourceMapping<Practitioner, Provider>{
 
-	private static OmopPractitioner omopPractitioner = new OmopPractitioner();
+	private static class InstanceHolder {
+		private static final OmopPractitioner omopPractitioner = new OmopPractitioner();
+	}
 	
 	private CareSiteService careSiteService;
 	private LocationService locationService;	
@@ -69,11 +72,12 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 		
 		careSiteService = context.getBean(CareSiteService.class);
 		locationService = context.getBean(LocationService.class);
+		ReferenceData.getInstance().initialize(context);
 
 	}
 	
 	public static OmopPractitioner getInstance() {
-		return omopPractitioner;
+		return InstanceHolder.omopPractitioner;
 	}
 	
 	public static String FHIRTYPE = "Practitioner";
@@ -110,7 +114,7 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 		//Set address
 		if(omopCareSite != null && omopCareSite.getLocation() != null) {
 			Long locationId = omopCareSite.getLocation().getId();
-			Location location = locationService.findById(locationId);
+			Location location = ReferenceData.getInstance().getLocation(locationId);
 			if (location != null) {
 				practitioner.addAddress()
 				.setUse(AddressUse.WORK) // default to work
@@ -136,6 +140,24 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 		return practitioner;
 	}
 
+	@Override
+	protected Provider findEntity(Long omopId) {
+		return ReferenceData.getInstance().getProvider(omopId);
+	}
+
+	@Override
+	public void removeDbase(Long id) {
+		super.removeDbase(id);
+		ReferenceData.getInstance().invalidateProvider(id);
+	}
+
+	@Override
+	public Long removeByFhirId(IdType fhirId) {
+		Long retVal = super.removeByFhirId(fhirId);
+		ReferenceData.getInstance().invalidateProvider(IdMapping.getOMOPfromFHIR(fhirId.getIdPartAsLong(), OmopPractitioner.FHIRTYPE));
+		return retVal;
+	}
+
 	@Override
 	public Long toDbase(Practitioner practitioner, IdType fhirId) throws FHIRException {
 		
@@ -175,6 +197,13 @@ public class OmopPractitioner extends BaseOmopResource<Practitioner, Provider, P
 		} else {
 			omopRecordId = getMyOmopService().create(omopProvider).getId();
 		}
+		ReferenceData.getInstance().invalidateProvider(omopRecordId);
+		if (omopProvider.getCareSite() != null) {
+			ReferenceData.getInstance().invalidateCareSite(omopProvider.getCareSite().getId());
+			if (omopProvider.getCareSite().getLocation() != null) {
+				ReferenceData.getInstance().invalidateLocation(omopProvider.getCareSite().getLocation().getId());
+			}
+		}
 		return IdMapping.getFHIRfromOMOP(omopRecordId, OmopPractitioner.FHIRTYPE);
 	}
 	
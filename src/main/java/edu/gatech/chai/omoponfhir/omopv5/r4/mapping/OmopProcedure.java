@@ -54,7 +54,9 @@ import edu.gatech.chai.omopv5.model.entity.VisitOccurrence;
 
 public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurrence, ProcedureOccurrenceService> {
 
-	private static OmopProcedure omopProcedure = new OmopProcedure();
+	private static class InstanceHolder {
+		private static final OmopProcedure omopProcedure = new OmopProcedure();
+	}
 	private ConceptService conceptService;
 	private FPersonService fPersonService;
 	private VisitOccurrenceService visitOccurrenceService;
@@ -84,7 +86,7 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 	}
 	
 	public static OmopProcedure getInstance() {
-		return OmopProcedure.omopProcedure;
+		return InstanceHolder.omopProcedure;
 	}
 	
 	public static String FHIRTYPE = "Procedure";
@@ -118,7 +120,8 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 			if (includes.contains("Procedure:patient")) {
 				if (procedure.hasSubject()) {
 					Long patientFhirId = procedure.getSubject().getReferenceElement().getIdPartAsLong();
-					Patient patient = OmopPatient.getInstance().constructFHIR(patientFhirId, entity.getFPerson());
+					Patient patient = includeResource(OmopPatient.FHIRTYPE, patientFhirId,
+							() -> OmopPatient.getInstance().constructFHIR(patientFhirId, entity.getFPerson()));
 					procedure.getSubject().setResource(patient);
 				}
 			}
@@ -129,7 +132,8 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 					for (ProcedurePerformerComponent performer: performers) {
 						if (!performer.isEmpty()) {
 							Long practitionerFhirId = performer.getActor().getReferenceElement().getIdPartAsLong();
-							Practitioner practitioner = OmopPractitioner.getInstance().constructFHIR(practitionerFhirId, entity.getProvider());
+							Practitioner practitioner = includeResource(OmopPractitioner.FHIRTYPE, practitionerFhirId,
+									() -> OmopPractitioner.getInstance().constructFHIR(practitionerFhirId, entity.getProvider()));
 							performer.getActor().setResource(practitioner);
 						}
 					}
@@ -139,7 +143,8 @@ public class OmopProcedure extends BaseOmopResource<Procedure, ProcedureOccurren
 			if (includes.contains("Procedure:context")) {
 				if (procedure.hasEncounter()) {
 					Long encounterFhirId = procedure.getEncounter().getReferenceElement().getIdPartAsLong();
-					Encounter encounter = OmopEncounter.getInstance().constructFHIR(encounterFhirId, entity.getVisitOccurrence());
+					Encounter encounter = includeResource(OmopEncounter.FHIRTYPE, encounterFhirId,
+							() -> OmopEncounter.getInstance().constructFHIR(encounterFhirId, entity.getVisitOccurrence()));
 					procedure.getEncounter().setResource(encounter);
 				}
 			}
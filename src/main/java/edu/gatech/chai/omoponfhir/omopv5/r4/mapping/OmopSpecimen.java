@@ -56,7 +56,9 @@ import edu.gatech.chai.omopv5.model.entity.FPerson;
 public class OmopSpecimen extends BaseOmopResource<Specimen, edu.gatech.chai.omopv5.model.entity.Specimen, SpecimenService> {
 
 	static final Logger logger = LoggerFactory.getLogger(OmopSpecimen.class);
-	private static OmopSpecimen omopSpecimen = new OmopSpecimen();
+	private static class InstanceHolder {
+		private static final OmopSpecimen omopSpecimen = new OmopSpecimen();
+	}
 
 	private ConceptService conceptService;
 
@@ -80,7 +82,7 @@ public class OmopSpecimen extends BaseOmopResource<Specimen, edu.gatech.chai.omo
 	}
 
 	public static OmopSpecimen getInstance() {
-		return OmopSpecimen.omopSpecimen;
+		return InstanceHolder.omopSpecimen;
 	}
 
 	public static String FHIRTYPE = "Specimen";
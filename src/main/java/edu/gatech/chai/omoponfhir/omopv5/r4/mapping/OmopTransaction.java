@@ -54,7 +54,9 @@ import edu.gatech.chai.omopv5.model.entity.Measurement;
 public class OmopTransaction {
 	private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(OmopTransaction.class);
 
-	private static OmopTransaction omopTransaction = new OmopTransaction();
+	private static class InstanceHolder {
+		private static final OmopTransaction omopTransaction = new OmopTransaction();
+	}
 	private TransactionService myService;
 	private FPersonService fPersonService;
 	private ObservationService observationService;
@@ -81,7 +83,7 @@ public class OmopTransaction {
 	}
 
 	public static OmopTransaction getInstance() {
-		return omopTransaction;
+		return InstanceHolder.omopTransaction;
 	}
 
 	private void addBaseEntity(Map<String, List<BaseEntity>> entityToCreate, String key, BaseEntity entity) {
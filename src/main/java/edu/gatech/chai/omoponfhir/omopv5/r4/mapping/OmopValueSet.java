@@ -15,17 +15,38 @@
  *******************************************************************************/
 package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
 
+import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.CodeSystem.ConceptDefinitionComponent;
 import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.IntegerType;
 import org.hl7.fhir.r4.model.Meta;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ConceptReferenceComponent;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetComponent;
+import org.hl7.fhir.r4.model.ValueSet.ConceptSetFilterComponent;
+import org.hl7.fhir.r4.model.ValueSet.FilterOperator;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetComposeComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
 import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.springframework.web.context.ContextLoaderListener;
@@ -34,6 +55,13 @@ import edu.gatech.chai.omopv5.model.entity.Concept;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 
 import ca.uhn.fhir.rest.api.SortSpec;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConceptAncestorIndex;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.IntSets;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.LruCache;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.OmopVocabularyClient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.StaticValues;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ThrowFHIRExceptions;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.TerminologyServiceClient;
 import edu.gatech.chai.omopv5.dba.service.ConceptRelationshipService;
 import edu.gatech.chai.omopv5.dba.service.ConceptService;
 import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
@@ -52,7 +80,25 @@ import org.slf4j.LoggerFactory;
  */
 public class OmopValueSet extends BaseOmopResource<ValueSet, ConceptRelationship, ConceptRelationshipService> {
     private static final Logger logger = LoggerFactory.getLogger(OmopValueSet.class);
-	private static OmopValueSet omopValueSet = new OmopValueSet();
+	private static class InstanceHolder {
+		private static final OmopValueSet omopValueSet = new OmopValueSet();
+	}
+
+	// $expand paging defaults. A client may ask for less, but never more than
+	// MAX_EXPANSION_COUNT in one page. Larger expansions must be paged or streamed.
+	public static final int DEFAULT_EXPANSION_COUNT = 1000;
+	public static final int MAX_EXPANSION_COUNT = 10000;
+	private static final int STREAM_CHUNK_SIZE = 1000;
+	private static final int MAX_VALUESET_DEPTH = 5;
+
+	// Computed expansions keyed by definition hash (and filter). We keep only the
+	// sorted concept ids. Concept rows are loaded for the requested page only.
+	private static LruCache<String, Expansion> expansionCache = new LruCache<String, Expansion>(
+			StaticValues.getEnvInt("VALUESET_EXPANSION_CACHE_SIZE", 100));
+	// Value set concepts (concept_id_1) by id, for the names of the ValueSets a search returns.
+	// The rows of one value set share the concept.
+	private static LruCache<Long, Concept> valueSetConceptCache = new LruCache<Long, Concept>(1000);
+
 	private ConceptService conceptService;
     private ConceptRelationshipService conceptRelationshipService;
     private RelationshipService relationshipService;
@@ -81,7 +127,7 @@ public class OmopValueSet extends BaseOmopResource<ValueSet, ConceptRelationship
     }
 
     public static OmopValueSet getInstance() {
-		return omopValueSet;
+		return InstanceHolder.omopValueSet;
 	}
 
 	public static String FHIRTYPE = "ValueSet";
@@ -96,14 +142,10 @@ public class OmopValueSet extends BaseOmopResource<ValueSet, ConceptRelationship
     public ValueSet constructFHIR(Long fhirId, ConceptRelationship conceptRelationship) {
 
         ValueSet valueSet = new ValueSet();
-        Concept concept = new Concept();
 
-        // TODO: ConceptRelationshipService needs to implement a PK 
-        // valueSet.setId(new IdType(fhirId));
+        // ConceptRelationship has no single column key. The value set is its concept_id_1.
         Long concept1 = conceptRelationship.getConceptId1();
-
-
-        valueSet.setId(new IdType(20000000000L));
+        valueSet.setId(new IdType(concept1 != null ? concept1 : fhirId));
 
         Calendar calendar = Calendar.getInstance();
         Meta metaData = new Meta();
@@ -114,7 +156,11 @@ public class OmopValueSet extends BaseOmopResource<ValueSet, ConceptRelationship
             metaData.setLastUpdated(calendar.getTime());
             valueSet.setMeta(metaData);
         }
-        valueSet.setName("new ValueSet");
+        Concept concept = concept1 == null ? null : valueSetConceptCache.computeIfAbsent(concept1, 
+            k -> conceptService.findById(k));
+        if (concept != null) {
+            valueSet.setName(concept.getConceptName());
+        }
 
 
         // List<ConceptDefinitionComponent> theConcept = new ArrayList<ConceptDefinitionComponent>();
@@ -236,6 +282,346 @@ public class OmopValueSet extends BaseOmopResource<ValueSet, ConceptRelationship
             super.searchWithParams(fromIndex, toIndex, mapList, listResources, includes, sort);
     }
 
+    /**
+     * FHIR operation $expand on ValueSet
+     * Expands the definition (compose) of a ValueSet against the OMOP CONCEPT, 
+     * CONCEPT_RELATIONSHIP and CONCEPT_ANCESTOR tables. Supported include/exclude 
+     * criteria are:
+     *     system only (every concept of the vocabulary), 
+     *     listed concepts, 
+     *     filter concept is-a / descendent-of code (CONCEPT_ANCESTOR), 
+     *     filter concept_class_id, domain_id, standard_concept = value (CONCEPT), 
+     *     filter concept_class_id, domain_id is-a value (descendants of every matching concept), 
+     *     filter [relationship_id] = code (CONCEPT_RELATIONSHIP targets of the code), 
+     *     and valueSet references. 
+     * The expanded concept ids are cached by the hash of the compose. Only the 
+     * requested page is loaded from the CONCEPT table.
+     * @param definition ValueSet with compose 
+     * @param filter text filter on the concept name. null if not filtered 
+     * @param offset paging offset. null for 0 
+     * @param count page size. null for DEFAULT_EXPANSION_COUNT 
+     * @return ValueSet with the expansion for the requested page 
+     */
+    public ValueSet expand(ValueSet definition, String filter, Integer offset, Integer count) {
+        if (definition == null || !definition.hasCompose()) {
+            ThrowFHIRExceptions.invalidRequestException("ValueSet definition with compose is required for $expand", IssueType.REQUIRED);
+        }
+
+        int fromIndex = (offset == null || offset < 0) ? 0 : offset;
+        int pageSize = (count == null || count < 0) ? DEFAULT_EXPANSION_COUNT : Math.min(count, MAX_EXPANSION_COUNT);
+
+        Expansion expansion = getExpansion(definition, filter);
+        int[] conceptIds = expansion.getConceptIds();
+        int toIndex = Math.min(conceptIds.length, fromIndex + pageSize);
+
+        ValueSet valueSet = new ValueSet();
+        valueSet.setUrl(definition.getUrl());
+        valueSet.setVersion(definition.getVersion());
+        valueSet.setName(definition.getName());
+        valueSet.setTitle(definition.getTitle());
+        valueSet.setStatus(definition.getStatus());
+
+        ValueSetExpansionComponent expansionComponent = new ValueSetExpansionComponent();
+        expansionComponent.setIdentifier("urn:uuid:" + UUID.randomUUID().toString());
+        expansionComponent.setTimestamp(new Date());
+        expansionComponent.setTotal(conceptIds.length);
+        expansionComponent.setOffset(fromIndex);
+        expansionComponent.addParameter().setName("offset").setValue(new IntegerType(fromIndex));
+        expansionComponent.addParameter().setName("count").setValue(new IntegerType(pageSize));
+        if (filter != null && !filter.isEmpty()) {
+            expansionComponent.addParameter().setName("filter").setValue(new StringType(filter));
+        }
+
+        if (fromIndex < toIndex) {
+            Map<String, String> systemUris = new HashMap<String, String>();
+            for (Concept concept : OmopVocabularyClient.getInstance().findConceptsByIds(conceptIds, fromIndex, toIndex)) {
+                expansionComponent.addContains(constructContains(concept, systemUris));
+            }
+        }
+        valueSet.setExpansion(expansionComponent);
+
+        return valueSet;
+    }
+
+    /**
+     * $expand for a canonical url. FHIR implicit value sets ([system]?fhir_vs and 
+     * [system]?fhir_vs=isa/[code]) are built here. Other urls are resolved through 
+     * the terminology server to get their compose, which is then expanded against 
+     * OMOP.
+     */
+    public ValueSet expandByUrl(String url, String filter, Integer offset, Integer count) {
+        return expand(getDefinitionByUrl(url), filter, offset, count);
+    }
+
+    /**
+     * Streams the whole expansion to the consumer in chunks of STREAM_CHUNK_SIZE 
+     * concepts. This is for very large expansions (e.g. all descendants of all RxNorm 
+     * ingredients) where building one ValueSet resource is not practical.
+     * @return total number of concepts in the expansion
+     */
+    public int streamExpansion(ValueSet definition, String filter, Consumer<ValueSetExpansionContainsComponent> consumer) {
+        int[] conceptIds = getExpansion(definition, filter).getConceptIds();
+        Map<String, String> systemUris = new HashMap<String, String>();
+        for (int start = 0; start < conceptIds.length; start += STREAM_CHUNK_SIZE) {
+            int end = Math.min(conceptIds.length, start + STREAM_CHUNK_SIZE);
+            for (Concept concept : OmopVocabularyClient.getInstance().findConceptsByIds(conceptIds, start, end)) {
+                consumer.accept(constructContains(concept, systemUris));
+            }
+        }
+
+        return conceptIds.length;
+    }
+
+    /**
+     * Sorted concept ids of the expansion. Computed once per definition hash and filter.
+     */
+    public int[] getExpansionConceptIds(ValueSet definition, String filter) {
+        return getExpansion(definition, filter).getConceptIds();
+    }
+
+    public static void clearExpansionCache() {
+        expansionCache.clear();
+    }
+
+    /**
+     * SHA-256 of the compose part of the ValueSet. Two ValueSets with the same 
+     * compose share the cached expansion regardless of their id, url or metadata.
+     */
+    public static String getDefinitionHash(ValueSet definition) {
+        ValueSet hashSource = new ValueSet();
+        hashSource.setCompose(definition.getCompose());
+        String composeJson = StaticValues.myFhirContext.newJsonParser().encodeResourceToString(hashSource);
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(composeJson.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has SHA-256. Fall back to the json itself.
+            return composeJson;
+        }
+    }
+
+    private Expansion getExpansion(ValueSet definition, String filter) {
+        String definitionHash = getDefinitionHash(definition);
+        Expansion expansion = expansionCache.get(definitionHash);
+        if (expansion == null) {
+            Set<String> vocabularies = new LinkedHashSet<String>();
+            int[] conceptIds = expandCompose(definition.getCompose(), vocabularies, 0);
+            expansion = new Expansion(conceptIds, new ArrayList<String>(vocabularies));
+            expansionCache.put(definitionHash, expansion);
+            logger.debug("$expand: " + conceptIds.length + " concepts computed for definition " + definitionHash);
+        }
+
+        if (filter == null || filter.trim().isEmpty()) {
+            return expansion;
+        }
+
+        String filterKey = definitionHash + "|" + filter.trim().toLowerCase();
+        Expansion filtered = expansionCache.get(filterKey);
+        if (filtered == null) {
+            int[] matched = OmopVocabularyClient.getInstance().findConceptIdsByName(filter.trim(), expansion.getVocabularies());
+            filtered = new Expansion(IntSets.intersect(expansion.getConceptIds(), matched), expansion.getVocabularies());
+            expansionCache.put(filterKey, filtered);
+        }
+
+        return filtered;
+    }
+
+    private int[] expandCompose(ValueSetComposeComponent compose, Set<String> vocabularies, int depth) {
+        int[] conceptIds = IntSets.EMPTY;
+        for (ConceptSetComponent include : compose.getInclude()) {
+            conceptIds = IntSets.union(conceptIds, expandConceptSet(include, vocabularies, depth));
+        }
+
+        for (ConceptSetComponent exclude : compose.getExclude()) {
+            conceptIds = IntSets.difference(conceptIds, expandConceptSet(exclude, new LinkedHashSet<String>(), depth));
+        }
+
+        return conceptIds;
+    }
+
+    private int[] expandConceptSet(ConceptSetComponent conceptSet, Set<String> vocabularies, int depth) {
+        OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+        int[] conceptIds = null;
+
+        if (conceptSet.hasSystem()) {
+            String system = conceptSet.getSystem();
+            String omopVocabulary = getFhirOmopVocabularyMap().getOmopVocabularyFromFhirSystemName(system);
+            if ("None".equals(omopVocabulary)) {
+                ThrowFHIRExceptions.invalidRequestException("The system " + system + " is not known to this server", IssueType.NOTSUPPORTED);
+            }
+            vocabularies.add(omopVocabulary);
+
+            if (conceptSet.hasConcept()) {
+                List<String> codes = new ArrayList<String>();
+                for (ConceptReferenceComponent concept : conceptSet.getConcept()) {
+                    codes.add(concept.getCode());
+                }
+                conceptIds = vocabularyClient.findConceptIdsForCodes(omopVocabulary, codes);
+            } else if (conceptSet.hasFilter()) {
+                conceptIds = expandFilters(omopVocabulary, system, conceptSet.getFilter());
+            } else {
+                conceptIds = vocabularyClient.findConceptIds(omopVocabulary, null, false);
+            }
+        }
+
+        // valueSet references are intersected with each other and with the system part.
+        for (CanonicalType valueSetUrl : conceptSet.getValueSet()) {
+            if (depth >= MAX_VALUESET_DEPTH) {
+                ThrowFHIRExceptions.invalidRequestException("ValueSet references are nested too deep at " + valueSetUrl.getValue(), IssueType.TOOCOSTLY);
+            }
+            ValueSet referenced = getDefinitionByUrl(valueSetUrl.getValue());
+            int[] referencedIds = expandCompose(referenced.getCompose(), vocabularies, depth + 1);
+            conceptIds = conceptIds == null ? referencedIds : IntSets.intersect(conceptIds, referencedIds);
+        }
+
+        return conceptIds == null ? IntSets.EMPTY : conceptIds;
+    }
+
+    private int[] expandFilters(String omopVocabulary, String system, List<ConceptSetFilterComponent> filters) {
+        OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+        Map<String, String> attributes = new HashMap<String, String>();
+        int[] conceptIds = null;
+
+        for (ConceptSetFilterComponent filter : filters) {
+            String property = filter.getProperty();
+            FilterOperator op = filter.getOp();
+            String value = filter.getValue();
+            if (property == null || op == null || value == null) {
+                ThrowFHIRExceptions.invalidRequestException("ValueSet filter must have property, op and value", IssueType.REQUIRED);
+            }
+
+            int[] filterIds;
+            if ("concept".equals(property)) {
+                Integer conceptId = vocabularyClient.findConceptId(omopVocabulary, value);
+                if (conceptId == null) {
+                    ThrowFHIRExceptions.invalidRequestException("The code " + value + " is not found in " + system, IssueType.NOTFOUND);
+                }
+
+                if (op == FilterOperator.ISA) {
+                    filterIds = ConceptAncestorIndex.getInstance().getDescendants(conceptId, true);
+                } else if (op == FilterOperator.DESCENDENTOF) {
+                    filterIds = ConceptAncestorIndex.getInstance().getDescendants(conceptId, false);
+                } else if (op == FilterOperator.EQUAL) {
+                    filterIds = new int[] { conceptId };
+                } else {
+                    ThrowFHIRExceptions.invalidRequestException("The filter op " + op.toCode() + " is not supported for concept", IssueType.NOTSUPPORTED);
+                    return IntSets.EMPTY;
+                }
+            } else if (OmopVocabularyClient.CONCEPT_PROPERTY_COLUMNS.containsKey(property)) {
+                if (op == FilterOperator.EQUAL) {
+                    // Column filters are combined into one CONCEPT query below.
+                    attributes.put(property, value);
+                    continue;
+                } else if (op == FilterOperator.ISA) {
+                    Map<String, String> ancestorAttributes = new HashMap<String, String>();
+                    ancestorAttributes.put(property, value);
+                    filterIds = vocabularyClient.findDescendantIdsOf(omopVocabulary, ancestorAttributes);
+                } else {
+                    ThrowFHIRExceptions.invalidRequestException("The filter op " + op.toCode() + " is not supported for " + property, IssueType.NOTSUPPORTED);
+                    return IntSets.EMPTY;
+                }
+            } else if (op == FilterOperator.EQUAL) {
+                // Any other property is taken as a relationship_id in CONCEPT_RELATIONSHIP.
+                Integer conceptId = vocabularyClient.findConceptId(omopVocabulary, value);
+                if (conceptId == null) {
+                    ThrowFHIRExceptions.invalidRequestException("The code " + value + " is not found in " + system, IssueType.NOTFOUND);
+                }
+                filterIds = vocabularyClient.findRelatedIds(conceptId, property);
+            } else {
+                ThrowFHIRExceptions.invalidRequestException("The filter " + property + " " + op.toCode() + " is not supported", IssueType.NOTSUPPORTED);
+                return IntSets.EMPTY;
+            }
+
+            conceptIds = conceptIds == null ? filterIds : IntSets.intersect(conceptIds, filterIds);
+        }
+
+        if (!attributes.isEmpty() || conceptIds == null) {
+            int[] attributeIds = vocabularyClient.findConceptIds(omopVocabulary, attributes, false);
+            conceptIds = conceptIds == null ? attributeIds : IntSets.intersect(conceptIds, attributeIds);
+        }
+
+        return conceptIds;
+    }
+
+    private ValueSet getDefinitionByUrl(String url) {
+        if (url == null || url.isEmpty()) {
+            ThrowFHIRExceptions.invalidRequestException("ValueSet url is required", IssueType.REQUIRED);
+        }
+
+        ValueSet definition = new ValueSet();
+        definition.setUrl(url);
+
+        int implicitIndex = url.indexOf("?fhir_vs");
+        if (implicitIndex > 0) {
+            ConceptSetComponent include = definition.getCompose().addInclude();
+            include.setSystem(url.substring(0, implicitIndex));
+
+            String implicitPart = url.substring(implicitIndex + "?fhir_vs".length());
+            if (implicitPart.startsWith("=isa/")) {
+                include.addFilter().setProperty("concept").setOp(FilterOperator.ISA)
+                        .setValue(implicitPart.substring("=isa/".length()));
+            } else if (!implicitPart.isEmpty()) {
+                ThrowFHIRExceptions.invalidRequestException("The implicit ValueSet " + url + " is not supported", IssueType.NOTSUPPORTED);
+            }
+
+            return definition;
+        }
+
+        // Not an implicit ValueSet. Get the definition from the terminology server.
+        Map<String, List<ConceptSetComponent>> theIncExcl = TerminologyServiceClient.getInstance().getValueSetByUrl(url);
+        List<ConceptSetComponent> includes = theIncExcl.get("include");
+        if (includes == null || includes.isEmpty()) {
+            ThrowFHIRExceptions.invalidRequestException("The ValueSet " + url + " is not found", IssueType.NOTFOUND);
+        }
+        definition.getCompose().setInclude(includes);
+
+        List<ConceptSetComponent> excludes = theIncExcl.get("exclude");
+        if (excludes != null) {
+            definition.getCompose().setExclude(excludes);
+        }
+
+        return definition;
+    }
+
+    private ValueSetExpansionContainsComponent constructContains(Concept concept, Map<String, String> systemUris) {
+        String systemUri = systemUris.get(concept.getVocabularyId());
+        if (systemUri == null) {
+            systemUri = getFhirOmopVocabularyMap().getFhirSystemNameFromOmopVocabulary(concept.getVocabularyId());
+            systemUris.put(concept.getVocabularyId(), systemUri);
+        }
+
+        ValueSetExpansionContainsComponent contains = new ValueSetExpansionContainsComponent();
+        contains.setSystem(systemUri);
+        contains.setCode(concept.getConceptCode());
+        contains.setDisplay(concept.getConceptName());
+
+        return contains;
+    }
+
+
+    /**
+     * Cached result of an expansion: the sorted concept ids and the OMOP 
+     * vocabularies that the definition draws from.
+     */
+    private static class Expansion {
+        private final int[] conceptIds;
+        private final List<String> vocabularies;
+
+        Expansion(int[] conceptIds, List<String> vocabularies) {
+            this.conceptIds = conceptIds;
+            this.vocabularies = vocabularies;
+        }
+
+        int[] getConceptIds() {
+            return conceptIds;
+        }
+
+        List<String> getVocabularies() {
+            return vocabularies;
+        }
+    }
+
     @Override
 	public String constructOrderParams(SortSpec theSort) {
         if (theSort == null) {return null;}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+
+/**
+ * Sets the BaseOmopResource projection from the _summary and _elements
+ * parameters of each request, and clears it when the request is done.
+ *
+ * This library does not register it. The server registers it with its
+ * RestfulServer, ex. in the FhirServerConfig:
+ *
+ * registerInterceptor(new ProjectionInterceptor());
+ *
+ * Without it, mappers construct the whole resource and _summary=count
+ * searches read their page.
+ */
+@Interceptor
+public class ProjectionInterceptor {
+
+	@Hook(Pointcut.SERVER_INCOMING_REQUEST_POST_PROCESSED)
+	public boolean incomingRequestPostProcessed(RequestDetails requestDetails) {
+		Map<String, String[]> parameters = requestDetails.getParameters();
+		String summary = first(parameters.get("_summary"));
+
+		Set<String> elements = null;
+		String[] elementValues = parameters.get("_elements");
+		if (elementValues != null) {
+			elements = new HashSet<String>();
+			for (String value : elementValues) {
+				for (String element : value.split(",")) {
+					if (!element.trim().isEmpty()) {
+						elements.add(element.trim());
+					}
+				}
+			}
+			if (elements.isEmpty()) {
+				elements = null;
+			}
+		}
+
+		BaseOmopResource.setProjection(summary, elements);
+		return true;
+	}
+
+	@Hook(Pointcut.SERVER_PROCESSING_COMPLETED)
+	public void processingCompleted(RequestDetails requestDetails) {
+		BaseOmopResource.clearProjection();
+	}
+
+	private static String first(String[] values) {
+		if (values == null || values.length == 0) {
+			return null;
+		}
+
+		return values[0];
+	}
+}
@@ -16,6 +16,10 @@
 package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
 
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.hl7.fhir.r4.model.Address;
 import org.hl7.fhir.r4.model.StringType;
@@ -23,7 +27,21 @@ import org.hl7.fhir.r4.model.StringType;
 import edu.gatech.chai.omopv5.dba.service.LocationService;
 import edu.gatech.chai.omopv5.model.entity.Location;
 
+/**
+ * Location lookups for the Patient, Practitioner and Organization writes.
+ *
+ * Resolved addresses are cached by their normalized text (trimmed, single
+ * spaced, lower case), up to ADDRESS_CACHE_SIZE addresses (default 10000).
+ * Concurrent writes of the same address share one searchByAddress and, if it
+ * is not there, one create, so a bulk load makes one LOCATION row per
+ * address instead of one per writer.
+ */
 public class AddressUtil {
+	public static int CACHE_SIZE = StaticValues.getEnvInt("ADDRESS_CACHE_SIZE", 10000);
+
+	private static final LruCache<String, Location> locations = new LruCache<String, Location>(CACHE_SIZE);
+	private static final ConcurrentHashMap<String, CompletableFuture<Location>> inFlight = new ConcurrentHashMap<String, CompletableFuture<Location>>();
+
 	/**
 	 * 
 	 * @param locationService : Class to JPA service
@@ -48,25 +66,91 @@ public class AddressUtil {
 		String city = address.getCity();
 		String state = address.getState();
 
-		Location existingLocation = locationService.searchByAddress(line1, line2, city, state, zipCode);
+		Location existingLocation = resolve(locationService, line1, line2, city, state, zipCode, location == null);
 		if (existingLocation != null) {
 			return existingLocation;
-		} else {
+		} else if (location != null) {
 			// We will return new Location. But, if Location is provided,
-			// then we update the parameters here.
-			if (location != null) {
-				location.setAddress1(line1);
-				if (line2 != null)
-					location.setAddress2(line2);
-				location.setZip(zipCode);
-				location.setCity(city);
-				location.setState(state);
-			} else {
-				Location newLocation = locationService.create(new Location(line1, line2, city, state, zipCode));
-				return newLocation;
-			}
+			// then we update the parameters here. Its old address no longer
+			// resolves to it.
+			locations.remove(addressKey(location.getAddress1(), location.getAddress2(), location.getCity(),
+					location.getState(), location.getZip()));
+
+			location.setAddress1(line1);
+			if (line2 != null)
+				location.setAddress2(line2);
+			location.setZip(zipCode);
+			location.setCity(city);
+			location.setState(state);
 		}
 
 		return null;
 	}
+
+	/**
+	 * The Location of the address, searched once per address. If it does not
+	 * exist and create is true, it is created. Callers that arrive while
+	 * another thread resolves the same address wait for that result.
+	 */
+	private static Location resolve(LocationService locationService, String line1, String line2, String city,
+			String state, String zipCode, boolean create) {
+		String key = addressKey(line1, line2, city, state, zipCode);
+		while (true) {
+			Location cached = locations.get(key);
+			if (cached != null) {
+				return cached;
+			}
+
+			CompletableFuture<Location> flight = new CompletableFuture<Location>();
+			CompletableFuture<Location> running = inFlight.putIfAbsent(key, flight);
+			if (running != null) {
+				Location retVal;
+				try {
+					retVal = running.join();
+				} catch (CompletionException e) {
+					// The other caller failed. Try on our own.
+					continue;
+				}
+				if (retVal != null || !create) {
+					return retVal;
+				}
+				// The other caller only searched. Resolve again to create it.
+				continue;
+			}
+
+			try {
+				Location retVal = locationService.searchByAddress(line1, line2, city, state, zipCode);
+				if (retVal == null && create) {
+					retVal = locationService.create(new Location(line1, line2, city, state, zipCode));
+				}
+				if (retVal != null) {
+					locations.put(key, retVal);
+				}
+				flight.complete(retVal);
+				return retVal;
+			} catch (RuntimeException e) {
+				flight.completeExceptionally(e);
+				throw e;
+			} finally {
+				inFlight.remove(key, flight);
+			}
+		}
+	}
+
+	private static String addressKey(String line1, String line2, String city, String state, String zipCode) {
+		return normalize(line1) + "|" + normalize(line2) + "|" + normalize(city) + "|" + normalize(state) + "|"
+				+ normalize(zipCode);
+	}
+
+	private static String normalize(String value) {
+		if (value == null) {
+			return "";
+		}
+
+		return value.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+	}
+
+	public static void clearCache() {
+		locations.clear();
+	}
 }
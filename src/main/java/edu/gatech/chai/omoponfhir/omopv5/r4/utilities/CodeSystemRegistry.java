@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omoponfhir.local.dao.FhirOmopVocabularyMapImpl;
+import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopCodeableConceptMapping;
+
+/**
+ * FHIR code system URI &lt;-&gt; OMOP vocabulary_id. This is the one place the
+ * mapping is looked up: OmopCodeableConceptMapping, FhirOmopVocabularyMapImpl
+ * and CodeableConceptUtil all read from here.
+ *
+ * The registry merges the built-in OmopCodeableConceptMapping entries with
+ * the local FhirOmopVocabularyMap table (omoponfhir.db). Entries of the table
+ * take precedence. Among the rows of the table, the first row of a FHIR system
+ * or an OMOP vocabulary wins, ex. NDFRT and VA Product share the NDF-RT URIs
+ * and they resolve to NDFRT. For a FHIR system, both fhir_url_system and
+ * other_system of the table are matched. For an OMOP vocabulary,
+ * fhir_url_system is returned, or other_system if it is not set.
+ *
+ * The maps are immutable and replaced as a whole. A write to the table
+ * (FhirOmopVocabularyMapImpl save, update and delete) invalidates them, and
+ * the next lookup reads the table again. If the table cannot be read, lookups
+ * use the built-in entries, and the table is read again after
+ * CODE_SYSTEM_REGISTRY_RETRY_SECONDS (default 60) or a write.
+ * Lookups that are not mapped return "None", like the lookups this replaces.
+ */
+public class CodeSystemRegistry {
+	private static final Logger logger = LoggerFactory.getLogger(CodeSystemRegistry.class);
+	private static CodeSystemRegistry codeSystemRegistry = new CodeSystemRegistry();
+
+	public static final String NONE = "None";
+	public static int RETRY_SECONDS = StaticValues.getEnvInt("CODE_SYSTEM_REGISTRY_RETRY_SECONDS", 60);
+
+	static class Snapshot {
+		final Map<String, String> omopVocabularyByFhirSystem;
+		final Map<String, String> fhirSystemByOmopVocabulary;
+
+		Snapshot(Map<String, String> omopVocabularyByFhirSystem, Map<String, String> fhirSystemByOmopVocabulary) {
+			this.omopVocabularyByFhirSystem = Collections.unmodifiableMap(omopVocabularyByFhirSystem);
+			this.fhirSystemByOmopVocabulary = Collections.unmodifiableMap(fhirSystemByOmopVocabulary);
+		}
+	}
+
+	private volatile Snapshot snapshot = null;
+	// Incremented by invalidate(), so that a build that read the table before
+	// a write is not kept.
+	private final AtomicInteger generation = new AtomicInteger();
+	// Set while the snapshot holds only the built-in entries because the table
+	// could not be read. The table is read again after this time.
+	private volatile long nextAttempt = 0L;
+
+	public static CodeSystemRegistry getInstance() {
+		return codeSystemRegistry;
+	}
+
+	/**
+	 * OMOP vocabulary_id of the FHIR code system, or "None".
+	 */
+	public String getOmopVocabulary(String fhirSystem) {
+		if (fhirSystem == null) {
+			return NONE;
+		}
+
+		String retVal = getSnapshot().omopVocabularyByFhirSystem.get(fhirSystem.trim());
+		return retVal == null ? NONE : retVal;
+	}
+
+	/**
+	 * FHIR code system of the OMOP vocabulary_id, or "None".
+	 */
+	public String getFhirSystem(String omopVocabulary) {
+		if (omopVocabulary == null) {
+			return NONE;
+		}
+
+		String retVal = getSnapshot().fhirSystemByOmopVocabulary.get(omopVocabulary);
+		return retVal == null ? NONE : retVal;
+	}
+
+	/**
+	 * Drops the maps. The next lookup rebuilds them from the table.
+	 */
+	public void invalidate() {
+		generation.incrementAndGet();
+		nextAttempt = 0L;
+		snapshot = null;
+	}
+
+	private Snapshot getSnapshot() {
+		Snapshot retVal = snapshot;
+		if (isCurrent(retVal)) {
+			return retVal;
+		}
+
+		synchronized (this) {
+			retVal = snapshot;
+			if (isCurrent(retVal)) {
+				return retVal;
+			}
+
+			int builtGeneration = generation.get();
+			LocalMapLookupEvent event = LocalMapLookupEvent.start("FhirOmopVocabularyMap", "get", null);
+			List<FhirOmopVocabularyMapEntry> entries;
+			try {
+				entries = new FhirOmopVocabularyMapImpl().read();
+			} catch (SQLException e) {
+				event.finish(false);
+				logger.error("Failed to read FhirOmopVocabularyMap. Using the built-in code systems and retrying in "
+						+ RETRY_SECONDS + "s: " + e.getMessage());
+				retVal = build(OmopCodeableConceptMapping.values(),
+						Collections.<FhirOmopVocabularyMapEntry>emptyList());
+				if (builtGeneration == generation.get()) {
+					nextAttempt = System.currentTimeMillis() + RETRY_SECONDS * 1000L;
+					snapshot = retVal;
+				}
+				return retVal;
+			}
+			event.finish(!entries.isEmpty());
+
+			retVal = build(OmopCodeableConceptMapping.values(), entries);
+			if (builtGeneration == generation.get()) {
+				nextAttempt = 0L;
+				snapshot = retVal;
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * True if the snapshot can be used: it is built from the table, or it is
+	 * the built-in fallback and the retry time has not come yet.
+	 */
+	private boolean isCurrent(Snapshot candidate) {
+		if (candidate == null) {
+			return false;
+		}
+
+		long retryAt = nextAttempt;
+		return retryAt == 0L || System.currentTimeMillis() < retryAt;
+	}
+
+	/**
+	 * Merges the built-in mappings with the entries of the table, in table
+	 * order. Entries override the built-in mappings, and the first entry of a
+	 * FHIR system or an OMOP vocabulary overrides the later ones.
+	 */
+	static Snapshot build(OmopCodeableConceptMapping[] mappings, List<FhirOmopVocabularyMapEntry> entries) {
+		Map<String, String> omopVocabularyByFhirSystem = new HashMap<String, String>();
+		Map<String, String> fhirSystemByOmopVocabulary = new HashMap<String, String>();
+		for (OmopCodeableConceptMapping mapping : mappings) {
+			omopVocabularyByFhirSystem.put(mapping.getFhirUri(), mapping.getOmopVocabulary());
+			fhirSystemByOmopVocabulary.put(mapping.getOmopVocabulary(), mapping.getFhirUri());
+		}
+
+		Map<String, String> tableOmopVocabularyByFhirSystem = new HashMap<String, String>();
+		Map<String, String> tableFhirSystemByOmopVocabulary = new HashMap<String, String>();
+		for (FhirOmopVocabularyMapEntry entry : entries) {
+			String omopVocabulary = entry.getOmopConceptCodeName();
+			if (omopVocabulary == null || omopVocabulary.isEmpty()) {
+				continue;
+			}
+
+			String fhirUrlSystem = trimToNull(entry.getFhirUrlSystemName());
+			String otherSystem = trimToNull(entry.getOtherSystemName());
+			if (fhirUrlSystem != null) {
+				tableOmopVocabularyByFhirSystem.putIfAbsent(fhirUrlSystem, omopVocabulary);
+			}
+			if (otherSystem != null) {
+				tableOmopVocabularyByFhirSystem.putIfAbsent(otherSystem, omopVocabulary);
+			}
+
+			String fhirSystem = fhirUrlSystem != null ? fhirUrlSystem : otherSystem;
+			if (fhirSystem != null) {
+				tableFhirSystemByOmopVocabulary.putIfAbsent(omopVocabulary, fhirSystem);
+			}
+		}
+		omopVocabularyByFhirSystem.putAll(tableOmopVocabularyByFhirSystem);
+		fhirSystemByOmopVocabulary.putAll(tableFhirSystemByOmopVocabulary);
+
+		logger.debug("Code system registry built: " + omopVocabularyByFhirSystem.size() + " FHIR systems, "
+				+ fhirSystemByOmopVocabulary.size() + " OMOP vocabularies");
+		return new Snapshot(omopVocabularyByFhirSystem, fhirSystemByOmopVocabulary);
+	}
+
+	private static String trimToNull(String value) {
+		if (value == null || value.trim().isEmpty()) {
+			return null;
+		}
+
+		return value.trim();
+	}
+}
@@ -89,7 +89,21 @@ public class CodeableConceptUtil {
 
 	public static Concept getOmopConceptWithOmopVacabIdAndCode(ConceptService conceptService, String omopVocabularyId, String code) {
 		if (omopVocabularyId == null) return null;
-		
+
+		return ConceptCache.getInstance().get(omopVocabularyId, code,
+				() -> findOmopConceptWithOmopVacabIdAndCode(conceptService, omopVocabularyId, code));
+	}
+
+	private static Concept findOmopConceptWithOmopVacabIdAndCode(ConceptService conceptService, String omopVocabularyId, String code) {
+		ConceptDictionary conceptDictionary = ConceptDictionary.getInstance();
+		if (conceptDictionary.isAvailable()) {
+			int index = conceptDictionary.findIndex(omopVocabularyId, code);
+			if (index != ConceptDictionary.NOT_FOUND) {
+				return conceptDictionary.toConcept(index);
+			}
+			// Not in the dictionary. It may be a local concept added after it was built.
+		}
+
 		ParameterWrapper param = new ParameterWrapper(
 				"String",
 				Arrays.asList("vocabularyId", "conceptCode"),
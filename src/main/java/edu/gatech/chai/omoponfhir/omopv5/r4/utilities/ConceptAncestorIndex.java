@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory transitive closure of CONCEPT_ANCESTOR.
+ *
+ * The closure is kept in two compressed sparse row tables of primitive ints:
+ * ancestor -> sorted descendants and descendant -> sorted ancestors. Both
+ * subsumption tests and code:below / code:above expansions are binary searches
+ * into these arrays, so they do not go to the database once the index is loaded.
+ *
+ * The full Athena CONCEPT_ANCESTOR is large. Set CONCEPT_ANCESTOR_INDEX to a
+ * comma separated list of OMOP vocabulary ids (of the ancestor concept) to load,
+ * or to ALL to load the whole table. If it is not set, nothing is loaded and
+ * every call falls back to a CONCEPT_ANCESTOR query. With a vocabulary list,
+ * code:above only sees ancestors from the loaded vocabularies. A failed load
+ * is tried again after CONCEPT_ANCESTOR_INDEX_RETRY_SECONDS (default 300).
+ */
+public class ConceptAncestorIndex {
+	private static final Logger logger = LoggerFactory.getLogger(ConceptAncestorIndex.class);
+	private static ConceptAncestorIndex conceptAncestorIndex = new ConceptAncestorIndex();
+
+	private final List<String> vocabularies;
+	private final boolean loadAll;
+	public static int RETRY_SECONDS = StaticValues.getEnvInt("CONCEPT_ANCESTOR_INDEX_RETRY_SECONDS", 300);
+
+	private volatile Closure closure = null;
+	private final AtomicBoolean loading = new AtomicBoolean(false);
+	// After a failed load, no new load is started before this time.
+	private volatile long nextAttempt = 0L;
+
+	public static ConceptAncestorIndex getInstance() {
+		return conceptAncestorIndex;
+	}
+
+	public ConceptAncestorIndex() {
+		this(System.getenv("CONCEPT_ANCESTOR_INDEX"));
+	}
+
+	public ConceptAncestorIndex(String vocabularyConfig) {
+		vocabularies = new ArrayList<String>();
+		if (vocabularyConfig == null || vocabularyConfig.trim().isEmpty()
+				|| "none".equalsIgnoreCase(vocabularyConfig.trim())) {
+			loadAll = false;
+			return;
+		}
+
+		if ("all".equalsIgnoreCase(vocabularyConfig.trim())) {
+			loadAll = true;
+		} else {
+			loadAll = false;
+			for (String vocabulary : vocabularyConfig.split(",")) {
+				if (!vocabulary.trim().isEmpty()) {
+					vocabularies.add(vocabulary.trim());
+				}
+			}
+		}
+	}
+
+	public boolean isEnabled() {
+		return loadAll || !vocabularies.isEmpty();
+	}
+
+	public boolean isLoaded() {
+		return closure != null;
+	}
+
+	/**
+	 * Number of (ancestor, descendant) pairs in memory.
+	 */
+	public int size() {
+		Closure current = closure;
+		return current == null ? 0 : current.descendants.length;
+	}
+
+	/**
+	 * Starts loading in a daemon thread if the index is enabled and not loaded.
+	 * Callers keep using the database fallback until the load completes. At
+	 * most one loader runs, and after a failure the next one is started no
+	 * sooner than RETRY_SECONDS later.
+	 */
+	public void loadInBackground() {
+		if (!isEnabled() || isLoaded() || System.currentTimeMillis() < nextAttempt) {
+			return;
+		}
+
+		if (!loading.compareAndSet(false, true)) {
+			return;
+		}
+
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					load();
+				} finally {
+					loading.set(false);
+				}
+			}
+		}, "concept-ancestor-index-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Loads the closure from CONCEPT_ANCESTOR unless it is already loaded.
+	 */
+	public synchronized void load() {
+		if (isLoaded()) {
+			return;
+		}
+
+		reload();
+	}
+
+	/**
+	 * Loads the closure from CONCEPT_ANCESTOR. The new closure replaces the old
+	 * one atomically when it is complete.
+	 */
+	public synchronized void reload() {
+		OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+		if (!isEnabled()) {
+			return;
+		}
+		if (!vocabularyClient.isAvailable()) {
+			nextAttempt = System.currentTimeMillis() + RETRY_SECONDS * 1000L;
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+
+		String sql;
+		if (loadAll) {
+			sql = "SELECT ancestor_concept_id, descendant_concept_id FROM " + vocabularyClient.table("concept_ancestor")
+					+ " ORDER BY ancestor_concept_id, descendant_concept_id";
+		} else {
+			sql = "SELECT ca.ancestor_concept_id, ca.descendant_concept_id FROM "
+					+ vocabularyClient.table("concept_ancestor") + " ca JOIN " + vocabularyClient.table("concept")
+					+ " c ON c.concept_id = ca.ancestor_concept_id WHERE c.vocabulary_id IN ("
+					+ OmopVocabularyClient.placeholders(vocabularies.size())
+					+ ") ORDER BY ca.ancestor_concept_id, ca.descendant_concept_id";
+		}
+
+		IntSets.Builder keys = new IntSets.Builder(1024);
+		IntSets.Builder offsets = new IntSets.Builder(1024);
+		IntSets.Builder values = new IntSets.Builder(1024 * 64);
+		try (Connection conn = vocabularyClient.getConnection()) {
+			boolean autoCommit = conn.getAutoCommit();
+			// Some drivers (PostgreSQL) only stream with a cursor inside a transaction.
+			conn.setAutoCommit(false);
+			try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+				if (!loadAll) {
+					for (int i = 0; i < vocabularies.size(); i++) {
+						pstmt.setString(i + 1, vocabularies.get(i));
+					}
+				}
+				pstmt.setFetchSize(50000);
+
+				try (ResultSet rs = pstmt.executeQuery()) {
+					boolean first = true;
+					int previousAncestor = 0;
+					while (rs.next()) {
+						int ancestor = rs.getInt(1);
+						int descendant = rs.getInt(2);
+						if (first || ancestor != previousAncestor) {
+							keys.add(ancestor);
+							offsets.add(values.size());
+							previousAncestor = ancestor;
+							first = false;
+						}
+						values.add(descendant);
+					}
+				}
+			} finally {
+				conn.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to load concept ancestor index: " + e.getMessage() + ". Retrying in "
+					+ RETRY_SECONDS + "s.");
+			nextAttempt = System.currentTimeMillis() + RETRY_SECONDS * 1000L;
+			return;
+		}
+		offsets.add(values.size());
+
+		int[] ancestorKeys = keys.toArray();
+		int[] ancestorOffsets = offsets.toArray();
+		int[] descendants = values.toArray();
+
+		closure = new Closure(ancestorKeys, ancestorOffsets, descendants);
+		nextAttempt = 0L;
+
+		logger.info("Concept ancestor index loaded: " + ancestorKeys.length + " ancestors, " + descendants.length
+				+ " pairs in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * True if descendantId is ancestorId or is below it in the hierarchy.
+	 */
+	public boolean subsumes(int ancestorId, int descendantId) {
+		if (ancestorId == descendantId) {
+			return true;
+		}
+
+		Closure current = getClosure();
+		if (current == null || (!loadAll && !current.isAncestor(ancestorId))) {
+			return IntSets.contains(OmopVocabularyClient.getInstance().findDescendantIds(ancestorId, false),
+					descendantId);
+		}
+
+		return current.hasDescendant(ancestorId, descendantId);
+	}
+
+	public int[] getDescendants(int conceptId, boolean includeSelf) {
+		Closure current = getClosure();
+		if (current == null || (!loadAll && !current.isAncestor(conceptId))) {
+			// Not loaded yet, or the concept is outside of the loaded vocabularies.
+			return OmopVocabularyClient.getInstance().findDescendantIds(conceptId, includeSelf);
+		}
+
+		return withSelf(current.descendantsOf(conceptId), conceptId, includeSelf);
+	}
+
+	public int[] getAncestors(int conceptId, boolean includeSelf) {
+		Closure current = getClosure();
+		if (current == null || (!loadAll && !current.isDescendant(conceptId))) {
+			return OmopVocabularyClient.getInstance().findAncestorIds(conceptId, includeSelf);
+		}
+
+		return withSelf(current.ancestorsOf(conceptId), conceptId, includeSelf);
+	}
+
+	private Closure getClosure() {
+		Closure current = closure;
+		if (current == null) {
+			loadInBackground();
+		}
+
+		return current;
+	}
+
+	private static int[] withSelf(int[] ids, int conceptId, boolean includeSelf) {
+		boolean hasSelf = IntSets.contains(ids, conceptId);
+		if (includeSelf && !hasSelf) {
+			return IntSets.union(ids, new int[] { conceptId });
+		} else if (!includeSelf && hasSelf) {
+			return IntSets.difference(ids, new int[] { conceptId });
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Immutable snapshot of the closure.
+	 */
+	private static class Closure {
+		// ancestor -> descendants
+		final int[] ancestorKeys;
+		final int[] ancestorOffsets;
+		final int[] descendants;
+
+		// descendant -> ancestors
+		final int[] descendantKeys;
+		final int[] descendantOffsets;
+		final int[] ancestors;
+
+		Closure(int[] ancestorKeys, int[] ancestorOffsets, int[] descendants) {
+			this.ancestorKeys = ancestorKeys;
+			this.ancestorOffsets = ancestorOffsets;
+			this.descendants = descendants;
+
+			// Build the reverse table. Pack (descendant, ancestor) in a long so that
+			// one primitive sort orders the pairs by descendant, then ancestor.
+			long[] pairs = new long[descendants.length];
+			int k = 0;
+			for (int i = 0; i < ancestorKeys.length; i++) {
+				for (int j = ancestorOffsets[i]; j < ancestorOffsets[i + 1]; j++) {
+					pairs[k++] = ((long) descendants[j] << 32) | (ancestorKeys[i] & 0xffffffffL);
+				}
+			}
+			Arrays.sort(pairs);
+
+			IntSets.Builder keys = new IntSets.Builder();
+			IntSets.Builder offsets = new IntSets.Builder();
+			ancestors = new int[pairs.length];
+			for (int i = 0; i < pairs.length; i++) {
+				int descendant = (int) (pairs[i] >>> 32);
+				if (i == 0 || descendant != (int) (pairs[i - 1] >>> 32)) {
+					keys.add(descendant);
+					offsets.add(i);
+				}
+				ancestors[i] = (int) pairs[i];
+			}
+			offsets.add(pairs.length);
+
+			descendantKeys = keys.toArray();
+			descendantOffsets = offsets.toArray();
+		}
+
+		boolean isAncestor(int conceptId) {
+			return Arrays.binarySearch(ancestorKeys, conceptId) >= 0;
+		}
+
+		boolean isDescendant(int conceptId) {
+			return Arrays.binarySearch(descendantKeys, conceptId) >= 0;
+		}
+
+		boolean hasDescendant(int ancestorId, int descendantId) {
+			int index = Arrays.binarySearch(ancestorKeys, ancestorId);
+			if (index < 0) {
+				return false;
+			}
+
+			return Arrays.binarySearch(descendants, ancestorOffsets[index], ancestorOffsets[index + 1],
+					descendantId) >= 0;
+		}
+
+		int[] descendantsOf(int ancestorId) {
+			int index = Arrays.binarySearch(ancestorKeys, ancestorId);
+			if (index < 0) {
+				return IntSets.EMPTY;
+			}
+
+			return Arrays.copyOfRange(descendants, ancestorOffsets[index], ancestorOffsets[index + 1]);
+		}
+
+		int[] ancestorsOf(int descendantId) {
+			int index = Arrays.binarySearch(descendantKeys, descendantId);
+			if (index < 0) {
+				return IntSets.EMPTY;
+			}
+
+			return Arrays.copyOfRange(ancestors, descendantOffsets[index], descendantOffsets[index + 1]);
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+
+/**
+ * (vocabulary_id, concept_code) -&gt; Concept for the code lookups of
+ * CodeableConceptUtil, which every FHIR coding on the write path and every
+ * unit on the read path goes through.
+ *
+ * The cache holds at most CONCEPT_CACHE_SIZE concepts (default 100000), least
+ * recently used first out. Codes that are not found are not cached, as local
+ * concepts can be added while the server runs (ScheduledTask). The returned
+ * concepts are shared and must not be modified.
+ */
+public class ConceptCache {
+	// Before the instance, whose cache is sized with it.
+	public static int CACHE_SIZE = StaticValues.getEnvInt("CONCEPT_CACHE_SIZE", 100000);
+
+	private static ConceptCache conceptCache = new ConceptCache();
+
+	private final LruCache<String, Concept> cache = new LruCache<String, Concept>(CACHE_SIZE);
+
+	public static ConceptCache getInstance() {
+		return conceptCache;
+	}
+
+	/**
+	 * The concept of the code, or the concept returned by loader, which is
+	 * cached if it is not null.
+	 */
+	public Concept get(String vocabularyId, String conceptCode, Supplier<Concept> loader) {
+		if (vocabularyId == null || conceptCode == null) {
+			return loader.get();
+		}
+
+		return cache.computeIfAbsent(key(vocabularyId, conceptCode), key -> loader.get());
+	}
+
+	public void put(Concept concept) {
+		if (concept == null || concept.getVocabularyId() == null || concept.getConceptCode() == null) {
+			return;
+		}
+
+		cache.put(key(concept.getVocabularyId(), concept.getConceptCode()), concept);
+	}
+
+	/**
+	 * The cached concepts, least recently used first. Used by
+	 * WarmCacheSnapshot.
+	 */
+	public List<Concept> snapshot() {
+		Collection<Concept> concepts = cache.snapshot().values();
+		return new ArrayList<Concept>(concepts);
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void clear() {
+		cache.clear();
+	}
+
+	private static String key(String vocabularyId, String conceptCode) {
+		return vocabularyId + "|" + conceptCode;
+	}
+}
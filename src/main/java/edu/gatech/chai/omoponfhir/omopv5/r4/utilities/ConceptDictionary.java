@@ -0,0 +1,721 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+
+/**
+ * Read-only concept dictionary compiled from CONCEPT.csv of an Athena download
+ * (or the CONCEPT table) into one binary file that is memory mapped at
+ * runtime.
+ *
+ * java -cp omoponfhir-omopv5-r4-mapping.jar edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConceptDictionary CONCEPT.csv concept.dict [vocabulary version]
+ * java -cp omoponfhir-omopv5-r4-mapping.jar:jdbc-driver.jar edu.gatech.chai.omoponfhir.omopv5.r4.utilities.ConceptDictionary --jdbc jdbc-url user password vocabulary-schema concept.dict
+ *
+ * With CONCEPT_DICTIONARY set to the file, CodeableConceptUtil resolves
+ * (vocabulary_id, concept_code) with a binary search into the mapped file
+ * instead of a ConceptService search. Codes that are not in the
+ * dictionary (local concepts added later) still go to the database. If the
+ * dictionary was built with a vocabulary version that differs from the
+ * database's, it is not used.
+ *
+ * findIndex, indexOf and findConceptId do not allocate. Concept rows are read
+ * from the mapped file on access, so the heap only holds the vocabulary,
+ * domain and concept class names.
+ *
+ * Layout, big endian, strings as unsigned short byte length (0xFFFF for null)
+ * and UTF-8:
+ *
+ * header: int magic, int format version, int concept count, string
+ *     vocabulary version, vocabulary_id, domain_id and concept_class_id
+ *     tables (unsigned short count, strings), long code heap size, long name
+ *     heap size
+ * records sorted by concept_id, RECORD_SIZE bytes each: int concept_id,
+ *     short vocabulary, short domain, short class (table indexes), byte
+ *     standard_concept (0 if none), byte 0, int code offset, int name offset
+ * code index: int record index per concept, sorted by vocabulary index and
+ *     concept_code (code point order)
+ * code heap and name heap: the strings the records point to
+ */
+public class ConceptDictionary {
+	private static final Logger logger = LoggerFactory.getLogger(ConceptDictionary.class);
+
+	public static final int NOT_FOUND = -1;
+
+	private static final int MAGIC = 0x4f464344; // OFCD
+	private static final int FORMAT_VERSION = 1;
+	private static final int RECORD_SIZE = 20;
+	private static final int NULL_STRING = 0xFFFF;
+
+	private static class InstanceHolder {
+		private static final ConceptDictionary conceptDictionary = openConfigured();
+	}
+
+	private final int size;
+	private final String vocabularyVersion;
+	private final String[] vocabularies;
+	private final String[] domains;
+	private final String[] conceptClasses;
+	private final Map<String, Integer> vocabularyIndexes = new HashMap<String, Integer>();
+	private final ByteBuffer records;
+	private final ByteBuffer codeIndex;
+	private final ByteBuffer codeHeap;
+	private final ByteBuffer nameHeap;
+
+	private volatile boolean versionChecked = false;
+	private volatile boolean available;
+
+	/**
+	 * The dictionary of CONCEPT_DICTIONARY. If it is not set or cannot be
+	 * opened, an empty dictionary that is not available.
+	 */
+	public static ConceptDictionary getInstance() {
+		return InstanceHolder.conceptDictionary;
+	}
+
+	private static ConceptDictionary openConfigured() {
+		String file = System.getenv("CONCEPT_DICTIONARY");
+		if (file == null || file.trim().isEmpty()) {
+			return new ConceptDictionary();
+		}
+
+		try {
+			ConceptDictionary retVal = new ConceptDictionary(Paths.get(file.trim()));
+			logger.info("Concept dictionary " + file + " opened: " + retVal.size() + " concepts, vocabulary version "
+					+ retVal.getVocabularyVersion());
+			return retVal;
+		} catch (IOException | RuntimeException e) {
+			logger.error("Failed to open the concept dictionary " + file + ": " + e.getMessage());
+			return new ConceptDictionary();
+		}
+	}
+
+	private ConceptDictionary() {
+		size = 0;
+		vocabularyVersion = null;
+		vocabularies = new String[0];
+		domains = new String[0];
+		conceptClasses = new String[0];
+		records = null;
+		codeIndex = null;
+		codeHeap = null;
+		nameHeap = null;
+		available = false;
+		versionChecked = true;
+	}
+
+	public ConceptDictionary(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long fileSize = channel.size();
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, 1 << 22));
+			if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION) {
+				throw new IOException("Not a concept dictionary of format version " + FORMAT_VERSION);
+			}
+
+			size = header.getInt();
+			vocabularyVersion = readString(header);
+			vocabularies = readTable(header);
+			domains = readTable(header);
+			conceptClasses = readTable(header);
+			long codeHeapSize = header.getLong();
+			long nameHeapSize = header.getLong();
+
+			long position = header.position();
+			if (position + (long) size * (RECORD_SIZE + 4) + codeHeapSize + nameHeapSize != fileSize) {
+				throw new IOException("Concept dictionary is truncated");
+			}
+			records = map(channel, position, (long) size * RECORD_SIZE);
+			position += (long) size * RECORD_SIZE;
+			codeIndex = map(channel, position, (long) size * 4);
+			position += (long) size * 4;
+			codeHeap = map(channel, position, codeHeapSize);
+			position += codeHeapSize;
+			nameHeap = map(channel, position, nameHeapSize);
+		}
+
+		for (int i = 0; i < vocabularies.length; i++) {
+			vocabularyIndexes.put(vocabularies[i], i);
+		}
+		available = size > 0;
+	}
+
+	private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Concept dictionary section is larger than 2GB");
+		}
+
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+	}
+
+	/**
+	 * True if the dictionary is open and built from the vocabulary version of
+	 * the database. The version is checked once, when the vocabulary client is
+	 * available.
+	 */
+	public boolean isAvailable() {
+		if (available && !versionChecked) {
+			OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+			if (vocabularyClient.isAvailable()) {
+				String databaseVersion = vocabularyClient.findVocabularyVersion();
+				if (vocabularyVersion != null && databaseVersion != null
+						&& !Objects.equals(vocabularyVersion, databaseVersion)) {
+					logger.warn("Concept dictionary is of vocabulary version " + vocabularyVersion
+							+ ", the database has " + databaseVersion + ". Not used.");
+					available = false;
+				}
+				versionChecked = true;
+			}
+		}
+
+		return available;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public String getVocabularyVersion() {
+		return vocabularyVersion;
+	}
+
+	/**
+	 * concept_id of (vocabulary_id, concept_code), or NOT_FOUND.
+	 */
+	public int findConceptId(String vocabularyId, String conceptCode) {
+		int index = findIndex(vocabularyId, conceptCode);
+		return index < 0 ? NOT_FOUND : getConceptId(index);
+	}
+
+	/**
+	 * Record index of (vocabulary_id, concept_code), or NOT_FOUND.
+	 */
+	public int findIndex(String vocabularyId, String conceptCode) {
+		if (vocabularyId == null || conceptCode == null) {
+			return NOT_FOUND;
+		}
+		Integer vocabulary = vocabularyIndexes.get(vocabularyId);
+		if (vocabulary == null) {
+			return NOT_FOUND;
+		}
+
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int index = codeIndex.getInt(middle * 4);
+			int compare = records.getShort(index * RECORD_SIZE + 4) - vocabulary;
+			if (compare == 0) {
+				compare = compareCode(records.getInt(index * RECORD_SIZE + 12), conceptCode);
+			}
+
+			if (compare < 0) {
+				low = middle + 1;
+			} else if (compare > 0) {
+				high = middle - 1;
+			} else {
+				return index;
+			}
+		}
+
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Record index of concept_id, or NOT_FOUND.
+	 */
+	public int indexOf(long conceptId) {
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int id = records.getInt(middle * RECORD_SIZE);
+			if (id < conceptId) {
+				low = middle + 1;
+			} else if (id > conceptId) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+
+		return NOT_FOUND;
+	}
+
+	public int getConceptId(int index) {
+		return records.getInt(index * RECORD_SIZE);
+	}
+
+	public String getVocabularyId(int index) {
+		return vocabularies[records.getShort(index * RECORD_SIZE + 4)];
+	}
+
+	public String getDomainId(int index) {
+		return domains[records.getShort(index * RECORD_SIZE + 6)];
+	}
+
+	public String getConceptClassId(int index) {
+		return conceptClasses[records.getShort(index * RECORD_SIZE + 8)];
+	}
+
+	/**
+	 * standard_concept ('S' or 'C'), or 0 if it is not set.
+	 */
+	public char getStandardConcept(int index) {
+		return (char) (records.get(index * RECORD_SIZE + 10) & 0xff);
+	}
+
+	public String getConceptCode(int index) {
+		return stringAt(codeHeap, records.getInt(index * RECORD_SIZE + 12));
+	}
+
+	public String getConceptName(int index) {
+		return stringAt(nameHeap, records.getInt(index * RECORD_SIZE + 16));
+	}
+
+	/**
+	 * The concept at the record index, with the CONCEPT columns that
+	 * OmopVocabularyClient.constructConcept reads.
+	 */
+	public Concept toConcept(int index) {
+		Concept concept = new Concept((long) getConceptId(index));
+		concept.setConceptName(getConceptName(index));
+		concept.setDomainId(getDomainId(index));
+		concept.setVocabularyId(getVocabularyId(index));
+		concept.setConceptClassId(getConceptClassId(index));
+		char standardConcept = getStandardConcept(index);
+		if (standardConcept != 0) {
+			concept.setStandardConcept(standardConcept);
+		}
+		concept.setConceptCode(getConceptCode(index));
+
+		return concept;
+	}
+
+	/**
+	 * Compares the UTF-8 code at offset of the code heap with code, in code
+	 * point order, without decoding it to a String.
+	 */
+	private int compareCode(int offset, String code) {
+		int position = offset + 2;
+		int end = position + (codeHeap.getShort(offset) & 0xffff);
+		int i = 0;
+		while (position < end && i < code.length()) {
+			int first = codeHeap.get(position) & 0xff;
+			int codePoint;
+			if (first < 0x80) {
+				codePoint = first;
+				position += 1;
+			} else if (first < 0xE0) {
+				codePoint = ((first & 0x1F) << 6) | (codeHeap.get(position + 1) & 0x3F);
+				position += 2;
+			} else if (first < 0xF0) {
+				codePoint = ((first & 0x0F) << 12) | ((codeHeap.get(position + 1) & 0x3F) << 6)
+						| (codeHeap.get(position + 2) & 0x3F);
+				position += 3;
+			} else {
+				codePoint = ((first & 0x07) << 18) | ((codeHeap.get(position + 1) & 0x3F) << 12)
+						| ((codeHeap.get(position + 2) & 0x3F) << 6) | (codeHeap.get(position + 3) & 0x3F);
+				position += 4;
+			}
+
+			int other = code.codePointAt(i);
+			if (codePoint != other) {
+				return codePoint < other ? -1 : 1;
+			}
+			i += Character.charCount(other);
+		}
+
+		if (position < end) {
+			return 1;
+		}
+
+		return i < code.length() ? -1 : 0;
+	}
+
+	private static String stringAt(ByteBuffer heap, int offset) {
+		int length = heap.getShort(offset) & 0xffff;
+		if (length == NULL_STRING) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		heap.get(offset + 2, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xffff;
+		if (length == NULL_STRING) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String[] readTable(ByteBuffer buffer) {
+		String[] retVal = new String[buffer.getShort() & 0xffff];
+		for (int i = 0; i < retVal.length; i++) {
+			retVal[i] = readString(buffer);
+		}
+
+		return retVal;
+	}
+
+	static int compareCodePoints(String a, String b) {
+		int i = 0;
+		int j = 0;
+		while (i < a.length() && j < b.length()) {
+			int codePointA = a.codePointAt(i);
+			int codePointB = b.codePointAt(j);
+			if (codePointA != codePointB) {
+				return codePointA < codePointB ? -1 : 1;
+			}
+			i += Character.charCount(codePointA);
+			j += Character.charCount(codePointB);
+		}
+
+		if (i < a.length()) {
+			return 1;
+		}
+
+		return j < b.length() ? -1 : 0;
+	}
+
+	/**
+	 * Compiles concept rows into a dictionary file. The names are spooled to
+	 * a temporary file; ids, table indexes and codes are kept in memory, so
+	 * a full Athena CONCEPT needs a heap of about 2GB.
+	 */
+	public static class Builder {
+		private final Map<String, Integer> vocabularyIndexes = new HashMap<String, Integer>();
+		private final Map<String, Integer> domainIndexes = new HashMap<String, Integer>();
+		private final Map<String, Integer> conceptClassIndexes = new HashMap<String, Integer>();
+		private final List<String> vocabularies = new ArrayList<String>();
+		private final List<String> domains = new ArrayList<String>();
+		private final List<String> conceptClasses = new ArrayList<String>();
+
+		private final Path nameFile;
+		private final DataOutputStream names;
+		private long nameHeapSize = 0L;
+
+		private int count = 0;
+		private int[] ids = new int[1 << 16];
+		private short[] vocabularyRefs = new short[1 << 16];
+		private short[] domainRefs = new short[1 << 16];
+		private short[] conceptClassRefs = new short[1 << 16];
+		private byte[] standardConcepts = new byte[1 << 16];
+		private int[] nameOffsets = new int[1 << 16];
+		private String[] codes = new String[1 << 16];
+
+		public Builder() throws IOException {
+			nameFile = Files.createTempFile("concept-names", ".bin");
+			names = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(nameFile), 1 << 16));
+		}
+
+		public void add(long conceptId, String vocabularyId, String domainId, String conceptClassId,
+				String standardConcept, String conceptCode, String conceptName) throws IOException {
+			if (conceptId < 0 || conceptId > Integer.MAX_VALUE) {
+				throw new IOException("concept_id out of range: " + conceptId);
+			}
+
+			if (count == ids.length) {
+				int capacity = count * 2;
+				ids = Arrays.copyOf(ids, capacity);
+				vocabularyRefs = Arrays.copyOf(vocabularyRefs, capacity);
+				domainRefs = Arrays.copyOf(domainRefs, capacity);
+				conceptClassRefs = Arrays.copyOf(conceptClassRefs, capacity);
+				standardConcepts = Arrays.copyOf(standardConcepts, capacity);
+				nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+				codes = Arrays.copyOf(codes, capacity);
+			}
+
+			ids[count] = (int) conceptId;
+			vocabularyRefs[count] = tableIndex(vocabularyIndexes, vocabularies, vocabularyId);
+			domainRefs[count] = tableIndex(domainIndexes, domains, domainId);
+			conceptClassRefs[count] = tableIndex(conceptClassIndexes, conceptClasses, conceptClassId);
+			standardConcepts[count] = standardConcept == null || standardConcept.isEmpty() ? 0
+					: (byte) standardConcept.charAt(0);
+			codes[count] = conceptCode == null ? "" : conceptCode;
+
+			if (nameHeapSize > Integer.MAX_VALUE) {
+				throw new IOException("Concept names are larger than 2GB");
+			}
+			nameOffsets[count] = (int) nameHeapSize;
+			nameHeapSize += writeString(names, conceptName);
+			count++;
+		}
+
+		public int size() {
+			return count;
+		}
+
+		/**
+		 * Writes the dictionary to output, through a temporary file that is
+		 * moved into place when complete.
+		 */
+		public void write(Path output, String vocabularyVersion) throws IOException {
+			names.close();
+
+			// Records in concept_id order.
+			long[] idOrder = new long[count];
+			for (int i = 0; i < count; i++) {
+				idOrder[i] = ((long) ids[i] << 32) | i;
+			}
+			Arrays.sort(idOrder);
+
+			ByteArrayOutputStream codeBytes = new ByteArrayOutputStream(count * 12);
+			DataOutputStream codeHeap = new DataOutputStream(codeBytes);
+			int[] codeOffsets = new int[count];
+			for (int record = 0; record < count; record++) {
+				int row = (int) idOrder[record];
+				codeOffsets[record] = codeHeap.size();
+				writeString(codeHeap, codes[row]);
+			}
+
+			Integer[] codeOrder = new Integer[count];
+			for (int record = 0; record < count; record++) {
+				codeOrder[record] = record;
+			}
+			Arrays.sort(codeOrder, (a, b) -> {
+				int rowA = (int) idOrder[a];
+				int rowB = (int) idOrder[b];
+				int compare = vocabularyRefs[rowA] - vocabularyRefs[rowB];
+				return compare != 0 ? compare : compareCodePoints(codes[rowA], codes[rowB]);
+			});
+
+			Path temporary = output.resolveSibling(output.getFileName() + ".tmp");
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(count);
+				writeString(out, vocabularyVersion);
+				writeTable(out, vocabularies);
+				writeTable(out, domains);
+				writeTable(out, conceptClasses);
+				out.writeLong(codeHeap.size());
+				out.writeLong(nameHeapSize);
+
+				int previousId = -1;
+				for (int record = 0; record < count; record++) {
+					int row = (int) idOrder[record];
+					if (ids[row] == previousId) {
+						throw new IOException("Duplicate concept_id " + previousId);
+					}
+					previousId = ids[row];
+
+					out.writeInt(ids[row]);
+					out.writeShort(vocabularyRefs[row]);
+					out.writeShort(domainRefs[row]);
+					out.writeShort(conceptClassRefs[row]);
+					out.writeByte(standardConcepts[row]);
+					out.writeByte(0);
+					out.writeInt(codeOffsets[record]);
+					out.writeInt(nameOffsets[row]);
+				}
+
+				for (Integer record : codeOrder) {
+					out.writeInt(record);
+				}
+
+				codeBytes.writeTo(out);
+				try (InputStream in = new BufferedInputStream(Files.newInputStream(nameFile), 1 << 16)) {
+					in.transferTo(out);
+				}
+			} finally {
+				Files.deleteIfExists(nameFile);
+			}
+
+			Files.move(temporary, output, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		private static short tableIndex(Map<String, Integer> indexes, List<String> table, String value)
+				throws IOException {
+			String key = value == null ? "" : value;
+			Integer index = indexes.get(key);
+			if (index == null) {
+				if (table.size() >= Short.MAX_VALUE) {
+					throw new IOException("Too many distinct values: " + key);
+				}
+				index = table.size();
+				table.add(key);
+				indexes.put(key, index);
+			}
+
+			return index.shortValue();
+		}
+
+		private static void writeTable(DataOutputStream out, List<String> table) throws IOException {
+			out.writeShort(table.size());
+			for (String value : table) {
+				writeString(out, value);
+			}
+		}
+	}
+
+	/**
+	 * Writes the string and returns the number of bytes written.
+	 */
+	private static int writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeShort(NULL_STRING);
+			return 2;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		if (bytes.length >= NULL_STRING) {
+			bytes = Arrays.copyOf(bytes, NULL_STRING - 1);
+		}
+		out.writeShort(bytes.length);
+		out.write(bytes);
+		return 2 + bytes.length;
+	}
+
+	/**
+	 * Reads an Athena CONCEPT.csv (tab separated, with a header row) into the
+	 * builder.
+	 */
+	public static void readCsv(Path csv, Builder builder) throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+			String header = reader.readLine();
+			if (header == null) {
+				return;
+			}
+
+			Map<String, Integer> columns = new HashMap<String, Integer>();
+			String[] names = header.split("\t", -1);
+			for (int i = 0; i < names.length; i++) {
+				columns.put(names[i].trim().toLowerCase(), i);
+			}
+			int id = column(columns, "concept_id");
+			int name = column(columns, "concept_name");
+			int domain = column(columns, "domain_id");
+			int vocabulary = column(columns, "vocabulary_id");
+			int conceptClass = column(columns, "concept_class_id");
+			int standard = column(columns, "standard_concept");
+			int code = column(columns, "concept_code");
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				String[] values = line.split("\t", -1);
+				builder.add(Long.parseLong(values[id].trim()), values[vocabulary], values[domain],
+						values[conceptClass], values[standard], values[code], values[name]);
+			}
+		}
+	}
+
+	private static int column(Map<String, Integer> columns, String name) throws IOException {
+		Integer retVal = columns.get(name);
+		if (retVal == null) {
+			throw new IOException("CONCEPT.csv has no " + name + " column");
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Reads the CONCEPT table into the builder and returns the vocabulary
+	 * version of the database.
+	 */
+	public static String readConceptTable(Connection conn, String schema, Builder builder) throws SQLException, IOException {
+		String prefix = schema == null || schema.isEmpty() ? "" : schema + ".";
+		String vocabularyVersion = null;
+		try (PreparedStatement pstmt = conn.prepareStatement(
+				"SELECT vocabulary_version FROM " + prefix + "vocabulary WHERE vocabulary_id = 'None'");
+				ResultSet rs = pstmt.executeQuery()) {
+			if (rs.next()) {
+				vocabularyVersion = rs.getString(1);
+			}
+		}
+
+		boolean autoCommit = conn.getAutoCommit();
+		// Some drivers (PostgreSQL) only stream with a cursor inside a transaction.
+		conn.setAutoCommit(false);
+		try (PreparedStatement pstmt = conn.prepareStatement("SELECT " + OmopVocabularyClient.CONCEPT_COLUMNS
+				+ " FROM " + prefix + "concept")) {
+			pstmt.setFetchSize(50000);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					builder.add(rs.getLong("concept_id"), rs.getString("vocabulary_id"), rs.getString("domain_id"),
+							rs.getString("concept_class_id"), rs.getString("standard_concept"),
+							rs.getString("concept_code"), rs.getString("concept_name"));
+				}
+			}
+		} finally {
+			conn.commit();
+			conn.setAutoCommit(autoCommit);
+		}
+
+		return vocabularyVersion;
+	}
+
+	public static void main(String[] args) throws IOException, SQLException {
+		if (args.length >= 6 && "--jdbc".equals(args[0])) {
+			Builder builder = new Builder();
+			String vocabularyVersion;
+			try (Connection conn = DriverManager.getConnection(args[1], args[2], args[3])) {
+				vocabularyVersion = readConceptTable(conn, args[4], builder);
+			}
+			builder.write(Paths.get(args[5]), vocabularyVersion);
+			System.out.println(builder.size() + " concepts written to " + args[5]);
+		} else if (args.length >= 2 && !args[0].startsWith("--")) {
+			Builder builder = new Builder();
+			readCsv(Paths.get(args[0]), builder);
+			builder.write(Paths.get(args[1]), args.length > 2 ? args[2] : null);
+			System.out.println(builder.size() + " concepts written to " + args[1]);
+		} else {
+			System.err.println("Usage: ConceptDictionary CONCEPT.csv concept.dict [vocabulary version]");
+			System.err.println("       ConceptDictionary --jdbc jdbc-url user password vocabulary-schema concept.dict");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Coding;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+
+/**
+ * Caches for ConceptMap $translate.
+ *
+ * The local code mappings that ScheduledTask loads are stored as
+ * "&lt;source vocab&gt; - &lt;target vocab&gt; eq" relationships. Each such
+ * relationship is read once, as a whole, into a source code to target concepts
+ * map. Finished translations are cached by (system, code, targetSystem).
+ *
+ * ScheduledTask calls invalidate() after it adds mappings.
+ */
+public class ConceptMapIndex {
+	private static final Logger logger = LoggerFactory.getLogger(ConceptMapIndex.class);
+	private static ConceptMapIndex conceptMapIndex = new ConceptMapIndex();
+
+	// relationship_id|source vocabulary_id to (source concept_code to target concepts)
+	private final LruCache<String, Map<String, List<Concept>>> relationshipIndexes;
+	// system|code|targetSystem to target codings
+	private final LruCache<String, List<Coding>> translations;
+
+	public static ConceptMapIndex getInstance() {
+		return conceptMapIndex;
+	}
+
+	public ConceptMapIndex() {
+		relationshipIndexes = new LruCache<String, Map<String, List<Concept>>>(
+				StaticValues.getEnvInt("CONCEPTMAP_RELATIONSHIP_INDEX_SIZE", 50));
+		translations = new LruCache<String, List<Coding>>(
+				StaticValues.getEnvInt("CONCEPTMAP_TRANSLATION_CACHE_SIZE", 10000));
+	}
+
+	public static String relationshipId(String sourceVocabularyId, String targetVocabularyId) {
+		return sourceVocabularyId + " - " + targetVocabularyId + " eq";
+	}
+
+	/**
+	 * Source concept_code to target concepts for the relationship. Loaded with
+	 * one query on first use. If the query fails, the failure is thrown and
+	 * nothing is cached.
+	 */
+	public Map<String, List<Concept>> getMappings(String relationshipId, String sourceVocabularyId) {
+		return relationshipIndexes.computeIfAbsent(relationshipId + "|" + sourceVocabularyId, k -> {
+			Map<String, List<Concept>> mappings = OmopVocabularyClient.getInstance().findMappedConcepts(relationshipId,
+					sourceVocabularyId);
+			logger.debug("Relationship index for " + relationshipId + " loaded with " + mappings.size() + " codes");
+			return mappings;
+		});
+	}
+
+	public List<Coding> getTranslation(String system, String code, String targetSystem) {
+		return translations.get(translationKey(system, code, targetSystem));
+	}
+
+	public void putTranslation(String system, String code, String targetSystem, List<Coding> codings) {
+		translations.put(translationKey(system, code, targetSystem), codings);
+	}
+
+	/**
+	 * Drops the relationship indexes and translations. They are rebuilt on demand.
+	 */
+	public void invalidate() {
+		relationshipIndexes.clear();
+		translations.clear();
+	}
+
+	private static String translationKey(String system, String code, String targetSystem) {
+		return system + "|" + code + "|" + targetSystem;
+	}
+}
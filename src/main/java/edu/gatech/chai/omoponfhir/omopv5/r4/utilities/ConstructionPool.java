@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.exceptions.FHIRException;
+
+/**
+ * Shared pool that constructs the FHIR resources of a search page in
+ * parallel. Off by default. PARALLEL_CONSTRUCTION lists the resource types
+ * that use it (ex. "Observation,Encounter"), or "all".
+ *
+ * The pool has PARALLEL_CONSTRUCTION_THREADS daemon threads (default the
+ * number of processors), shared by all requests, so the parallelism of the
+ * server is bounded however many searches run at once. Pages smaller than
+ * PARALLEL_CONSTRUCTION_MIN_ROWS (default 50) are constructed on the request
+ * thread. So are pages of searches that run on a pool thread (rev includes),
+ * which would otherwise wait on the pool they occupy.
+ *
+ * Construction makes JDBC calls for the lookups, so the threads are platform
+ * threads: virtual threads would be pinned by the synchronized blocks of the
+ * drivers and the caches.
+ */
+public class ConstructionPool {
+	private static ConstructionPool constructionPool = new ConstructionPool();
+
+	public static int THREADS = StaticValues.getEnvInt("PARALLEL_CONSTRUCTION_THREADS",
+			Runtime.getRuntime().availableProcessors());
+	public static int MIN_ROWS = StaticValues.getEnvInt("PARALLEL_CONSTRUCTION_MIN_ROWS", 50);
+
+	private static final ThreadLocal<Boolean> poolThread = new ThreadLocal<Boolean>();
+
+	private final Set<String> resourceTypes = new HashSet<String>();
+	private final boolean allResourceTypes;
+	private volatile ExecutorService executor = null;
+
+	private ConstructionPool() {
+		String enabled = System.getenv("PARALLEL_CONSTRUCTION");
+		boolean all = false;
+		if (enabled != null) {
+			for (String resourceType : enabled.split(",")) {
+				resourceType = resourceType.trim();
+				if ("all".equalsIgnoreCase(resourceType) || "true".equalsIgnoreCase(resourceType)) {
+					all = true;
+				} else if (!resourceType.isEmpty()) {
+					resourceTypes.add(resourceType);
+				}
+			}
+		}
+		allResourceTypes = all;
+	}
+
+	public static ConstructionPool getInstance() {
+		return constructionPool;
+	}
+
+	public int getParallelism() {
+		return Math.max(1, THREADS);
+	}
+
+	/**
+	 * True if a page of rows resources of resourceType should be constructed
+	 * on the pool.
+	 */
+	public boolean isEnabled(String resourceType, int rows) {
+		if (THREADS < 2 || rows < Math.max(2, MIN_ROWS) || Boolean.TRUE.equals(poolThread.get())) {
+			return false;
+		}
+
+		return allResourceTypes || resourceTypes.contains(resourceType);
+	}
+
+	/**
+	 * Runs the tasks on the pool and returns their results in task order. The
+	 * first failure is thrown after all tasks are done.
+	 */
+	public <r> List<r> invokeAll(List<Callable<r>> tasks) {
+		List<Callable<r>> poolTasks = new ArrayList<Callable<r>>();
+		for (Callable<r> task : tasks) {
+			poolTasks.add(() -> {
+				poolThread.set(Boolean.TRUE);
+				try {
+					return task.call();
+				} finally {
+					poolThread.remove();
+				}
+			});
+		}
+
+		List<Future<r>> futures;
+		try {
+			futures = getExecutor().invokeAll(poolTasks);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new FHIRException("Interrupted while constructing resources", e);
+		}
+
+		List<r> retVal = new ArrayList<r>();
+		for (Future<r> future : futures) {
+			try {
+				retVal.add(future.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new FHIRException("Interrupted while constructing resources", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new FHIRException(cause.getMessage(), cause);
+			}
+		}
+
+		return retVal;
+	}
+
+	private ExecutorService getExecutor() {
+		ExecutorService retVal = executor;
+		if (retVal == null) {
+			synchronized (this) {
+				retVal = executor;
+				if (retVal == null) {
+					AtomicInteger threadNumber = new AtomicInteger();
+					retVal = Executors.newFixedThreadPool(getParallelism(), runnable -> {
+						Thread thread = new Thread(runnable, "omop-construct-" + threadNumber.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+					executor = retVal;
+				}
+			}
+		}
+
+		return retVal;
+	}
+}
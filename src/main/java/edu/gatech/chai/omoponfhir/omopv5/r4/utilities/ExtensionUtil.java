@@ -1,9 +1,15 @@
 package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.hl7.fhir.r4.model.BackboneElement;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
 
 import ca.uhn.fhir.parser.IParser;
 import edu.gatech.chai.omoponfhir.omopv5.r4.model.USCorePatient;
@@ -12,12 +18,110 @@ public class ExtensionUtil {
 
 	public static Map<String, Long>  resourceCounts = new HashMap<String, Long>();
 	
+	public static final String US_CORE_RACE_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-race";
+	public static final String US_CORE_ETHNICITY_URL = "http://hl7.org/fhir/us/core/StructureDefinition/us-core-ethnicity";
+
+	/**
+	 * The resource as a USCorePatient. A Patient is converted by
+	 * usCorePatientFromPatient. Other resources go through a JSON
+	 * encode/parse round trip.
+	 */
 	public static USCorePatient usCorePatientFromResource(Resource resource) {
+		if (resource instanceof USCorePatient) {
+			return (USCorePatient) resource;
+		}
+
+		if (resource instanceof Patient) {
+			return usCorePatientFromPatient((Patient) resource);
+		}
+
+		return usCorePatientFromJson(resource);
+	}
+
+	/**
+	 * The JSON encode/parse conversion. Kept for resources that are not a
+	 * Patient instance and for comparison in the benchmarks.
+	 */
+	public static USCorePatient usCorePatientFromJson(Resource resource) {
 		IParser p = StaticValues.myFhirContext.newJsonParser();
 		String patientJSON = p.encodeResourceToString(resource);
 
 		return p.parseResource(USCorePatient.class, patientJSON);
 	}
+
+	/**
+	 * Converts the Patient without a parser. The elements are moved, not
+	 * copied: the USCorePatient shares them with the Patient, so the Patient
+	 * should not be modified afterwards. The us-core-race and us-core-ethnicity
+	 * extensions become the race and ethnicity blocks, as the parser would
+	 * make them. The other extensions are kept.
+	 */
+	public static USCorePatient usCorePatientFromPatient(Patient patient) {
+		USCorePatient usCorePatient = new USCorePatient();
+
+		// Resource and DomainResource
+		if (patient.hasIdElement()) usCorePatient.setIdElement(patient.getIdElement());
+		if (patient.hasMeta()) usCorePatient.setMeta(patient.getMeta());
+		if (patient.hasImplicitRulesElement()) usCorePatient.setImplicitRulesElement(patient.getImplicitRulesElement());
+		if (patient.hasLanguageElement()) usCorePatient.setLanguageElement(patient.getLanguageElement());
+		if (patient.hasText()) usCorePatient.setText(patient.getText());
+		if (patient.hasContained()) usCorePatient.setContained(patient.getContained());
+		if (patient.hasModifierExtension()) usCorePatient.setModifierExtension(patient.getModifierExtension());
+
+		if (patient.hasExtension()) {
+			for (Extension extension : patient.getExtension()) {
+				if (US_CORE_RACE_URL.equals(extension.getUrl())) {
+					USCorePatient.Race race = usCorePatient.getRace();
+					race.setText(readCategories(extension, race.getCategory(), race));
+				} else if (US_CORE_ETHNICITY_URL.equals(extension.getUrl())) {
+					USCorePatient.Ethnicity ethnicity = usCorePatient.getEthnicity();
+					ethnicity.setText(readCategories(extension, ethnicity.getCategory(), ethnicity));
+				} else {
+					usCorePatient.addExtension(extension);
+				}
+			}
+		}
+
+		// Patient
+		if (patient.hasIdentifier()) usCorePatient.setIdentifier(patient.getIdentifier());
+		if (patient.hasActiveElement()) usCorePatient.setActiveElement(patient.getActiveElement());
+		if (patient.hasName()) usCorePatient.setName(patient.getName());
+		if (patient.hasTelecom()) usCorePatient.setTelecom(patient.getTelecom());
+		if (patient.hasGenderElement()) usCorePatient.setGenderElement(patient.getGenderElement());
+		if (patient.hasBirthDateElement()) usCorePatient.setBirthDateElement(patient.getBirthDateElement());
+		if (patient.hasDeceased()) usCorePatient.setDeceased(patient.getDeceased());
+		if (patient.hasAddress()) usCorePatient.setAddress(patient.getAddress());
+		if (patient.hasMaritalStatus()) usCorePatient.setMaritalStatus(patient.getMaritalStatus());
+		if (patient.hasMultipleBirth()) usCorePatient.setMultipleBirth(patient.getMultipleBirth());
+		if (patient.hasPhoto()) usCorePatient.setPhoto(patient.getPhoto());
+		if (patient.hasContact()) usCorePatient.setContact(patient.getContact());
+		if (patient.hasCommunication()) usCorePatient.setCommunication(patient.getCommunication());
+		if (patient.hasGeneralPractitioner()) usCorePatient.setGeneralPractitioner(patient.getGeneralPractitioner());
+		if (patient.hasManagingOrganization()) usCorePatient.setManagingOrganization(patient.getManagingOrganization());
+		if (patient.hasLink()) usCorePatient.setLink(patient.getLink());
+
+		return usCorePatient;
+	}
+
+	/**
+	 * Adds the ombCategory codings of a race or ethnicity extension to
+	 * categories and returns its text. Other sub-extensions (ex. detailed) are
+	 * kept on the block.
+	 */
+	private static StringType readCategories(Extension extension, List<Coding> categories, BackboneElement block) {
+		StringType text = null;
+		for (Extension subExtension : extension.getExtension()) {
+			if ("ombCategory".equals(subExtension.getUrl()) && subExtension.getValue() instanceof Coding) {
+				categories.add((Coding) subExtension.getValue());
+			} else if ("text".equals(subExtension.getUrl()) && subExtension.getValue() instanceof StringType) {
+				text = (StringType) subExtension.getValue();
+			} else {
+				block.addExtension(subExtension);
+			}
+		}
+
+		return text;
+	}
 	
 	public static Map<String, Long> getResourceCounts () {
 		return ExtensionUtil.resourceCounts;
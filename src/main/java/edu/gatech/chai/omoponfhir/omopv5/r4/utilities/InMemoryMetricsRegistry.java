@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Default MetricsRegistry. Keeps a fixed-bucket latency histogram, a row
+ * counter and an error counter per (resource type, operation) and renders
+ * them in the Prometheus text format:
+ *
+ * omoponfhir_mapping_duration_seconds_bucket{resource="Patient",operation="toFHIR",le="0.005"} 12
+ * omoponfhir_mapping_rows_total{resource="Patient",operation="searchWithParams"} 340
+ * omoponfhir_mapping_errors_total{resource="Patient",operation="toDbase"} 1
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry {
+	// Upper bounds in seconds, as in the Prometheus client defaults with a finer low end.
+	private static final double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0,
+			2.5, 5.0, 10.0 };
+	private static final long[] BUCKET_NANOS = new long[BUCKETS.length];
+	static {
+		for (int i = 0; i < BUCKETS.length; i++) {
+			BUCKET_NANOS[i] = (long) (BUCKETS[i] * 1000000000.0);
+		}
+	}
+
+	private static class Series {
+		final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+		final LongAdder count = new LongAdder();
+		final LongAdder sumNanos = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder errors = new LongAdder();
+
+		Series() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+	}
+
+	private final Map<String, Series> series = new ConcurrentHashMap<String, Series>();
+
+	private Series getSeries(String resourceType, String operation) {
+		String key = "resource=\"" + resourceType + "\",operation=\"" + operation + "\"";
+		Series retVal = series.get(key);
+		if (retVal == null) {
+			retVal = series.computeIfAbsent(key, k -> new Series());
+		}
+
+		return retVal;
+	}
+
+	@Override
+	public void recordLatency(String resourceType, String operation, long nanos) {
+		Series s = getSeries(resourceType, operation);
+
+		int bucket = 0;
+		while (bucket < BUCKET_NANOS.length && nanos > BUCKET_NANOS[bucket]) {
+			bucket++;
+		}
+		s.buckets[bucket].increment();
+		s.count.increment();
+		s.sumNanos.add(nanos);
+	}
+
+	@Override
+	public void recordRows(String resourceType, String operation, long rows) {
+		getSeries(resourceType, operation).rows.add(rows);
+	}
+
+	@Override
+	public void recordError(String resourceType, String operation) {
+		getSeries(resourceType, operation).errors.increment();
+	}
+
+	@Override
+	public String toPrometheusText() {
+		Map<String, Series> sorted = new TreeMap<String, Series>(series);
+
+		StringBuilder text = new StringBuilder();
+		text.append("# HELP omoponfhir_mapping_duration_seconds Time spent in the OMOP mapping layer.\n");
+		text.append("# TYPE omoponfhir_mapping_duration_seconds histogram\n");
+		for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+			Series s = entry.getValue();
+			if (s.count.sum() == 0L) {
+				continue;
+			}
+
+			long cumulative = 0L;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += s.buckets[i].sum();
+				text.append("omoponfhir_mapping_duration_seconds_bucket{").append(entry.getKey()).append(",le=\"")
+						.append(BUCKETS[i]).append("\"} ").append(cumulative).append('\n');
+			}
+			cumulative += s.buckets[BUCKETS.length].sum();
+			text.append("omoponfhir_mapping_duration_seconds_bucket{").append(entry.getKey())
+					.append(",le=\"+Inf\"} ").append(cumulative).append('\n');
+			text.append("omoponfhir_mapping_duration_seconds_sum{").append(entry.getKey()).append("} ")
+					.append(s.sumNanos.sum() / 1000000000.0).append('\n');
+			text.append("omoponfhir_mapping_duration_seconds_count{").append(entry.getKey()).append("} ")
+					.append(s.count.sum()).append('\n');
+		}
+
+		text.append("# HELP omoponfhir_mapping_rows_total Entities or resources handled by the OMOP mapping layer.\n");
+		text.append("# TYPE omoponfhir_mapping_rows_total counter\n");
+		for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+			long rows = entry.getValue().rows.sum();
+			if (rows > 0L) {
+				text.append("omoponfhir_mapping_rows_total{").append(entry.getKey()).append("} ").append(rows)
+						.append('\n');
+			}
+		}
+
+		text.append("# HELP omoponfhir_mapping_errors_total Exceptions thrown by the OMOP mapping layer.\n");
+		text.append("# TYPE omoponfhir_mapping_errors_total counter\n");
+		for (Map.Entry<String, Series> entry : sorted.entrySet()) {
+			long errors = entry.getValue().errors.sum();
+			if (errors > 0L) {
+				text.append("omoponfhir_mapping_errors_total{").append(entry.getKey()).append("} ").append(errors)
+						.append('\n');
+			}
+		}
+
+		return text.toString();
+	}
+
+	@Override
+	public void reset() {
+		series.clear();
+	}
+}
@@ -0,0 +1,233 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+
+/**
+ * Drug concept_id -&gt; ingredient concepts, shared by OmopMedication and
+ * OmopMedicationRequest so that constructFHIR does not call
+ * ConceptService.getIngredient for every drug exposure.
+ *
+ * Ingredients are read from CONCEPT_ANCESTOR (ancestors of class Ingredient)
+ * through OmopVocabularyClient. Mappers call prefetch with the drug concepts of
+ * a search page, which resolves all cold drugs in one query. If the vocabulary
+ * client is not available, the loader passed by the mapper
+ * (ConceptService.getIngredient) is used one drug at a time.
+ *
+ * The cache holds at most INGREDIENT_CACHE_SIZE drugs (default 20000), least
+ * recently used first out. Drugs without ingredients are cached as empty lists.
+ * Drugs whose query failed are not cached, so they are queried again.
+ * Ingredient concepts are shared between the drug entries, so memory grows with
+ * the number of drugs rather than drug-ingredient pairs. With
+ * INGREDIENT_CACHE_PRELOAD=true the cache is filled in the background at
+ * startup with the first INGREDIENT_CACHE_SIZE drugs.
+ *
+ * The returned lists are shared and must not be modified.
+ */
+public class IngredientCache {
+	private static final Logger logger = LoggerFactory.getLogger(IngredientCache.class);
+	// Before the instance, whose cache is sized with it.
+	public static int CACHE_SIZE = StaticValues.getEnvInt("INGREDIENT_CACHE_SIZE", 20000);
+
+	private static IngredientCache ingredientCache = new IngredientCache();
+
+	private final LruCache<Long, List<Concept>> cache = new LruCache<Long, List<Concept>>(CACHE_SIZE);
+	private final Map<Long, Concept> ingredients = new HashMap<Long, Concept>();
+	private final boolean preload = "true".equalsIgnoreCase(System.getenv("INGREDIENT_CACHE_PRELOAD"));
+	private volatile boolean preloading = false;
+	private volatile boolean preloaded = false;
+
+	public static IngredientCache getInstance() {
+		return ingredientCache;
+	}
+
+	/**
+	 * Ingredients of the drug concept. A miss is resolved with the vocabulary
+	 * client, or with fallbackLoader if it is not available.
+	 */
+	public List<Concept> getIngredients(Concept drugConcept, Function<Concept, List<Concept>> fallbackLoader) {
+		if (drugConcept == null || drugConcept.getId() == null) {
+			return Collections.emptyList();
+		}
+
+		List<Concept> retVal = cache.get(drugConcept.getId());
+		if (retVal != null) {
+			return retVal;
+		}
+
+		prefetch(Collections.singletonList(drugConcept), fallbackLoader);
+		retVal = cache.get(drugConcept.getId());
+
+		return retVal == null ? Collections.<Concept>emptyList() : retVal;
+	}
+
+	/**
+	 * Resolves the ingredients of all drug concepts that are not cached yet with
+	 * one CONCEPT_ANCESTOR query per IN_CLAUSE_SIZE drugs.
+	 */
+	public void prefetch(Collection<Concept> drugConcepts, Function<Concept, List<Concept>> fallbackLoader) {
+		Map<Long, Concept> cold = new HashMap<Long, Concept>();
+		for (Concept drugConcept : drugConcepts) {
+			if (drugConcept != null && drugConcept.getId() != null && cache.get(drugConcept.getId()) == null) {
+				cold.put(drugConcept.getId(), drugConcept);
+			}
+		}
+		if (cold.isEmpty()) {
+			return;
+		}
+
+		OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+		if (vocabularyClient.isAvailable()) {
+			// Drugs whose query failed are not in found and stay uncached.
+			Map<Long, List<Concept>> found = vocabularyClient.findIngredients(new ArrayList<Long>(cold.keySet()));
+			for (Map.Entry<Long, List<Concept>> entry : found.entrySet()) {
+				put(entry.getKey(), entry.getValue());
+			}
+		} else if (fallbackLoader != null) {
+			for (Map.Entry<Long, Concept> entry : cold.entrySet()) {
+				put(entry.getKey(), fallbackLoader.apply(entry.getValue()));
+			}
+		}
+	}
+
+	/**
+	 * Starts the preload in a daemon thread if INGREDIENT_CACHE_PRELOAD is set.
+	 */
+	public void preloadInBackground() {
+		if (!preload || !startLoad()) {
+			return;
+		}
+
+		Thread loader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runLoad();
+			}
+		}, "ingredient-cache-loader");
+		loader.setDaemon(true);
+		loader.start();
+	}
+
+	/**
+	 * Fills the cache with the ingredients of up to CACHE_SIZE drugs, unless it
+	 * is filled already or being filled.
+	 */
+	public void load() {
+		if (startLoad()) {
+			runLoad();
+		}
+	}
+
+	/**
+	 * Claims the load. The flags are checked and set under the monitor, while
+	 * the query itself runs outside of it, so that mappers calling
+	 * preloadInBackground are not blocked by a running preload.
+	 */
+	private synchronized boolean startLoad() {
+		if (preloaded || preloading) {
+			return false;
+		}
+
+		preloading = true;
+		return true;
+	}
+
+	private void runLoad() {
+		try {
+			OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+			if (!vocabularyClient.isAvailable()) {
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			Map<Long, List<Concept>> found = vocabularyClient.findAllIngredients(CACHE_SIZE);
+			for (Map.Entry<Long, List<Concept>> entry : found.entrySet()) {
+				put(entry.getKey(), entry.getValue());
+			}
+			preloaded = true;
+
+			logger.info("Ingredient cache preloaded: " + found.size() + " drugs, " + ingredientCount()
+					+ " ingredients in " + (System.currentTimeMillis() - start) + "ms");
+		} catch (RuntimeException e) {
+			// Logged by the vocabulary client. Drugs are still resolved on demand.
+			logger.warn("Ingredient cache was not preloaded: " + e.getMessage());
+		} finally {
+			synchronized (this) {
+				preloading = false;
+			}
+		}
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public void clear() {
+		cache.clear();
+		synchronized (ingredients) {
+			ingredients.clear();
+		}
+	}
+
+	private int ingredientCount() {
+		synchronized (ingredients) {
+			return ingredients.size();
+		}
+	}
+
+	/**
+	 * Drug concept_id -&gt; ingredients of the cached drugs, least recently
+	 * used first. Used by WarmCacheSnapshot.
+	 */
+	public Map<Long, List<Concept>> snapshot() {
+		return cache.snapshot();
+	}
+
+	/**
+	 * Caches the ingredients of a drug. An empty or null list caches the drug
+	 * as having no ingredients.
+	 */
+	public void put(Long drugConceptId, List<Concept> drugIngredients) {
+		if (drugIngredients == null || drugIngredients.isEmpty()) {
+			cache.put(drugConceptId, Collections.<Concept>emptyList());
+			return;
+		}
+
+		// The same ingredient is listed once even if it is reached by several paths.
+		Set<Concept> shared = new LinkedHashSet<Concept>();
+		synchronized (ingredients) {
+			for (Concept ingredient : drugIngredients) {
+				Concept existing = ingredients.putIfAbsent(ingredient.getId(), ingredient);
+				shared.add(existing == null ? ingredient : existing);
+			}
+		}
+		cache.put(drugConceptId, Collections.unmodifiableList(new ArrayList<Concept>(shared)));
+	}
+}
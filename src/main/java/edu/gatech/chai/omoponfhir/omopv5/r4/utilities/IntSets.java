@@ -0,0 +1,137 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Set operations on sorted, duplicate-free int arrays. Concept id sets can have
+ * hundreds of thousands of members, so we keep them as primitive arrays rather
+ * than boxed collections.
+ */
+public class IntSets {
+	public static final int[] EMPTY = new int[0];
+
+	public static boolean contains(int[] set, int value) {
+		return Arrays.binarySearch(set, value) >= 0;
+	}
+
+	public static int[] union(int[] a, int[] b) {
+		int[] retVal = new int[a.length + b.length];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				retVal[k++] = a[i++];
+			} else if (a[i] > b[j]) {
+				retVal[k++] = b[j++];
+			} else {
+				retVal[k++] = a[i++];
+				j++;
+			}
+		}
+		while (i < a.length)
+			retVal[k++] = a[i++];
+		while (j < b.length)
+			retVal[k++] = b[j++];
+
+		return k == retVal.length ? retVal : Arrays.copyOf(retVal, k);
+	}
+
+	public static int[] intersect(int[] a, int[] b) {
+		int[] retVal = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				i++;
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				retVal[k++] = a[i++];
+				j++;
+			}
+		}
+
+		return k == retVal.length ? retVal : Arrays.copyOf(retVal, k);
+	}
+
+	public static int[] difference(int[] a, int[] b) {
+		int[] retVal = new int[a.length];
+		int i = 0, j = 0, k = 0;
+		while (i < a.length) {
+			if (j >= b.length || a[i] < b[j]) {
+				retVal[k++] = a[i++];
+			} else if (a[i] > b[j]) {
+				j++;
+			} else {
+				i++;
+				j++;
+			}
+		}
+
+		return k == retVal.length ? retVal : Arrays.copyOf(retVal, k);
+	}
+
+	/**
+	 * Growable int buffer that produces a sorted set.
+	 */
+	public static class Builder {
+		private int[] values;
+		private int size = 0;
+
+		public Builder() {
+			this(64);
+		}
+
+		public Builder(int initialCapacity) {
+			values = new int[Math.max(initialCapacity, 4)];
+		}
+
+		public void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, values.length * 2);
+			}
+			values[size++] = value;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Values in insertion order, without sorting or removing duplicates.
+		 */
+		public int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+
+		public int[] toSortedSet() {
+			if (size == 0)
+				return EMPTY;
+
+			int[] retVal = Arrays.copyOf(values, size);
+			Arrays.sort(retVal);
+
+			int k = 1;
+			for (int i = 1; i < retVal.length; i++) {
+				if (retVal[i] != retVal[k - 1]) {
+					retVal[k++] = retVal[i];
+				}
+			}
+
+			return k == retVal.length ? retVal : Arrays.copyOf(retVal, k);
+		}
+	}
+}
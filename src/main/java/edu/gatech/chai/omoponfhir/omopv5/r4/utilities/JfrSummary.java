@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes the OMOPonFHIR events (MappingEvent, LocalMapLookupEvent,
+ * TerminologyServiceEvent) of a JFR recording: count, duration percentiles
+ * and rows per resource type and operation, per local map lookup and per
+ * terminology server.
+ *
+ * java -cp omoponfhir-omopv5-r4-mapping.jar edu.gatech.chai.omoponfhir.omopv5.r4.utilities.JfrSummary recording.jfr
+ *
+ * Events below the recording threshold are not in the file, so the counts are
+ * of slow calls only unless the threshold was 0 ms.
+ */
+public class JfrSummary {
+	private static final String EVENT_PREFIX = "edu.gatech.chai.omoponfhir.";
+
+	private static class Group {
+		private long[] durations = new long[16];
+		private int count = 0;
+		private long rows = 0L;
+
+		void add(long nanos, long rowCount) {
+			if (count == durations.length) {
+				durations = Arrays.copyOf(durations, count * 2);
+			}
+			durations[count++] = nanos;
+			rows += rowCount;
+		}
+	}
+
+	private final Map<String, Group> groups = new TreeMap<String, Group>();
+
+	public void add(RecordedEvent event) {
+		String name = event.getEventType().getName();
+		if (!name.startsWith(EVENT_PREFIX)) {
+			return;
+		}
+
+		String key;
+		long rows = 0L;
+		switch (name.substring(EVENT_PREFIX.length())) {
+		case "Mapping":
+			key = "Mapping " + event.getString("resourceType") + "." + event.getString("operation");
+			rows = event.getLong("rowCount");
+			break;
+		case "LocalMapLookup":
+			key = "LocalMapLookup " + event.getString("table") + "." + event.getString("lookup");
+			rows = event.getBoolean("found") ? 1L : 0L;
+			break;
+		case "TerminologyService":
+			key = "TerminologyService " + event.getString("server");
+			rows = event.getInt("resultCount");
+			break;
+		default:
+			key = name;
+		}
+
+		groups.computeIfAbsent(key, k -> new Group()).add(event.getDuration().toNanos(), rows);
+	}
+
+	public void print(PrintStream out) {
+		out.println(String.format("%-60s %8s %10s %9s %9s %9s %10s", "event", "count", "total ms", "p50 ms",
+				"p99 ms", "max ms", "rows"));
+		for (Map.Entry<String, Group> entry : groups.entrySet()) {
+			Group group = entry.getValue();
+			long[] sorted = Arrays.copyOf(group.durations, group.count);
+			Arrays.sort(sorted);
+
+			long total = 0L;
+			for (long nanos : sorted) {
+				total += nanos;
+			}
+
+			out.println(String.format("%-60s %8d %10.1f %9.2f %9.2f %9.2f %10d", entry.getKey(), group.count,
+					total / 1000000.0, percentile(sorted, 0.50), percentile(sorted, 0.99),
+					percentile(sorted, 1.0), group.rows));
+		}
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		if (sorted.length == 0) {
+			return 0.0;
+		}
+
+		int index = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000000.0;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: JfrSummary recording.jfr [recording.jfr ...]");
+			System.exit(1);
+		}
+
+		JfrSummary summary = new JfrSummary();
+		List<Path> files = new ArrayList<Path>();
+		for (String arg : args) {
+			files.add(Paths.get(arg));
+		}
+		for (Path file : files) {
+			try (RecordingFile recordingFile = new RecordingFile(file)) {
+				while (recordingFile.hasMoreEvents()) {
+					summary.add(recordingFile.readEvent());
+				}
+			}
+		}
+
+		summary.print(System.out);
+	}
+}
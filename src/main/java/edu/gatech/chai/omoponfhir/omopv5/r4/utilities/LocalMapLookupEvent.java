@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event for a lookup in the local FhirOmopCodeMap and
+ * FhirOmopVocabularyMap tables (omoponfhir.db).
+ */
+@Name("edu.gatech.chai.omoponfhir.LocalMapLookup")
+@Label("Local Map Lookup")
+@Description("Lookup in the local FHIR to OMOP code or vocabulary map")
+@Category({ "OMOPonFHIR" })
+@StackTrace(false)
+@Threshold("1 ms")
+public class LocalMapLookupEvent extends Event {
+	@Label("Table")
+	public String table;
+
+	@Label("Lookup")
+	public String lookup;
+
+	@Label("Key")
+	public String key;
+
+	@Label("Found")
+	public boolean found;
+
+	public static LocalMapLookupEvent start(String table, String lookup, String key) {
+		LocalMapLookupEvent event = new LocalMapLookupEvent();
+		event.table = table;
+		event.lookup = lookup;
+		event.key = key;
+		event.begin();
+
+		return event;
+	}
+
+	public void finish(boolean found) {
+		end();
+		if (shouldCommit()) {
+			this.found = found;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Small bounded least-recently-used cache shared by the mappers. Entries beyond
+ * maxEntries are evicted in access order. All methods are synchronized, so one
+ * instance can be shared between request threads.
+ */
+public class LruCache<K, V> {
+	private final int maxEntries;
+	private final LinkedHashMap<K, V> map;
+	private long hits = 0L;
+	private long misses = 0L;
+
+	public LruCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > LruCache.this.maxEntries;
+			}
+		};
+	}
+
+	public synchronized V get(K key) {
+		V value = map.get(key);
+		if (value == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+
+		return value;
+	}
+
+	public synchronized void put(K key, V value) {
+		if (key == null || value == null)
+			return;
+
+		map.put(key, value);
+	}
+
+	/**
+	 * Returns the cached value or computes, caches and returns it. The loader is
+	 * called outside of the lock so a slow database call does not block other
+	 * readers. A null from the loader is returned but not cached.
+	 */
+	public V computeIfAbsent(K key, Function<? super K, ? extends V> loader) {
+		V value = get(key);
+		if (value != null)
+			return value;
+
+		value = loader.apply(key);
+		put(key, value);
+
+		return value;
+	}
+
+	/**
+	 * Copy of the entries, least recently used first, so that putting them
+	 * back in order restores the recency.
+	 */
+	public synchronized Map<K, V> snapshot() {
+		return new LinkedHashMap<K, V>(map);
+	}
+
+	public synchronized void remove(K key) {
+		map.remove(key);
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+
+	public synchronized int size() {
+		return map.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+}
@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.ContextLoaderListener;
+
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.IResourceMapping;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopAllergyIntolerance;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopBundle;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopCodeSystem;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopConceptMap;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopCondition;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopDevice;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopDeviceUseStatement;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopDocumentReference;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopEncounter;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopImmunization;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedication;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedicationRequest;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopMedicationStatement;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopObservation;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopOrganization;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopPatient;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopPractitioner;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopProcedure;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopSpecimen;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopValueSet;
+
+/**
+ * Creates the mapper singletons and warms them up in the background after
+ * startup, instead of on the first request for each resource type.
+ *
+ * The mappers are created on first getInstance. Once the root web application
+ * context is published, the WarmCacheSnapshot is loaded, and the mappers
+ * listed in WARMUP_MAPPERS (comma separated resource types, "all" (default) or
+ * "none") are created in parallel on WARMUP_THREADS threads (default 4).
+ * Creating a mapper also starts the cache preloads of its initialize
+ * (IngredientCache, ReferenceData, person indexes).
+ * After that, per mapper:
+ *
+ * WARMUP_COUNTS=true refreshes the resource count with getSize().
+ * WARMUP_QUERY lists resource types (or "all") that run one search of
+ * WARMUP_QUERY_ROWS rows (default 10), so the first request does not pay for
+ * class loading and JIT of the search and construct path.
+ *
+ * The ConceptAncestorIndex load is started as well. isReady() is true, and
+ * awaitReady returns, when all mapper warm-ups are done; failures are logged
+ * and listed in getFailures() but do not keep the server from being ready.
+ * The background cache loads fall back to queries until they finish, so they
+ * are not waited for.
+ */
+public class MapperWarmup {
+	private static final Logger logger = LoggerFactory.getLogger(MapperWarmup.class);
+	private static MapperWarmup mapperWarmup = new MapperWarmup();
+
+	public static int THREADS = StaticValues.getEnvInt("WARMUP_THREADS", 4);
+	public static int QUERY_ROWS = StaticValues.getEnvInt("WARMUP_QUERY_ROWS", 10);
+
+	// How long the warm-up waits for the root web application context.
+	public static int CONTEXT_WAIT_SECONDS = StaticValues.getEnvInt("WARMUP_CONTEXT_WAIT_SECONDS", 300);
+
+	private final Map<String, Supplier<IResourceMapping<?, ?>>> mappers = new LinkedHashMap<String, Supplier<IResourceMapping<?, ?>>>();
+	private final Map<String, String> failures = new ConcurrentHashMap<String, String>();
+	private final CompletableFuture<Void> ready = new CompletableFuture<Void>();
+	private volatile boolean started = false;
+
+	private MapperWarmup() {
+		mappers.put(OmopPatient.FHIRTYPE, OmopPatient::getInstance);
+		mappers.put(OmopPractitioner.FHIRTYPE, OmopPractitioner::getInstance);
+		mappers.put(OmopOrganization.FHIRTYPE, OmopOrganization::getInstance);
+		mappers.put(OmopEncounter.FHIRTYPE, OmopEncounter::getInstance);
+		mappers.put(OmopCondition.FHIRTYPE, OmopCondition::getInstance);
+		mappers.put(OmopObservation.FHIRTYPE, OmopObservation::getInstance);
+		mappers.put(OmopProcedure.FHIRTYPE, OmopProcedure::getInstance);
+		mappers.put(OmopMedication.FHIRTYPE, OmopMedication::getInstance);
+		mappers.put(OmopMedicationRequest.FHIRTYPE, OmopMedicationRequest::getInstance);
+		mappers.put(OmopMedicationStatement.FHIRTYPE, OmopMedicationStatement::getInstance);
+		mappers.put(OmopImmunization.FHIRTYPE, OmopImmunization::getInstance);
+		mappers.put(OmopAllergyIntolerance.FHIRTYPE, OmopAllergyIntolerance::getInstance);
+		mappers.put(OmopDocumentReference.FHIRTYPE, OmopDocumentReference::getInstance);
+		mappers.put(OmopDevice.FHIRTYPE, OmopDevice::getInstance);
+		mappers.put(OmopDeviceUseStatement.FHIRTYPE, OmopDeviceUseStatement::getInstance);
+		mappers.put(OmopSpecimen.FHIRTYPE, OmopSpecimen::getInstance);
+		mappers.put(OmopCodeSystem.FHIRTYPE, OmopCodeSystem::getInstance);
+		mappers.put(OmopValueSet.FHIRTYPE, OmopValueSet::getInstance);
+		mappers.put(OmopConceptMap.FHIRTYPE, OmopConceptMap::getInstance);
+		mappers.put(OmopBundle.FHIRTYPE, OmopBundle::getInstance);
+	}
+
+	public static MapperWarmup getInstance() {
+		return mapperWarmup;
+	}
+
+	/**
+	 * Starts the warm-up in the background. Only the first call does anything.
+	 */
+	public synchronized void start() {
+		if (started) {
+			return;
+		}
+		started = true;
+
+		Thread warmup = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					warmUp();
+				} catch (RuntimeException e) {
+					logger.error("Mapper warm-up failed: " + e.getMessage(), e);
+				} finally {
+					ready.complete(null);
+				}
+			}
+		}, "mapper-warmup");
+		warmup.setDaemon(true);
+		warmup.start();
+	}
+
+	public boolean isReady() {
+		return ready.isDone();
+	}
+
+	/**
+	 * Waits up to timeout for the warm-up. Returns isReady().
+	 */
+	public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+		try {
+			ready.get(timeout, unit);
+		} catch (ExecutionException | TimeoutException e) {
+			// Not ready (yet).
+		}
+
+		return isReady();
+	}
+
+	/**
+	 * Resource type -&gt; message of the warm-ups that failed.
+	 */
+	public Map<String, String> getFailures() {
+		return Collections.unmodifiableMap(failures);
+	}
+
+	private void warmUp() {
+		if (!waitForContext()) {
+			logger.error("Mapper warm-up skipped. No web application context after " + CONTEXT_WAIT_SECONDS
+					+ " seconds.");
+			return;
+		}
+
+		WarmCacheSnapshot.getInstance().start();
+		ConceptAncestorIndex.getInstance().loadInBackground();
+
+		Set<String> resourceTypes = resourceTypes(System.getenv("WARMUP_MAPPERS"), true);
+		Set<String> queryTypes = resourceTypes(System.getenv("WARMUP_QUERY"), false);
+		boolean counts = "true".equalsIgnoreCase(System.getenv("WARMUP_COUNTS"));
+		if (resourceTypes.isEmpty()) {
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, THREADS), runnable -> {
+			Thread thread = new Thread(runnable, "mapper-warmup-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			List<CompletableFuture<Void>> warmups = new ArrayList<CompletableFuture<Void>>();
+			for (String resourceType : resourceTypes) {
+				Supplier<IResourceMapping<?, ?>> mapper = mappers.get(resourceType);
+				warmups.add(CompletableFuture.runAsync(
+						() -> warmUp(resourceType, mapper, counts, queryTypes.contains(resourceType)), executor));
+			}
+			CompletableFuture.allOf(warmups.toArray(new CompletableFuture[0])).join();
+		} finally {
+			executor.shutdown();
+		}
+
+		logger.info("Mapper warm-up of " + resourceTypes.size() + " resource types done in "
+				+ (System.currentTimeMillis() - start) + " ms. Failed: " + failures.keySet());
+	}
+
+	private void warmUp(String resourceType, Supplier<IResourceMapping<?, ?>> mapperSupplier, boolean count,
+			boolean query) {
+		try {
+			IResourceMapping<?, ?> mapper = mapperSupplier.get();
+			if (count) {
+				mapper.getSize();
+			}
+			if (query && QUERY_ROWS > 0) {
+				mapper.searchWithoutParams(0, QUERY_ROWS, new ArrayList<IBaseResource>(), new ArrayList<String>(),
+						null);
+			}
+		} catch (RuntimeException | LinkageError e) {
+			failures.put(resourceType, String.valueOf(e.getMessage()));
+			logger.error("Warm-up of " + resourceType + " mapper failed: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * The mappers get the Spring context from ContextLoaderListener, which is
+	 * published after the context refresh.
+	 */
+	private boolean waitForContext() {
+		long deadline = System.currentTimeMillis() + CONTEXT_WAIT_SECONDS * 1000L;
+		while (ContextLoaderListener.getCurrentWebApplicationContext() == null) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private Set<String> resourceTypes(String config, boolean defaultAll) {
+		Set<String> retVal = new HashSet<String>();
+		if (config == null || config.trim().isEmpty()) {
+			if (defaultAll) {
+				retVal.addAll(mappers.keySet());
+			}
+			return retVal;
+		}
+
+		for (String resourceType : config.split(",")) {
+			resourceType = resourceType.trim();
+			if ("all".equalsIgnoreCase(resourceType)) {
+				retVal.addAll(mappers.keySet());
+			} else if (mappers.containsKey(resourceType)) {
+				retVal.add(resourceType);
+			} else if (!resourceType.isEmpty() && !"none".equalsIgnoreCase(resourceType)) {
+				logger.warn("Unknown resource type in mapper warm-up configuration: " + resourceType);
+			}
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Starts the warm-up when the Spring context of the server is refreshed.
+	 */
+	@Component
+	public static class Starter implements ApplicationListener<ContextRefreshedEvent> {
+		@Override
+		public void onApplicationEvent(ContextRefreshedEvent event) {
+			MapperWarmup.getInstance().start();
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR event for a read, search or write of one resource type. Emitted by
+ * BaseOmopResource for reads and searches and by InstrumentedResourceMapping
+ * for writes. See jfr/omoponfhir.jfc for the recording settings.
+ */
+@Name("edu.gatech.chai.omoponfhir.Mapping")
+@Label("OMOP Mapping")
+@Description("Read, search or write through an OMOP mapper")
+@Category({ "OMOPonFHIR" })
+@StackTrace(false)
+@Threshold("10 ms")
+public class MappingEvent extends Event {
+	@Label("Resource Type")
+	public String resourceType;
+
+	@Label("Operation")
+	public String operation;
+
+	@Label("Row Count")
+	public long rowCount;
+
+	public static MappingEvent start(String resourceType, String operation) {
+		MappingEvent event = new MappingEvent();
+		event.resourceType = resourceType;
+		event.operation = operation;
+		event.begin();
+
+		return event;
+	}
+
+	public void finish(long rowCount) {
+		end();
+		if (shouldCommit()) {
+			this.rowCount = rowCount;
+			commit();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency, row and error metrics of the mapping layer per resource type and
+ * operation. BaseOmopResource records the phases of reads and searches
+ * (ex. "searchWithParams.query", "searchWithParams.construct",
+ * "searchWithParams.includes") and InstrumentedResourceMapping records whole
+ * IResourceMapping calls.
+ *
+ * Environment:
+ * MAPPING_METRICS_ENABLED=false turns recording off.
+ * MAPPING_METRICS_JMX=false skips the JMX registration.
+ */
+public class MappingMetrics implements MappingMetricsMBean {
+	private static final Logger logger = LoggerFactory.getLogger(MappingMetrics.class);
+
+	public static final String OBJECT_NAME = "edu.gatech.chai.omoponfhir:type=MappingMetrics";
+
+	private static final MappingMetrics mappingMetrics = new MappingMetrics();
+
+	private volatile boolean enabled;
+	private volatile MetricsRegistry registry = new InMemoryMetricsRegistry();
+
+	private MappingMetrics() {
+		enabled = !"false".equalsIgnoreCase(System.getenv("MAPPING_METRICS_ENABLED"));
+
+		if (!"false".equalsIgnoreCase(System.getenv("MAPPING_METRICS_JMX"))) {
+			try {
+				MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+				ObjectName objectName = new ObjectName(OBJECT_NAME);
+				if (!mBeanServer.isRegistered(objectName)) {
+					mBeanServer.registerMBean(this, objectName);
+				}
+			} catch (Exception e) {
+				logger.warn("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+			}
+		}
+	}
+
+	public static MappingMetrics getInstance() {
+		return mappingMetrics;
+	}
+
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	public void setRegistry(MetricsRegistry registry) {
+		this.registry = registry;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public String getPrometheusText() {
+		return registry.toPrometheusText();
+	}
+
+	@Override
+	public void reset() {
+		registry.reset();
+	}
+
+	public static long start() {
+		return System.nanoTime();
+	}
+
+	public static void stop(String resourceType, String operation, long start) {
+		if (mappingMetrics.enabled) {
+			mappingMetrics.registry.recordLatency(resourceType, operation, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Records an already measured duration, ex. the sum of the per-row
+	 * construction times of a search page.
+	 */
+	public static void record(String resourceType, String operation, long nanos) {
+		if (mappingMetrics.enabled) {
+			mappingMetrics.registry.recordLatency(resourceType, operation, nanos);
+		}
+	}
+
+	public static void rows(String resourceType, String operation, long rows) {
+		if (mappingMetrics.enabled) {
+			mappingMetrics.registry.recordRows(resourceType, operation, rows);
+		}
+	}
+
+	public static void error(String resourceType, String operation) {
+		if (mappingMetrics.enabled) {
+			mappingMetrics.registry.recordError(resourceType, operation);
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+/**
+ * Receives the measurements of MappingMetrics. The default is
+ * InMemoryMetricsRegistry. A server can set its own implementation (ex. one
+ * that forwards to Micrometer) with MappingMetrics.setRegistry.
+ *
+ * Implementations are called from request threads and must be thread safe
+ * and cheap.
+ */
+public interface MetricsRegistry {
+	public void recordLatency(String resourceType, String operation, long nanos);
+
+	public void recordRows(String resourceType, String operation, long rows);
+
+	public void recordError(String resourceType, String operation);
+
+	/**
+	 * Current values in the Prometheus text exposition format, or an empty
+	 * string if the registry does not keep them.
+	 */
+	public String toPrometheusText();
+
+	public void reset();
+}
@@ -0,0 +1,652 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.web.context.ContextLoaderListener;
+import org.springframework.web.context.WebApplicationContext;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+
+/**
+ * Set based read access to the OMOP vocabulary tables (CONCEPT,
+ * CONCEPT_RELATIONSHIP and CONCEPT_ANCESTOR). The entity services work one row
+ * at a time. Terminology operations need whole id sets, so this client goes
+ * straight to the data source and returns primitive id arrays.
+ */
+public class OmopVocabularyClient {
+	private static final Logger logger = LoggerFactory.getLogger(OmopVocabularyClient.class);
+	private static OmopVocabularyClient omopVocabularyClient = new OmopVocabularyClient();
+
+	// Number of bind variables we put in one IN (...) list.
+	public static final int IN_CLAUSE_SIZE = 500;
+
+	// CONCEPT columns read by constructConcept().
+	public static final String CONCEPT_COLUMNS = "concept_id, concept_name, domain_id, vocabulary_id, concept_class_id, "
+			+ "standard_concept, concept_code";
+
+	// FHIR ValueSet filter properties that map directly to CONCEPT columns.
+	public static final Map<String, String> CONCEPT_PROPERTY_COLUMNS = new HashMap<String, String>();
+	static {
+		CONCEPT_PROPERTY_COLUMNS.put("concept_class_id", "concept_class_id");
+		CONCEPT_PROPERTY_COLUMNS.put("concept_class", "concept_class_id");
+		CONCEPT_PROPERTY_COLUMNS.put("domain_id", "domain_id");
+		CONCEPT_PROPERTY_COLUMNS.put("domain", "domain_id");
+		CONCEPT_PROPERTY_COLUMNS.put("standard_concept", "standard_concept");
+		CONCEPT_PROPERTY_COLUMNS.put("invalid_reason", "invalid_reason");
+	}
+
+	private DataSource dataSource;
+	private String vocabSchema;
+	private String dataSchema;
+
+	public static OmopVocabularyClient getInstance() {
+		return omopVocabularyClient;
+	}
+
+	public OmopVocabularyClient() {
+		this(ContextLoaderListener.getCurrentWebApplicationContext());
+	}
+
+	public OmopVocabularyClient(WebApplicationContext context) {
+		if (context == null) {
+			logger.error("context must NOT be null. Vocabulary tables will not be available.");
+			return;
+		}
+
+		try {
+			dataSource = context.getBean(DataSource.class);
+		} catch (BeansException e) {
+			logger.error("No DataSource bean is available. Vocabulary tables will not be available. " + e.getMessage());
+		}
+
+		try {
+			ConfigValues configValues = context.getBean(ConfigValues.class);
+			vocabSchema = configValues.getVocabSchema();
+			dataSchema = configValues.getDataSchema();
+		} catch (BeansException e) {
+			logger.warn("ConfigValues bean is not available. Vocabulary tables are used without schema.");
+		}
+	}
+
+	public boolean isAvailable() {
+		return dataSource != null;
+	}
+
+	public Connection getConnection() throws SQLException {
+		if (dataSource == null) {
+			throw new SQLException("DataSource for the vocabulary tables is not available");
+		}
+
+		// One connection per query, so this counts the vocabulary queries of a request.
+		QueryAccounting.record("OmopVocabularyClient", "query");
+		return dataSource.getConnection();
+	}
+
+	/**
+	 * Returns the vocabulary table name with the configured schema.
+	 */
+	public String table(String tableName) {
+		if (vocabSchema == null || vocabSchema.isEmpty()) {
+			return tableName;
+		}
+
+		return vocabSchema + "." + tableName;
+	}
+
+	/**
+	 * Returns the clinical data table name (ex. person) with the configured
+	 * schema.
+	 */
+	public String dataTable(String tableName) {
+		if (dataSchema == null || dataSchema.isEmpty()) {
+			return tableName;
+		}
+
+		return dataSchema + "." + tableName;
+	}
+
+	/**
+	 * Concept ids of a vocabulary, optionally narrowed by CONCEPT column values.
+	 *
+	 * @param vocabularyId OMOP vocabulary_id. Null for all vocabularies.
+	 * @param attributes   column name to value. See CONCEPT_PROPERTY_COLUMNS.
+	 * @param activeOnly   if true, invalidated concepts are skipped.
+	 * @return sorted concept ids.
+	 */
+	public int[] findConceptIds(String vocabularyId, Map<String, String> attributes, boolean activeOnly) {
+		StringBuilder sql = new StringBuilder("SELECT concept_id FROM " + table("concept") + " WHERE 1=1");
+		List<Object> values = new ArrayList<Object>();
+
+		if (vocabularyId != null) {
+			sql.append(" AND vocabulary_id = ?");
+			values.add(vocabularyId);
+		}
+
+		if (attributes != null) {
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				String column = CONCEPT_PROPERTY_COLUMNS.get(attribute.getKey());
+				if (column == null) {
+					logger.warn("Concept attribute, " + attribute.getKey() + ", is not supported. Ignored.");
+					continue;
+				}
+				sql.append(" AND " + column + " = ?");
+				values.add(attribute.getValue());
+			}
+		}
+
+		if (activeOnly) {
+			sql.append(" AND invalid_reason IS NULL");
+		}
+
+		return queryIds(sql.toString(), values);
+	}
+
+	/**
+	 * Descendants of the concept from CONCEPT_ANCESTOR.
+	 */
+	public int[] findDescendantIds(int ancestorConceptId, boolean includeSelf) {
+		String sql = "SELECT descendant_concept_id FROM " + table("concept_ancestor")
+				+ " WHERE ancestor_concept_id = ?";
+		if (!includeSelf) {
+			sql += " AND descendant_concept_id <> ancestor_concept_id";
+		}
+
+		int[] ids = queryIds(sql, Arrays.<Object>asList(ancestorConceptId));
+		if (includeSelf && Arrays.binarySearch(ids, ancestorConceptId) < 0) {
+			// Concepts without hierarchy do not have a self row in CONCEPT_ANCESTOR.
+			ids = IntSets.union(ids, new int[] { ancestorConceptId });
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Ancestors of the concept from CONCEPT_ANCESTOR.
+	 */
+	public int[] findAncestorIds(int descendantConceptId, boolean includeSelf) {
+		String sql = "SELECT ancestor_concept_id FROM " + table("concept_ancestor")
+				+ " WHERE descendant_concept_id = ?";
+		if (!includeSelf) {
+			sql += " AND descendant_concept_id <> ancestor_concept_id";
+		}
+
+		int[] ids = queryIds(sql, Arrays.<Object>asList(descendantConceptId));
+		if (includeSelf && Arrays.binarySearch(ids, descendantConceptId) < 0) {
+			ids = IntSets.union(ids, new int[] { descendantConceptId });
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Descendants (including themselves) of every concept in the vocabulary that
+	 * matches the CONCEPT column values. This is done in one join so that, for
+	 * example, all descendants of all RxNorm ingredients cost a single query.
+	 */
+	public int[] findDescendantIdsOf(String vocabularyId, Map<String, String> attributes) {
+		StringBuilder sql = new StringBuilder("SELECT ca.descendant_concept_id FROM " + table("concept_ancestor")
+				+ " ca JOIN " + table("concept") + " c ON c.concept_id = ca.ancestor_concept_id WHERE 1=1");
+		List<Object> values = new ArrayList<Object>();
+
+		if (vocabularyId != null) {
+			sql.append(" AND c.vocabulary_id = ?");
+			values.add(vocabularyId);
+		}
+
+		if (attributes != null) {
+			for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+				String column = CONCEPT_PROPERTY_COLUMNS.get(attribute.getKey());
+				if (column == null) {
+					logger.warn("Concept attribute, " + attribute.getKey() + ", is not supported. Ignored.");
+					continue;
+				}
+				sql.append(" AND c." + column + " = ?");
+				values.add(attribute.getValue());
+			}
+		}
+
+		int[] ids = queryIds(sql.toString(), values);
+
+		// The ancestors themselves may not have a self row in CONCEPT_ANCESTOR.
+		return IntSets.union(ids, findConceptIds(vocabularyId, attributes, false));
+	}
+
+	/**
+	 * Targets of the concept for the relationship from CONCEPT_RELATIONSHIP.
+	 */
+	public int[] findRelatedIds(int conceptId, String relationshipId) {
+		String sql = "SELECT concept_id_2 FROM " + table("concept_relationship")
+				+ " WHERE concept_id_1 = ? AND relationship_id = ? AND invalid_reason IS NULL";
+
+		return queryIds(sql, Arrays.<Object>asList(conceptId, relationshipId));
+	}
+
+	/**
+	 * Version of the loaded vocabularies: vocabulary_version of the 'None'
+	 * vocabulary row, which the Athena download sets to the release. null if
+	 * there is no such row or the query fails.
+	 */
+	public String findVocabularyVersion() {
+		String sql = "SELECT vocabulary_version FROM " + table("vocabulary") + " WHERE vocabulary_id = 'None'";
+		try (Connection conn = getConnection();
+				PreparedStatement pstmt = conn.prepareStatement(sql);
+				ResultSet rs = pstmt.executeQuery()) {
+			if (rs.next()) {
+				return rs.getString(1);
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to read the vocabulary version: " + e.getMessage());
+		}
+
+		return null;
+	}
+
+	/**
+	 * Concept id for (vocabulary_id, concept_code), or null if not found.
+	 */
+	public Integer findConceptId(String vocabularyId, String conceptCode) {
+		String sql = "SELECT concept_id FROM " + table("concept") + " WHERE vocabulary_id = ? AND concept_code = ?";
+		int[] ids = queryIds(sql, Arrays.<Object>asList(vocabularyId, conceptCode));
+		if (ids.length == 0) {
+			return null;
+		}
+
+		return ids[0];
+	}
+
+	/**
+	 * Concept ids for many codes of one vocabulary.
+	 */
+	public int[] findConceptIdsForCodes(String vocabularyId, List<String> conceptCodes) {
+		IntSets.Builder builder = new IntSets.Builder(conceptCodes.size());
+		for (int start = 0; start < conceptCodes.size(); start += IN_CLAUSE_SIZE) {
+			int end = Math.min(start + IN_CLAUSE_SIZE, conceptCodes.size());
+			String sql = "SELECT concept_id FROM " + table("concept") + " WHERE vocabulary_id = ? AND concept_code IN ("
+					+ placeholders(end - start) + ")";
+			List<Object> values = new ArrayList<Object>();
+			values.add(vocabularyId);
+			values.addAll(conceptCodes.subList(start, end));
+
+			for (int id : queryIds(sql, values)) {
+				builder.add(id);
+			}
+		}
+
+		return builder.toSortedSet();
+	}
+
+	/**
+	 * Concept row for (vocabulary_id, concept_code), or null if not found. This
+	 * is a single probe of the CONCEPT (vocabulary_id, concept_code) index. A
+	 * database failure is thrown, not returned as null.
+	 */
+	public Concept findConcept(String vocabularyId, String conceptCode) {
+		Map<String, Concept> found = findConceptsByCodes(vocabularyId, Arrays.asList(conceptCode));
+
+		return found.get(conceptCode);
+	}
+
+	/**
+	 * Concept rows for many codes of one vocabulary, keyed by concept_code. Codes
+	 * that are not found are not in the map. A database failure is thrown, so
+	 * that callers do not take it for codes that are not found.
+	 */
+	public Map<String, Concept> findConceptsByCodes(String vocabularyId, List<String> conceptCodes) {
+		Map<String, Concept> retVal = new HashMap<String, Concept>();
+		if (conceptCodes.isEmpty()) {
+			return retVal;
+		}
+		if (dataSource == null) {
+			logger.error("Vocabulary tables are not available. Concepts of " + vocabularyId + " not loaded");
+			ThrowFHIRExceptions.internalErrorException("Vocabulary tables are not available");
+		}
+
+		try (Connection conn = getConnection()) {
+			for (int start = 0; start < conceptCodes.size(); start += IN_CLAUSE_SIZE) {
+				int end = Math.min(start + IN_CLAUSE_SIZE, conceptCodes.size());
+				String sql = "SELECT " + CONCEPT_COLUMNS + " FROM " + table("concept")
+						+ " WHERE vocabulary_id = ? AND concept_code IN (" + placeholders(end - start) + ")";
+				try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+					pstmt.setString(1, vocabularyId);
+					for (int i = start; i < end; i++) {
+						pstmt.setString(i - start + 2, conceptCodes.get(i));
+					}
+					try (ResultSet rs = pstmt.executeQuery()) {
+						while (rs.next()) {
+							Concept concept = constructConcept(rs);
+							retVal.put(concept.getConceptCode(), concept);
+						}
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to load concepts of " + vocabularyId + ": " + e.getMessage());
+			ThrowFHIRExceptions.internalErrorException("Failed to load concepts of " + vocabularyId + ": "
+					+ e.getMessage());
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * All concept codes of a vocabulary, sorted. Returns null if the vocabulary
+	 * has more than maxCodes concepts, so callers can fall back to exact lookups.
+	 * The concepts are counted first, so the codes of such a vocabulary are not
+	 * read. A database failure is thrown, not returned as null.
+	 */
+	public String[] findConceptCodes(String vocabularyId, int maxCodes) {
+		if (countConcepts(vocabularyId) > maxCodes) {
+			return null;
+		}
+
+		String sql = "SELECT concept_code FROM " + table("concept") + " WHERE vocabulary_id = ?";
+		List<String> codes = new ArrayList<String>();
+		try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, vocabularyId);
+			pstmt.setMaxRows(maxCodes + 1);
+			pstmt.setFetchSize(10000);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					codes.add(rs.getString(1));
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to load concept codes of " + vocabularyId + ": " + e.getMessage());
+			ThrowFHIRExceptions.internalErrorException("Failed to load concept codes of " + vocabularyId);
+		}
+
+		if (codes.size() > maxCodes) {
+			// Concepts were added after the count.
+			return null;
+		}
+
+		String[] retVal = codes.toArray(new String[0]);
+		Arrays.sort(retVal);
+
+		return retVal;
+	}
+
+	/**
+	 * Number of concepts in the vocabulary. A database failure is thrown.
+	 */
+	public int countConcepts(String vocabularyId) {
+		String sql = "SELECT COUNT(*) FROM " + table("concept") + " WHERE vocabulary_id = ?";
+		try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, vocabularyId);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				return rs.next() ? rs.getInt(1) : 0;
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to count concepts of " + vocabularyId + ": " + e.getMessage());
+			throw ThrowFHIRExceptions.internalErrorException("Failed to count concepts of " + vocabularyId);
+		}
+	}
+
+	/**
+	 * Every mapping of one relationship from CONCEPT_RELATIONSHIP, keyed by the
+	 * concept_code of the source concept. Only sources in the given vocabulary
+	 * are read. A database failure is thrown, so that ConceptMapIndex does not
+	 * cache an empty index.
+	 */
+	public Map<String, List<Concept>> findMappedConcepts(String relationshipId, String sourceVocabularyId) {
+		Map<String, List<Concept>> retVal = new HashMap<String, List<Concept>>();
+
+		String sql = "SELECT c1.concept_code AS source_code, c2.concept_id, c2.concept_name, c2.domain_id, "
+				+ "c2.vocabulary_id, c2.concept_class_id, c2.standard_concept, c2.concept_code FROM "
+				+ table("concept_relationship") + " cr JOIN " + table("concept")
+				+ " c1 ON c1.concept_id = cr.concept_id_1 JOIN " + table("concept")
+				+ " c2 ON c2.concept_id = cr.concept_id_2 WHERE cr.relationship_id = ? AND c1.vocabulary_id = ?"
+				+ " AND cr.invalid_reason IS NULL";
+		try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, relationshipId);
+			pstmt.setString(2, sourceVocabularyId);
+			pstmt.setFetchSize(10000);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					retVal.computeIfAbsent(rs.getString("source_code"), k -> new ArrayList<Concept>())
+							.add(constructConcept(rs));
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to load mappings of " + relationshipId + ": " + e.getMessage());
+			ThrowFHIRExceptions.internalErrorException("Failed to load mappings of " + relationshipId);
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Ingredient concepts of drug concepts from CONCEPT_ANCESTOR, keyed by the
+	 * drug concept_id. Drugs without ingredients map to an empty list. The
+	 * drugs are queried IN_CLAUSE_SIZE at a time, and the drugs of a query that
+	 * failed are not in the map, so that they are not taken as drugs without
+	 * ingredients.
+	 */
+	public Map<Long, List<Concept>> findIngredients(List<Long> drugConceptIds) {
+		Map<Long, List<Concept>> retVal = new HashMap<Long, List<Concept>>();
+		if (dataSource == null || drugConceptIds.isEmpty()) {
+			return retVal;
+		}
+
+		try (Connection conn = getConnection()) {
+			for (int start = 0; start < drugConceptIds.size(); start += IN_CLAUSE_SIZE) {
+				int end = Math.min(start + IN_CLAUSE_SIZE, drugConceptIds.size());
+				String sql = ingredientSql() + " AND ca.descendant_concept_id IN (" + placeholders(end - start) + ")";
+				Map<Long, List<Concept>> found = new HashMap<Long, List<Concept>>();
+				try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+					for (int i = start; i < end; i++) {
+						pstmt.setLong(i - start + 1, drugConceptIds.get(i));
+						found.put(drugConceptIds.get(i), new ArrayList<Concept>());
+					}
+					try (ResultSet rs = pstmt.executeQuery()) {
+						while (rs.next()) {
+							found.computeIfAbsent(rs.getLong("drug_concept_id"), k -> new ArrayList<Concept>())
+									.add(constructConcept(rs));
+						}
+					}
+				} catch (SQLException e) {
+					logger.error("Failed to load ingredients of " + (end - start) + " drugs: " + e.getMessage());
+					continue;
+				}
+				retVal.putAll(found);
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to load drug ingredients: " + e.getMessage());
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Ingredients of the first maxDrugs drug concepts (by concept_id) that have
+	 * any. Used to preload the ingredient cache. Throws if the query fails, as
+	 * the last drug read may be missing ingredients.
+	 */
+	public Map<Long, List<Concept>> findAllIngredients(int maxDrugs) {
+		Map<Long, List<Concept>> retVal = new HashMap<Long, List<Concept>>();
+		if (dataSource == null || maxDrugs <= 0) {
+			return retVal;
+		}
+
+		String sql = ingredientSql() + " ORDER BY ca.descendant_concept_id";
+		try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setFetchSize(10000);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					Long drugConceptId = rs.getLong("drug_concept_id");
+					List<Concept> ingredients = retVal.get(drugConceptId);
+					if (ingredients == null) {
+						if (retVal.size() >= maxDrugs) {
+							break;
+						}
+						ingredients = new ArrayList<Concept>();
+						retVal.put(drugConceptId, ingredients);
+					}
+					ingredients.add(constructConcept(rs));
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to preload drug ingredients: " + e.getMessage());
+			ThrowFHIRExceptions.internalErrorException("Failed to preload drug ingredients");
+		}
+
+		return retVal;
+	}
+
+	private String ingredientSql() {
+		return "SELECT ca.descendant_concept_id AS drug_concept_id, c.concept_id, c.concept_name, c.domain_id, "
+				+ "c.vocabulary_id, c.concept_class_id, c.standard_concept, c.concept_code FROM "
+				+ table("concept_ancestor") + " ca JOIN " + table("concept")
+				+ " c ON c.concept_id = ca.ancestor_concept_id WHERE c.concept_class_id = 'Ingredient'";
+	}
+
+	/**
+	 * Concept ids whose name contains the text (case-insensitive), limited to the
+	 * vocabularies given. Used to apply the $expand filter parameter in the
+	 * database instead of loading every concept name.
+	 */
+	public int[] findConceptIdsByName(String text, List<String> vocabularyIds) {
+		if (vocabularyIds == null || vocabularyIds.isEmpty()) {
+			return IntSets.EMPTY;
+		}
+
+		String sql = "SELECT concept_id FROM " + table("concept") + " WHERE LOWER(concept_name) LIKE ? AND vocabulary_id IN ("
+				+ placeholders(vocabularyIds.size()) + ")";
+		List<Object> values = new ArrayList<Object>();
+		values.add("%" + text.toLowerCase() + "%");
+		values.addAll(vocabularyIds);
+
+		return queryIds(sql, values);
+	}
+
+	/**
+	 * Loads concept rows for ids[fromIndex..toIndex). Rows are returned in the
+	 * order of the ids. Missing ids are skipped. A database failure is thrown,
+	 * so that an expansion page is not returned without its concepts.
+	 */
+	public List<Concept> findConceptsByIds(int[] ids, int fromIndex, int toIndex) {
+		List<Concept> retVal = new ArrayList<Concept>();
+		if (fromIndex >= toIndex) {
+			return retVal;
+		}
+		if (dataSource == null) {
+			logger.error("Vocabulary tables are not available. Concepts by id not loaded");
+			ThrowFHIRExceptions.internalErrorException("Vocabulary tables are not available");
+		}
+
+		Map<Integer, Concept> found = new HashMap<Integer, Concept>();
+		try (Connection conn = getConnection()) {
+			for (int start = fromIndex; start < toIndex; start += IN_CLAUSE_SIZE) {
+				int end = Math.min(start + IN_CLAUSE_SIZE, toIndex);
+				String sql = "SELECT " + CONCEPT_COLUMNS + " FROM " + table("concept") + " WHERE concept_id IN ("
+						+ placeholders(end - start) + ")";
+				try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+					for (int i = start; i < end; i++) {
+						pstmt.setInt(i - start + 1, ids[i]);
+					}
+					try (ResultSet rs = pstmt.executeQuery()) {
+						while (rs.next()) {
+							Concept concept = constructConcept(rs);
+							found.put(concept.getId().intValue(), concept);
+						}
+					}
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to load concepts: " + e.getMessage());
+			ThrowFHIRExceptions.internalErrorException("Failed to load concepts: " + e.getMessage());
+		}
+
+		for (int i = fromIndex; i < toIndex; i++) {
+			Concept concept = found.get(ids[i]);
+			if (concept != null) {
+				retVal.add(concept);
+			}
+		}
+
+		return retVal;
+	}
+
+	public static Concept constructConcept(ResultSet rs) throws SQLException {
+		Concept concept = new Concept(rs.getLong("concept_id"));
+		concept.setConceptName(rs.getString("concept_name"));
+		concept.setDomainId(rs.getString("domain_id"));
+		concept.setVocabularyId(rs.getString("vocabulary_id"));
+		concept.setConceptClassId(rs.getString("concept_class_id"));
+		String standardConcept = rs.getString("standard_concept");
+		if (standardConcept != null && !standardConcept.isEmpty()) {
+			concept.setStandardConcept(standardConcept.charAt(0));
+		}
+		concept.setConceptCode(rs.getString("concept_code"));
+
+		return concept;
+	}
+
+	public static String placeholders(int count) {
+		StringBuilder retVal = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				retVal.append(",");
+			retVal.append("?");
+		}
+
+		return retVal.toString();
+	}
+
+	/**
+	 * Runs the id query. A failure is thrown rather than returned as an empty
+	 * set, since callers cache what they get (ex. ValueSet expansions).
+	 */
+	private int[] queryIds(String sql, List<Object> values) {
+		if (dataSource == null) {
+			logger.error("Vocabulary tables are not available. Query skipped: " + sql);
+			ThrowFHIRExceptions.internalErrorException("Vocabulary tables are not available");
+		}
+
+		IntSets.Builder builder = new IntSets.Builder();
+		try (Connection conn = getConnection(); PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			for (int i = 0; i < values.size(); i++) {
+				pstmt.setObject(i + 1, values.get(i));
+			}
+			pstmt.setFetchSize(10000);
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					builder.add(rs.getInt(1));
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Vocabulary query failed: " + e.getMessage() + ". SQL: " + sql);
+			ThrowFHIRExceptions.internalErrorException("Vocabulary query failed: " + e.getMessage());
+		}
+
+		return builder.toSortedSet();
+	}
+}
@@ -0,0 +1,381 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Side index of patient identifiers: (identifier_system, identifier_value)
+ * -&gt; person_ids, kept in the OMOP data schema next to PERSON.
+ *
+ * PERSON only has person_source_value ("vocabulary^value"), so identifier
+ * searches and the ingest-time lookup of existing persons need like
+ * predicates with a leading wildcard, which cannot use an index. This table
+ * has a primary key on (system, value, person_id) and an index on value, so
+ * both are point queries. Persons that share an identifier are all indexed,
+ * as the person_source_value search would find them all.
+ *
+ * identifier_system is the OMOP vocabulary id that FhirOmopVocabularyMap
+ * gives for the FHIR system (the prefix of person_source_value), or the FHIR
+ * system itself if it is not mapped, or "" for identifiers without a system.
+ *
+ * Set PERSON_IDENTIFIER_INDEX=true to use it. The table
+ * (PERSON_IDENTIFIER_INDEX_TABLE, default f_person_identifier) is created if
+ * it does not exist and is filled from PERSON.person_source_value when it is
+ * empty. Lookups return nothing until it is filled. Patients written while it
+ * is filled are indexed already. After that, OmopPatient.toDbase indexes every
+ * identifier of the patients it writes. Persons loaded into PERSON directly are not indexed, so
+ * a lookup that finds nothing falls back to the person_source_value search.
+ *
+ * The index is written after the PERSON row and not in its transaction. It can
+ * point to a person that is gone (a rolled back transaction, a delete outside
+ * of the mappers), so OmopPatient checks the person ids it returns and falls
+ * back to the person_source_value search if they do not resolve. A
+ * person_source_value changed directly in the database is not seen until the
+ * table is emptied and filled again. A table created with the earlier primary
+ * key on (system, value) keeps one person per identifier and must be dropped,
+ * so that it is created and filled again.
+ */
+public class PersonIdentifierIndex {
+	private static final Logger logger = LoggerFactory.getLogger(PersonIdentifierIndex.class);
+	private static PersonIdentifierIndex personIdentifierIndex = new PersonIdentifierIndex();
+
+	public static final int BATCH_SIZE = 1000;
+
+	private final boolean enabled = "true".equalsIgnoreCase(System.getenv("PERSON_IDENTIFIER_INDEX"));
+	private final String tableName;
+	// The table exists, so writes are indexed.
+	private volatile boolean tableReady = false;
+	// The table is filled from PERSON, so lookups can use it.
+	private volatile boolean backfilled = false;
+	private volatile boolean initializing = false;
+
+	public static PersonIdentifierIndex getInstance() {
+		return personIdentifierIndex;
+	}
+
+	public PersonIdentifierIndex() {
+		String configured = System.getenv("PERSON_IDENTIFIER_INDEX_TABLE");
+		tableName = configured == null || configured.trim().isEmpty() ? "f_person_identifier" : configured.trim();
+	}
+
+	/**
+	 * True if the index is configured and its table is filled, so lookups can
+	 * use it.
+	 */
+	public boolean isReady() {
+		return enabled && tableReady && backfilled;
+	}
+
+	/**
+	 * True if the table exists. Writes are indexed from then on, also while the
+	 * table is being filled.
+	 */
+	private boolean isWritable() {
+		return enabled && tableReady;
+	}
+
+	private String table() {
+		return OmopVocabularyClient.getInstance().dataTable(tableName);
+	}
+
+	/**
+	 * Creates the table and fills it from PERSON in a daemon thread if the
+	 * index is enabled. Lookups return nothing until the table is filled.
+	 */
+	public void initializeInBackground() {
+		if (!enabled || backfilled || initializing || !OmopVocabularyClient.getInstance().isAvailable()) {
+			return;
+		}
+
+		initializing = true;
+		Thread initializer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				initialize();
+			}
+		}, "person-identifier-index-initializer");
+		initializer.setDaemon(true);
+		initializer.start();
+	}
+
+	public synchronized void initialize() {
+		if (!enabled || backfilled) {
+			initializing = false;
+			return;
+		}
+
+		initializing = true;
+		try (Connection conn = OmopVocabularyClient.getInstance().getConnection();
+				Statement stmt = conn.createStatement()) {
+			stmt.execute("CREATE TABLE IF NOT EXISTS " + table()
+					+ " (identifier_system VARCHAR(255) NOT NULL, identifier_value VARCHAR(255) NOT NULL,"
+					+ " person_id BIGINT NOT NULL, PRIMARY KEY (identifier_system, identifier_value, person_id))");
+			createIndex(stmt, tableName + "_value_idx", "identifier_value");
+			createIndex(stmt, tableName + "_person_idx", "person_id");
+
+			boolean empty;
+			try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table())) {
+				empty = !rs.next() || rs.getLong(1) == 0L;
+			}
+			tableReady = true;
+
+			if (empty) {
+				backfill(conn);
+			}
+			backfilled = true;
+		} catch (SQLException e) {
+			logger.error("Failed to initialize the person identifier index " + table() + ": " + e.getMessage());
+		} finally {
+			initializing = false;
+		}
+	}
+
+	private void createIndex(Statement stmt, String indexName, String column) {
+		try {
+			stmt.execute("CREATE INDEX IF NOT EXISTS " + indexName + " ON " + table() + " (" + column + ")");
+		} catch (SQLException e) {
+			// Not all databases know IF NOT EXISTS for indexes. The primary key still serves (system, value).
+			logger.warn("Could not create index " + indexName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Indexes the person_source_value of every person.
+	 */
+	private void backfill(Connection conn) throws SQLException {
+		long start = System.currentTimeMillis();
+		String select = "SELECT person_id, person_source_value FROM "
+				+ OmopVocabularyClient.getInstance().dataTable("person") + " WHERE person_source_value IS NOT NULL";
+		String insert = "INSERT INTO " + table() + " (identifier_system, identifier_value, person_id) VALUES (?, ?, ?)";
+
+		int rows = 0;
+		int duplicates = 0;
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		try (PreparedStatement selectStmt = conn.prepareStatement(select);
+				Connection insertConn = OmopVocabularyClient.getInstance().getConnection();
+				PreparedStatement insertStmt = insertConn.prepareStatement(insert)) {
+			// Each insert stands alone, so that a duplicate does not abort the others.
+			insertConn.setAutoCommit(true);
+			selectStmt.setFetchSize(10000);
+			try (ResultSet rs = selectStmt.executeQuery()) {
+				List<Object[]> batch = new ArrayList<Object[]>();
+				while (rs.next()) {
+					String[] key = parsePersonSourceValue(rs.getString(2));
+					if (key == null) {
+						continue;
+					}
+
+					batch.add(new Object[] { key[0], key[1], rs.getLong(1) });
+					rows++;
+					if (batch.size() == BATCH_SIZE) {
+						duplicates += insertBatch(insertStmt, batch);
+						batch.clear();
+					}
+				}
+				if (!batch.isEmpty()) {
+					duplicates += insertBatch(insertStmt, batch);
+				}
+			}
+		} finally {
+			conn.setAutoCommit(autoCommit);
+		}
+
+		logger.info("Person identifier index filled from " + rows + " person source values in "
+				+ (System.currentTimeMillis() - start) + "ms. " + duplicates + " rows indexed already were skipped.");
+	}
+
+	/**
+	 * Inserts the rows as one batch. If the batch fails on a duplicate key, the
+	 * rows are inserted one at a time and duplicates are skipped. Duplicates are
+	 * rows that OmopPatient.toDbase indexed while the table was filled. This is
+	 * plain INSERT, as not all
+	 * databases accept INSERT ... SELECT without FROM or an upsert syntax.
+	 * Returns the number of skipped rows.
+	 */
+	private static int insertBatch(PreparedStatement insertStmt, List<Object[]> batch) throws SQLException {
+		try {
+			for (Object[] row : batch) {
+				bindInsert(insertStmt, (String) row[0], (String) row[1], (Long) row[2]);
+				insertStmt.addBatch();
+			}
+			insertStmt.executeBatch();
+			return 0;
+		} catch (BatchUpdateException e) {
+			insertStmt.clearBatch();
+		}
+
+		int duplicates = 0;
+		for (Object[] row : batch) {
+			bindInsert(insertStmt, (String) row[0], (String) row[1], (Long) row[2]);
+			try {
+				insertStmt.executeUpdate();
+			} catch (SQLException e) {
+				if (!isDuplicateKey(e)) {
+					throw e;
+				}
+				duplicates++;
+			}
+		}
+
+		return duplicates;
+	}
+
+	/**
+	 * SQLState class 23 is an integrity constraint violation.
+	 */
+	private static boolean isDuplicateKey(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("23");
+	}
+
+	private static void bindInsert(PreparedStatement pstmt, String system, String value, Long personId)
+			throws SQLException {
+		pstmt.setString(1, system);
+		pstmt.setString(2, value);
+		pstmt.setLong(3, personId);
+	}
+
+	/**
+	 * (system, value) of a person_source_value, split as OmopPatient.constructFHIR
+	 * reads it. Null if there is no value.
+	 */
+	public static String[] parsePersonSourceValue(String personSourceValue) {
+		if (personSourceValue == null || personSourceValue.trim().isEmpty()) {
+			return null;
+		}
+
+		String[] parts = personSourceValue.trim().split("\\^");
+		if (parts.length == 1) {
+			return new String[] { "", parts[0] };
+		}
+
+		StringBuilder value = new StringBuilder();
+		for (int i = parts.length > 2 ? 2 : 1; i < parts.length; i++) {
+			value.append(parts[i]);
+		}
+		if (value.length() == 0) {
+			return null;
+		}
+
+		return new String[] { parts[0], value.toString() };
+	}
+
+	/**
+	 * Persons with the identifier, lowest person_id first. A null system
+	 * matches the value in any system.
+	 */
+	public List<Long> findPersonIds(String system, String value) {
+		List<Long> retVal = new ArrayList<Long>();
+		if (!isReady() || value == null || value.trim().isEmpty()) {
+			return retVal;
+		}
+
+		String sql = "SELECT DISTINCT person_id FROM " + table() + " WHERE identifier_value = ?";
+		if (system != null) {
+			sql += " AND identifier_system = ?";
+		}
+		sql += " ORDER BY person_id";
+
+		try (Connection conn = OmopVocabularyClient.getInstance().getConnection();
+				PreparedStatement pstmt = conn.prepareStatement(sql)) {
+			pstmt.setString(1, value.trim());
+			if (system != null) {
+				pstmt.setString(2, system);
+			}
+			try (ResultSet rs = pstmt.executeQuery()) {
+				while (rs.next()) {
+					retVal.add(rs.getLong(1));
+				}
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to search the person identifier index: " + e.getMessage());
+		}
+
+		return retVal;
+	}
+
+	/**
+	 * Replaces the identifiers of the person. Each identifier is a
+	 * {system, value} pair. Other persons with the same identifier keep it.
+	 */
+	public void put(Long personId, List<String[]> identifiers) {
+		if (!isWritable() || personId == null) {
+			return;
+		}
+
+		String deletePerson = "DELETE FROM " + table() + " WHERE person_id = ?";
+		String insert = "INSERT INTO " + table() + " (identifier_system, identifier_value, person_id) VALUES (?, ?, ?)";
+
+		try (Connection conn = OmopVocabularyClient.getInstance().getConnection()) {
+			boolean autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			try (PreparedStatement deletePersonStmt = conn.prepareStatement(deletePerson);
+					PreparedStatement insertStmt = conn.prepareStatement(insert)) {
+				deletePersonStmt.setLong(1, personId);
+				deletePersonStmt.executeUpdate();
+
+				// A patient can list the same identifier twice. It is one row.
+				Set<List<String>> indexed = new HashSet<List<String>>();
+				for (String[] identifier : identifiers) {
+					if (!indexed.add(Arrays.asList(identifier))) {
+						continue;
+					}
+
+					insertStmt.setString(1, identifier[0]);
+					insertStmt.setString(2, identifier[1]);
+					insertStmt.setLong(3, personId);
+					insertStmt.executeUpdate();
+				}
+				conn.commit();
+			} catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			} finally {
+				conn.setAutoCommit(autoCommit);
+			}
+		} catch (SQLException e) {
+			logger.error("Failed to index the identifiers of person " + personId + ": " + e.getMessage());
+		}
+	}
+
+	public void remove(Long personId) {
+		if (!isWritable() || personId == null) {
+			return;
+		}
+
+		try (Connection conn = OmopVocabularyClient.getInstance().getConnection();
+				PreparedStatement pstmt = conn.prepareStatement("DELETE FROM " + table() + " WHERE person_id = ?")) {
+			pstmt.setLong(1, personId);
+			pstmt.executeUpdate();
+		} catch (SQLException e) {
+			logger.error("Failed to remove person " + personId + " from the identifier index: " + e.getMessage());
+		}
+	}
+}
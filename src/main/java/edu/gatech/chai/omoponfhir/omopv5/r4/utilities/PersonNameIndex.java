@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.dba.service.FPersonService;
+import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
+import edu.gatech.chai.omopv5.model.entity.FPerson;
+
+/**
+ * In-process trigram index over the F_PERSON name columns (family, given1,
+ * given2, prefix and suffix), so Patient name, family and given searches do
+ * not scan F_PERSON with like '%value%'.
+ *
+ * Every name is lower-cased and split into overlapping three character
+ * grams. A search term of three or more characters is resolved by
+ * intersecting the person id lists of its grams, and the candidates are then
+ * checked against the names, so the result is exact: the persons whose
+ * searched name columns contain the term, case insensitive. The mapper then
+ * fetches them by id. :exact searches are case sensitive and are left to the
+ * database.
+ *
+ * Set PERSON_NAME_INDEX=true to use it. The index is built from F_PERSON in
+ * the background at startup and kept up to date by OmopPatient.toDbase and the
+ * removals. Until it is built, for terms shorter than three characters, and
+ * when more than PERSON_NAME_INDEX_MAX_MATCHES persons match (default 1000),
+ * find returns null and the mapper uses the like search. F_PERSON tables with
+ * more than PERSON_NAME_INDEX_MAX_PERSONS rows (default 2000000) are not
+ * indexed. Persons added to F_PERSON outside of this server are found after
+ * rebuild() or a restart.
+ */
+public class PersonNameIndex {
+	private static final Logger logger = LoggerFactory.getLogger(PersonNameIndex.class);
+	private static PersonNameIndex personNameIndex = new PersonNameIndex();
+
+	public static final int FAMILY = 0, GIVEN1 = 1, GIVEN2 = 2, PREFIX = 3, SUFFIX = 4;
+	public static final int[] FAMILY_FIELDS = { FAMILY };
+	public static final int[] GIVEN_FIELDS = { GIVEN1, GIVEN2 };
+	public static final int[] NAME_FIELDS = { FAMILY, GIVEN1, GIVEN2, PREFIX, SUFFIX };
+
+	public static int MAX_MATCHES = StaticValues.getEnvInt("PERSON_NAME_INDEX_MAX_MATCHES", 1000);
+	public static int MAX_PERSONS = StaticValues.getEnvInt("PERSON_NAME_INDEX_MAX_PERSONS", 2000000);
+	public static final int BUILD_PAGE_SIZE = 10000;
+
+	private final boolean enabled;
+
+	// person_id -> lower-cased names, indexed by FAMILY ... SUFFIX.
+	private final Map<Long, String[]> names = new ConcurrentHashMap<Long, String[]>();
+	private final Map<Long, Postings> grams = new ConcurrentHashMap<Long, Postings>();
+
+	private volatile boolean ready = false;
+	private volatile boolean building = false;
+
+	private PersonNameIndex() {
+		this("true".equalsIgnoreCase(System.getenv("PERSON_NAME_INDEX")));
+	}
+
+	PersonNameIndex(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public static PersonNameIndex getInstance() {
+		return personNameIndex;
+	}
+
+	public boolean isReady() {
+		return enabled && ready;
+	}
+
+	/**
+	 * Starts the build in a daemon thread if the index is enabled and not
+	 * built.
+	 */
+	public void buildInBackground(final FPersonService fPersonService) {
+		if (!enabled || ready || building) {
+			return;
+		}
+
+		building = true;
+		Thread builder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				build(fPersonService);
+			}
+		}, "person-name-index-builder");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	/**
+	 * Builds (or rebuilds) the index from F_PERSON, one page at a time. Pages
+	 * are read by id > last id of the previous page, so each page is an index
+	 * range scan instead of an ever longer offset.
+	 */
+	public synchronized void build(FPersonService fPersonService) {
+		if (!enabled) {
+			return;
+		}
+
+		building = true;
+		ready = false;
+		long start = System.currentTimeMillis();
+		try {
+			Long size = fPersonService.getSize();
+			if (size != null && size > MAX_PERSONS) {
+				logger.warn("F_PERSON has " + size + " rows, more than PERSON_NAME_INDEX_MAX_PERSONS " + MAX_PERSONS
+						+ ". Name searches are not indexed.");
+				return;
+			}
+
+			names.clear();
+			grams.clear();
+			Long lastId = null;
+			for (;;) {
+				List<ParameterWrapper> params = new ArrayList<ParameterWrapper>();
+				if (lastId != null) {
+					params.add(new ParameterWrapper("Long", Arrays.asList("id"), Arrays.asList(">"),
+							Arrays.asList(lastId.toString()), "and"));
+				}
+				List<FPerson> page = fPersonService.searchWithParams(0, BUILD_PAGE_SIZE, params, "id ASC");
+				for (FPerson fPerson : page) {
+					put(fPerson);
+				}
+				if (page.size() < BUILD_PAGE_SIZE) {
+					break;
+				}
+				lastId = page.get(page.size() - 1).getId();
+			}
+
+			ready = true;
+			logger.info("Person name index built: " + names.size() + " persons, " + grams.size() + " grams in "
+					+ (System.currentTimeMillis() - start) + "ms");
+		} catch (RuntimeException e) {
+			logger.error("Failed to build the person name index: " + e.getMessage());
+		} finally {
+			building = false;
+		}
+	}
+
+	/**
+	 * Indexes the names of the person, replacing the ones indexed before.
+	 */
+	public void put(FPerson fPerson) {
+		if (!enabled || fPerson == null || fPerson.getId() == null) {
+			return;
+		}
+
+		String[] personNames = new String[] { normalize(fPerson.getFamilyName()), normalize(fPerson.getGivenName1()),
+				normalize(fPerson.getGivenName2()), normalize(fPerson.getPrefixName()),
+				normalize(fPerson.getSuffixName()) };
+
+		Long personId = fPerson.getId();
+		synchronized (this.names) {
+			String[] previous = names.put(personId, personNames);
+			if (previous != null) {
+				for (String name : previous) {
+					forEachGram(name, gram -> {
+						Postings postings = grams.get(gram);
+						if (postings != null) {
+							postings.remove(personId);
+						}
+					});
+				}
+			}
+			for (String name : personNames) {
+				forEachGram(name, gram -> grams.computeIfAbsent(gram, k -> new Postings()).add(personId));
+			}
+		}
+	}
+
+	public void remove(Long personId) {
+		if (!enabled || personId == null) {
+			return;
+		}
+
+		synchronized (this.names) {
+			String[] previous = names.remove(personId);
+			if (previous != null) {
+				for (String name : previous) {
+					forEachGram(name, gram -> {
+						Postings postings = grams.get(gram);
+						if (postings != null) {
+							postings.remove(personId);
+						}
+					});
+				}
+			}
+		}
+	}
+
+	/**
+	 * Person ids whose name columns in fields contain term. Null if the index
+	 * cannot answer and the database has to be searched, which includes exact
+	 * searches: the index is lower-cased and :exact is case sensitive.
+	 */
+	public List<Long> find(String term, int[] fields, boolean exact) {
+		String normalized = normalize(term);
+		if (exact || !isReady() || normalized == null || normalized.length() < 3) {
+			return null;
+		}
+
+		// Intersect the postings, starting with the shortest.
+		List<long[]> lists = new ArrayList<long[]>();
+		boolean[] missing = new boolean[1];
+		forEachGram(normalized, gram -> {
+			Postings postings = grams.get(gram);
+			if (postings == null) {
+				missing[0] = true;
+			} else {
+				lists.add(postings.toArray());
+			}
+		});
+		List<Long> retVal = new ArrayList<Long>();
+		if (missing[0] || lists.isEmpty()) {
+			return retVal;
+		}
+		lists.sort((a, b) -> Integer.compare(a.length, b.length));
+
+		long[] candidates = lists.get(0);
+		for (long candidate : candidates) {
+			boolean inAll = true;
+			for (int i = 1; i < lists.size() && inAll; i++) {
+				inAll = Arrays.binarySearch(lists.get(i), candidate) >= 0;
+			}
+			if (!inAll || !matches(names.get(candidate), normalized, fields)) {
+				continue;
+			}
+
+			retVal.add(candidate);
+			if (retVal.size() > MAX_MATCHES) {
+				return null;
+			}
+		}
+
+		return retVal;
+	}
+
+	private static boolean matches(String[] personNames, String term, int[] fields) {
+		if (personNames == null) {
+			return false;
+		}
+
+		for (int field : fields) {
+			String name = personNames[field];
+			if (name != null && name.contains(term)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static String normalize(String name) {
+		if (name == null || name.trim().isEmpty()) {
+			return null;
+		}
+
+		return name.trim().toLowerCase(Locale.ROOT);
+	}
+
+	private interface GramConsumer {
+		void accept(long gram);
+	}
+
+	/**
+	 * Calls consumer with each distinct three character gram of name, packed
+	 * into a long.
+	 */
+	private static void forEachGram(String name, GramConsumer consumer) {
+		if (name == null || name.length() < 3) {
+			return;
+		}
+
+		long[] seen = new long[name.length() - 2];
+		int count = 0;
+		for (int i = 0; i + 3 <= name.length(); i++) {
+			long gram = ((long) name.charAt(i) << 32) | ((long) name.charAt(i + 1) << 16) | name.charAt(i + 2);
+			boolean duplicate = false;
+			for (int j = 0; j < count && !duplicate; j++) {
+				duplicate = seen[j] == gram;
+			}
+			if (!duplicate) {
+				seen[count++] = gram;
+				consumer.accept(gram);
+			}
+		}
+	}
+
+	/**
+	 * Sorted person ids of one gram. The build adds ids in ascending order, so
+	 * adds are appends.
+	 */
+	private static class Postings {
+		private long[] ids = new long[4];
+		private int size = 0;
+
+		synchronized void add(long id) {
+			int index = Arrays.binarySearch(ids, 0, size, id);
+			if (index >= 0) {
+				return;
+			}
+
+			index = -index - 1;
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			System.arraycopy(ids, index, ids, index + 1, size - index);
+			ids[index] = id;
+			size++;
+		}
+
+		synchronized void remove(long id) {
+			int index = Arrays.binarySearch(ids, 0, size, id);
+			if (index < 0) {
+				return;
+			}
+
+			System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+			size--;
+		}
+
+		synchronized long[] toArray() {
+			return Arrays.copyOf(ids, size);
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the OMOP service calls made while handling one FHIR request, per
+ * call site ("OmopEncounter.constructFHIR -&gt; ConditionOccurrenceService.searchWithParams").
+ * Calls are reported by services wrapped with QueryAccountingBeanPostProcessor
+ * and by the vocabulary queries of OmopVocabularyClient.
+ *
+ * A request is flagged when it makes more than QUERY_ACCOUNTING_MAX_CALLS
+ * service calls in total (default 100), or when one call site repeats more
+ * than QUERY_ACCOUNTING_MAX_REPEATS times (default 10). The repeat is the
+ * usual sign of an N+1 query: a service call inside a per-row loop.
+ *
+ * Flagged requests are logged. With QUERY_ACCOUNTING_FAIL=true or
+ * setFailOnViolation(true), as in tests, Scope.verify throws instead.
+ *
+ * The scope is per thread and nests: begin/end pairs inside an open scope
+ * add to it. Pool threads working for the request share it through attach. InstrumentedResourceMapping opens one per mapping call.
+ */
+public class QueryAccounting {
+	private static final Logger logger = LoggerFactory.getLogger(QueryAccounting.class);
+
+	public static int MAX_CALLS = StaticValues.getEnvInt("QUERY_ACCOUNTING_MAX_CALLS", 100);
+	public static int MAX_REPEATS = StaticValues.getEnvInt("QUERY_ACCOUNTING_MAX_REPEATS", 10);
+
+	private static volatile boolean failOnViolation = "true"
+			.equalsIgnoreCase(System.getenv("QUERY_ACCOUNTING_FAIL"));
+
+	private static final ThreadLocal<Scope> currentScope = new ThreadLocal<Scope>();
+
+	private static final StackWalker stackWalker = StackWalker.getInstance();
+
+	public static class Scope {
+		private final String name;
+		private final Map<String, Integer> callSites = new LinkedHashMap<String, Integer>();
+		private int calls = 0;
+		private int depth = 0;
+
+		Scope(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public int getCalls() {
+			return calls;
+		}
+
+		public Map<String, Integer> getCallSites() {
+			return Collections.unmodifiableMap(callSites);
+		}
+
+		/**
+		 * Call sites that were called more than maxRepeats times.
+		 */
+		public List<String> getRepeatedCallSites(int maxRepeats) {
+			List<String> retVal = new ArrayList<String>();
+			for (Map.Entry<String, Integer> entry : callSites.entrySet()) {
+				if (entry.getValue() > maxRepeats) {
+					retVal.add(entry.getKey() + " x" + entry.getValue());
+				}
+			}
+
+			return retVal;
+		}
+
+		public boolean isViolation() {
+			return calls > MAX_CALLS || !getRepeatedCallSites(MAX_REPEATS).isEmpty();
+		}
+
+		public String describe() {
+			return name + " made " + calls + " service calls. Repeated call sites: "
+					+ getRepeatedCallSites(MAX_REPEATS);
+		}
+
+		/**
+		 * Throws if the scope is a violation and failOnViolation is set.
+		 */
+		public void verify() {
+			if (failOnViolation && isViolation()) {
+				throw new IllegalStateException("Too many OMOP service calls: " + describe());
+			}
+		}
+
+		synchronized void record(String callSite) {
+			calls++;
+			callSites.merge(callSite, 1, Integer::sum);
+		}
+	}
+
+	public static void setFailOnViolation(boolean fail) {
+		failOnViolation = fail;
+	}
+
+	public static boolean isFailOnViolation() {
+		return failOnViolation;
+	}
+
+	public static Scope current() {
+		return currentScope.get();
+	}
+
+	/**
+	 * Makes scope the scope of this thread, so that calls made on behalf of
+	 * the request on another thread (ConstructionPool) are counted with it.
+	 * Returns the scope the thread had, to be put back with attach.
+	 */
+	public static Scope attach(Scope scope) {
+		Scope previous = currentScope.get();
+		if (scope == null) {
+			currentScope.remove();
+		} else {
+			currentScope.set(scope);
+		}
+
+		return previous;
+	}
+
+	/**
+	 * Opens a scope named after the request, or joins the open one.
+	 */
+	public static void begin(String name) {
+		Scope scope = currentScope.get();
+		if (scope == null) {
+			scope = new Scope(name);
+			currentScope.set(scope);
+		}
+		synchronized (scope) {
+			scope.depth++;
+		}
+	}
+
+	/**
+	 * Closes the innermost begin. When the outermost one is closed, the scope
+	 * is logged if it is a violation and returned. Otherwise null is returned.
+	 */
+	public static Scope end() {
+		Scope scope = currentScope.get();
+		if (scope == null) {
+			return null;
+		}
+
+		synchronized (scope) {
+			if (--scope.depth > 0) {
+				return null;
+			}
+		}
+
+		currentScope.remove();
+		if (scope.isViolation()) {
+			logger.warn(scope.describe());
+		} else if (logger.isDebugEnabled()) {
+			logger.debug(scope.name + " made " + scope.calls + " service calls");
+		}
+
+		return scope;
+	}
+
+	/**
+	 * Called for every service call. Does nothing outside of a scope.
+	 */
+	public static void record(String service, String method) {
+		Scope scope = currentScope.get();
+		if (scope == null) {
+			return;
+		}
+
+		scope.record(callerOf(service) + " -> " + service + "." + method);
+	}
+
+	/**
+	 * The first frame in this project outside of the accounting classes and the
+	 * service itself, which is the mapper method that made the service call.
+	 */
+	private static String callerOf(String service) {
+		return stackWalker.walk(frames -> frames
+				.filter(frame -> frame.getClassName().startsWith("edu.gatech.chai.omoponfhir.")
+						&& !frame.getClassName().startsWith(QueryAccounting.class.getName())
+						&& !frame.getClassName().startsWith(QueryAccountingBeanPostProcessor.class.getName())
+						&& !frame.getClassName().endsWith("." + service))
+				.findFirst()
+				.map(frame -> {
+					String className = frame.getClassName();
+					return className.substring(className.lastIndexOf('.') + 1) + "." + frame.getMethodName();
+				})
+				.orElse("unknown"));
+	}
+}
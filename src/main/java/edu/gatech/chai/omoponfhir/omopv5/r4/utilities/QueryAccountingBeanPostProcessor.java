@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.util.ClassUtils;
+
+import edu.gatech.chai.omopv5.dba.service.IService;
+
+/**
+ * Wraps every IService bean in a proxy that reports its calls to
+ * QueryAccounting. Register it in the server's application context:
+ *
+ * &#64;Bean
+ * public static QueryAccountingBeanPostProcessor queryAccounting() {
+ *     return new QueryAccountingBeanPostProcessor();
+ * }
+ *
+ * The proxy implements the bean's interfaces, so services have to be looked up
+ * by interface (getBean(ConceptService.class)), as the mappers do.
+ */
+public class QueryAccountingBeanPostProcessor implements BeanPostProcessor {
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		if (bean instanceof IService) {
+			return wrap(bean);
+		}
+
+		return bean;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <S> S wrap(S service) {
+		if (Proxy.isProxyClass(service.getClass())
+				&& Proxy.getInvocationHandler(service) instanceof AccountingHandler) {
+			return service;
+		}
+
+		Class<?>[] interfaces = ClassUtils.getAllInterfaces(service);
+		return (S) Proxy.newProxyInstance(service.getClass().getClassLoader(), interfaces,
+				new AccountingHandler(service, serviceName(service, interfaces)));
+	}
+
+	/**
+	 * The service interface (ex. ConceptService) rather than the
+	 * implementation class.
+	 */
+	private static String serviceName(Object service, Class<?>[] interfaces) {
+		for (Class<?> type : interfaces) {
+			if (type != IService.class && IService.class.isAssignableFrom(type)) {
+				return type.getSimpleName();
+			}
+		}
+
+		return service.getClass().getSimpleName();
+	}
+
+	private static class AccountingHandler implements InvocationHandler {
+		private final Object service;
+		private final String serviceName;
+
+		AccountingHandler(Object service, String serviceName) {
+			this.service = service;
+			this.serviceName = serviceName;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() != Object.class) {
+				QueryAccounting.record(serviceName, method.getName());
+			}
+
+			try {
+				return method.invoke(service, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+	}
+}
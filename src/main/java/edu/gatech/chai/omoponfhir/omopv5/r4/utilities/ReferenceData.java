@@ -0,0 +1,348 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.WebApplicationContext;
+
+import edu.gatech.chai.omopv5.dba.service.CareSiteService;
+import edu.gatech.chai.omopv5.dba.service.LocationService;
+import edu.gatech.chai.omopv5.dba.service.ProviderService;
+import edu.gatech.chai.omopv5.dba.service.VocabularyService;
+import edu.gatech.chai.omopv5.model.entity.CareSite;
+import edu.gatech.chai.omopv5.model.entity.Location;
+import edu.gatech.chai.omopv5.model.entity.Provider;
+import edu.gatech.chai.omopv5.model.entity.Vocabulary;
+
+/**
+ * In-memory snapshot of the small, rarely changing OMOP reference tables
+ * (CARE_SITE, PROVIDER, LOCATION and VOCABULARY) used by OmopOrganization,
+ * OmopPractitioner and the _include resolution that constructs them.
+ *
+ * Each table is loaded whole on first use if it has at most
+ * REFERENCE_DATA_MAX_ROWS rows (default 50000). Larger tables are cached by id
+ * as rows are looked up, up to the same number of rows. Rows not in the
+ * snapshot are read with findById and added to it.
+ *
+ * Snapshots are reloaded in the background every REFERENCE_DATA_REFRESH_SECONDS
+ * (default 3600, 0 to never reload); the old snapshot is served until the new
+ * one is complete. Writes through the mappers (toDbase, removeDbase) invalidate
+ * the rows they touch, and the cached rows that embed them (a provider's care
+ * site, a care site's location), so a server that is the only writer does not
+ * serve stale rows. Invalidations made while a reload runs are applied to the
+ * new snapshot as well. Changes made directly in the database are seen after
+ * the next reload.
+ *
+ * The cached entities are shared between requests and must not be modified.
+ * constructOmop reads the rows it updates from the service.
+ */
+public class ReferenceData {
+	private static final Logger logger = LoggerFactory.getLogger(ReferenceData.class);
+	private static ReferenceData referenceData = new ReferenceData();
+
+	public static int MAX_ROWS = StaticValues.getEnvInt("REFERENCE_DATA_MAX_ROWS", 50000);
+	public static int REFRESH_SECONDS = StaticValues.getEnvInt("REFERENCE_DATA_REFRESH_SECONDS", 3600);
+
+	private volatile Table<Long, CareSite> careSites = null;
+	private volatile Table<Long, Provider> providers = null;
+	private volatile Table<Long, Location> locations = null;
+	private volatile Table<String, Vocabulary> vocabularies = null;
+
+	public static ReferenceData getInstance() {
+		return referenceData;
+	}
+
+	/**
+	 * Called by the mappers that use the reference data. Only the first call
+	 * does anything.
+	 */
+	public synchronized void initialize(WebApplicationContext context) {
+		if (careSites != null) {
+			return;
+		}
+
+		CareSiteService careSiteService = context.getBean(CareSiteService.class);
+		ProviderService providerService = context.getBean(ProviderService.class);
+		LocationService locationService = context.getBean(LocationService.class);
+		VocabularyService vocabularyService = context.getBean(VocabularyService.class);
+
+		locations = new Table<Long, Location>("location", locationService::findById,
+				() -> locationService.searchWithoutParams(0, 0, null), locationService::getSize, Location::getId);
+		providers = new Table<Long, Provider>("provider", providerService::findById,
+				() -> providerService.searchWithoutParams(0, 0, null), providerService::getSize, Provider::getId);
+		vocabularies = new Table<String, Vocabulary>("vocabulary", vocabularyService::findById,
+				() -> vocabularyService.searchWithoutParams(0, 0, null), vocabularyService::getSize,
+				Vocabulary::getId);
+		careSites = new Table<Long, CareSite>("care_site", careSiteService::findById,
+				() -> careSiteService.searchWithoutParams(0, 0, null), careSiteService::getSize, CareSite::getId);
+	}
+
+	public boolean isInitialized() {
+		return careSites != null;
+	}
+
+	public CareSite getCareSite(Long careSiteId) {
+		return careSites.get(careSiteId);
+	}
+
+	public Provider getProvider(Long providerId) {
+		return providers.get(providerId);
+	}
+
+	public Location getLocation(Long locationId) {
+		return locations.get(locationId);
+	}
+
+	public Vocabulary getVocabulary(String vocabularyId) {
+		return vocabularies.get(vocabularyId);
+	}
+
+	/**
+	 * Drops the care site, its location and the providers at the care site.
+	 * Called after the care site is written or removed.
+	 */
+	public void invalidateCareSite(Long careSiteId) {
+		if (!isInitialized() || careSiteId == null) {
+			return;
+		}
+
+		CareSite careSite = careSites.remove(careSiteId);
+		if (careSite != null && careSite.getLocation() != null) {
+			locations.remove(careSite.getLocation().getId());
+		}
+		providers.removeIf(provider -> provider.getCareSite() != null
+				&& careSiteId.equals(provider.getCareSite().getId()));
+	}
+
+	/**
+	 * Drops the provider and its care site. Called after the provider is
+	 * written or removed.
+	 */
+	public void invalidateProvider(Long providerId) {
+		if (!isInitialized() || providerId == null) {
+			return;
+		}
+
+		Provider provider = providers.remove(providerId);
+		if (provider != null && provider.getCareSite() != null) {
+			invalidateCareSite(provider.getCareSite().getId());
+		}
+	}
+
+	/**
+	 * Drops the location and the care sites at the location.
+	 */
+	public void invalidateLocation(Long locationId) {
+		if (!isInitialized() || locationId == null) {
+			return;
+		}
+
+		locations.remove(locationId);
+		for (CareSite careSite : careSites.find(careSite -> careSite.getLocation() != null
+				&& locationId.equals(careSite.getLocation().getId()))) {
+			invalidateCareSite(careSite.getId());
+		}
+	}
+
+	/**
+	 * Drops all snapshots. They are reloaded on next use.
+	 */
+	public void invalidateAll() {
+		if (!isInitialized()) {
+			return;
+		}
+
+		careSites.clear();
+		providers.clear();
+		locations.clear();
+		vocabularies.clear();
+	}
+
+	/**
+	 * One reference table: a snapshot map replaced as a whole on reload, and
+	 * updated in place by misses and invalidations.
+	 */
+	private static class Table<K, V> {
+		private final String name;
+		private final Function<K, V> finder;
+		private final Supplier<List<V>> loader;
+		private final Supplier<Long> counter;
+		private final Function<V, K> keyOf;
+
+		private volatile Map<K, V> rows = new ConcurrentHashMap<K, V>();
+		private volatile long loadedAt = 0L;
+		// Claimed with compareAndSet by loadInBackground, so that one reload
+		// thread is started at a time.
+		private final AtomicBoolean loading = new AtomicBoolean(false);
+
+		// Invalidations since the running load started. The load may have read
+		// these rows before they were written, so they are dropped from its
+		// snapshot.
+		private final Queue<BiPredicate<K, V>> invalidations = new ConcurrentLinkedQueue<BiPredicate<K, V>>();
+
+		Table(String name, Function<K, V> finder, Supplier<List<V>> loader, Supplier<Long> counter,
+				Function<V, K> keyOf) {
+			this.name = name;
+			this.finder = finder;
+			this.loader = loader;
+			this.counter = counter;
+			this.keyOf = keyOf;
+		}
+
+		V get(K key) {
+			if (key == null) {
+				return null;
+			}
+
+			if (loadedAt == 0L) {
+				load();
+			} else if (REFRESH_SECONDS > 0
+					&& System.currentTimeMillis() - loadedAt > REFRESH_SECONDS * 1000L) {
+				loadInBackground();
+			}
+
+			Map<K, V> current = rows;
+			V retVal = current.get(key);
+			if (retVal == null) {
+				retVal = finder.apply(key);
+				if (retVal != null && current.size() < MAX_ROWS) {
+					current.put(key, retVal);
+				}
+			}
+
+			return retVal;
+		}
+
+		/**
+		 * Cached rows that match.
+		 */
+		List<V> find(Predicate<V> predicate) {
+			List<V> retVal = new ArrayList<V>();
+			for (V row : rows.values()) {
+				if (predicate.test(row)) {
+					retVal.add(row);
+				}
+			}
+
+			return retVal;
+		}
+
+		V remove(K key) {
+			invalidate((k, v) -> k.equals(key));
+			return rows.remove(key);
+		}
+
+		void removeIf(Predicate<V> predicate) {
+			invalidate((k, v) -> predicate.test(v));
+			rows.values().removeIf(predicate);
+		}
+
+		/**
+		 * Waits for a running load, so that it does not put back the rows.
+		 */
+		synchronized void clear() {
+			rows = new ConcurrentHashMap<K, V>();
+			loadedAt = 0L;
+		}
+
+		private void invalidate(BiPredicate<K, V> invalidation) {
+			if (loading.get()) {
+				invalidations.add(invalidation);
+			}
+		}
+
+		private void loadInBackground() {
+			if (!loading.compareAndSet(false, true)) {
+				return;
+			}
+
+			Thread reloader = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					load();
+				}
+			}, "reference-data-loader-" + name);
+			reloader.setDaemon(true);
+			reloader.start();
+		}
+
+		private synchronized void load() {
+			if (loadedAt != 0L && !loading.get()) {
+				// Loaded by another thread while this one was waiting.
+				return;
+			}
+
+			loading.set(true);
+			invalidations.clear();
+			long start = System.currentTimeMillis();
+			try {
+				Long size = counter.get();
+				if (size != null && size <= MAX_ROWS) {
+					Map<K, V> snapshot = new ConcurrentHashMap<K, V>();
+					for (V row : loader.get()) {
+						K key = keyOf.apply(row);
+						if (key != null) {
+							snapshot.put(key, row);
+						}
+					}
+					swap(snapshot);
+					logger.info("Reference data " + name + " loaded: " + snapshot.size() + " rows in "
+							+ (System.currentTimeMillis() - start) + "ms");
+				} else {
+					// Too large to snapshot. Keep the rows found by id.
+					swap(new ConcurrentHashMap<K, V>());
+					logger.info("Reference data " + name + " has " + size + " rows, more than " + MAX_ROWS
+							+ ". Rows are cached as they are read.");
+				}
+			} catch (RuntimeException e) {
+				logger.error("Failed to load reference data " + name + ": " + e.getMessage());
+			} finally {
+				loadedAt = System.currentTimeMillis();
+				loading.set(false);
+				invalidations.clear();
+			}
+		}
+
+		/**
+		 * Invalidations are applied before the swap, and again after it for the
+		 * ones that were made on the old rows while swapping.
+		 */
+		private void swap(Map<K, V> snapshot) {
+			dropInvalidated(snapshot);
+			rows = snapshot;
+			dropInvalidated(snapshot);
+		}
+
+		private void dropInvalidated(Map<K, V> snapshot) {
+			for (BiPredicate<K, V> invalidation : invalidations) {
+				snapshot.entrySet().removeIf(entry -> invalidation.test(entry.getKey(), entry.getValue()));
+			}
+		}
+	}
+}
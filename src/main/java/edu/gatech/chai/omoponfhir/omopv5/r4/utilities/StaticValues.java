@@ -41,4 +41,17 @@ public class StaticValues {
 		}
 		return true;
 	}	
-}
\ No newline at end of file
+
+	/**
+	 * Integer value of the environment variable, or defaultValue if it is not set
+	 * or not a number.
+	 */
+	public static int getEnvInt(String name, int defaultValue) {
+		String value = System.getenv(name);
+		if (value != null && isInt(value.trim())) {
+			return Integer.parseInt(value.trim());
+		}
+
+		return defaultValue;
+	}
+}
@@ -58,12 +58,14 @@ public class TerminologyServiceClient {
 	
 	public Map<String, List<ConceptSetComponent>> getValueSetByUrl(String url) {
 		Map<String, List<ConceptSetComponent>> retVal = new HashMap<String, List<ConceptSetComponent>>();
+		TerminologyServiceEvent event = TerminologyServiceEvent.start(terminologyServerUrl, url);
 		Bundle results = client
 				.search()
 				.forResource(ValueSet.class)
 				.where(ValueSet.URL.matches().value(url))
 				.returnBundle(Bundle.class)
 				.execute();
+		event.finish(results.getEntry().size());
 		
 		// Results should contain entries for ValueSet with the specified url.
 		// We only search codeset URL. Other supports may be added later..
@@ -0,0 +1,60 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for a call to the remote terminology server made by
+ * TerminologyServiceClient.
+ */
+@Name("edu.gatech.chai.omoponfhir.TerminologyService")
+@Label("Terminology Service Call")
+@Description("ValueSet request to the remote terminology server")
+@Category({ "OMOPonFHIR" })
+@StackTrace(false)
+public class TerminologyServiceEvent extends Event {
+	@Label("Server")
+	public String server;
+
+	@Label("ValueSet URL")
+	public String url;
+
+	@Label("Result Count")
+	public int resultCount;
+
+	public static TerminologyServiceEvent start(String server, String url) {
+		TerminologyServiceEvent event = new TerminologyServiceEvent();
+		event.server = server;
+		event.url = url;
+		event.begin();
+
+		return event;
+	}
+
+	public void finish(int resultCount) {
+		end();
+		if (shouldCommit()) {
+			this.resultCount = resultCount;
+			commit();
+		}
+	}
+}
@@ -18,9 +18,11 @@ package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.OperationOutcome;
 import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
 
 public class ThrowFHIRExceptions {
@@ -33,6 +35,15 @@ public class ThrowFHIRExceptions {
 		throw new UnprocessableEntityException(StaticValues.myFhirContext, outcome);
 	}
 	
+	public static InvalidRequestException invalidRequestException(String message, IssueType issueType) {
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.setId("exception");
+		CodeableConcept detailCode = new CodeableConcept();
+		detailCode.setText(message);
+		outcome.addIssue().setSeverity(IssueSeverity.ERROR).setDetails(detailCode).setCode(issueType);
+		throw new InvalidRequestException("This is an invalid request", outcome);
+	}
+
 	public static InternalErrorException internalErrorException(String message) {
 		throw new InternalErrorException(message);
 	}
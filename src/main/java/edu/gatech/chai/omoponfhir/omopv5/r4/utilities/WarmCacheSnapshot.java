@@ -0,0 +1,361 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+
+/**
+ * Binary snapshot of the vocabulary caches (ConceptCache and IngredientCache)
+ * on local disk, so that a restarted server starts with the concepts it was
+ * using instead of reading them again one query at a time.
+ *
+ * WARM_CACHE_SNAPSHOT is the snapshot file. If it is not set, nothing is
+ * written or loaded. The snapshot is written at shutdown and, with
+ * WARM_CACHE_SNAPSHOT_INTERVAL_SECONDS, also periodically. It is written to a
+ * temporary file that replaces the old snapshot when it is complete.
+ *
+ * The snapshot is stamped with the vocabulary version (vocabulary_version of
+ * the 'None' vocabulary). At startup (MapperWarmup) it is memory mapped and
+ * loaded only if the stamp matches the database, so a vocabulary update
+ * discards it.
+ *
+ * Layout, big endian, strings as int byte length (-1 for null) and UTF-8:
+ *
+ * int magic, int format version, string vocabulary version, long written at
+ * int concept count, per concept: long id, string name, string domain_id,
+ *     string vocabulary_id, string concept_class_id, char standard_concept
+ *     (0 if none), string concept_code
+ * int cached concept count, per concept: long id (ConceptCache, least
+ *     recently used first)
+ * int drug count, per drug: long drug concept id, int ingredient count,
+ *     long ingredient concept ids (IngredientCache, least recently used first)
+ *
+ * Each concept is written once however many sections refer to it.
+ */
+public class WarmCacheSnapshot {
+	private static final Logger logger = LoggerFactory.getLogger(WarmCacheSnapshot.class);
+	private static WarmCacheSnapshot warmCacheSnapshot = new WarmCacheSnapshot();
+
+	private static final int MAGIC = 0x4f465743; // OFWC
+	private static final int FORMAT_VERSION = 1;
+
+	public static int INTERVAL_SECONDS = StaticValues.getEnvInt("WARM_CACHE_SNAPSHOT_INTERVAL_SECONDS", 0);
+
+	private final Path path;
+	private boolean started = false;
+
+	// Vocabulary version last read from the database. The shutdown write uses
+	// it as is, since the data source may already be closed by then.
+	private volatile String vocabularyVersion = null;
+
+	private WarmCacheSnapshot() {
+		String file = System.getenv("WARM_CACHE_SNAPSHOT");
+		path = file == null || file.trim().isEmpty() ? null : Paths.get(file.trim());
+	}
+
+	WarmCacheSnapshot(Path path) {
+		this.path = path;
+	}
+
+	public static WarmCacheSnapshot getInstance() {
+		return warmCacheSnapshot;
+	}
+
+	public boolean isEnabled() {
+		return path != null;
+	}
+
+	/**
+	 * Loads the snapshot, and schedules the snapshot writes (at shutdown and
+	 * every INTERVAL_SECONDS). Only the first call does anything.
+	 */
+	public synchronized void start() {
+		if (!isEnabled() || started) {
+			return;
+		}
+		started = true;
+
+		load();
+
+		Thread shutdownWriter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				write(false);
+			}
+		}, "warm-cache-snapshot-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdownWriter);
+
+		if (INTERVAL_SECONDS > 0) {
+			Thread periodicWriter = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(INTERVAL_SECONDS * 1000L);
+						} catch (InterruptedException e) {
+							return;
+						}
+						write();
+					}
+				}
+			}, "warm-cache-snapshot-writer");
+			periodicWriter.setDaemon(true);
+			periodicWriter.start();
+		}
+	}
+
+	/**
+	 * Loads the snapshot into the caches if it exists and matches the
+	 * vocabulary version of the database. Returns true if it was loaded.
+	 */
+	public boolean load() {
+		if (!isEnabled()) {
+			return false;
+		}
+
+		OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+		if (!vocabularyClient.isAvailable()) {
+			return false;
+		}
+		vocabularyVersion = vocabularyClient.findVocabularyVersion();
+		return load(vocabularyVersion);
+	}
+
+	/**
+	 * Loads the snapshot file into the caches if it is stamped with
+	 * databaseVersion.
+	 */
+	boolean load(String databaseVersion) {
+		if (!Files.isRegularFile(path)) {
+			return false;
+		}
+
+		long start = System.currentTimeMillis();
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+				logger.info("Warm cache snapshot " + path + " is not in the current format. Not loaded.");
+				return false;
+			}
+
+			String snapshotVersion = readString(buffer);
+			if (!Objects.equals(snapshotVersion, databaseVersion)) {
+				logger.info("Warm cache snapshot " + path + " is of vocabulary version " + snapshotVersion
+						+ ", the database has " + databaseVersion + ". Not loaded.");
+				return false;
+			}
+			buffer.getLong();
+
+			Map<Long, Concept> concepts = new HashMap<Long, Concept>();
+			int conceptCount = buffer.getInt();
+			for (int i = 0; i < conceptCount; i++) {
+				Concept concept = readConcept(buffer);
+				concepts.put(concept.getId(), concept);
+			}
+
+			ConceptCache conceptCache = ConceptCache.getInstance();
+			int cachedCount = buffer.getInt();
+			for (int i = 0; i < cachedCount; i++) {
+				conceptCache.put(concepts.get(buffer.getLong()));
+			}
+
+			IngredientCache ingredientCache = IngredientCache.getInstance();
+			int drugCount = buffer.getInt();
+			for (int i = 0; i < drugCount; i++) {
+				long drugConceptId = buffer.getLong();
+				int ingredientCount = buffer.getInt();
+				List<Concept> ingredients = new ArrayList<Concept>(ingredientCount);
+				for (int j = 0; j < ingredientCount; j++) {
+					Concept ingredient = concepts.get(buffer.getLong());
+					if (ingredient != null) {
+						ingredients.add(ingredient);
+					}
+				}
+				ingredientCache.put(drugConceptId, ingredients);
+			}
+
+			logger.info("Warm cache snapshot " + path + " loaded: " + cachedCount + " concepts, " + drugCount
+					+ " drugs in " + (System.currentTimeMillis() - start) + "ms");
+			return true;
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+			logger.error("Failed to load the warm cache snapshot " + path + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the caches to the snapshot file. Returns true if it was written.
+	 */
+	public boolean write() {
+		return write(true);
+	}
+
+	private synchronized boolean write(boolean readVersion) {
+		if (!isEnabled()) {
+			return false;
+		}
+
+		OmopVocabularyClient vocabularyClient = OmopVocabularyClient.getInstance();
+		if (readVersion && vocabularyClient.isAvailable()) {
+			String currentVersion = vocabularyClient.findVocabularyVersion();
+			if (!Objects.equals(currentVersion, vocabularyVersion)) {
+				// The caches may hold concepts of the old vocabulary.
+				vocabularyVersion = currentVersion;
+				ConceptCache.getInstance().clear();
+				IngredientCache.getInstance().clear();
+				return false;
+			}
+		}
+
+		return write(vocabularyVersion);
+	}
+
+	/**
+	 * Writes the caches to the snapshot file, stamped with vocabularyVersion.
+	 */
+	synchronized boolean write(String vocabularyVersion) {
+		if (ConceptCache.getInstance().size() == 0 && IngredientCache.getInstance().size() == 0) {
+			return false;
+		}
+
+		List<Concept> cachedConcepts = ConceptCache.getInstance().snapshot();
+		Map<Long, List<Concept>> drugIngredients = IngredientCache.getInstance().snapshot();
+
+		Map<Long, Concept> concepts = new LinkedHashMap<Long, Concept>();
+		for (Concept concept : cachedConcepts) {
+			concepts.putIfAbsent(concept.getId(), concept);
+		}
+		for (List<Concept> ingredients : drugIngredients.values()) {
+			for (Concept ingredient : ingredients) {
+				concepts.putIfAbsent(ingredient.getId(), ingredient);
+			}
+		}
+
+		long start = System.currentTimeMillis();
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try {
+			if (path.getParent() != null) {
+				Files.createDirectories(path.getParent());
+			}
+
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(temporary), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				writeString(out, vocabularyVersion);
+				out.writeLong(System.currentTimeMillis());
+
+				out.writeInt(concepts.size());
+				for (Concept concept : concepts.values()) {
+					writeConcept(out, concept);
+				}
+
+				out.writeInt(cachedConcepts.size());
+				for (Concept concept : cachedConcepts) {
+					out.writeLong(concept.getId());
+				}
+
+				out.writeInt(drugIngredients.size());
+				for (Map.Entry<Long, List<Concept>> entry : drugIngredients.entrySet()) {
+					out.writeLong(entry.getKey());
+					out.writeInt(entry.getValue().size());
+					for (Concept ingredient : entry.getValue()) {
+						out.writeLong(ingredient.getId());
+					}
+				}
+			}
+
+			Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			logger.error("Failed to write the warm cache snapshot " + path + ": " + e.getMessage());
+			return false;
+		}
+
+		logger.info("Warm cache snapshot " + path + " written: " + cachedConcepts.size() + " concepts, "
+				+ drugIngredients.size() + " drugs in " + (System.currentTimeMillis() - start) + "ms");
+		return true;
+	}
+
+	private static void writeConcept(DataOutputStream out, Concept concept) throws IOException {
+		out.writeLong(concept.getId());
+		writeString(out, concept.getConceptName());
+		writeString(out, concept.getDomainId());
+		writeString(out, concept.getVocabularyId());
+		writeString(out, concept.getConceptClassId());
+		out.writeChar(concept.getStandardConcept() == null ? 0 : concept.getStandardConcept());
+		writeString(out, concept.getConceptCode());
+	}
+
+	private static Concept readConcept(ByteBuffer buffer) {
+		Concept concept = new Concept(buffer.getLong());
+		concept.setConceptName(readString(buffer));
+		concept.setDomainId(readString(buffer));
+		concept.setVocabularyId(readString(buffer));
+		concept.setConceptClassId(readString(buffer));
+		char standardConcept = buffer.getChar();
+		if (standardConcept != 0) {
+			concept.setStandardConcept(standardConcept);
+		}
+		concept.setConceptCode(readString(buffer));
+
+		return concept;
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
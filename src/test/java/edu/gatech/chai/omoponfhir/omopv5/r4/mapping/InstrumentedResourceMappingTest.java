@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.mapping;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.IdType;
+import org.springframework.web.context.WebApplicationContext;
+
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.MappingMetrics;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.MetricsRegistry;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.QueryAccounting;
+import edu.gatech.chai.omoponfhir.omopv5.r4.utilities.QueryAccountingBeanPostProcessor;
+import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
+import edu.gatech.chai.omopv5.model.entity.ConditionOccurrence;
+import junit.framework.TestCase;
+
+/**
+ * Runs OmopCondition, wrapped with InstrumentedResourceMapping, against
+ * services that are wrapped with QueryAccountingBeanPostProcessor, with
+ * QueryAccounting in fail mode.
+ */
+public class InstrumentedResourceMappingTest extends TestCase {
+	private boolean failOnViolation;
+	private int maxCalls;
+	private int maxRepeats;
+	private MetricsRegistry registry;
+	private boolean metricsEnabled;
+
+	// Operation -> rows recorded in MappingMetrics.
+	private final Map<String, Long> rows = new HashMap<String, Long>();
+
+	// Service methods that throw instead of returning the default.
+	private final List<String> failingMethods = new ArrayList<String>();
+
+	@Override
+	protected void setUp() {
+		failOnViolation = QueryAccounting.isFailOnViolation();
+		maxCalls = QueryAccounting.MAX_CALLS;
+		maxRepeats = QueryAccounting.MAX_REPEATS;
+		QueryAccounting.setFailOnViolation(true);
+
+		registry = MappingMetrics.getInstance().getRegistry();
+		metricsEnabled = MappingMetrics.getInstance().isEnabled();
+		MappingMetrics.getInstance().setRegistry(new MetricsRegistry() {
+			@Override
+			public void recordLatency(String resourceType, String operation, long nanos) {
+			}
+
+			@Override
+			public void recordRows(String resourceType, String operation, long count) {
+				rows.merge(operation, count, Long::sum);
+			}
+
+			@Override
+			public void recordError(String resourceType, String operation) {
+			}
+
+			@Override
+			public String toPrometheusText() {
+				return "";
+			}
+
+			@Override
+			public void reset() {
+				rows.clear();
+			}
+		});
+		MappingMetrics.getInstance().setEnabled(true);
+	}
+
+	@Override
+	protected void tearDown() {
+		QueryAccounting.setFailOnViolation(failOnViolation);
+		QueryAccounting.MAX_CALLS = maxCalls;
+		QueryAccounting.MAX_REPEATS = maxRepeats;
+		QueryAccounting.attach(null);
+		MappingMetrics.getInstance().setRegistry(registry);
+		MappingMetrics.getInstance().setEnabled(metricsEnabled);
+	}
+
+	/**
+	 * Services that return null, 0 or an empty list, wrapped like the server
+	 * wraps its IService beans.
+	 */
+	private Object service(Class<?> serviceClass) {
+		Object service = Proxy.newProxyInstance(serviceClass.getClassLoader(), new Class<?>[] { serviceClass },
+				(proxy, method, args) -> {
+					if (method.getDeclaringClass() == Object.class) {
+						switch (method.getName()) {
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						default:
+							return serviceClass.getSimpleName();
+						}
+					}
+					if (failingMethods.contains(method.getName())) {
+						throw new IllegalArgumentException("Query failed");
+					}
+
+					Class<?> returnType = method.getReturnType();
+					if (List.class.isAssignableFrom(returnType)) {
+						return new ArrayList<Object>();
+					} else if (returnType == Long.class || returnType == Long.TYPE) {
+						return 0L;
+					} else if (returnType == Boolean.TYPE) {
+						return false;
+					} else if (returnType.isPrimitive() && returnType != Void.TYPE) {
+						return 0;
+					}
+					return null;
+				});
+
+		return QueryAccountingBeanPostProcessor.wrap(service);
+	}
+
+	private IResourceMapping<Condition, ConditionOccurrence> conditionMapping() {
+		WebApplicationContext context = (WebApplicationContext) Proxy.newProxyInstance(
+				WebApplicationContext.class.getClassLoader(), new Class<?>[] { WebApplicationContext.class },
+				(proxy, method, args) -> {
+					if ("getBean".equals(method.getName()) && args != null && args.length == 1
+							&& args[0] instanceof Class) {
+						return service((Class<?>) args[0]);
+					}
+					return null;
+				});
+
+		return InstrumentedResourceMapping.wrap(new OmopCondition(context));
+	}
+
+	/**
+	 * A mapping whose searches add one Condition to listResources.
+	 */
+	@SuppressWarnings("unchecked")
+	private IResourceMapping<Condition, ConditionOccurrence> searchMapping() {
+		IResourceMapping<Condition, ConditionOccurrence> mapping = (IResourceMapping<Condition, ConditionOccurrence>) Proxy
+				.newProxyInstance(IResourceMapping.class.getClassLoader(), new Class<?>[] { IResourceMapping.class },
+						(proxy, method, args) -> {
+							if ("searchWithoutParams".equals(method.getName())) {
+								((List<IBaseResource>) args[2]).add(new Condition());
+							} else if ("searchWithParams".equals(method.getName())) {
+								((List<IBaseResource>) args[3]).add(new Condition());
+							}
+							return null;
+						});
+
+		return InstrumentedResourceMapping.wrap(mapping);
+	}
+
+	public void testSearchRowsAreCounted() {
+		IResourceMapping<Condition, ConditionOccurrence> mapping = searchMapping();
+		List<String> includes = new ArrayList<String>(Arrays.asList("Condition:subject"));
+
+		mapping.searchWithoutParams(0, 10, new ArrayList<IBaseResource>(), includes, null);
+		mapping.searchWithParams(0, 10, new ArrayList<ParameterWrapper>(), new ArrayList<IBaseResource>(), includes,
+				null);
+
+		assertEquals(Long.valueOf(1L), rows.get("searchWithoutParams"));
+		assertEquals(Long.valueOf(1L), rows.get("searchWithParams"));
+	}
+
+	public void testReadWithinLimitsPasses() {
+		IResourceMapping<Condition, ConditionOccurrence> mapping = conditionMapping();
+
+		assertNull(mapping.toFHIR(new IdType(OmopCondition.FHIRTYPE, 1L)));
+		assertNull(QueryAccounting.current());
+	}
+
+	public void testReadOverCallLimitFails() {
+		IResourceMapping<Condition, ConditionOccurrence> mapping = conditionMapping();
+		QueryAccounting.MAX_CALLS = 0;
+
+		try {
+			mapping.toFHIR(new IdType(OmopCondition.FHIRTYPE, 1L));
+			fail("A read over QUERY_ACCOUNTING_MAX_CALLS must fail in fail mode");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Condition.toFHIR"));
+		}
+		assertNull(QueryAccounting.current());
+	}
+
+	/**
+	 * One read per row inside one request, the N+1 pattern.
+	 */
+	public void testReadsInLoopFail() {
+		IResourceMapping<Condition, ConditionOccurrence> mapping = conditionMapping();
+
+		QueryAccounting.begin("Condition.search");
+		for (long id = 1L; id <= QueryAccounting.MAX_REPEATS + 1; id++) {
+			mapping.toFHIR(new IdType(OmopCondition.FHIRTYPE, id));
+		}
+		QueryAccounting.Scope scope = QueryAccounting.end();
+
+		assertNotNull(scope);
+		assertTrue(scope.isViolation());
+		assertEquals(1, scope.getRepeatedCallSites(QueryAccounting.MAX_REPEATS).size());
+		assertTrue(scope.getRepeatedCallSites(QueryAccounting.MAX_REPEATS).get(0)
+				.contains("ConditionOccurrenceService.findById"));
+		try {
+			scope.verify();
+			fail("A repeated call site must fail in fail mode");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("ConditionOccurrenceService.findById"));
+		}
+	}
+
+	public void testFailedReadClosesScope() {
+		IResourceMapping<Condition, ConditionOccurrence> mapping = conditionMapping();
+		failingMethods.add("findById");
+		QueryAccounting.MAX_CALLS = 0;
+
+		try {
+			mapping.toFHIR(new IdType(OmopCondition.FHIRTYPE, 1L));
+			fail("The service failure must reach the caller");
+		} catch (IllegalArgumentException e) {
+			// The query failure, not the accounting violation.
+			assertEquals("Query failed", e.getMessage());
+		}
+		assertNull(QueryAccounting.current());
+	}
+}
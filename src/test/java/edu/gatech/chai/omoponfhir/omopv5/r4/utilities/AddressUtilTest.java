@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.Address;
+
+import edu.gatech.chai.omopv5.dba.service.LocationService;
+import edu.gatech.chai.omopv5.model.entity.Location;
+import junit.framework.TestCase;
+
+/**
+ * Concurrent writes of one address against a LocationService that does not
+ * have it yet.
+ */
+public class AddressUtilTest extends TestCase {
+	private final AtomicInteger searches = new AtomicInteger();
+	private final AtomicInteger creates = new AtomicInteger();
+	private final CountDownLatch searching = new CountDownLatch(1);
+	private final CountDownLatch release = new CountDownLatch(1);
+	// The first searchByAddress fails if set.
+	private final AtomicBoolean failSearch = new AtomicBoolean();
+
+	@Override
+	protected void setUp() {
+		AddressUtil.clearCache();
+	}
+
+	@Override
+	protected void tearDown() {
+		release.countDown();
+		AddressUtil.clearCache();
+	}
+
+	/**
+	 * searchByAddress blocks until release, so that the other writers arrive
+	 * while the first one is still resolving the address.
+	 */
+	private LocationService locationService() {
+		return (LocationService) Proxy.newProxyInstance(LocationService.class.getClassLoader(),
+				new Class<?>[] { LocationService.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "searchByAddress":
+						searches.incrementAndGet();
+						searching.countDown();
+						release.await(10, TimeUnit.SECONDS);
+						if (failSearch.getAndSet(false)) {
+							throw new IllegalStateException("Search failed");
+						}
+						return null;
+					case "create":
+						creates.incrementAndGet();
+						return args[0];
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private static Address address() {
+		Address address = new Address();
+		address.addLine("1 Main  Street");
+		address.setCity("Atlanta");
+		address.setState("GA");
+		address.setPostalCode("30332");
+		return address;
+	}
+
+	private List<Future<Location>> writeConcurrently(ExecutorService executor, LocationService service, int writers)
+			throws InterruptedException {
+		List<Future<Location>> retVal = new ArrayList<Future<Location>>();
+		retVal.add(executor.submit(() -> AddressUtil.searchAndUpdate(service, address(), null)));
+		assertTrue(searching.await(10, TimeUnit.SECONDS));
+		for (int i = 1; i < writers; i++) {
+			retVal.add(executor.submit(() -> AddressUtil.searchAndUpdate(service, address(), null)));
+		}
+		// Let the writers reach the in-flight lookup.
+		Thread.sleep(200);
+		release.countDown();
+
+		return retVal;
+	}
+
+	public void testConcurrentWritesCreateOneLocation() throws Exception {
+		LocationService service = locationService();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Location>> results = writeConcurrently(executor, service, 8);
+
+			Location location = results.get(0).get(10, TimeUnit.SECONDS);
+			assertNotNull(location);
+			for (Future<Location> result : results) {
+				assertSame(location, result.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(1, searches.get());
+		assertEquals(1, creates.get());
+
+		// The address is cached, with the whitespace and case normalized.
+		Address sameAddress = address();
+		sameAddress.getLine().get(0).setValue(" 1 MAIN STREET ");
+		assertNotNull(AddressUtil.searchAndUpdate(service, sameAddress, null));
+		assertEquals(1, searches.get());
+	}
+
+	/**
+	 * If the first writer fails, the waiting writers resolve the address on
+	 * their own instead of failing with it.
+	 */
+	public void testFailedLookupIsRetriedByWaitingWriters() throws Exception {
+		LocationService service = locationService();
+		failSearch.set(true);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Location>> results = writeConcurrently(executor, service, 4);
+			try {
+				results.get(0).get(10, TimeUnit.SECONDS);
+				fail("The search failure must reach the first writer");
+			} catch (ExecutionException e) {
+				assertEquals("Search failed", e.getCause().getMessage());
+			}
+
+			Location location = results.get(1).get(10, TimeUnit.SECONDS);
+			assertNotNull(location);
+			for (Future<Location> result : results.subList(1, results.size())) {
+				assertSame(location, result.get(10, TimeUnit.SECONDS));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(2, searches.get());
+		assertEquals(1, creates.get());
+	}
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.gatech.chai.omoponfhir.local.model.FhirOmopVocabularyMapEntry;
+import edu.gatech.chai.omoponfhir.omopv5.r4.mapping.OmopCodeableConceptMapping;
+import junit.framework.TestCase;
+
+/**
+ * Merges the built-in code systems with FhirOmopVocabularyMap rows.
+ */
+public class CodeSystemRegistryTest extends TestCase {
+	private static final String NDFRT_URL = "http://hl7.org/fhir/ndfrt";
+	private static final String NDFRT_OID = "urn:oid:2.16.840.1.113883.6.209";
+
+	private final List<FhirOmopVocabularyMapEntry> entries = new ArrayList<FhirOmopVocabularyMapEntry>();
+
+	private void addEntry(String omopVocabulary, String fhirUrlSystem, String otherSystem) {
+		FhirOmopVocabularyMapEntry entry = new FhirOmopVocabularyMapEntry();
+		entry.setOmopConceptCodeName(omopVocabulary);
+		entry.setFhirUrlSystemName(fhirUrlSystem);
+		entry.setOtherSystemName(otherSystem);
+		entries.add(entry);
+	}
+
+	private CodeSystemRegistry.Snapshot build() {
+		return CodeSystemRegistry.build(OmopCodeableConceptMapping.values(), entries);
+	}
+
+	public void testBuiltInSystems() {
+		CodeSystemRegistry.Snapshot snapshot = build();
+
+		assertEquals("SNOMED", snapshot.omopVocabularyByFhirSystem.get("http://snomed.info/sct"));
+		assertEquals("http://loinc.org", snapshot.fhirSystemByOmopVocabulary.get("LOINC"));
+		assertNull(snapshot.omopVocabularyByFhirSystem.get(NDFRT_OID));
+	}
+
+	public void testTableOverridesBuiltInSystems() {
+		addEntry("ICD10CM", "http://hl7.org/fhir/sid/icd-10-us", null);
+		addEntry("SNOMED", "http://snomed.info/sct", "urn:oid:2.16.840.1.113883.6.96");
+		addEntry("Local SNOMED", "http://snomed.info/sct", null);
+		addEntry("CPT4", null, "urn:oid:2.16.840.1.113883.6.12");
+
+		CodeSystemRegistry.Snapshot snapshot = build();
+
+		assertEquals("http://hl7.org/fhir/sid/icd-10-us", snapshot.fhirSystemByOmopVocabulary.get("ICD10CM"));
+		// The built-in URI of the vocabulary is still matched.
+		assertEquals("ICD10CM", snapshot.omopVocabularyByFhirSystem.get("http://hl7.org/fhir/sid/icd-10-cm"));
+		assertEquals("ICD10CM", snapshot.omopVocabularyByFhirSystem.get("http://hl7.org/fhir/sid/icd-10-us"));
+
+		assertEquals("SNOMED", snapshot.omopVocabularyByFhirSystem.get("http://snomed.info/sct"));
+		assertEquals("SNOMED", snapshot.omopVocabularyByFhirSystem.get("urn:oid:2.16.840.1.113883.6.96"));
+		assertEquals("http://snomed.info/sct", snapshot.fhirSystemByOmopVocabulary.get("Local SNOMED"));
+
+		// Without fhir_url_system, other_system is the FHIR system of the vocabulary.
+		assertEquals("urn:oid:2.16.840.1.113883.6.12", snapshot.fhirSystemByOmopVocabulary.get("CPT4"));
+	}
+
+	/**
+	 * NDFRT and VA Product share their systems. The first row wins.
+	 */
+	public void testFirstRowOfDuplicateSystemWins() {
+		addEntry("NDFRT", NDFRT_URL, NDFRT_OID);
+		addEntry("VA Product", NDFRT_URL, NDFRT_OID);
+
+		CodeSystemRegistry.Snapshot snapshot = build();
+
+		assertEquals("NDFRT", snapshot.omopVocabularyByFhirSystem.get(NDFRT_URL));
+		assertEquals("NDFRT", snapshot.omopVocabularyByFhirSystem.get(NDFRT_OID));
+		assertEquals(NDFRT_URL, snapshot.fhirSystemByOmopVocabulary.get("NDFRT"));
+		assertEquals(NDFRT_URL, snapshot.fhirSystemByOmopVocabulary.get("VA Product"));
+	}
+
+	public void testFirstRowOfDuplicateVocabularyWins() {
+		addEntry("NDFRT", NDFRT_OID, null);
+		addEntry("NDFRT", NDFRT_URL, null);
+
+		CodeSystemRegistry.Snapshot snapshot = build();
+
+		assertEquals(NDFRT_OID, snapshot.fhirSystemByOmopVocabulary.get("NDFRT"));
+		assertEquals("NDFRT", snapshot.omopVocabularyByFhirSystem.get(NDFRT_URL));
+	}
+
+	public void testBlankValuesAreIgnored() {
+		addEntry("", "http://example.org/empty", null);
+		addEntry(null, "http://example.org/null", null);
+		addEntry("LOINC", "  ", " http://loinc.org/alt ");
+
+		CodeSystemRegistry.Snapshot snapshot = build();
+
+		assertNull(snapshot.omopVocabularyByFhirSystem.get("http://example.org/empty"));
+		assertNull(snapshot.omopVocabularyByFhirSystem.get("http://example.org/null"));
+		assertEquals("LOINC", snapshot.omopVocabularyByFhirSystem.get("http://loinc.org/alt"));
+		assertEquals("http://loinc.org/alt", snapshot.fhirSystemByOmopVocabulary.get("LOINC"));
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+import junit.framework.TestCase;
+
+/**
+ * Builds a dictionary file and reads it back.
+ */
+public class ConceptDictionaryTest extends TestCase {
+	// In UTF-16 order the surrogate pair of U+1F600 sorts before U+FFFD. In
+	// code point order, which is the order of the database, it sorts after.
+	private static final String[] CODES = { "10", "9", "ABC", "abc", "\u00e9", "\uFFFD", "\uD83D\uDE00", "" };
+
+	private Path file;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = Files.createTempFile("concept-dictionary", ".bin");
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	private ConceptDictionary build() throws IOException {
+		ConceptDictionary.Builder builder = new ConceptDictionary.Builder();
+		// Added out of concept_id order.
+		for (int i = CODES.length - 1; i >= 0; i--) {
+			builder.add(100 + i, "SNOMED", "Condition", "Clinical Finding", i % 2 == 0 ? "S" : null, CODES[i],
+					"Concept " + i);
+		}
+		builder.add(50, "LOINC", "Measurement", "Lab Test", "S", "ABC", "LOINC ABC");
+		builder.write(file, "v5.0 01-JAN-24");
+
+		return new ConceptDictionary(file);
+	}
+
+	public void testFindIndexRoundTrip() throws IOException {
+		ConceptDictionary dictionary = build();
+
+		assertEquals(CODES.length + 1, dictionary.size());
+		assertEquals("v5.0 01-JAN-24", dictionary.getVocabularyVersion());
+		for (int i = 0; i < CODES.length; i++) {
+			int index = dictionary.findIndex("SNOMED", CODES[i]);
+			assertTrue("Code " + i + " not found", index != ConceptDictionary.NOT_FOUND);
+			assertEquals(100 + i, dictionary.getConceptId(index));
+			assertEquals(CODES[i], dictionary.getConceptCode(index));
+			assertEquals("Concept " + i, dictionary.getConceptName(index));
+			assertEquals(index, dictionary.indexOf(100 + i));
+		}
+
+		int loinc = dictionary.findIndex("LOINC", "ABC");
+		assertEquals(50, dictionary.getConceptId(loinc));
+		assertEquals("LOINC", dictionary.getVocabularyId(loinc));
+	}
+
+	public void testNotFound() throws IOException {
+		ConceptDictionary dictionary = build();
+
+		assertEquals(ConceptDictionary.NOT_FOUND, dictionary.findIndex("SNOMED", "Abc"));
+		assertEquals(ConceptDictionary.NOT_FOUND, dictionary.findIndex("RxNorm", "ABC"));
+		assertEquals(ConceptDictionary.NOT_FOUND, dictionary.findIndex("SNOMED", null));
+		assertEquals(ConceptDictionary.NOT_FOUND, dictionary.findConceptId("LOINC", "abc"));
+		assertEquals(ConceptDictionary.NOT_FOUND, dictionary.indexOf(99));
+	}
+
+	public void testToConcept() throws IOException {
+		ConceptDictionary dictionary = build();
+
+		Concept concept = dictionary.toConcept(dictionary.indexOf(100));
+		assertEquals(Long.valueOf(100), concept.getId());
+		assertEquals("SNOMED", concept.getVocabularyId());
+		assertEquals("Condition", concept.getDomainId());
+		assertEquals("Clinical Finding", concept.getConceptClassId());
+		assertEquals(Character.valueOf('S'), concept.getStandardConcept());
+		assertEquals("10", concept.getConceptCode());
+
+		assertNull(dictionary.toConcept(dictionary.indexOf(101)).getStandardConcept());
+	}
+
+	public void testCompareCodePoints() {
+		assertTrue("\uD83D\uDE00".compareTo("\uFFFD") < 0);
+		assertTrue(ConceptDictionary.compareCodePoints("\uD83D\uDE00", "\uFFFD") > 0);
+		assertTrue(ConceptDictionary.compareCodePoints("\uFFFD", "\uD83D\uDE00") < 0);
+		assertTrue(ConceptDictionary.compareCodePoints("ab", "abc") < 0);
+		assertTrue(ConceptDictionary.compareCodePoints("abc", "ab") > 0);
+		assertEquals(0, ConceptDictionary.compareCodePoints("\u00e9", "\u00e9"));
+	}
+}
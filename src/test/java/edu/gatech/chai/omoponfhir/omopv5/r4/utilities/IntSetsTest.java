@@ -0,0 +1,69 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class IntSetsTest extends TestCase {
+	private static final int[] A = { 1, 3, 5, 7, 9 };
+	private static final int[] B = { 2, 3, 4, 9, 10 };
+
+	private static void assertSet(int[] expected, int[] actual) {
+		assertTrue(Arrays.toString(actual), Arrays.equals(expected, actual));
+	}
+
+	public void testContains() {
+		assertTrue(IntSets.contains(A, 1));
+		assertTrue(IntSets.contains(A, 9));
+		assertFalse(IntSets.contains(A, 4));
+		assertFalse(IntSets.contains(IntSets.EMPTY, 0));
+	}
+
+	public void testUnion() {
+		assertSet(new int[] { 1, 2, 3, 4, 5, 7, 9, 10 }, IntSets.union(A, B));
+		assertSet(A, IntSets.union(A, IntSets.EMPTY));
+		assertSet(B, IntSets.union(IntSets.EMPTY, B));
+		assertSet(A, IntSets.union(A, A));
+	}
+
+	public void testIntersect() {
+		assertSet(new int[] { 3, 9 }, IntSets.intersect(A, B));
+		assertSet(IntSets.EMPTY, IntSets.intersect(A, new int[] { 2, 4 }));
+		assertSet(IntSets.EMPTY, IntSets.intersect(IntSets.EMPTY, B));
+		assertSet(A, IntSets.intersect(A, A));
+	}
+
+	public void testDifference() {
+		assertSet(new int[] { 1, 5, 7 }, IntSets.difference(A, B));
+		assertSet(new int[] { 2, 4, 10 }, IntSets.difference(B, A));
+		assertSet(A, IntSets.difference(A, IntSets.EMPTY));
+		assertSet(IntSets.EMPTY, IntSets.difference(A, A));
+	}
+
+	public void testBuilder() {
+		IntSets.Builder builder = new IntSets.Builder(1);
+		for (int value : new int[] { 5, 1, 5, 3, 1, 8 }) {
+			builder.add(value);
+		}
+
+		assertEquals(6, builder.size());
+		assertSet(new int[] { 5, 1, 5, 3, 1, 8 }, builder.toArray());
+		assertSet(new int[] { 1, 3, 5, 8 }, builder.toSortedSet());
+		assertSet(IntSets.EMPTY, new IntSets.Builder().toSortedSet());
+	}
+}
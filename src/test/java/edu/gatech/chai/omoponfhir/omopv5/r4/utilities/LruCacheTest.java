@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class LruCacheTest extends TestCase {
+
+	public void testEvictsLeastRecentlyUsed() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(2);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		assertEquals(Integer.valueOf(1), cache.get("a"));
+		cache.put("c", 3);
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get("b"));
+		assertEquals(Integer.valueOf(1), cache.get("a"));
+		assertEquals(Integer.valueOf(3), cache.get("c"));
+	}
+
+	public void testNullsAreNotCached() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(2);
+		cache.put(null, 1);
+		cache.put("a", null);
+
+		assertEquals(0, cache.size());
+	}
+
+	public void testComputeIfAbsent() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(10);
+		AtomicInteger loads = new AtomicInteger();
+
+		assertEquals(Integer.valueOf(3), cache.computeIfAbsent("abc", key -> {
+			loads.incrementAndGet();
+			return key.length();
+		}));
+		assertEquals(Integer.valueOf(3), cache.computeIfAbsent("abc", key -> {
+			loads.incrementAndGet();
+			return -1;
+		}));
+		assertEquals(1, loads.get());
+
+		// A null is returned but not cached, so the next call loads again.
+		assertNull(cache.computeIfAbsent("missing", key -> null));
+		assertEquals(Integer.valueOf(7), cache.computeIfAbsent("missing", key -> 7));
+	}
+
+	public void testHitsAndMisses() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(10);
+		cache.put("a", 1);
+		cache.get("a");
+		cache.get("a");
+		cache.get("b");
+
+		assertEquals(2L, cache.getHits());
+		assertEquals(1L, cache.getMisses());
+	}
+
+	public void testSnapshotIsInRecencyOrder() {
+		LruCache<String, Integer> cache = new LruCache<String, Integer>(10);
+		cache.put("a", 1);
+		cache.put("b", 2);
+		cache.put("c", 3);
+		cache.get("a");
+
+		assertEquals(Arrays.asList("b", "c", "a"), new ArrayList<String>(cache.snapshot().keySet()));
+
+		cache.remove("c");
+		assertEquals(Arrays.asList("b", "a"), new ArrayList<String>(cache.snapshot().keySet()));
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import junit.framework.TestCase;
+
+public class PersonIdentifierIndexTest extends TestCase {
+
+	private static void assertKey(String system, String value, String personSourceValue) {
+		String[] key = PersonIdentifierIndex.parsePersonSourceValue(personSourceValue);
+		assertNotNull(personSourceValue, key);
+		assertEquals(system, key[0]);
+		assertEquals(value, key[1]);
+	}
+
+	public void testValueWithoutSystem() {
+		assertKey("", "12345", "12345");
+		assertKey("", "12345", "  12345 ");
+	}
+
+	public void testSystemAndValue() {
+		assertKey("MRN", "12345", "MRN^12345");
+		assertKey("", "12345", "^12345");
+	}
+
+	/**
+	 * vocabulary^type code^value, as OmopPatient writes identifiers that have
+	 * a type instead of a system. The type code is not part of the key.
+	 */
+	public void testSystemTypeAndValue() {
+		assertKey("v2-0203", "12345", "v2-0203^MR^12345");
+		assertKey("v2-0203", "12345", "v2-0203^^12345");
+	}
+
+	public void testNoValue() {
+		assertNull(PersonIdentifierIndex.parsePersonSourceValue(null));
+		assertNull(PersonIdentifierIndex.parsePersonSourceValue(""));
+		assertNull(PersonIdentifierIndex.parsePersonSourceValue("   "));
+		assertNull(PersonIdentifierIndex.parsePersonSourceValue("^"));
+	}
+}
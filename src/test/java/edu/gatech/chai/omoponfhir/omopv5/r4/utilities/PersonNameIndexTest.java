@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.gatech.chai.omopv5.dba.service.FPersonService;
+import edu.gatech.chai.omopv5.dba.service.ParameterWrapper;
+import edu.gatech.chai.omopv5.model.entity.FPerson;
+import junit.framework.TestCase;
+
+/**
+ * Builds the index from a stub FPersonService and searches it.
+ */
+public class PersonNameIndexTest extends TestCase {
+	private int maxMatches;
+	private final List<FPerson> persons = new ArrayList<FPerson>();
+
+	@Override
+	protected void setUp() {
+		maxMatches = PersonNameIndex.MAX_MATCHES;
+		persons.add(person(1L, "Smith", "John", null));
+		persons.add(person(2L, "Smithson", "Mary", "Ann"));
+		persons.add(person(3L, "Jones", "Smitty", null));
+		persons.add(person(4L, "Brown", "Anna", "Marie"));
+	}
+
+	@Override
+	protected void tearDown() {
+		PersonNameIndex.MAX_MATCHES = maxMatches;
+	}
+
+	private static FPerson person(Long id, String family, String given1, String given2) {
+		FPerson fPerson = new FPerson();
+		fPerson.setId(id);
+		fPerson.setFamilyName(family);
+		fPerson.setGivenName1(given1);
+		fPerson.setGivenName2(given2);
+		return fPerson;
+	}
+
+	/**
+	 * F_PERSON of the persons list, read by id &gt; the value of the id
+	 * parameter, in id order.
+	 */
+	private FPersonService fPersonService() {
+		return (FPersonService) Proxy.newProxyInstance(FPersonService.class.getClassLoader(),
+				new Class<?>[] { FPersonService.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "getSize":
+						return Long.valueOf(persons.size());
+					case "searchWithParams":
+						@SuppressWarnings("unchecked")
+						List<ParameterWrapper> params = (List<ParameterWrapper>) args[2];
+						long lastId = params == null || params.isEmpty() ? 0L
+								: Long.parseLong(params.get(0).getValues().get(0));
+						List<FPerson> page = new ArrayList<FPerson>();
+						for (FPerson fPerson : persons) {
+							if (fPerson.getId() > lastId && page.size() < (Integer) args[1]) {
+								page.add(fPerson);
+							}
+						}
+						return page;
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+
+	private PersonNameIndex built() {
+		PersonNameIndex index = new PersonNameIndex(true);
+		index.build(fPersonService());
+		assertTrue(index.isReady());
+		return index;
+	}
+
+	public void testDisabled() {
+		PersonNameIndex index = new PersonNameIndex(false);
+		index.build(fPersonService());
+
+		assertFalse(index.isReady());
+		assertNull(index.find("Smith", PersonNameIndex.NAME_FIELDS, false));
+	}
+
+	public void testFindContains() {
+		PersonNameIndex index = built();
+
+		assertEquals(Arrays.asList(1L, 2L), index.find("mit", PersonNameIndex.FAMILY_FIELDS, false));
+		assertEquals(Arrays.asList(3L), index.find("mit", PersonNameIndex.GIVEN_FIELDS, false));
+		assertEquals(Arrays.asList(1L, 2L, 3L), index.find("mit", PersonNameIndex.NAME_FIELDS, false));
+		assertEquals(Arrays.asList(2L, 4L), index.find("ann", PersonNameIndex.GIVEN_FIELDS, false));
+		assertTrue(index.find("xyz", PersonNameIndex.NAME_FIELDS, false).isEmpty());
+	}
+
+	public void testFindIsCaseInsensitive() {
+		PersonNameIndex index = built();
+
+		assertEquals(Arrays.asList(1L, 2L), index.find("SMITH", PersonNameIndex.FAMILY_FIELDS, false));
+		assertEquals(Arrays.asList(1L, 2L), index.find(" smith ", PersonNameIndex.FAMILY_FIELDS, false));
+	}
+
+	/**
+	 * Exact searches are case sensitive, which the lower-cased index cannot
+	 * answer.
+	 */
+	public void testExactIsLeftToTheDatabase() {
+		PersonNameIndex index = built();
+
+		assertNull(index.find("Smith", PersonNameIndex.FAMILY_FIELDS, true));
+	}
+
+	public void testShortTermIsLeftToTheDatabase() {
+		PersonNameIndex index = built();
+
+		assertNull(index.find("Sm", PersonNameIndex.FAMILY_FIELDS, false));
+		assertNull(index.find(null, PersonNameIndex.FAMILY_FIELDS, false));
+	}
+
+	public void testTooManyMatches() {
+		PersonNameIndex index = built();
+		PersonNameIndex.MAX_MATCHES = 1;
+
+		assertNull(index.find("smith", PersonNameIndex.FAMILY_FIELDS, false));
+		assertEquals(Arrays.asList(3L), index.find("jones", PersonNameIndex.FAMILY_FIELDS, false));
+	}
+
+	public void testPutAndRemove() {
+		PersonNameIndex index = built();
+
+		index.put(person(1L, "Taylor", "John", null));
+		assertEquals(Arrays.asList(2L), index.find("smith", PersonNameIndex.FAMILY_FIELDS, false));
+		assertEquals(Arrays.asList(1L), index.find("taylor", PersonNameIndex.FAMILY_FIELDS, false));
+
+		index.put(person(5L, "Goldsmith", null, null));
+		assertEquals(Arrays.asList(2L, 5L), index.find("smith", PersonNameIndex.FAMILY_FIELDS, false));
+
+		index.remove(2L);
+		assertEquals(Arrays.asList(5L), index.find("smith", PersonNameIndex.FAMILY_FIELDS, false));
+	}
+}
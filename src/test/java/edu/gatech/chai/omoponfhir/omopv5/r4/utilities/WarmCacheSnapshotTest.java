@@ -0,0 +1,119 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Georgia Tech Research Institute
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package edu.gatech.chai.omoponfhir.omopv5.r4.utilities;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.gatech.chai.omopv5.model.entity.Concept;
+import junit.framework.TestCase;
+
+/**
+ * Writes the vocabulary caches to a snapshot file and loads them back.
+ */
+public class WarmCacheSnapshotTest extends TestCase {
+	private static final String VERSION = "v5.0 01-JAN-24";
+
+	private Path file;
+	private WarmCacheSnapshot snapshot;
+
+	@Override
+	protected void setUp() throws IOException {
+		file = Files.createTempFile("warm-cache", ".bin");
+		Files.delete(file);
+		snapshot = new WarmCacheSnapshot(file);
+		ConceptCache.getInstance().clear();
+		IngredientCache.getInstance().clear();
+	}
+
+	@Override
+	protected void tearDown() throws IOException {
+		ConceptCache.getInstance().clear();
+		IngredientCache.getInstance().clear();
+		Files.deleteIfExists(file);
+	}
+
+	private static Concept concept(long id, String vocabularyId, String conceptCode, Character standardConcept) {
+		Concept concept = new Concept(id);
+		concept.setConceptName("Concept " + id);
+		concept.setDomainId("Drug");
+		concept.setVocabularyId(vocabularyId);
+		concept.setConceptClassId("Ingredient");
+		concept.setStandardConcept(standardConcept);
+		concept.setConceptCode(conceptCode);
+		return concept;
+	}
+
+	public void testWriteAndLoad() {
+		Concept aspirin = concept(1112807L, "RxNorm", "1191", 'S');
+		Concept caffeine = concept(1134439L, "RxNorm", "1886", null);
+		ConceptCache.getInstance().put(aspirin);
+		ConceptCache.getInstance().put(concept(4329847L, "SNOMED", "22298006", 'S'));
+		IngredientCache.getInstance().put(19059056L, Arrays.asList(aspirin, caffeine));
+		IngredientCache.getInstance().put(19019073L, null);
+
+		assertTrue(snapshot.write(VERSION));
+		assertTrue(Files.isRegularFile(file));
+
+		ConceptCache.getInstance().clear();
+		IngredientCache.getInstance().clear();
+		assertTrue(snapshot.load(VERSION));
+
+		assertEquals(2, ConceptCache.getInstance().size());
+		Concept loaded = ConceptCache.getInstance().get("RxNorm", "1191", () -> {
+			throw new AssertionError("Not loaded from the snapshot");
+		});
+		assertEquals(aspirin.getId(), loaded.getId());
+		assertEquals("Concept 1112807", loaded.getConceptName());
+		assertEquals("Drug", loaded.getDomainId());
+		assertEquals("Ingredient", loaded.getConceptClassId());
+		assertEquals(Character.valueOf('S'), loaded.getStandardConcept());
+		assertNotNull(ConceptCache.getInstance().get("SNOMED", "22298006", () -> null));
+
+		Map<Long, List<Concept>> drugs = IngredientCache.getInstance().snapshot();
+		assertEquals(2, drugs.size());
+		List<Concept> ingredients = drugs.get(19059056L);
+		assertEquals(2, ingredients.size());
+		assertEquals(caffeine.getId(), ingredients.get(1).getId());
+		assertNull(ingredients.get(1).getStandardConcept());
+		assertTrue(drugs.get(19019073L).isEmpty());
+	}
+
+	public void testOtherVocabularyVersionIsNotLoaded() {
+		ConceptCache.getInstance().put(concept(1112807L, "RxNorm", "1191", 'S'));
+		assertTrue(snapshot.write(VERSION));
+
+		ConceptCache.getInstance().clear();
+		assertFalse(snapshot.load("v5.0 01-JUL-24"));
+		assertEquals(0, ConceptCache.getInstance().size());
+	}
+
+	public void testEmptyCachesAreNotWritten() {
+		assertFalse(snapshot.write(VERSION));
+		assertFalse(Files.exists(file));
+		assertFalse(snapshot.load(VERSION));
+	}
+
+	public void testOtherFileIsNotLoaded() throws IOException {
+		Files.write(file, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+		assertFalse(snapshot.load(VERSION));
+	}
+}